@@ -0,0 +1,219 @@
+import java.util.*;
+
+/**
+ * ASTRewriter is the base for optimization passes that run on the parsed
+ * program before the Resolver. Each visit returns the rewritten node;
+ * the default copies a node only when one of its children changed, so a
+ * pass overrides just the nodes it cares about.
+ *
+ * A statement visit may also return a List of statements, which is
+ * spliced into the enclosing block, or null to drop the statement.
+ */
+public abstract class ASTRewriter implements ASTVisitor {
+    /**
+     * Rewrite every statement of a program.
+     *
+     * @param program top-level statements
+     * @return the rewritten statements
+     */
+    public List<Statement> rewrite(List<Statement> program) {
+        return rewriteBlock(program);
+    }
+
+    protected Expression rewrite(Expression expr) {
+        return (Expression) expr.accept(this);
+    }
+
+    protected List<Statement> rewriteBlock(List<Statement> statements) {
+        List<Statement> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Statement stmt : statements) {
+            Object rewritten = stmt.accept(this);
+            if (rewritten instanceof List<?> spliced) {
+                for (Object s : spliced) {
+                    result.add((Statement) s);
+                }
+                changed = true;
+            } else if (rewritten != null) {
+                result.add((Statement) rewritten);
+                changed |= rewritten != stmt;
+            } else {
+                changed = true;
+            }
+        }
+        return changed ? result : statements;
+    }
+
+    private List<Expression> rewriteAll(List<Expression> expressions) {
+        List<Expression> result = new ArrayList<>(expressions.size());
+        boolean changed = false;
+        for (Expression expr : expressions) {
+            Expression rewritten = rewrite(expr);
+            result.add(rewritten);
+            changed |= rewritten != expr;
+        }
+        return changed ? result : expressions;
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        Expression left = rewrite(expr.getLeft());
+        Expression right = rewrite(expr.getRight());
+        if (left == expr.getLeft() && right == expr.getRight()) {
+            return expr;
+        }
+        return new BinaryExpression(left, expr.getOperator(), right, expr.getLine());
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        Expression operand = rewrite(expr.getOperand());
+        if (operand == expr.getOperand()) {
+            return expr;
+        }
+        return new UnaryExpression(expr.getOperator(), operand, expr.getLine());
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        Expression inner = rewrite(expr.getExpression());
+        if (inner == expr.getExpression()) {
+            return expr;
+        }
+        return new GroupExpression(inner, expr.getLine());
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        List<Expression> arguments = rewriteAll(expr.getArguments());
+        if (arguments == expr.getArguments()) {
+            return expr;
+        }
+        return new CallExpression(expr.getCallee(), arguments, expr.getLine());
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        return expr;
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        List<VarDeclarator> declarators = new ArrayList<>();
+        boolean changed = false;
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            Expression initializer = rewrite(decl.getInitializer());
+            if (initializer == decl.getInitializer()) {
+                declarators.add(decl);
+            } else {
+                declarators.add(new VarDeclarator(decl.getName(), initializer));
+                changed = true;
+            }
+        }
+        return changed ? new VarDeclarationStatement(declarators, stmt.getLine()) : stmt;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        Expression value = rewrite(stmt.getValue());
+        if (value == stmt.getValue()) {
+            return stmt;
+        }
+        return new VarAssignmentStatement(stmt.getName(), value, stmt.getLine());
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        Expression expr = rewrite(stmt.getExpression());
+        if (expr == stmt.getExpression()) {
+            return stmt;
+        }
+        return new ExpressionStatement(expr, stmt.getLine());
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        Expression condition = rewrite(stmt.getCondition());
+        List<Statement> thenBranch = rewriteBlock(stmt.getThenBranch());
+        List<Expression> elifConditions = rewriteAll(stmt.getElifConditions());
+        List<List<Statement>> elifBranches = new ArrayList<>();
+        boolean changed = condition != stmt.getCondition() || thenBranch != stmt.getThenBranch()
+                || elifConditions != stmt.getElifConditions();
+        for (List<Statement> branch : stmt.getElifBranches()) {
+            List<Statement> rewritten = rewriteBlock(branch);
+            elifBranches.add(rewritten);
+            changed |= rewritten != branch;
+        }
+        List<Statement> elseBranch = stmt.hasElse() ? rewriteBlock(stmt.getElseBranch()) : null;
+        changed |= elseBranch != stmt.getElseBranch();
+        if (!changed) {
+            return stmt;
+        }
+        return new IfStatement(condition, thenBranch, elifConditions, elifBranches, elseBranch, stmt.getLine());
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        Expression condition = rewrite(stmt.getCondition());
+        List<Statement> body = rewriteBlock(stmt.getBody());
+        if (condition == stmt.getCondition() && body == stmt.getBody()) {
+            return stmt;
+        }
+        return new WhileStatement(condition, body, stmt.getLine());
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        List<Statement> body = rewriteBlock(stmt.getBody());
+        Expression condition = rewrite(stmt.getCondition());
+        if (condition == stmt.getCondition() && body == stmt.getBody()) {
+            return stmt;
+        }
+        return new RunStatement(body, condition, stmt.getLine());
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        if (!stmt.hasValue()) {
+            return stmt;
+        }
+        Expression value = rewrite(stmt.getValue());
+        if (value == stmt.getValue()) {
+            return stmt;
+        }
+        return new ReturnStatement(value, stmt.getLine());
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        Expression expr = rewrite(stmt.getExpression());
+        if (expr == stmt.getExpression()) {
+            return stmt;
+        }
+        return new PrintStatement(expr, stmt.getLine());
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        List<Statement> body = rewriteBlock(stmt.getBody());
+        if (body == stmt.getBody()) {
+            return stmt;
+        }
+        return new FunctionDeclarationStatement(stmt.getName(), stmt.getParameters(), body, stmt.getLine());
+    }
+}
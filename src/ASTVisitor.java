@@ -7,6 +7,7 @@ public interface ASTVisitor {
     Object visitGroupExpression(GroupExpression expr);
     Object visitCallExpression(CallExpression expr);
     Object visitInputExpression(InputExpression expr);
+    Object visitBuiltinRefExpression(BuiltinRefExpression expr);
     
     // Statement visit methods
     Object visitVarDeclarationStatement(VarDeclarationStatement stmt);
@@ -5,6 +5,8 @@ public class BinaryExpression extends Expression {
     private final Expression left;
     private final TokenType operator;
     private final Expression right;
+    // Set by ParallelEvaluator when both operands are independent pure calls
+    private boolean forkable;
     
     public BinaryExpression(Expression left, TokenType operator, Expression right, int line) {
         super(ExpressionType.BINARY, line);
@@ -24,6 +26,18 @@ public class BinaryExpression extends Expression {
     public Expression getRight() {
         return right;
     }
+
+    /**
+     * Whether the operands are calls of pure functions, so the right one
+     * can run on another thread while this one evaluates the left.
+     */
+    public boolean isForkable() {
+        return forkable;
+    }
+
+    public void setForkable(boolean forkable) {
+        this.forkable = forkable;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
@@ -0,0 +1,54 @@
+/**
+ * The built-in functions, each with the number of arguments it takes.
+ */
+public enum BuiltinFunction {
+    ABS("abs", 1),
+    MAX("max", 2),
+    MIN("min", 2),
+    PRINT("print", 1),
+    INPUT("input", 0);
+
+    private final String name;
+    private final int arity;
+
+    BuiltinFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * Find the built-in function with the given name.
+     *
+     * @param name name of the function
+     * @return the built-in, or null if the name is not a built-in
+     */
+    public static BuiltinFunction forName(String name) {
+        return switch (name) {
+            case "abs" -> ABS;
+            case "max" -> MAX;
+            case "min" -> MIN;
+            case "print" -> PRINT;
+            case "input" -> INPUT;
+            default -> null;
+        };
+    }
+
+    /**
+     * The error message for calling this built-in with the wrong number of arguments.
+     */
+    public String arityMessage() {
+        return switch (arity) {
+            case 0 -> name + "() takes no arguments";
+            case 1 -> name + "() takes 1 argument";
+            default -> name + "() takes " + arity + " arguments";
+        };
+    }
+}
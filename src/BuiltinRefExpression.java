@@ -0,0 +1,39 @@
+/**
+ * Represents the name of a built-in function used as a value, e.g. abs
+ * without a call. The parser emits this instead of a VariableExpression
+ * when a name is not a declared variable but is a built-in, so ordinary
+ * variable reads never need to check for built-in names.
+ */
+public class BuiltinRefExpression extends Expression {
+    private final BuiltinFunction function;
+
+    public BuiltinRefExpression(BuiltinFunction function, int line) {
+        super(ExpressionType.BUILTIN_REF, line);
+        this.function = function;
+    }
+
+    public BuiltinFunction getFunction() {
+        return function;
+    }
+
+    public String getName() {
+        return function.getName();
+    }
+
+    /**
+     * The name of a built-in used as a value, looking through parentheses.
+     *
+     * @return the name, or null if the expression is something else
+     */
+    public static String nameOf(Expression expr) {
+        while (expr instanceof GroupExpression group) {
+            expr = group.getExpression();
+        }
+        return expr instanceof BuiltinRefExpression ref ? ref.getName() : null;
+    }
+
+    @Override
+    public Object accept(ASTVisitor visitor) {
+        return visitor.visitBuiltinRefExpression(this);
+    }
+}
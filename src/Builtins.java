@@ -11,43 +11,69 @@ public class Builtins {
      * @return the result as an integer
      */
     public static int callFunction(String name, List<Integer> args) {
-        switch (name) {
-            case "abs":
-                if (args.size() != 1) {
-                    throw new RuntimeException("abs() takes 1 argument");
-                }
-                return Math.abs(args.get(0));
-
-            case "max":
-                if (args.size() != 2) {
-                    throw new RuntimeException("max() takes 2 arguments");
-                }
-                return Math.max(args.get(0), args.get(1));
-
-            case "min":
-                if (args.size() != 2) {
-                    throw new RuntimeException("min() takes 2 arguments");
-                }
-                return Math.min(args.get(0), args.get(1));
+        int[] values = new int[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.get(i);
+        }
+        return callFunction(name, values);
+    }
 
-            case "print":
-                if (args.size() != 1) {
-                    throw new RuntimeException("print() takes 1 argument");
-                }
-                System.out.println(args.get(0));
-                return args.get(0);
+    /**
+     * Handle calls to built-in functions with unboxed arguments.
+     *
+     * @param name name of the function
+     * @param args arguments of the function
+     * @return the result as an integer
+     */
+    public static int callFunction(String name, int... args) {
+        BuiltinFunction function = BuiltinFunction.forName(name);
+        if (function == null) {
+            throw new IllegalArgumentException("Unknown function: " + name);
+        }
+        if (args.length != function.getArity()) {
+            throw new RuntimeException(function.arityMessage());
+        }
+        return call(function, args.length > 0 ? args[0] : 0, args.length > 1 ? args[1] : 0);
+    }
 
-            case "input":
-                if (!args.isEmpty()) {
-                    throw new RuntimeException("input() takes no arguments");
-                }
+    /**
+     * Call a built-in whose argument count has already been checked.
+     * Arguments past the function's arity are ignored.
+     *
+     * @param function the built-in
+     * @param a first argument
+     * @param b second argument
+     * @return the result as an integer
+     */
+    public static int call(BuiltinFunction function, int a, int b) {
+        switch (function) {
+            case ABS:
+                return Math.abs(a);
+            case MAX:
+                return Math.max(a, b);
+            case MIN:
+                return Math.min(a, b);
+            case PRINT:
+                System.out.println(a);
+                return a;
+            case INPUT:
                 return SCANNER.nextInt();
-
             default:
-                throw new IllegalArgumentException("Unknown function: " + name);
+                throw new IllegalArgumentException("Unknown function: " + function);
         }
     }
 
+    /**
+     * Prompt for and read an integer, as the input expression does.
+     *
+     * @return the integer read
+     */
+    public static int readInput() {
+        Scanner scanner = new Scanner(System.in);
+        System.out.print("Input: ");
+        return scanner.nextInt();
+    }
+
     /**
      * Check whether the function is a built-in function.
      *
@@ -0,0 +1,448 @@
+import java.util.*;
+
+/**
+ * BytecodeCompiler turns a resolved program into Chunks for the VM. The
+ * top-level statements (other than function declarations) become chunk 0,
+ * whose slots are the globals; each top-level function becomes one more
+ * chunk, and calls refer to their callee by chunk index.
+ *
+ * The generated code behaves like the Interpreter, including its error
+ * messages: a call that the Interpreter would reject still evaluates its
+ * arguments and then fails at runtime, not at compile time.
+ */
+public class BytecodeCompiler implements ASTVisitor {
+    private final Map<String, Integer> functionIndex = new HashMap<>();
+    private final List<FunctionDeclarationStatement> functions = new ArrayList<>();
+
+    // state of the chunk being compiled
+    private int[] code;
+    private int count;
+    private List<String> strings;
+    private List<SwitchTable> switchTables;
+    private List<int[]> switchTargets;
+    private int stackDepth;
+    private int maxStack;
+    private int frameSize;
+    private boolean topLevel;
+    // jumps from top-level returns, patched at the end of the statement
+    private List<Integer> topLevelReturns;
+
+    /**
+     * Compile a program.
+     *
+     * @param program statements as returned by SPROLARunner.parse
+     * @return the chunks; chunk 0 is the top-level code
+     * @throws UnsupportedOperationException if the program has nested functions
+     */
+    public Chunk[] compile(List<Statement> program) {
+        // Functions are all defined before anything runs, so a later
+        // definition of a name replaces an earlier one everywhere.
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                Integer index = functionIndex.get(fn.getName());
+                if (index == null) {
+                    functionIndex.put(fn.getName(), functions.size() + 1);
+                    functions.add(fn);
+                } else {
+                    functions.set(index - 1, fn);
+                }
+            }
+        }
+
+        Chunk[] chunks = new Chunk[functions.size() + 1];
+        chunks[0] = compileTopLevel(program);
+        for (int i = 0; i < functions.size(); i++) {
+            chunks[i + 1] = compileFunction(functions.get(i));
+        }
+        return chunks;
+    }
+
+    private Chunk compileTopLevel(List<Statement> program) {
+        begin(0);
+        topLevel = true;
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement) {
+                continue;
+            }
+            topLevelReturns = new ArrayList<>();
+            if (stmt instanceof ExpressionStatement expr && BuiltinRefExpression.nameOf(expr.getExpression()) != null) {
+                // at top level a bare built-in name is evaluated for its
+                // value, which is then discarded
+                continue;
+            }
+            stmt.accept(this);
+            for (int jump : topLevelReturns) {
+                patch(jump);
+            }
+        }
+        topLevel = false;
+        emit(OpCode.CONST, 0);
+        emit(OpCode.RETURN);
+        return end("<top level>", 0);
+    }
+
+    private Chunk compileFunction(FunctionDeclarationStatement fn) {
+        begin(fn.getFrameSize());
+        for (Statement stmt : fn.getBody()) {
+            stmt.accept(this);
+        }
+        // falling off the end returns 0
+        emit(OpCode.CONST, 0);
+        emit(OpCode.RETURN);
+        return end(fn.getName(), fn.getParameters().size());
+    }
+
+    private void begin(int slots) {
+        code = new int[64];
+        count = 0;
+        strings = new ArrayList<>();
+        switchTables = new ArrayList<>();
+        switchTargets = new ArrayList<>();
+        stackDepth = 0;
+        maxStack = 0;
+        frameSize = slots;
+    }
+
+    private Chunk end(String name, int arity) {
+        return new Chunk(name, arity, frameSize, maxStack,
+                Arrays.copyOf(code, count), strings.toArray(new String[0]),
+                switchTables.toArray(new SwitchTable[0]), switchTargets.toArray(new int[0][]));
+    }
+
+    private void write(int value) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count++] = value;
+    }
+
+    private void emit(int op) {
+        write(op);
+        adjustStack(op);
+    }
+
+    private void emit(int op, int operand) {
+        write(op);
+        write(operand);
+        adjustStack(op);
+    }
+
+    /**
+     * Track how an instruction changes the operand stack depth, to size the
+     * stack each frame needs.
+     */
+    private void adjustStack(int op) {
+        switch (op) {
+            case OpCode.CONST, OpCode.LOAD_SLOT, OpCode.LOAD_GLOBAL, OpCode.INPUT, OpCode.FAIL -> stackDepth++;
+            case OpCode.STORE_SLOT, OpCode.STORE_GLOBAL, OpCode.ADD, OpCode.SUB, OpCode.MUL,
+                 OpCode.DIV, OpCode.MOD, OpCode.EQ, OpCode.NE, OpCode.LT, OpCode.LE, OpCode.GT,
+                 OpCode.GE, OpCode.MIN, OpCode.MAX, OpCode.JUMP_IF_ZERO, OpCode.JUMP_IF_NOT_ZERO,
+                 OpCode.PRINT, OpCode.POP, OpCode.RETURN, OpCode.SWITCH -> stackDepth--;
+            default -> {
+                // NEG, ABS, JUMP and PRINT_STRING leave the depth alone;
+                // calls adjust it themselves
+            }
+        }
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    /**
+     * Emit a jump with a placeholder target.
+     *
+     * @return position of the operand, for patch
+     */
+    private int emitJump(int op) {
+        emit(op, -1);
+        return count - 1;
+    }
+
+    /**
+     * Point a jump emitted by emitJump at the current position.
+     */
+    private void patch(int operand) {
+        code[operand] = count;
+    }
+
+    private int addString(String value) {
+        int index = strings.indexOf(value);
+        if (index < 0) {
+            index = strings.size();
+            strings.add(value);
+        }
+        return index;
+    }
+
+    private void fail(String message) {
+        emit(OpCode.FAIL, addString(message));
+    }
+
+    /**
+     * Fail in place of a call whose arguments are already on the stack.
+     */
+    private void failCall(String message, int argCount) {
+        fail(message);
+        stackDepth -= argCount;
+    }
+
+    private void compileBlock(List<Statement> statements) {
+        for (Statement stmt : statements) {
+            stmt.accept(this);
+        }
+    }
+
+    private void load(int depth, int slot) {
+        // the top-level code runs in the global frame, so its own slots are globals
+        emit(depth == 0 ? OpCode.LOAD_SLOT : OpCode.LOAD_GLOBAL, slot);
+    }
+
+    private void store(int depth, int slot) {
+        emit(depth == 0 ? OpCode.STORE_SLOT : OpCode.STORE_GLOBAL, slot);
+        if (depth == 0) {
+            frameSize = Math.max(frameSize, slot + 1);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        expr.getLeft().accept(this);
+        expr.getRight().accept(this);
+        emit(OpCode.forOperator(expr.getOperator()));
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        expr.getOperand().accept(this);
+        if (expr.getOperator() != TokenType.MINUS) {
+            throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+        }
+        emit(OpCode.NEG);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        emit(OpCode.CONST, (Integer) expr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        if (!expr.isResolved()) {
+            throw new RuntimeException("The VM cannot address variable '" + expr.getName() + "'");
+        }
+        load(expr.getDepth(), expr.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        expr.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        List<Expression> arguments = expr.getArguments();
+        for (Expression arg : arguments) {
+            arg.accept(this);
+        }
+        int argCount = arguments.size();
+        String name = expr.getCallee();
+
+        BuiltinFunction builtin = BuiltinFunction.forName(name);
+        if (builtin != null) {
+            if (builtin.getArity() != argCount) {
+                failCall(builtin.arityMessage(), argCount);
+            } else if (builtin == BuiltinFunction.ABS) {
+                emit(OpCode.ABS);
+            } else if (builtin == BuiltinFunction.MIN) {
+                emit(OpCode.MIN);
+            } else if (builtin == BuiltinFunction.MAX) {
+                emit(OpCode.MAX);
+            } else {
+                emit(OpCode.CALL_BUILTIN, builtin.ordinal());
+                stackDepth += 1 - argCount;
+                maxStack = Math.max(maxStack, stackDepth);
+            }
+            return null;
+        }
+
+        Integer index = functionIndex.get(name);
+        if (index == null) {
+            failCall("Function not defined: " + name, argCount);
+        } else if (functions.get(index - 1).getParameters().size() != argCount) {
+            failCall("Argument count mismatch in call to: " + name, argCount);
+        } else {
+            emit(OpCode.CALL, index);
+            stackDepth += 1 - argCount;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        emit(OpCode.INPUT);
+        return null;
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        fail("Built-in function '" + expr.getName() + "' cannot be used as a number");
+        return null;
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            decl.getInitializer().accept(this);
+            if (!decl.isResolved()) {
+                throw new RuntimeException("The VM cannot address variable '" + decl.getName() + "'");
+            }
+            store(0, decl.getSlot());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        stmt.getValue().accept(this);
+        if (!stmt.isResolved()) {
+            throw new RuntimeException("The VM cannot address variable '" + stmt.getName() + "'");
+        }
+        store(stmt.getDepth(), stmt.getSlot());
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        stmt.getExpression().accept(this);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        List<Integer> exits = new ArrayList<>();
+        SwitchTable table = stmt.getSwitchTable();
+        if (table != null) {
+            int branches = stmt.getElifConditions().size() + 1;
+            int[] targets = new int[branches + 1];
+            table.getSubject().accept(this);
+            emit(OpCode.SWITCH, switchTables.size());
+            switchTables.add(table);
+            switchTargets.add(targets);
+            for (int i = 0; i < branches; i++) {
+                targets[i] = count;
+                compileBlock(i == 0 ? stmt.getThenBranch() : stmt.getElifBranches().get(i - 1));
+                exits.add(emitJump(OpCode.JUMP));
+            }
+            targets[branches] = count;
+            if (stmt.hasElse()) {
+                compileBlock(stmt.getElseBranch());
+            }
+            for (int exit : exits) {
+                patch(exit);
+            }
+            return null;
+        }
+        int next = condition(stmt.getCondition());
+        compileBlock(stmt.getThenBranch());
+        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
+            exits.add(emitJump(OpCode.JUMP));
+            patch(next);
+            next = condition(stmt.getElifConditions().get(i));
+            compileBlock(stmt.getElifBranches().get(i));
+        }
+        if (stmt.hasElse()) {
+            exits.add(emitJump(OpCode.JUMP));
+            patch(next);
+            compileBlock(stmt.getElseBranch());
+        } else {
+            patch(next);
+        }
+        for (int exit : exits) {
+            patch(exit);
+        }
+        return null;
+    }
+
+    /**
+     * Compile a condition followed by a jump taken when it is false.
+     *
+     * @return the jump operand to patch
+     */
+    private int condition(Expression condition) {
+        condition.accept(this);
+        return emitJump(OpCode.JUMP_IF_ZERO);
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        int loop = count;
+        int exit = condition(stmt.getCondition());
+        compileBlock(stmt.getBody());
+        emit(OpCode.JUMP, loop);
+        patch(exit);
+        return null;
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        int loop = count;
+        compileBlock(stmt.getBody());
+        stmt.getCondition().accept(this);
+        emit(OpCode.JUMP_IF_NOT_ZERO, loop);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        CallExpression tailCall = stmt.getSelfTailCall();
+        if (tailCall != null && !topLevel) {
+            // evaluate the new arguments, store them over the parameters
+            // and start the function again
+            List<Expression> arguments = tailCall.getArguments();
+            for (Expression arg : arguments) {
+                arg.accept(this);
+            }
+            for (int i = arguments.size() - 1; i >= 0; i--) {
+                store(0, i);
+            }
+            emit(OpCode.JUMP, 0);
+            return null;
+        }
+        if (stmt.hasValue()) {
+            stmt.getValue().accept(this);
+        } else {
+            emit(OpCode.CONST, 0);
+        }
+        if (topLevel) {
+            // a return outside any function just ends the statement it is in
+            emit(OpCode.POP);
+            topLevelReturns.add(emitJump(OpCode.JUMP));
+        } else {
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        String builtin = BuiltinRefExpression.nameOf(stmt.getExpression());
+        if (builtin != null) {
+            emit(OpCode.PRINT_STRING, addString(builtin));
+        } else {
+            stmt.getExpression().accept(this);
+            emit(OpCode.PRINT);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        throw new UnsupportedOperationException("The VM does not support nested function '"
+                + stmt.getName() + "'");
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 public class CallExpression extends Expression {
     private final String callee;          // The name of the function being called
     private final List<Expression> arguments;  // The arguments passed to the function
+    private CallTarget target;            // Cached by the Interpreter the first time the call runs
     
     /**
      * Constructor for a function call expression.
@@ -41,6 +42,20 @@ public class CallExpression extends Expression {
     public int getArgumentCount() {
         return arguments.size();
     }
+
+    /**
+     * Get the cached call target, or null if the call has not been linked yet.
+     */
+    public CallTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * Cache the call target for later calls from this site.
+     */
+    public void setTarget(CallTarget target) {
+        this.target = target;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
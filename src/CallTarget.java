@@ -0,0 +1,36 @@
+/**
+ * The function a CallExpression was last linked to: either a built-in or a
+ * user function whose arity has already been checked against the call.
+ * The version ties the link to the state of the SymbolTable it came from,
+ * so redefining a function invalidates it. A memoized function also
+ * carries its MemoTable.
+ */
+public final class CallTarget {
+    final BuiltinFunction builtin;
+    final FunctionDeclarationStatement function;
+    final long version;
+    final MemoTable memo;
+
+    CallTarget(BuiltinFunction builtin, FunctionDeclarationStatement function, long version) {
+        this(builtin, function, version, null);
+    }
+
+    CallTarget(BuiltinFunction builtin, FunctionDeclarationStatement function, long version, MemoTable memo) {
+        this.builtin = builtin;
+        this.function = function;
+        this.version = version;
+        this.memo = memo;
+    }
+
+    public BuiltinFunction getBuiltin() {
+        return builtin;
+    }
+
+    public FunctionDeclarationStatement getFunction() {
+        return function;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
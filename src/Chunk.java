@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+/**
+ * Chunk is the compiled form of one function (or of the top-level code) for
+ * the bytecode VM: a flat int array of instructions plus the string
+ * constants and switch tables they refer to.
+ */
+public class Chunk {
+    private final String name;
+    private final int arity;
+    private final int frameSize;
+    private final int maxStack;
+    private final int[] code;
+    private final String[] strings;
+    private final SwitchTable[] switchTables;
+    // for each switch table, the position of each arm's code and last of the else branch's
+    private final int[][] switchTargets;
+
+    Chunk(String name, int arity, int frameSize, int maxStack, int[] code, String[] strings) {
+        this(name, arity, frameSize, maxStack, code, strings, new SwitchTable[0], new int[0][]);
+    }
+
+    Chunk(String name, int arity, int frameSize, int maxStack, int[] code, String[] strings,
+          SwitchTable[] switchTables, int[][] switchTargets) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.maxStack = maxStack;
+        this.code = code;
+        this.strings = strings;
+        this.switchTables = switchTables;
+        this.switchTargets = switchTargets;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of parameters; they occupy the first slots of the frame.
+     */
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * Number of slots for parameters and locals.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Deepest the operand stack gets above the frame's slots.
+     */
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    String[] getStrings() {
+        return strings;
+    }
+
+    /**
+     * Where a SWITCH instruction jumps for a value.
+     *
+     * @param index the instruction's operand
+     * @param value the value it popped
+     */
+    int switchTarget(int index, int value) {
+        int[] targets = switchTargets[index];
+        int arm = switchTables[index].armFor(value);
+        return targets[arm >= 0 ? arm : targets.length - 1];
+    }
+
+    /**
+     * Human-readable listing of the instructions, one per line.
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("== ").append(name).append(" (arity ").append(arity)
+                .append(", frame ").append(frameSize).append(", stack ").append(maxStack).append(")\n");
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            sb.append(String.format("%04d %s", pc, OpCode.name(op)));
+            for (int i = 1; i <= OpCode.operandCount(op); i++) {
+                sb.append(' ').append(code[pc + i]);
+            }
+            if (op == OpCode.PRINT_STRING || op == OpCode.FAIL) {
+                sb.append(" '").append(strings[code[pc + 1]]).append('\'');
+            }
+            if (op == OpCode.SWITCH) {
+                sb.append(' ').append(Arrays.toString(switchTargets[code[pc + 1]]));
+            }
+            sb.append('\n');
+            pc += 1 + OpCode.operandCount(op);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk(" + name + ", " + code.length + " ints)";
+    }
+}
@@ -0,0 +1,474 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ClassFileWriter assembles a JVM class file with static methods, for the
+ * JIT. It covers only what JitCompiler emits: int arithmetic, branches and
+ * switches, static and virtual calls and string constants.
+ *
+ * Classes are written as version 49 (Java 5). That version predates stack
+ * map frames, so the JVM infers the types at branch targets itself and the
+ * writer does not have to compute them.
+ */
+public class ClassFileWriter {
+    // opcodes used by the JIT
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int IALOAD = 0x2e;
+    public static final int ISTORE = 0x36;
+    public static final int ASTORE = 0x3a;
+    public static final int IASTORE = 0x4f;
+    public static final int POP = 0x57;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int IMUL = 0x68;
+    public static final int IDIV = 0x6c;
+    public static final int IREM = 0x70;
+    public static final int INEG = 0x74;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPEQ = 0x9f;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ICMPLT = 0xa1;
+    public static final int IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3;
+    public static final int IF_ICMPLE = 0xa4;
+    public static final int GOTO = 0xa7;
+    public static final int TABLESWITCH = 0xaa;
+    public static final int LOOKUPSWITCH = 0xab;
+    public static final int IRETURN = 0xac;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESTATIC = 0xb8;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final String className;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<Method> methods = new ArrayList<>();
+
+    /**
+     * @param className internal name of the class, e.g. "SprolaCode"
+     */
+    public ClassFileWriter(String className) {
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Start a public static method.
+     *
+     * @param name method name
+     * @param descriptor method descriptor, e.g. "(LEnvironment;II)I"
+     * @param maxLocals number of local variable slots, parameters included
+     */
+    public Method addMethod(String name, String descriptor, int maxLocals) {
+        Method method = new Method(name, descriptor, maxLocals);
+        methods.add(method);
+        return method;
+    }
+
+    /**
+     * The finished class file.
+     */
+    public byte[] toByteArray() {
+        try {
+            int thisClass = classConstant(className);
+            int superClass = classConstant("java/lang/Object");
+            int code = utf8("Code");
+            int[] names = new int[methods.size()];
+            int[] descriptors = new int[methods.size()];
+            for (int i = 0; i < methods.size(); i++) {
+                names[i] = utf8(methods.get(i).name);
+                descriptors[i] = utf8(methods.get(i).descriptor);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);  // interfaces
+            out.writeShort(0);  // fields
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                Method method = methods.get(i);
+                method.resolveJumps();
+                out.writeShort(ACC_PUBLIC | ACC_STATIC);
+                out.writeShort(names[i]);
+                out.writeShort(descriptors[i]);
+                out.writeShort(1);  // attributes: Code
+                out.writeShort(code);
+                out.writeInt(12 + method.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(method.length);
+                out.write(method.code, 0, method.length);
+                out.writeShort(0);  // exception table
+                out.writeShort(0);  // attributes
+            }
+            out.writeShort(0);  // class attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int constant(String key, int tag, int a, int b, boolean twoOperands) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(a);
+            if (twoOperands) {
+                poolOut.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int classConstant(String internalName) {
+        return constant("C" + internalName, 7, utf8(internalName), 0, false);
+    }
+
+    private int stringConstant(String value) {
+        return constant("S" + value, 8, utf8(value), 0, false);
+    }
+
+    private int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        int nameAndType = constant("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor), true);
+        return constant("M" + owner + "." + name + ":" + descriptor, 10, classConstant(owner), nameAndType, true);
+    }
+
+    /**
+     * Change in operand stack depth caused by invoking a method with the
+     * given descriptor; ints and references each take one slot.
+     */
+    private static int stackEffect(String descriptor, boolean hasReceiver) {
+        int arguments = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            } else if (c == '[') {
+                i++;
+                continue;
+            }
+            arguments++;
+            i++;
+        }
+        int result = descriptor.charAt(i + 1) == 'V' ? 0 : 1;
+        return result - arguments - (hasReceiver ? 1 : 0);
+    }
+
+    /**
+     * A position in a method's code that jumps can target.
+     */
+    public static class Label {
+        private int position = -1;
+        // stack depth on arrival, once a jump to the label has been emitted
+        private int stack = -1;
+        private final List<int[]> jumps = new ArrayList<>();
+    }
+
+    /**
+     * The code of one method, built instruction by instruction. It tracks
+     * the operand stack depth to fill in max_stack.
+     */
+    public class Method {
+        private final String name;
+        private final String descriptor;
+        private final int maxLocals;
+        private byte[] code = new byte[128];
+        private int length;
+        private int stack;
+        private int maxStack;
+        private final List<Label> labels = new ArrayList<>();
+
+        private Method(String name, String descriptor, int maxLocals) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = maxLocals;
+        }
+
+        private void u1(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        /**
+         * Emit an instruction without operands.
+         *
+         * @param opcode the instruction
+         * @param stackDelta how it changes the stack depth
+         */
+        public void op(int opcode, int stackDelta) {
+            u1(opcode);
+            adjust(stackDelta);
+        }
+
+        /**
+         * Push an int constant with the shortest instruction for it.
+         */
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                ldc(intConstant(value));
+            }
+            adjust(1);
+        }
+
+        public void pushString(String value) {
+            ldc(stringConstant(value));
+            adjust(1);
+        }
+
+        private void ldc(int index) {
+            if (index < 256) {
+                u1(LDC);
+                u1(index);
+            } else {
+                u1(LDC_W);
+                u2(index);
+            }
+        }
+
+        public void iload(int local) {
+            local(ILOAD, local);
+            adjust(1);
+        }
+
+        public void aload(int local) {
+            local(ALOAD, local);
+            adjust(1);
+        }
+
+        public void istore(int local) {
+            local(ISTORE, local);
+            adjust(-1);
+        }
+
+        public void astore(int local) {
+            local(ASTORE, local);
+            adjust(-1);
+        }
+
+        private void local(int opcode, int local) {
+            if (local > 255) {
+                throw new UnsupportedOperationException("Too many local variables");
+            }
+            u1(opcode);
+            u1(local);
+        }
+
+        public void invokeStatic(String owner, String name, String descriptor) {
+            u1(INVOKESTATIC);
+            u2(methodConstant(owner, name, descriptor));
+            adjust(stackEffect(descriptor, false));
+        }
+
+        public void invokeVirtual(String owner, String name, String descriptor) {
+            u1(INVOKEVIRTUAL);
+            u2(methodConstant(owner, name, descriptor));
+            adjust(stackEffect(descriptor, true));
+        }
+
+        public Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        /**
+         * Emit a jump to a label, placed or not.
+         *
+         * @param opcode GOTO or a conditional branch
+         * @param stackDelta how the branch changes the stack depth
+         */
+        public void jump(int opcode, int stackDelta, Label target) {
+            target.jumps.add(new int[] {length, length + 1});
+            u1(opcode);
+            u2(0);
+            adjust(stackDelta);
+            if (target.stack < 0) {
+                target.stack = stack;
+            }
+        }
+
+        /**
+         * Emit a tableswitch on the value on top of the stack.
+         *
+         * @param low the value that selects targets[0]
+         * @param targets where each of low, low + 1, ... jumps
+         * @param otherwise where any other value jumps
+         */
+        public void tableSwitch(int low, Label[] targets, Label otherwise) {
+            int start = beginSwitch(TABLESWITCH, otherwise);
+            u4(low);
+            u4(low + targets.length - 1);
+            for (Label target : targets) {
+                switchTarget(start, target);
+            }
+        }
+
+        /**
+         * Emit a lookupswitch on the value on top of the stack.
+         *
+         * @param keys the values to look up, in ascending order
+         * @param targets where each key jumps
+         * @param otherwise where any other value jumps
+         */
+        public void lookupSwitch(int[] keys, Label[] targets, Label otherwise) {
+            int start = beginSwitch(LOOKUPSWITCH, otherwise);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                switchTarget(start, targets[i]);
+            }
+        }
+
+        /**
+         * Emit a switch's opcode, the padding that aligns its operands and
+         * its default target.
+         *
+         * @return the opcode's position, which the targets are relative to
+         */
+        private int beginSwitch(int opcode, Label otherwise) {
+            int start = length;
+            u1(opcode);
+            while (length % 4 != 0) {
+                u1(0);
+            }
+            adjust(-1);
+            switchTarget(start, otherwise);
+            return start;
+        }
+
+        private void switchTarget(int start, Label target) {
+            target.jumps.add(new int[] {start, length, 4});
+            u4(0);
+            if (target.stack < 0) {
+                target.stack = stack;
+            }
+        }
+
+        /**
+         * Place a label at the current position. Code after a GOTO is only
+         * reached through its label, so the stack depth is the one the
+         * jumps to it arrive with.
+         */
+        public void place(Label label) {
+            label.position = length;
+            if (label.stack >= 0) {
+                stack = label.stack;
+            } else {
+                label.stack = stack;
+            }
+        }
+
+        private void resolveJumps() {
+            for (Label label : labels) {
+                for (int[] jump : label.jumps) {
+                    int offset = label.position - jump[0];
+                    if (jump.length > 2) {
+                        // a switch target: four bytes wide
+                        if (label.position < 0) {
+                            throw new UnsupportedOperationException("Jump out of range in " + name);
+                        }
+                        for (int i = 0; i < 4; i++) {
+                            code[jump[1] + i] = (byte) (offset >> (24 - 8 * i));
+                        }
+                        continue;
+                    }
+                    if (label.position < 0 || offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new UnsupportedOperationException("Jump out of range in " + name);
+                    }
+                    code[jump[1]] = (byte) (offset >> 8);
+                    code[jump[1] + 1] = (byte) offset;
+                }
+            }
+        }
+    }
+}
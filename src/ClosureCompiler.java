@@ -0,0 +1,522 @@
+import java.util.*;
+
+/**
+ * ClosureCompiler turns a resolved program into a tree of closures, one per
+ * AST node. Each closure holds its children's closures, its operator and
+ * its resolved slot directly, so the operator switch and the accept double
+ * dispatch of the Interpreter are paid once here rather than on every
+ * evaluation.
+ *
+ * A function call gets its own int[] frame holding the parameters, then
+ * the locals, then the return value and a flag for self tail calls;
+ * top-level code runs in the globals array. Like the VMs, a later
+ * definition of a function replaces an earlier one everywhere, and a call
+ * the Interpreter would reject still evaluates its arguments before
+ * failing.
+ *
+ * Nested functions and the variables looked up by name with them are not
+ * supported; compile throws UnsupportedOperationException.
+ */
+public class ClosureCompiler implements ASTVisitor {
+    /**
+     * An expression, evaluated against the frame of the current call.
+     */
+    @FunctionalInterface
+    interface IntFrameFn {
+        int apply(int[] frame);
+    }
+
+    /**
+     * A statement, executed against the frame of the current call.
+     */
+    @FunctionalInterface
+    interface StatementFn {
+        /**
+         * @return true if a return statement ran; its value is in the frame
+         */
+        boolean execute(int[] frame);
+    }
+
+    /**
+     * A compiled function. Calls to it are linked before its body is
+     * compiled, so recursion needs no lookup.
+     */
+    static final class CompiledFunction {
+        final int arity;
+        // the slot after the locals holds the return value, and the one
+        // after that is set when a self tail call has replaced the parameters
+        final int returnSlot;
+        StatementFn[] body;
+
+        CompiledFunction(int arity, int returnSlot) {
+            this.arity = arity;
+            this.returnSlot = returnSlot;
+        }
+
+        int[] newFrame() {
+            return new int[returnSlot + 2];
+        }
+
+        int run(int[] frame) {
+            int restart = returnSlot + 1;
+            do {
+                frame[restart] = 0;
+                for (StatementFn stmt : body) {
+                    if (stmt.execute(frame)) {
+                        if (frame[restart] != 0) {
+                            break;
+                        }
+                        return frame[returnSlot];
+                    }
+                }
+            } while (frame[restart] != 0);
+            // falling off the end returns 0
+            return 0;
+        }
+    }
+
+    private final Map<String, CompiledFunction> functions = new HashMap<>();
+    private int[] globals;
+    // slot for return values, or -1 in top-level code
+    private int returnSlot;
+
+    /**
+     * Compile a program.
+     *
+     * @param program statements as returned by SPROLARunner.parse
+     * @return the compiled program
+     * @throws UnsupportedOperationException if the program has nested functions
+     */
+    public ClosureProgram compile(List<Statement> program) {
+        Map<String, FunctionDeclarationStatement> declarations = new LinkedHashMap<>();
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                declarations.put(fn.getName(), fn);
+            }
+        }
+        for (FunctionDeclarationStatement fn : declarations.values()) {
+            int arity = fn.getParameters().size();
+            functions.put(fn.getName(), new CompiledFunction(arity, Math.max(arity, fn.getFrameSize())));
+        }
+
+        globals = new int[globalSlots(program)];
+        returnSlot = -1;
+        List<StatementFn> topLevel = new ArrayList<>();
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement) {
+                continue;
+            }
+            if (stmt instanceof ExpressionStatement expr && BuiltinRefExpression.nameOf(expr.getExpression()) != null) {
+                // at top level a bare built-in name is evaluated for its
+                // value, which is then discarded
+                continue;
+            }
+            topLevel.add(statement(stmt));
+        }
+
+        for (FunctionDeclarationStatement fn : declarations.values()) {
+            CompiledFunction compiled = functions.get(fn.getName());
+            returnSlot = compiled.returnSlot;
+            compiled.body = statements(fn.getBody());
+        }
+        return new ClosureProgram(topLevel.toArray(new StatementFn[0]), globals, functions);
+    }
+
+    /**
+     * Number of global slots the top-level declarations use.
+     */
+    private static int globalSlots(List<Statement> statements) {
+        int slots = 0;
+        for (Statement stmt : statements) {
+            if (stmt instanceof VarDeclarationStatement decls) {
+                for (VarDeclarator decl : decls.getDeclarators()) {
+                    if (decl.isResolved()) {
+                        slots = Math.max(slots, decl.getSlot() + 1);
+                    }
+                }
+            } else if (stmt instanceof IfStatement ifStmt) {
+                slots = Math.max(slots, globalSlots(ifStmt.getThenBranch()));
+                for (List<Statement> branch : ifStmt.getElifBranches()) {
+                    slots = Math.max(slots, globalSlots(branch));
+                }
+                if (ifStmt.hasElse()) {
+                    slots = Math.max(slots, globalSlots(ifStmt.getElseBranch()));
+                }
+            } else if (stmt instanceof WhileStatement loop) {
+                slots = Math.max(slots, globalSlots(loop.getBody()));
+            } else if (stmt instanceof RunStatement loop) {
+                slots = Math.max(slots, globalSlots(loop.getBody()));
+            }
+        }
+        return slots;
+    }
+
+    private IntFrameFn expression(Expression expr) {
+        return (IntFrameFn) expr.accept(this);
+    }
+
+    private StatementFn statement(Statement stmt) {
+        return (StatementFn) stmt.accept(this);
+    }
+
+    private StatementFn[] statements(List<Statement> statements) {
+        StatementFn[] compiled = new StatementFn[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = statement(statements.get(i));
+        }
+        return compiled;
+    }
+
+    /**
+     * Compile a block into one closure, without a loop for the common
+     * one-statement block.
+     */
+    private StatementFn block(List<Statement> statements) {
+        StatementFn[] body = statements(statements);
+        if (body.length == 0) {
+            return frame -> false;
+        }
+        if (body.length == 1) {
+            return body[0];
+        }
+        return frame -> {
+            for (StatementFn stmt : body) {
+                if (stmt.execute(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static IntFrameFn fail(String message) {
+        return frame -> {
+            throw new RuntimeException(message);
+        };
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        IntFrameFn left = expression(expr.getLeft());
+        Expression rightExpr = expr.getRight();
+        while (rightExpr instanceof GroupExpression group) {
+            rightExpr = group.getExpression();
+        }
+        if (rightExpr instanceof LiteralExpression literal) {
+            // the usual i < n, i + 1 shapes read the constant from the closure
+            int k = (Integer) literal.getValue();
+            return switch (expr.getOperator()) {
+                case PLUS -> (IntFrameFn) frame -> left.apply(frame) + k;
+                case MINUS -> (IntFrameFn) frame -> left.apply(frame) - k;
+                case STAR -> (IntFrameFn) frame -> left.apply(frame) * k;
+                case LT -> (IntFrameFn) frame -> left.apply(frame) < k ? 1 : 0;
+                case LE -> (IntFrameFn) frame -> left.apply(frame) <= k ? 1 : 0;
+                case GT -> (IntFrameFn) frame -> left.apply(frame) > k ? 1 : 0;
+                case GE -> (IntFrameFn) frame -> left.apply(frame) >= k ? 1 : 0;
+                case EQ -> (IntFrameFn) frame -> left.apply(frame) == k ? 1 : 0;
+                case NE -> (IntFrameFn) frame -> left.apply(frame) != k ? 1 : 0;
+                default -> binary(expr.getOperator(), left, expression(rightExpr));
+            };
+        }
+        return binary(expr.getOperator(), left, expression(rightExpr));
+    }
+
+    private static IntFrameFn binary(TokenType operator, IntFrameFn left, IntFrameFn right) {
+        return switch (operator) {
+            case PLUS -> frame -> left.apply(frame) + right.apply(frame);
+            case MINUS -> frame -> left.apply(frame) - right.apply(frame);
+            case STAR -> frame -> left.apply(frame) * right.apply(frame);
+            case SLASH -> frame -> left.apply(frame) / right.apply(frame);
+            case MOD -> frame -> left.apply(frame) % right.apply(frame);
+            case LT -> frame -> left.apply(frame) < right.apply(frame) ? 1 : 0;
+            case LE -> frame -> left.apply(frame) <= right.apply(frame) ? 1 : 0;
+            case GT -> frame -> left.apply(frame) > right.apply(frame) ? 1 : 0;
+            case GE -> frame -> left.apply(frame) >= right.apply(frame) ? 1 : 0;
+            case EQ -> frame -> left.apply(frame) == right.apply(frame) ? 1 : 0;
+            case NE -> frame -> left.apply(frame) != right.apply(frame) ? 1 : 0;
+            default -> throw new RuntimeException("Unknown binary operator: " + operator);
+        };
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        if (expr.getOperator() != TokenType.MINUS) {
+            throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+        }
+        IntFrameFn operand = expression(expr.getOperand());
+        return (IntFrameFn) frame -> -operand.apply(frame);
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        int value = (Integer) expr.getValue();
+        return (IntFrameFn) frame -> value;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        if (!expr.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + expr.getName() + "' is looked up by name");
+        }
+        int slot = expr.getSlot();
+        if (expr.getDepth() == 0) {
+            return (IntFrameFn) frame -> frame[slot];
+        }
+        int[] globals = this.globals;
+        return (IntFrameFn) frame -> globals[slot];
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        return expression(expr.getExpression());
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        List<Expression> arguments = expr.getArguments();
+        IntFrameFn[] args = new IntFrameFn[arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = expression(arguments.get(i));
+        }
+        String name = expr.getCallee();
+
+        BuiltinFunction builtin = BuiltinFunction.forName(name);
+        CompiledFunction fn = builtin == null ? functions.get(name) : null;
+        String error = null;
+        if (builtin != null && builtin.getArity() != args.length) {
+            error = builtin.arityMessage();
+        } else if (builtin == null && fn == null) {
+            error = "Function not defined: " + name;
+        } else if (fn != null && fn.arity != args.length) {
+            error = "Argument count mismatch in call to: " + name;
+        }
+        if (error != null) {
+            String message = error;
+            return (IntFrameFn) frame -> {
+                // evaluate the arguments for their effects, as the interpreter does
+                for (IntFrameFn arg : args) {
+                    arg.apply(frame);
+                }
+                throw new RuntimeException(message);
+            };
+        }
+
+        if (builtin != null) {
+            return switch (builtin) {
+                case ABS -> (IntFrameFn) frame -> Math.abs(args[0].apply(frame));
+                case MIN -> (IntFrameFn) frame -> Math.min(args[0].apply(frame), args[1].apply(frame));
+                case MAX -> (IntFrameFn) frame -> Math.max(args[0].apply(frame), args[1].apply(frame));
+                case PRINT -> (IntFrameFn) frame -> Builtins.call(BuiltinFunction.PRINT, args[0].apply(frame), 0);
+                case INPUT -> (IntFrameFn) frame -> Builtins.call(BuiltinFunction.INPUT, 0, 0);
+            };
+        }
+        int frameSize = fn.returnSlot + 2;
+        return switch (args.length) {
+            case 0 -> (IntFrameFn) frame -> fn.run(new int[frameSize]);
+            case 1 -> {
+                IntFrameFn a = args[0];
+                yield (IntFrameFn) frame -> {
+                    int[] callee = new int[frameSize];
+                    callee[0] = a.apply(frame);
+                    return fn.run(callee);
+                };
+            }
+            default -> (IntFrameFn) frame -> {
+                int[] callee = new int[frameSize];
+                for (int i = 0; i < args.length; i++) {
+                    callee[i] = args[i].apply(frame);
+                }
+                return fn.run(callee);
+            };
+        };
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        return (IntFrameFn) frame -> Builtins.readInput();
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        return fail("Built-in function '" + expr.getName() + "' cannot be used as a number");
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        List<VarDeclarator> declarators = stmt.getDeclarators();
+        int[] slots = new int[declarators.size()];
+        IntFrameFn[] values = new IntFrameFn[declarators.size()];
+        for (int i = 0; i < slots.length; i++) {
+            VarDeclarator decl = declarators.get(i);
+            if (!decl.isResolved()) {
+                throw new UnsupportedOperationException("Variable '" + decl.getName() + "' is declared by name");
+            }
+            slots[i] = decl.getSlot();
+            values[i] = expression(decl.getInitializer());
+        }
+        if (slots.length == 1) {
+            int slot = slots[0];
+            IntFrameFn value = values[0];
+            return (StatementFn) frame -> {
+                frame[slot] = value.apply(frame);
+                return false;
+            };
+        }
+        return (StatementFn) frame -> {
+            for (int i = 0; i < slots.length; i++) {
+                frame[slots[i]] = values[i].apply(frame);
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        if (!stmt.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + stmt.getName() + "' is assigned by name");
+        }
+        int slot = stmt.getSlot();
+        IntFrameFn value = expression(stmt.getValue());
+        if (stmt.getDepth() == 0) {
+            return (StatementFn) frame -> {
+                frame[slot] = value.apply(frame);
+                return false;
+            };
+        }
+        int[] globals = this.globals;
+        return (StatementFn) frame -> {
+            globals[slot] = value.apply(frame);
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        IntFrameFn expr = expression(stmt.getExpression());
+        return (StatementFn) frame -> {
+            expr.apply(frame);
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        int branches = stmt.getElifConditions().size() + 1;
+        IntFrameFn[] conditions = new IntFrameFn[branches];
+        StatementFn[] bodies = new StatementFn[branches];
+        conditions[0] = expression(stmt.getCondition());
+        bodies[0] = block(stmt.getThenBranch());
+        for (int i = 1; i < branches; i++) {
+            conditions[i] = expression(stmt.getElifConditions().get(i - 1));
+            bodies[i] = block(stmt.getElifBranches().get(i - 1));
+        }
+        StatementFn otherwise = stmt.hasElse() ? block(stmt.getElseBranch()) : frame -> false;
+
+        SwitchTable table = stmt.getSwitchTable();
+        if (table != null) {
+            IntFrameFn subject = expression(table.getSubject());
+            return (StatementFn) frame -> {
+                int arm = table.armFor(subject.apply(frame));
+                return arm >= 0 ? bodies[arm].execute(frame) : otherwise.execute(frame);
+            };
+        }
+        if (branches == 1) {
+            IntFrameFn condition = conditions[0];
+            StatementFn then = bodies[0];
+            return (StatementFn) frame -> condition.apply(frame) != 0 ? then.execute(frame) : otherwise.execute(frame);
+        }
+        return (StatementFn) frame -> {
+            for (int i = 0; i < conditions.length; i++) {
+                if (conditions[i].apply(frame) != 0) {
+                    return bodies[i].execute(frame);
+                }
+            }
+            return otherwise.execute(frame);
+        };
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        IntFrameFn condition = expression(stmt.getCondition());
+        StatementFn body = block(stmt.getBody());
+        return (StatementFn) frame -> {
+            while (condition.apply(frame) != 0) {
+                if (body.execute(frame)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        IntFrameFn condition = expression(stmt.getCondition());
+        StatementFn body = block(stmt.getBody());
+        return (StatementFn) frame -> {
+            do {
+                if (body.execute(frame)) {
+                    return true;
+                }
+            } while (condition.apply(frame) != 0);
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        CallExpression tailCall = stmt.getSelfTailCall();
+        if (tailCall != null && returnSlot >= 0) {
+            List<Expression> arguments = tailCall.getArguments();
+            IntFrameFn[] args = new IntFrameFn[arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = expression(arguments.get(i));
+            }
+            int restart = returnSlot + 1;
+            return (StatementFn) frame -> {
+                // every argument is computed before any parameter changes
+                int[] values = new int[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    values[i] = args[i].apply(frame);
+                }
+                System.arraycopy(values, 0, frame, 0, values.length);
+                frame[restart] = 1;
+                return true;
+            };
+        }
+        IntFrameFn value = stmt.hasValue() ? expression(stmt.getValue()) : frame -> 0;
+        int slot = returnSlot;
+        if (slot < 0) {
+            // a return outside any function just ends the statement it is in
+            return (StatementFn) frame -> {
+                value.apply(frame);
+                return true;
+            };
+        }
+        return (StatementFn) frame -> {
+            frame[slot] = value.apply(frame);
+            return true;
+        };
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        String builtin = BuiltinRefExpression.nameOf(stmt.getExpression());
+        if (builtin != null) {
+            return (StatementFn) frame -> {
+                System.out.println(builtin);
+                return false;
+            };
+        }
+        IntFrameFn value = expression(stmt.getExpression());
+        return (StatementFn) frame -> {
+            System.out.println(value.apply(frame));
+            return false;
+        };
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        throw new UnsupportedOperationException("Function '" + stmt.getName() + "' is declared inside another function");
+    }
+}
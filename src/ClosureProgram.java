@@ -0,0 +1,51 @@
+import java.util.*;
+
+/**
+ * ClosureProgram is a program compiled by ClosureCompiler: its top-level
+ * statements and functions as trees of closures, ready to run.
+ */
+public class ClosureProgram {
+    private final ClosureCompiler.StatementFn[] topLevel;
+    private final int[] globals;
+    private final Map<String, ClosureCompiler.CompiledFunction> functions;
+
+    ClosureProgram(ClosureCompiler.StatementFn[] topLevel, int[] globals,
+                   Map<String, ClosureCompiler.CompiledFunction> functions) {
+        this.topLevel = topLevel;
+        this.globals = globals;
+        this.functions = functions;
+    }
+
+    /**
+     * Run the top-level statements, setting up the globals.
+     */
+    public void run() {
+        for (ClosureCompiler.StatementFn stmt : topLevel) {
+            // a return outside any function just ends its statement
+            stmt.execute(globals);
+        }
+    }
+
+    /**
+     * Call a built-in or a function by name, as Interpreter.invoke does.
+     *
+     * @param name function name
+     * @param args argument values
+     * @return integer result
+     */
+    public int call(String name, int... args) {
+        if (Builtins.isBuiltin(name)) {
+            return Builtins.callFunction(name, args);
+        }
+        ClosureCompiler.CompiledFunction fn = functions.get(name);
+        if (fn == null) {
+            throw new RuntimeException("Function not defined: " + name);
+        }
+        if (fn.arity != args.length) {
+            throw new RuntimeException("Argument count mismatch in call to: " + name);
+        }
+        int[] frame = fn.newFrame();
+        System.arraycopy(args, 0, frame, 0, args.length);
+        return fn.run(frame);
+    }
+}
@@ -0,0 +1,304 @@
+import java.util.*;
+
+/**
+ * CommonSubexpressionEliminator computes an expression that a block of a
+ * function body evaluates several times only once. In
+ *
+ *   var d <- (a + b) * (a + b) - (a + b);
+ *
+ * a + b is given a fresh temporary declared just before the statement,
+ * and the three occurrences read it instead. Occurrences in different
+ * statements of the same block share a temporary too, until one of the
+ * variables the expression reads is assigned; an if or a loop between
+ * them ends the sharing for every variable it assigns anywhere inside.
+ * The conditions and bodies of ifs and loops are not straight-line code:
+ * only their inner blocks are handled, each on its own.
+ *
+ * The temporary is computed before the statement that first needed it,
+ * possibly ahead of parts of that statement that print or call, so only
+ * expressions that can neither fail nor have effects are shared, as for
+ * LoopInvariantHoister. When the largest repeated expression contains a
+ * smaller repeated one, the smaller one is only shared if it is still
+ * evaluated twice once the larger one is.
+ *
+ * Top-level code and programs with nested functions are left alone: a
+ * function call may assign any global, and a nested function any
+ * variable of its callers.
+ */
+public class CommonSubexpressionEliminator extends ASTRewriter {
+    // names declared so far in each enclosing block of the function
+    private Deque<Set<String>> scopes = new ArrayDeque<>();
+    private int eliminatedNodes;
+    private int reusedExpressions;
+    private int nextId;
+
+    @Override
+    public List<Statement> rewrite(List<Statement> program) {
+        if (LoopInvariantHoister.hasNestedFunctions(program)) {
+            return program;
+        }
+
+        List<Statement> result = new ArrayList<>(program.size());
+        for (Statement stmt : program) {
+            result.add(stmt instanceof FunctionDeclarationStatement fn
+                    ? (Statement) visitFunctionDeclarationStatement(fn)
+                    : stmt);
+        }
+        return result;
+    }
+
+    /**
+     * Number of expression nodes no longer evaluated because their value
+     * is read from a temporary.
+     */
+    public int getEliminatedNodes() {
+        return eliminatedNodes;
+    }
+
+    /**
+     * Number of occurrences replaced by a read of an already computed
+     * temporary.
+     */
+    public int getReusedExpressions() {
+        return reusedExpressions;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        scopes = new ArrayDeque<>();
+        scopes.push(new HashSet<>(stmt.getParameters()));
+        Object rewritten = super.visitFunctionDeclarationStatement(stmt);
+        scopes.clear();
+        return rewritten;
+    }
+
+    @Override
+    protected List<Statement> rewriteBlock(List<Statement> statements) {
+        Set<String> declared = new HashSet<>();
+        scopes.push(declared);
+        try {
+            // inner blocks first, each seeing the names declared before it
+            List<Statement> block = new ArrayList<>(statements.size());
+            boolean changed = false;
+            for (Statement stmt : statements) {
+                Statement rewritten = (Statement) stmt.accept(this);
+                block.add(rewritten);
+                changed |= rewritten != stmt;
+                if (stmt instanceof VarDeclarationStatement decl) {
+                    for (VarDeclarator d : decl.getDeclarators()) {
+                        declared.add(d.getName());
+                    }
+                }
+            }
+            return eliminate(changed ? block : statements);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    /**
+     * Share the repeated expressions of one block's own statements.
+     */
+    private List<Statement> eliminate(List<Statement> block) {
+        Block all = new Block(null);
+        all.run(block);
+        // drop the expressions that are only repeated inside larger shared
+        // ones, until every one left is still evaluated twice
+        Set<String> shared = all.repeated();
+        while (!shared.isEmpty()) {
+            Block trial = new Block(shared);
+            trial.run(block);
+            Set<String> repeated = trial.repeated();
+            repeated.retainAll(shared);
+            if (repeated.equals(shared)) {
+                break;
+            }
+            shared = repeated;
+        }
+        if (shared.isEmpty()) {
+            return block;
+        }
+        Block rewrite = new Block(shared);
+        rewrite.emit = true;
+        List<Statement> result = rewrite.run(block);
+        eliminatedNodes += rewrite.eliminated;
+        reusedExpressions += rewrite.reused;
+        return result;
+    }
+
+    private boolean isDeclared(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isCandidate(Expression expr) {
+        boolean compound = expr instanceof BinaryExpression || expr instanceof CallExpression
+                || (expr instanceof UnaryExpression unary
+                        && !(unary.getOperand() instanceof LiteralExpression)
+                        && !(unary.getOperand() instanceof VariableExpression));
+        return compound && LoopInvariantHoister.isSafe(expr, this::isDeclared);
+    }
+
+    /**
+     * Number of nodes in an expression that isSafe accepted.
+     */
+    private static int size(Expression expr) {
+        if (expr instanceof GroupExpression group) {
+            return 1 + size(group.getExpression());
+        }
+        if (expr instanceof UnaryExpression unary) {
+            return 1 + size(unary.getOperand());
+        }
+        if (expr instanceof BinaryExpression binary) {
+            return 1 + size(binary.getLeft()) + size(binary.getRight());
+        }
+        if (expr instanceof CallExpression call) {
+            int size = 1;
+            for (Expression arg : call.getArguments()) {
+                size += size(arg);
+            }
+            return size;
+        }
+        return 1;
+    }
+
+    private static void variables(Expression expr, Set<String> names) {
+        if (expr instanceof VariableExpression var) {
+            names.add(var.getName());
+        } else if (expr instanceof GroupExpression group) {
+            variables(group.getExpression(), names);
+        } else if (expr instanceof UnaryExpression unary) {
+            variables(unary.getOperand(), names);
+        } else if (expr instanceof BinaryExpression binary) {
+            variables(binary.getLeft(), names);
+            variables(binary.getRight(), names);
+        } else if (expr instanceof CallExpression call) {
+            for (Expression arg : call.getArguments()) {
+                variables(arg, names);
+            }
+        }
+    }
+
+    /**
+     * One walk over a block's statements, in order. Each assignment of a
+     * variable starts a new version of it, and an expression is only the
+     * same as an earlier one if it reads the same versions.
+     */
+    private class Block extends ASTRewriter {
+        // expressions to compute once, or null to only count occurrences
+        private final Set<String> shared;
+        boolean emit;
+        private final Map<String, Integer> occurrences = new HashMap<>();
+        private final Map<String, Integer> versions = new HashMap<>();
+        private final Map<String, String> temporaries = new HashMap<>();
+        private final List<VarDeclarator> pending = new ArrayList<>();
+        int eliminated;
+        int reused;
+
+        Block(Set<String> shared) {
+            this.shared = shared;
+        }
+
+        List<Statement> run(List<Statement> block) {
+            Set<String> declared = scopes.peek();
+            declared.clear();
+            List<Statement> result = new ArrayList<>(block.size());
+            for (Statement stmt : block) {
+                int line = stmt.getLine();
+                if (stmt instanceof VarDeclarationStatement decl) {
+                    // one statement per declarator, so a temporary can go
+                    // between a declaration and the next one that reads it
+                    for (VarDeclarator d : decl.getDeclarators()) {
+                        Expression initializer = rewrite(d.getInitializer());
+                        flush(result, line);
+                        result.add(new VarDeclarationStatement(
+                                new ArrayList<>(List.of(new VarDeclarator(d.getName(), initializer))), line));
+                        declared.add(d.getName());
+                        assign(d.getName());
+                    }
+                } else if (stmt instanceof VarAssignmentStatement || stmt instanceof PrintStatement
+                        || stmt instanceof ExpressionStatement || stmt instanceof ReturnStatement) {
+                    Statement rewritten = (Statement) stmt.accept(this);
+                    flush(result, line);
+                    result.add(rewritten);
+                    if (stmt instanceof VarAssignmentStatement assignment) {
+                        assign(assignment.getName());
+                    }
+                } else {
+                    // an if or a loop, whose conditions may run any number
+                    // of times
+                    result.add(stmt);
+                    for (String name : LoopInvariantHoister.assignedIn(List.of(stmt))) {
+                        assign(name);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * The expressions that occurred more than once.
+         */
+        Set<String> repeated() {
+            Set<String> repeated = new HashSet<>();
+            for (Map.Entry<String, Integer> entry : occurrences.entrySet()) {
+                if (entry.getValue() > 1) {
+                    repeated.add(entry.getKey());
+                }
+            }
+            return repeated;
+        }
+
+        private void assign(String name) {
+            versions.merge(name, 1, Integer::sum);
+        }
+
+        /**
+         * Declare the temporaries the statement about to be added reads.
+         */
+        private void flush(List<Statement> result, int line) {
+            if (!pending.isEmpty()) {
+                result.add(new VarDeclarationStatement(new ArrayList<>(pending), line));
+                pending.clear();
+            }
+        }
+
+        private String key(Expression expr) {
+            Set<String> names = new TreeSet<>();
+            variables(expr, names);
+            StringBuilder key = new StringBuilder(LoopInvariantHoister.key(expr));
+            for (String name : names) {
+                key.append(' ').append(name).append('@').append(versions.getOrDefault(name, 0));
+            }
+            return key.toString();
+        }
+
+        @Override
+        protected Expression rewrite(Expression expr) {
+            if (!isCandidate(expr)) {
+                return super.rewrite(expr);
+            }
+            String key = key(expr);
+            occurrences.merge(key, 1, Integer::sum);
+            if (shared == null || !shared.contains(key)) {
+                return super.rewrite(expr);
+            }
+            String name = temporaries.get(key);
+            if (name == null) {
+                // its own parts may be shared as well
+                Expression value = super.rewrite(expr);
+                name = emit ? "cse$" + nextId++ : key;
+                temporaries.put(key, name);
+                pending.add(new VarDeclarator(name, value));
+            } else {
+                eliminated += size(expr);
+                reused++;
+            }
+            return new VariableExpression(name, expr.getLine());
+        }
+    }
+}
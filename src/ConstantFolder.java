@@ -0,0 +1,208 @@
+/**
+ * ConstantFolder evaluates at compile time what does not depend on the
+ * program's input: operators applied to literals, and abs, min and max
+ * called with literal arguments. It also applies algebraic identities
+ * such as x + 0, x * 1 and x * 2 to x + x, and drops parentheses, which
+ * only matter to the parser.
+ *
+ * Arithmetic wraps exactly as it does at runtime. A division or remainder
+ * by a literal zero is left in place, so it still fails when it runs.
+ */
+public class ConstantFolder extends ASTRewriter {
+    private static boolean isLiteral(Expression expr) {
+        return expr instanceof LiteralExpression;
+    }
+
+    private static int valueOf(Expression expr) {
+        return (Integer) ((LiteralExpression) expr).getValue();
+    }
+
+    private static boolean isLiteral(Expression expr, int value) {
+        return isLiteral(expr) && valueOf(expr) == value;
+    }
+
+    /**
+     * Whether evaluating an expression can be skipped or repeated: it has
+     * no effects, cannot fail and is cheap.
+     */
+    private static boolean isSimple(Expression expr) {
+        return expr instanceof LiteralExpression || expr instanceof VariableExpression;
+    }
+
+    private static LiteralExpression literal(int value, Expression replaced) {
+        return new LiteralExpression(value, replaced.getLine());
+    }
+
+    /**
+     * Apply an operator to two constants.
+     *
+     * @return the result, or null if the operation must fail at runtime
+     */
+    static Integer apply(TokenType operator, int l, int r) {
+        return switch (operator) {
+            case PLUS -> l + r;
+            case MINUS -> l - r;
+            case STAR -> l * r;
+            case SLASH -> r == 0 ? null : l / r;
+            case MOD -> r == 0 ? null : l % r;
+            case EQ -> l == r ? 1 : 0;
+            case NE -> l != r ? 1 : 0;
+            case LT -> l < r ? 1 : 0;
+            case LE -> l <= r ? 1 : 0;
+            case GT -> l > r ? 1 : 0;
+            case GE -> l >= r ? 1 : 0;
+            default -> null;
+        };
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        Expression left = rewrite(expr.getLeft());
+        Expression right = rewrite(expr.getRight());
+        TokenType operator = expr.getOperator();
+
+        if (isLiteral(left) && isLiteral(right)) {
+            Integer value = apply(operator, valueOf(left), valueOf(right));
+            if (value != null) {
+                return literal(value, expr);
+            }
+        }
+        // a built-in name must still fail when it is used as a number
+        if (!(left instanceof BuiltinRefExpression) && !(right instanceof BuiltinRefExpression)) {
+            Expression simplified = simplify(left, operator, right, expr);
+            if (simplified != null) {
+                return simplified;
+            }
+        }
+        if (left == expr.getLeft() && right == expr.getRight()) {
+            return expr;
+        }
+        return new BinaryExpression(left, operator, right, expr.getLine());
+    }
+
+    /**
+     * Apply an algebraic identity.
+     *
+     * @return the simpler expression, or null if none applies
+     */
+    private Expression simplify(Expression left, TokenType operator, Expression right, Expression expr) {
+        switch (operator) {
+            case PLUS:
+                if (isLiteral(right, 0)) {
+                    return left;
+                }
+                if (isLiteral(left, 0)) {
+                    return right;
+                }
+                return reassociate(left, operator, right, expr);
+            case MINUS:
+                if (isLiteral(right, 0)) {
+                    return left;
+                }
+                return reassociate(left, operator, right, expr);
+            case STAR:
+                if (isLiteral(right, 1)) {
+                    return left;
+                }
+                if (isLiteral(left, 1)) {
+                    return right;
+                }
+                if ((isLiteral(right, 0) && isSimple(left)) || (isLiteral(left, 0) && isSimple(right))) {
+                    return literal(0, expr);
+                }
+                if (isLiteral(right, 2) && left instanceof VariableExpression) {
+                    return new BinaryExpression(left, TokenType.PLUS, left, expr.getLine());
+                }
+                if (isLiteral(left, 2) && right instanceof VariableExpression) {
+                    return new BinaryExpression(right, TokenType.PLUS, right, expr.getLine());
+                }
+                return reassociate(left, operator, right, expr);
+            case SLASH:
+                if (isLiteral(right, 1)) {
+                    return left;
+                }
+                return null;
+            case MOD:
+                if (isLiteral(right, 1) && isSimple(left)) {
+                    return literal(0, expr);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Combine the constants of (x op c1) op c2 into x op c, which is exact
+     * for wrapping int addition and multiplication.
+     */
+    private Expression reassociate(Expression left, TokenType operator, Expression right, Expression expr) {
+        if (!isLiteral(right) || !(left instanceof BinaryExpression inner) || !isLiteral(inner.getRight())
+                || inner.getLeft() instanceof BuiltinRefExpression) {
+            return null;
+        }
+        int c1 = valueOf(inner.getRight());
+        int c2 = valueOf(right);
+        TokenType innerOp = inner.getOperator();
+        if (operator == TokenType.STAR && innerOp == TokenType.STAR) {
+            return simplified(inner.getLeft(), TokenType.STAR, c1 * c2, expr);
+        }
+        boolean additive = operator == TokenType.PLUS || operator == TokenType.MINUS;
+        boolean innerAdditive = innerOp == TokenType.PLUS || innerOp == TokenType.MINUS;
+        if (additive && innerAdditive) {
+            int sum = (innerOp == TokenType.PLUS ? c1 : -c1) + (operator == TokenType.PLUS ? c2 : -c2);
+            return simplified(inner.getLeft(), TokenType.PLUS, sum, expr);
+        }
+        return null;
+    }
+
+    private Expression simplified(Expression left, TokenType operator, int constant, Expression expr) {
+        Expression result = simplify(left, operator, literal(constant, expr), expr);
+        return result != null ? result : new BinaryExpression(left, operator, literal(constant, expr), expr.getLine());
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        Expression operand = rewrite(expr.getOperand());
+        if (expr.getOperator() == TokenType.MINUS) {
+            if (isLiteral(operand)) {
+                return literal(-valueOf(operand), expr);
+            }
+            if (operand instanceof UnaryExpression inner && inner.getOperator() == TokenType.MINUS
+                    && !(inner.getOperand() instanceof BuiltinRefExpression)) {
+                return inner.getOperand();
+            }
+        }
+        if (operand == expr.getOperand()) {
+            return expr;
+        }
+        return new UnaryExpression(expr.getOperator(), operand, expr.getLine());
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        return rewrite(expr.getExpression());
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        CallExpression call = (CallExpression) super.visitCallExpression(expr);
+        BuiltinFunction builtin = BuiltinFunction.forName(call.getCallee());
+        if (builtin == null || builtin.getArity() != call.getArguments().size()) {
+            return call;
+        }
+        for (Expression arg : call.getArguments()) {
+            if (!isLiteral(arg)) {
+                return call;
+            }
+        }
+        return switch (builtin) {
+            case ABS -> literal(Math.abs(valueOf(call.getArguments().get(0))), expr);
+            case MIN -> literal(Math.min(valueOf(call.getArguments().get(0)),
+                    valueOf(call.getArguments().get(1))), expr);
+            case MAX -> literal(Math.max(valueOf(call.getArguments().get(0)),
+                    valueOf(call.getArguments().get(1))), expr);
+            default -> call;
+        };
+    }
+}
@@ -0,0 +1,358 @@
+import java.util.*;
+
+/**
+ * CountingLoopSummarizer replaces a while loop that only counts with the
+ * values it would leave behind, computed in constant time. It handles a
+ * loop whose body is nothing but assignments, one of which steps an
+ * induction variable by a literal, i <- i + c, while the condition
+ * compares that variable with a bound the body does not change. The other
+ * assignments must be accumulators, s <- s + e or s <- s - e with e
+ * affine in the induction variable (a * i + b, a and b unchanged by the
+ * loop) and s itself added once, or assignments of a value the loop does
+ * not change.
+ *
+ * After k iterations such an accumulator has added k * (a * i + b) plus
+ * a * c * k * (k - 1) / 2, and all of it wraps exactly as the loop's own
+ * int arithmetic would. The trip count k is only exact while nothing
+ * near the int range is involved, so the summary runs when the induction
+ * variable and the bound are within 2^29 of zero, and the original loop
+ * runs otherwise:
+ *
+ *   if (i < n) { if (in range) { var count$0 <- ...; s <- ...; i <- ...; }
+ *   else { while (i < n) { ... } } }
+ *
+ * The outer if evaluates the condition just as the loop would have, and
+ * the summary only runs when the loop would run at least once and so
+ * evaluate every statement of its body. The values used can neither fail
+ * nor have effects, so they give no error the loop would not have given.
+ * Loops that print, call functions or read input are left alone.
+ */
+public class CountingLoopSummarizer extends ASTRewriter {
+    // bound on the induction variable, the loop bound and the step
+    static final int RANGE = 1 << 29;
+
+    private int summarized;
+    private int nextId;
+
+    /**
+     * Number of loops replaced by their closed form.
+     */
+    public int getSummarizedLoops() {
+        return summarized;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        WhileStatement loop = (WhileStatement) super.visitWhileStatement(stmt);
+        List<Statement> closedForm = closedForm(loop);
+        if (closedForm == null) {
+            return loop;
+        }
+        summarized++;
+        int line = loop.getLine();
+        BinaryExpression condition = (BinaryExpression) loop.getCondition();
+        Expression inRange = null;
+        for (Expression operand : List.of(condition.getLeft(), condition.getRight())) {
+            inRange = and(inRange, and(binary(copy(operand), TokenType.GT, literal(-RANGE, line)),
+                    binary(copy(operand), TokenType.LT, literal(RANGE, line))));
+        }
+        List<Statement> original = new ArrayList<>(List.of(loop));
+        IfStatement summary = new IfStatement(inRange, closedForm, new ArrayList<>(), new ArrayList<>(), original, line);
+        List<Statement> guarded = new ArrayList<>(List.of(summary));
+        return new IfStatement(copy(condition), guarded, new ArrayList<>(), new ArrayList<>(), null, line);
+    }
+
+    /**
+     * An accumulator's step, a * i + b; a null coefficient is zero.
+     */
+    private record Affine(Expression a, Expression b) {
+    }
+
+    /**
+     * The statements that leave the loop's variables as the loop would,
+     * given that it runs at least once.
+     *
+     * @return the statements, or null if the loop is not a counting loop
+     */
+    private List<Statement> closedForm(WhileStatement loop) {
+        if (!(loop.getCondition() instanceof BinaryExpression condition)) {
+            return null;
+        }
+        Set<String> assigned = new HashSet<>();
+        for (Statement stmt : loop.getBody()) {
+            if (!(stmt instanceof VarAssignmentStatement assign) || !assigned.add(assign.getName())) {
+                return null;
+            }
+        }
+
+        // the condition compares the induction variable with the bound
+        TokenType operator = condition.getOperator();
+        Expression left = condition.getLeft();
+        Expression right = condition.getRight();
+        if (right instanceof VariableExpression var && assigned.contains(var.getName())) {
+            operator = flip(operator);
+            Expression swapped = left;
+            left = right;
+            right = swapped;
+        }
+        if (operator == null || !(left instanceof VariableExpression induction)
+                || !LoopInvariantHoister.isSafe(right, name -> !assigned.contains(name))) {
+            return null;
+        }
+        String i = induction.getName();
+        Integer step = null;
+        int stepIndex = -1;
+        for (int index = 0; index < loop.getBody().size(); index++) {
+            VarAssignmentStatement assign = (VarAssignmentStatement) loop.getBody().get(index);
+            if (assign.getName().equals(i)) {
+                step = step(assign.getValue(), i);
+                stepIndex = index;
+            }
+        }
+        if (step == null || step == 0 || Math.abs(step) >= RANGE) {
+            return null;
+        }
+        boolean upward = operator == TokenType.LT || operator == TokenType.LE;
+        if (upward != step > 0) {
+            return null;
+        }
+
+        int line = loop.getLine();
+        String count = "count$" + nextId++;
+        List<Statement> statements = new ArrayList<>();
+        // the iterations left: the distance to the bound over the step, rounded up
+        int stride = Math.abs(step);
+        boolean inclusive = operator == TokenType.LE || operator == TokenType.GE;
+        Expression distance = upward
+                ? binary(copy(right), TokenType.MINUS, variable(i, line))
+                : binary(variable(i, line), TokenType.MINUS, copy(right));
+        Expression trips = binary(binary(distance, TokenType.PLUS, literal(inclusive ? stride : stride - 1, line)),
+                TokenType.SLASH, literal(stride, line));
+        statements.add(new VarDeclarationStatement(new ArrayList<>(List.of(new VarDeclarator(count, trips))), line));
+
+        for (int index = 0; index < loop.getBody().size(); index++) {
+            VarAssignmentStatement assign = (VarAssignmentStatement) loop.getBody().get(index);
+            String name = assign.getName();
+            if (name.equals(i)) {
+                continue;
+            }
+            Expression value = assign.getValue();
+            if (LoopInvariantHoister.isSafe(value, var -> !assigned.contains(var))) {
+                // the last iteration leaves the same value as the first
+                statements.add(new VarAssignmentStatement(name, copy(value), line));
+                continue;
+            }
+            Expression added = increment(value, name);
+            if (added == null) {
+                return null;
+            }
+            Affine term = affine(added, i, assigned);
+            if (term == null) {
+                return null;
+            }
+            // where the step comes earlier in the body, this sees i + c
+            Expression first = stepIndex < index
+                    ? binary(variable(i, line), TokenType.PLUS, literal(step, line))
+                    : variable(i, line);
+            Expression total = mul(variable(count, line), add(mul(term.a(), first), term.b()));
+            if (term.a() != null) {
+                // k * (k - 1) / 2, halving whichever factor is even so the
+                // product is exact before it wraps
+                Expression k = variable(count, line);
+                Expression triangle = binary(binary(k, TokenType.SLASH, literal(2, line)), TokenType.STAR,
+                        binary(binary(copy(k), TokenType.MINUS, literal(1, line)), TokenType.PLUS,
+                                binary(copy(k), TokenType.MOD, literal(2, line))));
+                total = add(total, mul(mul(copy(term.a()), literal(step, line)), triangle));
+            }
+            statements.add(new VarAssignmentStatement(name,
+                    binary(variable(name, line), TokenType.PLUS, total == null ? literal(0, line) : total), line));
+        }
+        statements.add(new VarAssignmentStatement(i, binary(variable(i, line), TokenType.PLUS,
+                binary(variable(count, line), TokenType.STAR, literal(step, line))), line));
+        return statements;
+    }
+
+    /**
+     * What s <- value adds to s, when the value is s plus and minus terms
+     * that do not mention s.
+     *
+     * @return the amount added, or null if the value is something else
+     */
+    private static Expression increment(Expression value, String s) {
+        if (isVariable(value, s)) {
+            return literal(0, value.getLine());
+        }
+        if (value instanceof GroupExpression group) {
+            return increment(group.getExpression(), s);
+        }
+        if (!(value instanceof BinaryExpression binary)) {
+            return null;
+        }
+        TokenType operator = binary.getOperator();
+        if (operator != TokenType.PLUS && operator != TokenType.MINUS) {
+            return null;
+        }
+        boolean inLeft = mentions(binary.getLeft(), s);
+        boolean inRight = mentions(binary.getRight(), s);
+        if (inLeft && !inRight) {
+            Expression inner = increment(binary.getLeft(), s);
+            return inner == null ? null : binary(inner, operator, binary.getRight());
+        }
+        if (inRight && !inLeft && operator == TokenType.PLUS) {
+            Expression inner = increment(binary.getRight(), s);
+            return inner == null ? null : binary(binary.getLeft(), operator, inner);
+        }
+        return null;
+    }
+
+    private static boolean mentions(Expression expr, String name) {
+        boolean[] found = {false};
+        expr.accept(new ASTRewriter() {
+            @Override
+            public Object visitVariableExpression(VariableExpression var) {
+                found[0] |= var.getName().equals(name);
+                return var;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The literal step of i <- i + c, c + i or i - c.
+     *
+     * @return the step, or null if the value is something else
+     */
+    private static Integer step(Expression value, String i) {
+        if (!(value instanceof BinaryExpression binary)) {
+            return null;
+        }
+        Expression left = binary.getLeft();
+        Expression right = binary.getRight();
+        if (binary.getOperator() == TokenType.PLUS) {
+            if (isVariable(left, i) && right instanceof LiteralExpression c) {
+                return (Integer) c.getValue();
+            }
+            if (isVariable(right, i) && left instanceof LiteralExpression c) {
+                return (Integer) c.getValue();
+            }
+        }
+        if (binary.getOperator() == TokenType.MINUS && isVariable(left, i) && right instanceof LiteralExpression c) {
+            return -(Integer) c.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Split an expression into a * i + b, with a and b unchanged by the
+     * loop.
+     *
+     * @return the coefficients, or null if the expression is not affine in i
+     */
+    private static Affine affine(Expression expr, String i, Set<String> assigned) {
+        if (LoopInvariantHoister.isSafe(expr, name -> !assigned.contains(name))) {
+            return new Affine(null, copy(expr));
+        }
+        if (isVariable(expr, i)) {
+            return new Affine(literal(1, expr.getLine()), null);
+        }
+        if (expr instanceof GroupExpression group) {
+            return affine(group.getExpression(), i, assigned);
+        }
+        if (expr instanceof UnaryExpression unary && unary.getOperator() == TokenType.MINUS) {
+            Affine operand = affine(unary.getOperand(), i, assigned);
+            return operand == null ? null : new Affine(negate(operand.a()), negate(operand.b()));
+        }
+        if (!(expr instanceof BinaryExpression binary)) {
+            return null;
+        }
+        Affine left = affine(binary.getLeft(), i, assigned);
+        Affine right = affine(binary.getRight(), i, assigned);
+        if (left == null || right == null) {
+            return null;
+        }
+        switch (binary.getOperator()) {
+            case PLUS:
+                return new Affine(add(left.a(), right.a()), add(left.b(), right.b()));
+            case MINUS:
+                return new Affine(add(left.a(), negate(right.a())), add(left.b(), negate(right.b())));
+            case STAR:
+                if (left.a() == null) {
+                    return new Affine(mul(left.b(), right.a()), mul(copy(left.b()), right.b()));
+                }
+                if (right.a() == null) {
+                    return new Affine(mul(left.a(), right.b()), mul(left.b(), copy(right.b())));
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static TokenType flip(TokenType operator) {
+        return switch (operator) {
+            case LT -> TokenType.GT;
+            case LE -> TokenType.GE;
+            case GT -> TokenType.LT;
+            case GE -> TokenType.LE;
+            default -> null;
+        };
+    }
+
+    private static boolean isVariable(Expression expr, String name) {
+        return expr instanceof VariableExpression var && var.getName().equals(name);
+    }
+
+    private static Expression literal(int value, int line) {
+        return new LiteralExpression(value, line);
+    }
+
+    private static Expression variable(String name, int line) {
+        return new VariableExpression(name, line);
+    }
+
+    private static Expression binary(Expression left, TokenType operator, Expression right) {
+        return new BinaryExpression(left, operator, right, left.getLine());
+    }
+
+    /**
+     * Both conditions, as a product of two 0-or-1 values.
+     */
+    private static Expression and(Expression left, Expression right) {
+        return left == null ? right : binary(left, TokenType.STAR, right);
+    }
+
+    // sums and products of coefficients, where null stands for zero
+
+    private static Expression add(Expression left, Expression right) {
+        if (left == null) {
+            return right;
+        }
+        return right == null ? left : binary(left, TokenType.PLUS, right);
+    }
+
+    private static Expression mul(Expression left, Expression right) {
+        return left == null || right == null ? null : binary(left, TokenType.STAR, right);
+    }
+
+    private static Expression negate(Expression expr) {
+        return expr == null ? null : new UnaryExpression(TokenType.MINUS, expr, expr.getLine());
+    }
+
+    /**
+     * A fresh copy of an expression, so no node appears twice in the
+     * program; the Resolver annotates nodes in place.
+     */
+    private static Expression copy(Expression expr) {
+        return (Expression) expr.accept(new ASTRewriter() {
+            @Override
+            public Object visitLiteralExpression(LiteralExpression literal) {
+                return new LiteralExpression(literal.getValue(), literal.getLine());
+            }
+
+            @Override
+            public Object visitVariableExpression(VariableExpression var) {
+                return new VariableExpression(var.getName(), var.getLine());
+            }
+        });
+    }
+}
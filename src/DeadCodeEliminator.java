@@ -0,0 +1,153 @@
+import java.util.*;
+
+/**
+ * DeadCodeEliminator removes code that can never run, once ConstantFolder
+ * has turned constant conditions into literals:
+ * if/elif branches whose condition is a literal zero, everything after a
+ * branch whose condition is a literal non-zero, while loops whose
+ * condition is zero, and statements after a return in the same block.
+ *
+ * A block that is always taken is spliced into the enclosing block, unless
+ * it declares names: those belong to the block's own scope, so it stays an
+ * if (1) with nothing else left to test.
+ */
+public class DeadCodeEliminator extends ASTRewriter {
+    @Override
+    public List<Statement> rewrite(List<Statement> program) {
+        // a return outside any function ends only its own statement, so the
+        // program itself is not cut after one
+        List<Statement> result = new ArrayList<>(program.size());
+        for (Statement stmt : program) {
+            Object rewritten = stmt.accept(this);
+            if (rewritten instanceof List<?> spliced) {
+                for (Object s : spliced) {
+                    result.add((Statement) s);
+                }
+            } else if (rewritten != null) {
+                result.add((Statement) rewritten);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected List<Statement> rewriteBlock(List<Statement> statements) {
+        List<Statement> block = super.rewriteBlock(statements);
+        for (int i = 0; i < block.size() - 1; i++) {
+            if (alwaysReturns(block.get(i))) {
+                return new ArrayList<>(block.subList(0, i + 1));
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Whether a statement returns on every path through it.
+     */
+    private static boolean alwaysReturns(Statement stmt) {
+        if (stmt instanceof ReturnStatement) {
+            return true;
+        }
+        if (stmt instanceof IfStatement ifStmt && ifStmt.hasElse()) {
+            if (!alwaysReturns(ifStmt.getThenBranch()) || !alwaysReturns(ifStmt.getElseBranch())) {
+                return false;
+            }
+            for (List<Statement> branch : ifStmt.getElifBranches()) {
+                if (!alwaysReturns(branch)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean alwaysReturns(List<Statement> block) {
+        return !block.isEmpty() && alwaysReturns(block.get(block.size() - 1));
+    }
+
+    private static boolean isLiteral(Expression expr) {
+        return expr instanceof LiteralExpression;
+    }
+
+    private static boolean isTrue(Expression expr) {
+        return (Integer) ((LiteralExpression) expr).getValue() != 0;
+    }
+
+    /**
+     * A block that always runs, in place of the statement holding it.
+     */
+    private static Object inline(List<Statement> block, int line) {
+        for (Statement stmt : block) {
+            if (stmt instanceof VarDeclarationStatement || stmt instanceof FunctionDeclarationStatement) {
+                List<Expression> noConditions = new ArrayList<>();
+                List<List<Statement>> noBranches = new ArrayList<>();
+                return new IfStatement(new LiteralExpression(1, line), block, noConditions, noBranches, null, line);
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        IfStatement rewritten = (IfStatement) super.visitIfStatement(stmt);
+
+        List<Expression> conditions = new ArrayList<>();
+        List<List<Statement>> branches = new ArrayList<>();
+        conditions.add(rewritten.getCondition());
+        branches.add(rewritten.getThenBranch());
+        conditions.addAll(rewritten.getElifConditions());
+        branches.addAll(rewritten.getElifBranches());
+
+        List<Expression> liveConditions = new ArrayList<>();
+        List<List<Statement>> liveBranches = new ArrayList<>();
+        List<Statement> otherwise = rewritten.getElseBranch();
+        for (int i = 0; i < conditions.size(); i++) {
+            Expression condition = conditions.get(i);
+            if (!isLiteral(condition)) {
+                liveConditions.add(condition);
+                liveBranches.add(branches.get(i));
+            } else if (isTrue(condition)) {
+                // later branches and the else can never be reached
+                otherwise = branches.get(i);
+                break;
+            }
+        }
+        if (liveConditions.size() == conditions.size() && otherwise == rewritten.getElseBranch()) {
+            return rewritten;
+        }
+
+        if (liveConditions.isEmpty()) {
+            if (otherwise == null) {
+                return null;
+            }
+            return inline(otherwise, stmt.getLine());
+        }
+        return new IfStatement(liveConditions.get(0), liveBranches.get(0),
+                liveConditions.subList(1, liveConditions.size()), liveBranches.subList(1, liveBranches.size()),
+                otherwise, stmt.getLine());
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        if (isLiteral(stmt.getCondition()) && !isTrue(stmt.getCondition())) {
+            return null;
+        }
+        return super.visitWhileStatement(stmt);
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        RunStatement rewritten = (RunStatement) super.visitRunStatement(stmt);
+        if (isLiteral(rewritten.getCondition()) && !isTrue(rewritten.getCondition())) {
+            // the body runs exactly once
+            return inline(rewritten.getBody(), stmt.getLine());
+        }
+        return rewritten;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        return rewrite(expr.getExpression());
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.*;
+
+/**
+ * EffectAnalyzer finds the top-level functions whose result depends only on
+ * their arguments. A function is pure if it neither prints nor reads input,
+ * neither assigns nor reads a global, declares no function, and calls only
+ * built-ins and pure functions. Reading a global counts as an effect too,
+ * since top-level code may change it between two calls with the same
+ * arguments.
+ *
+ * A call goes to whichever definition of a name is current when it runs,
+ * so a name is only trusted if every definition of it is pure. A program
+ * that declares a function anywhere but at the top level can redefine a
+ * name while it runs, and has no pure functions at all.
+ *
+ * The analysis runs on a resolved program: a variable is local exactly
+ * when the Resolver put it in the current frame.
+ */
+public class EffectAnalyzer {
+    private final Set<FunctionDeclarationStatement> pure =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<FunctionDeclarationStatement, Scan> scans = new IdentityHashMap<>();
+    private final Map<String, List<FunctionDeclarationStatement>> definitions = new HashMap<>();
+
+    /**
+     * Analyze a program.
+     *
+     * @param program resolved top-level statements
+     */
+    public EffectAnalyzer(List<Statement> program) {
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                definitions.computeIfAbsent(fn.getName(), name -> new ArrayList<>()).add(fn);
+                Scan scan = new Scan();
+                scan.rewriteBlock(fn.getBody());
+                scans.put(fn, scan);
+                if (scan.nestedFunction) {
+                    pure.clear();
+                    return;
+                }
+                if (!scan.effects) {
+                    pure.add(fn);
+                }
+            } else {
+                Scan scan = new Scan();
+                stmt.accept(scan);
+                if (scan.nestedFunction) {
+                    pure.clear();
+                    return;
+                }
+            }
+        }
+
+        // drop functions that call something impure until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Iterator<FunctionDeclarationStatement> it = pure.iterator(); it.hasNext(); ) {
+                if (!callsOnlyPure(scans.get(it.next()))) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean callsOnlyPure(Scan scan) {
+        for (String callee : scan.calls) {
+            if (!Builtins.isBuiltin(callee) && !isPure(callee)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether every top-level definition of a name is pure, so any call
+     * of it is.
+     *
+     * @param name function name, not a built-in
+     */
+    public boolean isPure(String name) {
+        List<FunctionDeclarationStatement> targets = definitions.get(name);
+        return targets != null && pure.containsAll(targets);
+    }
+
+    /**
+     * Every top-level definition of a name, in program order.
+     *
+     * @return the definitions, empty if there is none
+     */
+    public List<FunctionDeclarationStatement> definitionsOf(String name) {
+        return definitions.getOrDefault(name, List.of());
+    }
+
+    /**
+     * Whether a function's result depends only on its arguments.
+     *
+     * @param fn a top-level declaration of the analyzed program
+     */
+    public boolean isPure(FunctionDeclarationStatement fn) {
+        return pure.contains(fn);
+    }
+
+    /**
+     * Whether a function calls a user function, rather than only built-ins.
+     *
+     * @param fn a top-level declaration of the analyzed program
+     */
+    public boolean callsFunctions(FunctionDeclarationStatement fn) {
+        Scan scan = scans.get(fn);
+        if (scan == null) {
+            return false;
+        }
+        for (String callee : scan.calls) {
+            if (!Builtins.isBuiltin(callee)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the calls and effects of some statements without changing
+     * them.
+     */
+    private static class Scan extends ASTRewriter {
+        final Set<String> calls = new HashSet<>();
+        boolean effects;
+        boolean nestedFunction;
+
+        @Override
+        public Object visitCallExpression(CallExpression expr) {
+            calls.add(expr.getCallee());
+            return super.visitCallExpression(expr);
+        }
+
+        @Override
+        public Object visitVariableExpression(VariableExpression expr) {
+            effects |= !expr.isResolved() || expr.getDepth() != 0;
+            return expr;
+        }
+
+        @Override
+        public Object visitInputExpression(InputExpression expr) {
+            effects = true;
+            return expr;
+        }
+
+        @Override
+        public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+            effects |= !stmt.isResolved() || stmt.getDepth() != 0;
+            return super.visitVarAssignmentStatement(stmt);
+        }
+
+        @Override
+        public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+            for (VarDeclarator decl : stmt.getDeclarators()) {
+                effects |= !decl.isResolved();
+            }
+            return super.visitVarDeclarationStatement(stmt);
+        }
+
+        @Override
+        public Object visitPrintStatement(PrintStatement stmt) {
+            effects = true;
+            return super.visitPrintStatement(stmt);
+        }
+
+        @Override
+        public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+            nestedFunction = true;
+            effects = true;
+            return stmt;
+        }
+    }
+}
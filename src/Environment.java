@@ -1,12 +1,35 @@
 import java.util.*;
+import java.util.function.IntConsumer;
 
 public class Environment {
-    private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+    // Variables live in one flat stack of (name, value) pairs. A scope is
+    // just the index where it started, so entering and leaving a scope
+    // never allocates and values are stored unboxed.
+    private String[] names = new String[16];
+    private int[] values = new int[16];
+    private int size;
+    private int[] scopeStarts = new int[8];
+    private int depth;
+
+    // A frame is the part of the stack owned by one function call; variables
+    // resolved by the Resolver are addressed as frame base + slot. Frame
+    // objects are pooled: frames[0] is the global frame, and entries past
+    // frameCount are kept for reuse by later calls.
+    private Frame[] frames = new Frame[8];
+    private int frameCount;
+    private int base;
+
+    // Global slots whose next write is reported to a listener, for code
+    // compiled on the assumption that they keep their values.
+    private boolean[] watched = new boolean[0];
+    private IntConsumer onWatchedWrite;
 
     /**
      * Construct an Environment.
      */
     public Environment() {
+        frames[0] = new Frame();
+        frameCount = 1;
         enterScope();
     }
 
@@ -14,20 +37,247 @@ public class Environment {
      * Push an empty scope onto the stack.
      */
     void enterScope() {
-        scopes.push(new HashMap<>());
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        }
+        scopeStarts[depth++] = size;
     }
 
     /**
      * Exit from a scope.
      */
     void exitScope() {
-        if (!scopes.isEmpty()) {
-            scopes.pop();
+        if (depth > 0) {
+            size = scopeStarts[--depth];
         } else {
             throw new IllegalStateException("No existing scope!");
         }
     }
 
+    /**
+     * Start a new frame for a function call, with its own parameter scope.
+     *
+     * @param function the function being called
+     * @return the frame, valid until the matching popFrame
+     */
+    Frame pushFrame(FunctionDeclarationStatement function) {
+        return pushFrame(function, 0);
+    }
+
+    /**
+     * Start a new frame whose first slots are the last argCount values
+     * pushed with pushArgument. They become the function's parameters.
+     *
+     * @param function the function being called
+     * @param argCount number of arguments already on the stack
+     * @return the frame, valid until the matching popFrame
+     */
+    Frame pushFrame(FunctionDeclarationStatement function, int argCount) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        Frame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new Frame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        frame.base = size - argCount;
+        frame.scopeDepth = depth;
+        frame.function = function;
+        base = frame.base;
+        if (function != null) {
+            ensureCapacity(base + Math.max(argCount, function.getFrameSize()));
+            List<String> parameters = function.getParameters();
+            for (int i = 0; i < argCount; i++) {
+                names[base + i] = parameters.get(i);
+            }
+        }
+        // the parameter scope starts at the arguments
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        }
+        scopeStarts[depth++] = base;
+        return frame;
+    }
+
+    /**
+     * Push an argument for the next call. It stays unnamed until pushFrame
+     * turns it into a parameter.
+     *
+     * @param value argument value
+     */
+    void pushArgument(int value) {
+        ensureCapacity(size + 1);
+        names[size] = null;
+        values[size++] = value;
+    }
+
+    /**
+     * Make the last argCount values pushed with pushArgument the current
+     * frame's parameters, in place of the ones it was called with, for a
+     * call that restarts the running function.
+     *
+     * @param argCount number of arguments on the stack
+     */
+    void replaceArguments(int argCount) {
+        size -= argCount;
+        System.arraycopy(values, size, values, base, argCount);
+    }
+
+    /**
+     * Leave the current frame and return to the caller's. Every scope opened
+     * since the frame was pushed is dropped along with it, so a call that
+     * exits from inside a nested block leaves nothing behind.
+     */
+    void popFrame() {
+        if (frameCount <= 1) {
+            throw new IllegalStateException("No active frame!");
+        }
+        Frame frame = frames[--frameCount];
+        depth = frame.scopeDepth;
+        size = frame.base;
+        frame.function = null;
+        base = frames[frameCount - 1].base;
+    }
+
+    /**
+     * The frame of the innermost active call (the global frame at top level).
+     */
+    Frame currentFrame() {
+        return frames[frameCount - 1];
+    }
+
+    /**
+     * Number of active frames, including the global frame.
+     */
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Number of open scopes across all frames.
+     */
+    int getScopeDepth() {
+        return depth;
+    }
+
+    /**
+     * Number of variables currently on the stack.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Declare a variable at a slot computed by the Resolver.
+     *
+     * @param slot slot of the variable in the current frame
+     * @param name name of the variable
+     * @param value value of the variable
+     */
+    void declare(int slot, String name, int value) {
+        int index = base + slot;
+        ensureCapacity(index + 1);
+        names[index] = name;
+        values[index] = value;
+        if (index >= size) {
+            size = index + 1;
+        }
+    }
+
+    /**
+     * Read a resolved variable.
+     *
+     * @param depth 0 for the current frame, otherwise the global frame
+     * @param slot slot of the variable within that frame
+     */
+    int get(int depth, int slot) {
+        return values[depth == 0 ? base + slot : slot];
+    }
+
+    /**
+     * Write a resolved variable.
+     *
+     * @param depth 0 for the current frame, otherwise the global frame
+     * @param slot slot of the variable within that frame
+     * @param value new value
+     */
+    void set(int depth, int slot, int value) {
+        int index = depth == 0 ? base + slot : slot;
+        values[index] = value;
+        if (index < watched.length && watched[index]) {
+            written(index);
+        }
+    }
+
+    /**
+     * Number of slots the global frame has: the variables the top-level
+     * code declared.
+     */
+    int getGlobalCount() {
+        return frameCount > 1 ? frames[1].base : size;
+    }
+
+    /**
+     * Name of the global variable in a slot.
+     */
+    String getGlobalName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * Report the next write of a global slot, from resolved code, code
+     * looking it up by name, or compiled code alike. The listener is
+     * called once, on the writing thread, after the write.
+     *
+     * @param slot global slot
+     * @param listener called with the slot; the same for every slot watched
+     */
+    void watchGlobal(int slot, IntConsumer listener) {
+        if (slot >= watched.length) {
+            watched = Arrays.copyOf(watched, Math.max(slot + 1, getGlobalCount()));
+        }
+        watched[slot] = true;
+        onWatchedWrite = listener;
+    }
+
+    private void written(int index) {
+        watched[index] = false;
+        onWatchedWrite.accept(index);
+    }
+
+    /**
+     * Copy the current frame's first slots out, for compiled code to carry
+     * on with.
+     *
+     * @param slots number of slots to copy
+     * @return their values, in an array one element longer
+     */
+    int[] copyFrame(int slots) {
+        int[] frame = new int[slots + 1];
+        System.arraycopy(values, base, frame, 0, slots);
+        return frame;
+    }
+
+    /**
+     * Write values copied out with copyFrame back into the current frame.
+     *
+     * @param frame the values
+     * @param slots number of slots to write
+     */
+    void restoreFrame(int[] frame, int slots) {
+        System.arraycopy(frame, 0, values, base, slots);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int length = Math.max(capacity, values.length * 2);
+            names = Arrays.copyOf(names, length);
+            values = Arrays.copyOf(values, length);
+        }
+    }
+
     /**
      * Handle variable declaration.
      *
@@ -35,14 +285,17 @@ public class Environment {
      * @param value value of the variable
      */
     void declare(String name, int value) {
-        Map<String, Integer> scope = scopes.peek();
-        if (scope == null) {
+        if (depth == 0) {
             throw new IllegalStateException("No existing scope!");
-        } else if (scope.containsKey(name)) {
-            throw new RuntimeException("Variable already declared!");
-        } else {
-            scope.put(name, value);
         }
+        for (int i = scopeStarts[depth - 1]; i < size; i++) {
+            if (name.equals(names[i])) {
+                throw new RuntimeException("Variable already declared!");
+            }
+        }
+        ensureCapacity(size + 1);
+        names[size] = name;
+        values[size++] = value;
     }
 
     /**
@@ -52,10 +305,13 @@ public class Environment {
      * @param value value of the variable
      */
     void assign(String name, int value) {
-        // Try each scope, innermost first
-        for (Map<String,Integer> scope : scopes) {
-            if (scope.containsKey(name)) {
-                scope.put(name, value);
+        // Try each variable, innermost first
+        for (int i = size - 1; i >= 0; i--) {
+            if (name.equals(names[i])) {
+                values[i] = value;
+                if (i < watched.length && watched[i]) {
+                    written(i);
+                }
                 return;
             }
         }
@@ -68,9 +324,9 @@ public class Environment {
      * @param name name of the variable
      */
     int lookup(String name) {
-        for (Map<String, Integer> scope : scopes) {
-            if (scope.containsKey(name)) {
-                return scope.get(name);
+        for (int i = size - 1; i >= 0; i--) {
+            if (name.equals(names[i])) {
+                return values[i];
             }
         }
         throw new RuntimeException("Variable not found!");
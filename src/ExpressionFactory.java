@@ -30,6 +30,8 @@ public class ExpressionFactory {
                     return createCallImpl((String)args[0], (List<Expression>)args[1], toInt(args[2]));
                 case INPUT:
                     return createInputImpl(toInt(args[0]));
+                case BUILTIN_REF:
+                    return createBuiltinRefImpl((BuiltinFunction)args[0], toInt(args[1]));
                 default:
                     throw new IllegalArgumentException("Unknown expression type: " + type);
             }
@@ -109,6 +111,10 @@ public class ExpressionFactory {
         return new InputExpression(line);
     }
     
+    private static Expression createBuiltinRefImpl(BuiltinFunction function, int line) {
+        return new BuiltinRefExpression(function, line);
+    }
+    
     // Public convenience methods - these remain unchanged
     
     /**
@@ -159,4 +165,11 @@ public class ExpressionFactory {
     public static Expression createInput(int line) {
         return create(ExpressionType.INPUT, line);
     }
+    
+    /**
+     * Create a reference to a built-in function
+     */
+    public static Expression createBuiltinRef(BuiltinFunction function, int line) {
+        return create(ExpressionType.BUILTIN_REF, function, line);
+    }
 }
@@ -9,5 +9,6 @@ public enum ExpressionType {
     VARIABLE, // Variable references like x
     GROUP,    // Grouped expressions like (a + b)
     CALL,      // Function calls like foo(a, b)
-    INPUT      // Input expression for reading user input
+    INPUT,     // Input expression for reading user input
+    BUILTIN_REF // Built-in function names used as values like abs
 }
\ No newline at end of file
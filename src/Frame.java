@@ -0,0 +1,28 @@
+/**
+ * Frame is the Environment's record of one active function call: where its
+ * variables start on the value stack and how many scopes were open when it
+ * was entered. Frames are pooled by the Environment and reused, so a call
+ * does not allocate one.
+ */
+public class Frame {
+    // index of slot 0 on the Environment's value stack
+    int base;
+    // scope depth to unwind to when the call ends, however it ends
+    int scopeDepth;
+    // the function running in this frame, or null for the global frame
+    FunctionDeclarationStatement function;
+    // value of the last return statement executed in this frame
+    int returnValue;
+
+    public int getBase() {
+        return base;
+    }
+
+    public FunctionDeclarationStatement getFunction() {
+        return function;
+    }
+
+    public int getReturnValue() {
+        return returnValue;
+    }
+}
@@ -7,6 +7,8 @@ public class FunctionDeclarationStatement extends Statement {
     private final String name;
     private final List<String> parameters;
     private final List<Statement> body;
+    // Number of variable slots a call needs, filled in by the Resolver
+    private int frameSize;
     
     public FunctionDeclarationStatement(String name, List<String> parameters, List<Statement> body, int line) {
         super(StatementType.FUNCTION,line);
@@ -26,6 +28,14 @@ public class FunctionDeclarationStatement extends Statement {
     public List<Statement> getBody() {
         return body;
     }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
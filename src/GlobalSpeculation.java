@@ -0,0 +1,147 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * GlobalSpeculation lets the tiered compiler treat globals as constants.
+ * Most globals are set once by the top-level code and only read after
+ * that, so compiled code can have their values built in, instead of
+ * reading them through the Environment on every use.
+ *
+ * Before a compilation starts, snapshot takes the values of the globals
+ * that have never been assigned since the speculation began, and asks
+ * the Environment to report the next write to each of them. The compiled
+ * code records which of those it built in, and install registers it as
+ * depending on them. When one is assigned, by interpreted or compiled
+ * code alike, every code depending on it is invalidated, so the calls
+ * that follow go back to the interpreter until the functions are
+ * compiled again, this time reading that global from the Environment.
+ * A global that was assigned once is never speculated on again.
+ */
+public class GlobalSpeculation {
+    private final Environment environment;
+    private final Consumer<String> events;
+    // global slots assigned since the speculation began
+    private final Set<Integer> changed = new HashSet<>();
+    private final Map<Integer, List<JitCode>> dependents = new HashMap<>();
+    // what each code installed is, for the events
+    private final Map<JitCode, String> installed = new IdentityHashMap<>();
+    private int speculations;
+    private int discarded;
+    private int foldedReads;
+    private int deopts;
+
+    /**
+     * @param environment the environment the compiled code runs on
+     * @param events where to report each deoptimization
+     */
+    GlobalSpeculation(Environment environment, Consumer<String> events) {
+        this.environment = environment;
+        this.events = events;
+    }
+
+    /**
+     * The current values of the globals that can be taken as constants.
+     * Call it on the interpreter's thread, before compiling with them.
+     *
+     * @return values by global slot
+     */
+    Map<Integer, Integer> snapshot() {
+        Map<Integer, Integer> constants = new HashMap<>();
+        synchronized (this) {
+            for (int slot = 0; slot < environment.getGlobalCount(); slot++) {
+                // arguments pushed for a call from the top level have no name
+                if (!changed.contains(slot) && environment.getGlobalName(slot) != null) {
+                    constants.put(slot, environment.get(1, slot));
+                }
+            }
+        }
+        for (int slot : constants.keySet()) {
+            environment.watchGlobal(slot, this::written);
+        }
+        return constants;
+    }
+
+    /**
+     * Register code compiled with constants from snapshot, unless one of
+     * the globals it took has been assigned since.
+     *
+     * @param code the compiled code
+     * @param what what was compiled, for the events
+     * @return false if the code is out of date already and must be dropped
+     */
+    synchronized boolean install(JitCode code, String what) {
+        Set<Integer> slots = code.getSpeculatedGlobals();
+        if (slots.isEmpty()) {
+            return true;
+        }
+        for (int slot : slots) {
+            if (changed.contains(slot)) {
+                discarded++;
+                return false;
+            }
+        }
+        for (int slot : slots) {
+            dependents.computeIfAbsent(slot, s -> new ArrayList<>()).add(code);
+        }
+        installed.put(code, what);
+        speculations++;
+        foldedReads += code.getFoldedReads();
+        return true;
+    }
+
+    /**
+     * Called by the Environment after a watched global was assigned.
+     */
+    private synchronized void written(int slot) {
+        changed.add(slot);
+        List<JitCode> codes = dependents.remove(slot);
+        if (codes == null) {
+            return;
+        }
+        for (JitCode code : codes) {
+            String what = installed.remove(code);
+            if (what != null) {
+                code.invalidate();
+                deopts++;
+                events.accept("Deoptimized " + what + " after global '" + environment.getGlobalName(slot)
+                        + "' was assigned");
+            }
+        }
+    }
+
+    /**
+     * Number of compiled codes installed with globals built in.
+     */
+    synchronized int getSpeculations() {
+        return speculations;
+    }
+
+    /**
+     * Number of compiled codes dropped before they were installed,
+     * because a global they took was assigned while compiling.
+     */
+    synchronized int getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Number of global reads compiled as constants, in the codes installed.
+     */
+    synchronized int getFoldedReads() {
+        return foldedReads;
+    }
+
+    /**
+     * Number of compiled codes invalidated by an assignment.
+     */
+    synchronized int getDeopts() {
+        return deopts;
+    }
+
+    /**
+     * Number of globals assigned since the speculation began.
+     */
+    synchronized int getChangedGlobals() {
+        return changed.size();
+    }
+}
@@ -9,6 +9,10 @@ public class IfStatement extends Statement {
     private final List<Expression> elifConditions;
     private final List<List<Statement>> elifBranches;
     private final List<Statement> elseBranch;
+    // Set by the Resolver when the conditions compare one variable with literals
+    private SwitchTable switchTable;
+    // Set from a Profile: the then and elif arms that earlier runs rarely took
+    private boolean[] coldArms;
     
     public IfStatement(Expression condition, List<Statement> thenBranch, 
                       List<Expression> elifConditions, List<List<Statement>> elifBranches,
@@ -44,6 +48,30 @@ public class IfStatement extends Statement {
     public boolean hasElse() {
         return elseBranch != null;
     }
+
+    /**
+     * The table that picks the branch with one lookup, if every condition
+     * compares the same variable with a literal.
+     */
+    public SwitchTable getSwitchTable() {
+        return switchTable;
+    }
+
+    public void setSwitchTable(SwitchTable switchTable) {
+        this.switchTable = switchTable;
+    }
+
+    /**
+     * Which of the then and elif arms a profile found rarely taken, by
+     * position, or null if none or no profile.
+     */
+    public boolean[] getColdArms() {
+        return coldArms;
+    }
+
+    public void setColdArms(boolean[] coldArms) {
+        this.coldArms = coldArms;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
@@ -0,0 +1,469 @@
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Inliner replaces calls to small, non-recursive functions with the
+ * function's body, so the call no longer pays for a frame and argument
+ * passing.
+ *
+ * A function whose body is just return e is substituted into the calling
+ * expression when its arguments are literals or the caller's variables.
+ * Any other inlinable call must be the whole value of its statement
+ * (var v <- f(a), v <- f(a), return f(a), print f(a) or f(a);). It then
+ * becomes declarations of the arguments, the body and the statement
+ * applied to the returned value. Such a body may only return as its last
+ * statement.
+ *
+ * Parameters and locals of the inlined body get fresh names containing a
+ * '$', which programs cannot spell, and a function whose globals the
+ * caller shadows, or that are declared after the caller, is not inlined
+ * into it. Inlining is limited by the
+ * callee's size, the nesting depth of inlined calls and how much each
+ * caller may grow. Programs with nested functions are left alone, since
+ * those can redefine a function name or see the caller's variables.
+ *
+ * Given the Profile of earlier runs, a call site that was hot may inline
+ * a callee up to HOT_CALLEE_NODES, and one that never ran while its
+ * caller did is not inlined, leaving the growth to the sites that run.
+ */
+public class Inliner extends ASTRewriter {
+    static final int MAX_CALLEE_NODES = 30;
+    static final int MAX_DEPTH = 3;
+    static final int MAX_GROWTH = 300;
+    static final int HOT_CALLEE_NODES = 2 * MAX_CALLEE_NODES;
+
+    private final Map<String, FunctionDeclarationStatement> candidates = new HashMap<>();
+    private final Map<String, Scan> scans = new HashMap<>();
+    private Set<String> globalNames;
+    // earlier runs of the program, or null
+    private Profile profile;
+    // the function being rewritten
+    private String callerName;
+    // names declared in the function being rewritten, inlined ones included
+    private Set<String> callerNames;
+    // globals declared before the function being rewritten, the only ones it can address
+    private Set<String> callerGlobals;
+    private int growth;
+    private int depth;
+    private int inlinedCalls;
+    private int nextId;
+
+    /**
+     * What a walk over some statements found.
+     */
+    private static class Scan extends ASTRewriter {
+        final Set<String> calls = new HashSet<>();
+        final Set<String> declared = new HashSet<>();
+        final Set<String> used = new HashSet<>();
+        boolean nestedFunction;
+        int returns;
+
+        static Scan of(List<String> parameters, List<Statement> statements) {
+            Scan scan = new Scan();
+            scan.declared.addAll(parameters);
+            scan.rewriteBlock(statements);
+            return scan;
+        }
+
+        /**
+         * Variables the statements use without declaring them: globals.
+         */
+        Set<String> free() {
+            Set<String> free = new HashSet<>(used);
+            free.removeAll(declared);
+            return free;
+        }
+
+        @Override
+        public Object visitCallExpression(CallExpression expr) {
+            calls.add(expr.getCallee());
+            return super.visitCallExpression(expr);
+        }
+
+        @Override
+        public Object visitVariableExpression(VariableExpression expr) {
+            used.add(expr.getName());
+            return expr;
+        }
+
+        @Override
+        public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+            for (VarDeclarator decl : stmt.getDeclarators()) {
+                declared.add(decl.getName());
+            }
+            return super.visitVarDeclarationStatement(stmt);
+        }
+
+        @Override
+        public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+            used.add(stmt.getName());
+            return super.visitVarAssignmentStatement(stmt);
+        }
+
+        @Override
+        public Object visitReturnStatement(ReturnStatement stmt) {
+            returns++;
+            return super.visitReturnStatement(stmt);
+        }
+
+        @Override
+        public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+            nestedFunction = true;
+            return stmt;
+        }
+    }
+
+    /**
+     * Copies statements with variables renamed, or replaced outright. Nodes
+     * the Resolver annotates are always copied, so each inlined copy gets
+     * its own slots.
+     */
+    private static class Renamer extends ASTRewriter {
+        private final Map<String, String> names;
+        private final Map<String, Expression> values;
+
+        Renamer(Map<String, String> names, Map<String, Expression> values) {
+            this.names = names;
+            this.values = values;
+        }
+
+        private String rename(String name) {
+            return names.getOrDefault(name, name);
+        }
+
+        @Override
+        public Object visitVariableExpression(VariableExpression expr) {
+            Expression value = values.get(expr.getName());
+            return value != null ? value : new VariableExpression(rename(expr.getName()), expr.getLine());
+        }
+
+        @Override
+        public Object visitCallExpression(CallExpression expr) {
+            List<Expression> arguments = new ArrayList<>();
+            for (Expression arg : expr.getArguments()) {
+                arguments.add(rewrite(arg));
+            }
+            return new CallExpression(expr.getCallee(), arguments, expr.getLine());
+        }
+
+        @Override
+        public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+            List<VarDeclarator> declarators = new ArrayList<>();
+            for (VarDeclarator decl : stmt.getDeclarators()) {
+                declarators.add(new VarDeclarator(rename(decl.getName()), rewrite(decl.getInitializer())));
+            }
+            return new VarDeclarationStatement(declarators, stmt.getLine());
+        }
+
+        @Override
+        public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+            return new VarAssignmentStatement(rename(stmt.getName()), rewrite(stmt.getValue()), stmt.getLine());
+        }
+    }
+
+    @Override
+    public List<Statement> rewrite(List<Statement> program) {
+        Map<String, FunctionDeclarationStatement> functions = new HashMap<>();
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                // all functions are defined before anything runs, so the last one wins
+                functions.put(fn.getName(), fn);
+            }
+        }
+        for (FunctionDeclarationStatement fn : functions.values()) {
+            Scan scan = Scan.of(fn.getParameters(), fn.getBody());
+            if (scan.nestedFunction) {
+                return program;
+            }
+            scans.put(fn.getName(), scan);
+        }
+        List<Statement> topLevel = new ArrayList<>(program);
+        topLevel.removeIf(stmt -> stmt instanceof FunctionDeclarationStatement);
+        globalNames = Scan.of(List.of(), topLevel).declared;
+        for (FunctionDeclarationStatement fn : functions.values()) {
+            if (isInlinable(fn) && !isRecursive(fn.getName())) {
+                candidates.put(fn.getName(), fn);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return program;
+        }
+
+        // only function bodies are rewritten; top-level code runs once
+        List<Statement> result = new ArrayList<>(program.size());
+        Set<String> declaredGlobals = new HashSet<>();
+        for (Statement stmt : program) {
+            if (stmt instanceof VarDeclarationStatement decl) {
+                for (VarDeclarator declarator : decl.getDeclarators()) {
+                    declaredGlobals.add(declarator.getName());
+                }
+            }
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                callerName = fn.getName();
+                callerNames = new HashSet<>(Scan.of(fn.getParameters(), fn.getBody()).declared);
+                callerGlobals = new HashSet<>(declaredGlobals);
+                growth = 0;
+                result.add((Statement) visitFunctionDeclarationStatement(fn));
+            } else {
+                result.add(stmt);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Inline by how often each call site ran in earlier runs.
+     *
+     * @param profile profile of the program, or null for none
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Number of calls replaced by a function body.
+     */
+    public int getInlinedCalls() {
+        return inlinedCalls;
+    }
+
+    private boolean isInlinable(FunctionDeclarationStatement fn) {
+        if (BuiltinFunction.forName(fn.getName()) != null
+                || Optimizer.countNodes(fn.getBody()) > (profile == null ? MAX_CALLEE_NODES : HOT_CALLEE_NODES)) {
+            return false;
+        }
+        // a return anywhere but at the very end cannot be spliced into a block
+        List<Statement> body = fn.getBody();
+        Scan scan = scans.get(fn.getName());
+        if (!Collections.disjoint(scan.declared, globalNames)) {
+            // a local that shadows a global could not be told apart from it when renaming
+            return false;
+        }
+        return scan.returns == 0
+                || (scan.returns == 1 && body.get(body.size() - 1) instanceof ReturnStatement);
+    }
+
+    private boolean isRecursive(String name) {
+        Deque<String> pending = new ArrayDeque<>(scans.get(name).calls);
+        Set<String> seen = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String callee = pending.pop();
+            if (callee.equals(name)) {
+                return true;
+            }
+            if (seen.add(callee) && scans.containsKey(callee)) {
+                pending.addAll(scans.get(callee).calls);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The function a call can be replaced with, or null.
+     */
+    private FunctionDeclarationStatement target(CallExpression call) {
+        FunctionDeclarationStatement fn = candidates.get(call.getCallee());
+        if (fn == null || fn.getParameters().size() != call.getArguments().size()
+                || depth >= MAX_DEPTH || growth + Optimizer.countNodes(fn.getBody()) > MAX_GROWTH) {
+            return null;
+        }
+        if (profile != null) {
+            String callee = call.getCallee();
+            if (profile.isColdCall(callerName, call.getLine(), callee)
+                    || (Optimizer.countNodes(fn.getBody()) > MAX_CALLEE_NODES
+                    && !profile.isHotCall(callerName, call.getLine(), callee))) {
+                return null;
+            }
+        }
+        for (String global : scans.get(fn.getName()).free()) {
+            if (callerNames.contains(global)) {
+                // the caller's own variable would capture the name
+                return null;
+            }
+            if (globalNames.contains(global) && !callerGlobals.contains(global)) {
+                // the Resolver only gives the caller the globals declared before it
+                return null;
+            }
+        }
+        return fn;
+    }
+
+    private static Expression returnedExpression(FunctionDeclarationStatement fn) {
+        List<Statement> body = fn.getBody();
+        if (body.size() == 1 && body.get(0) instanceof ReturnStatement ret && ret.hasValue()) {
+            return ret.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Whether an argument can be used in place of its parameter: it has no
+     * effects, and nothing the body runs can change its value.
+     */
+    private boolean isSubstitutable(Expression arg, FunctionDeclarationStatement fn) {
+        if (arg instanceof LiteralExpression) {
+            return true;
+        }
+        return arg instanceof VariableExpression var
+                && (callerNames.contains(var.getName()) || scans.get(fn.getName()).calls.isEmpty());
+    }
+
+    /**
+     * Whether a call can be replaced by its function's returned expression
+     * with the arguments substituted for the parameters.
+     */
+    private boolean isSubstitutable(CallExpression call, FunctionDeclarationStatement fn) {
+        if (returnedExpression(fn) == null) {
+            return false;
+        }
+        for (Expression arg : call.getArguments()) {
+            if (!isSubstitutable(arg, fn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void countInlined(FunctionDeclarationStatement fn) {
+        inlinedCalls++;
+        growth += Optimizer.countNodes(fn.getBody());
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        CallExpression call = (CallExpression) super.visitCallExpression(expr);
+        FunctionDeclarationStatement fn = target(call);
+        Expression returned = fn == null ? null : returnedExpression(fn);
+        if (returned == null) {
+            return call;
+        }
+        if (!isSubstitutable(call, fn)) {
+            return call;
+        }
+        Map<String, Expression> values = new HashMap<>();
+        for (int i = 0; i < call.getArguments().size(); i++) {
+            values.put(fn.getParameters().get(i), call.getArguments().get(i));
+        }
+        countInlined(fn);
+        Expression inlined = new Renamer(Map.of(), values).rewrite(returned);
+        depth++;
+        try {
+            return rewrite(inlined);
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Expand a call that is the whole value of a statement.
+     *
+     * @param value the statement's value, already known to be a call
+     * @param rebuild makes the statement again around the returned value
+     * @return the statements replacing it, or null to keep the call
+     */
+    private List<Statement> expand(Expression value, Function<Expression, Statement> rebuild) {
+        CallExpression call = (CallExpression) value;
+        FunctionDeclarationStatement fn = target(call);
+        if (fn == null || isSubstitutable(call, fn)) {
+            // keep the call, or leave it to visitCallExpression
+            return null;
+        }
+        countInlined(fn);
+        int id = ++nextId;
+        Map<String, String> names = new HashMap<>();
+        for (String name : scans.get(fn.getName()).declared) {
+            names.put(name, fn.getName() + "$" + id + "$" + name);
+        }
+        callerNames.addAll(names.values());
+        Renamer renamer = new Renamer(names, Map.of());
+
+        List<Statement> statements = new ArrayList<>();
+        List<Expression> arguments = call.getArguments();
+        for (int i = 0; i < arguments.size(); i++) {
+            // arguments are evaluated in order, before the body, as in a call
+            VarDeclarator param = new VarDeclarator(names.get(fn.getParameters().get(i)), rewrite(arguments.get(i)));
+            statements.add(new VarDeclarationStatement(List.of(param), call.getLine()));
+        }
+        List<Statement> body = fn.getBody();
+        Expression returned = new LiteralExpression(0, call.getLine());
+        if (!body.isEmpty() && body.get(body.size() - 1) instanceof ReturnStatement ret) {
+            body = body.subList(0, body.size() - 1);
+            if (ret.hasValue()) {
+                returned = renamer.rewrite(ret.getValue());
+            }
+        }
+        depth++;
+        try {
+            statements.addAll(rewriteBlock(renamer.rewriteBlock(body)));
+            // the returned value may itself be a call to expand
+            statements.addAll(rewriteBlock(List.of(rebuild.apply(returned))));
+        } finally {
+            depth--;
+        }
+        return statements;
+    }
+
+    private static boolean isCall(Expression expr) {
+        return expr instanceof CallExpression;
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        List<VarDeclarator> declarators = stmt.getDeclarators();
+        if (declarators.size() == 1 && isCall(declarators.get(0).getInitializer())) {
+            String name = declarators.get(0).getName();
+            List<Statement> expanded = expand(declarators.get(0).getInitializer(), value ->
+                    new VarDeclarationStatement(List.of(new VarDeclarator(name, value)), stmt.getLine()));
+            if (expanded != null) {
+                return expanded;
+            }
+        }
+        return super.visitVarDeclarationStatement(stmt);
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        if (isCall(stmt.getValue())) {
+            List<Statement> expanded = expand(stmt.getValue(), value ->
+                    new VarAssignmentStatement(stmt.getName(), value, stmt.getLine()));
+            if (expanded != null) {
+                return expanded;
+            }
+        }
+        return super.visitVarAssignmentStatement(stmt);
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        if (stmt.hasValue() && isCall(stmt.getValue())) {
+            List<Statement> expanded = expand(stmt.getValue(), value -> new ReturnStatement(value, stmt.getLine()));
+            if (expanded != null) {
+                return expanded;
+            }
+        }
+        return super.visitReturnStatement(stmt);
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        if (isCall(stmt.getExpression())) {
+            List<Statement> expanded = expand(stmt.getExpression(), value -> new PrintStatement(value, stmt.getLine()));
+            if (expanded != null) {
+                return expanded;
+            }
+        }
+        return super.visitPrintStatement(stmt);
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        if (isCall(stmt.getExpression())) {
+            List<Statement> expanded = expand(stmt.getExpression(),
+                    value -> new ExpressionStatement(value, stmt.getLine()));
+            if (expanded != null) {
+                return expanded;
+            }
+        }
+        return super.visitExpressionStatement(stmt);
+    }
+}
@@ -1,4 +1,5 @@
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Interpreter implements the ASTVisitor to interpret parsed expressions.
@@ -6,12 +7,129 @@ import java.util.*;
  */
 public class Interpreter implements ASTVisitor {
     protected final Environment environment = new Environment();
-    protected final SymbolTable symbolTable = new SymbolTable();
+    protected final SymbolTable symbolTable;
+    // functions compiled to JVM bytecode, used while no function changes
+    private JitCode compiled;
+    // tables of earlier results for pure functions, or null
+    private Memoizer memoizer;
+    // runs independent pure calls on other threads, or null
+    private ParallelEvaluator parallel;
+    // the interpreter each worker thread runs forked calls on
+    private ThreadLocal<Interpreter> workers;
+    // forks between the entry call and the code running now
+    private int forkLevel;
+    // compiles hot functions while the program runs, or null
+    private TieredCompiler tiers;
+    // runs the hot while loops of functions as traces, or null
+    private TracingJit tracing;
+    // counts calls, branches and loop iterations, or null
+    private Profile profile;
+
+    public Interpreter() {
+        this.symbolTable = new SymbolTable();
+    }
+
+    /**
+     * An interpreter for one worker thread, sharing the functions of the
+     * interpreter that forked the work. It has its own Environment, so
+     * every call's frames stay on the thread that runs it.
+     */
+    private Interpreter(Interpreter parent) {
+        this.symbolTable = parent.symbolTable;
+        this.parallel = parent.parallel;
+        this.workers = parent.workers;
+    }
 
     public void defineFunction(String name, FunctionDeclarationStatement declaration) {
         symbolTable.define(name, declaration);
     }
 
+    /**
+     * Compile the defined functions to JVM bytecode; calls then run the
+     * compiled methods until a function is defined or redefined.
+     *
+     * @return false if the program uses something the JIT cannot compile
+     */
+    public boolean compileFunctions() {
+        try {
+            compiled = JitCompiler.compile(symbolTable);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            compiled = null;
+            return false;
+        }
+    }
+
+    /**
+     * Answer calls to the functions the memoizer picked from their tables.
+     * Set it before running anything, so no call is linked without it.
+     *
+     * @param memoizer memoizer for the program being run, or null for none
+     */
+    public void setMemoizer(Memoizer memoizer) {
+        this.memoizer = memoizer;
+    }
+
+    /**
+     * Evaluate the operands of forkable expressions in parallel. Calls
+     * are never forked while a memoizer is set: its tables belong to one
+     * thread, and they already remove the repeated work.
+     *
+     * @param parallel evaluator for the program being run, or null for none
+     */
+    public void setParallelEvaluator(ParallelEvaluator parallel) {
+        this.parallel = parallel;
+        this.workers = parallel != null ? ThreadLocal.withInitial(() -> new Interpreter(this)) : null;
+    }
+
+    /**
+     * Count calls and loop iterations, and run the functions that get hot
+     * as the code the tiered compiler builds for them. The worker threads
+     * of a parallel evaluator do not count. Globals are compiled as
+     * constants from here on, until they are assigned.
+     *
+     * @param tiers compiler for the program being run, or null for none
+     */
+    public void setTieredCompiler(TieredCompiler tiers) {
+        this.tiers = tiers;
+        if (tiers != null) {
+            tiers.setGlobals(environment);
+        }
+    }
+
+    /**
+     * Run the while loops of functions that get hot as compiled traces of
+     * the paths their iterations take. The worker threads of a parallel
+     * evaluator do not trace.
+     *
+     * @param tracing tracing JIT for the program being run, or null for none
+     */
+    public void setTracingJit(TracingJit tracing) {
+        this.tracing = tracing;
+    }
+
+    /**
+     * Count the calls, if statement arms and loop iterations of the
+     * defined functions into a profile, and lay out their if statements
+     * as its earlier runs suggest. Set it before compiling anything. The
+     * worker threads of a parallel evaluator do not count.
+     *
+     * @param profile profile of the program being run, or null for none
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+        if (profile != null) {
+            profile.index(symbolTable.getFunctions().values());
+        }
+    }
+
+    /**
+     * The compiled functions, or null if they are interpreted.
+     */
+    JitCode getCompiledCode() {
+        return compiled;
+    }
+
     public void enterScope() {
         environment.enterScope();
     }
@@ -21,20 +139,82 @@ public class Interpreter implements ASTVisitor {
     }
 
     /**
-     * Evaluates binary expressions (e.g., a + b, x == y).
+     * Evaluates an expression straight to a primitive int.
+     * This is the fast path used for arithmetic, conditions, arguments and
+     * variable storage, so intermediate values are never boxed. Operators
+     * are applied here rather than in evalBinary, unless the expression is
+     * forked, so a call in an operand takes one Java frame less.
      *
-     * @param expr binary expression
-     * @return the result of the binary calculation
+     * @param expr expression to evaluate
+     * @return the integer value of the expression
      */
-    @Override
-    public Object visitBinaryExpression(BinaryExpression expr) {
-        Object left = expr.getLeft().accept(this);
-        Object right = expr.getRight().accept(this);
+    public int evalInt(Expression expr) {
+        switch (expr.getType()) {
+            case BINARY: {
+                BinaryExpression binary = (BinaryExpression) expr;
+                if (shouldFork(binary)) {
+                    return evalBinary(binary);
+                }
+                int l = evalInt(binary.getLeft());
+                return apply(binary.getOperator(), l, evalInt(binary.getRight()));
+            }
+            case UNARY:
+                return evalUnary((UnaryExpression) expr);
+            case LITERAL:
+                return (Integer) ((LiteralExpression) expr).getValue();
+            case VARIABLE:
+                VariableExpression var = (VariableExpression) expr;
+                if (var.isResolved()) {
+                    return environment.get(var.getDepth(), var.getSlot());
+                }
+                return environment.lookup(var.getName());
+            case GROUP:
+                return evalInt(((GroupExpression) expr).getExpression());
+            case CALL:
+                return evalCall((CallExpression) expr);
+            case INPUT:
+                return Builtins.readInput();
+            case BUILTIN_REF:
+                throw new RuntimeException("Built-in function '"
+                        + ((BuiltinRefExpression) expr).getName() + "' cannot be used as a number");
+            default:
+                throw new RuntimeException("Unknown expression type: " + expr.getType());
+        }
+    }
 
-        int l = (int) left;
-        int r = (int) right;
+    private boolean shouldFork(BinaryExpression expr) {
+        return parallel != null && memoizer == null && expr.isForkable() && parallel.shouldFork(forkLevel);
+    }
 
-        return switch (expr.getOperator()) {
+    private int evalBinary(BinaryExpression expr) {
+        int l;
+        int r;
+        ForkedCall right = null;
+        if (shouldFork(expr)) {
+            right = fork((CallExpression) expr.getRight(), expr.getLeft());
+        }
+        if (right != null) {
+            try {
+                l = evalInt(expr.getLeft());
+            } catch (RuntimeException | Error e) {
+                right.cancel(false);
+                throw e;
+            }
+            r = right.value();
+        } else {
+            l = evalInt(expr.getLeft());
+            r = evalInt(expr.getRight());
+        }
+        return apply(expr.getOperator(), l, r);
+    }
+
+    private static int apply(TokenType operator, int l, int r) {
+        if (r == 0 && (operator == TokenType.SLASH || operator == TokenType.MOD)) {
+            // thrown here, since HotSpot drops the message of an implicit
+            // ArithmeticException once the division gets hot
+            throw new ArithmeticException("/ by zero");
+        }
+        return switch (operator) {
             case PLUS -> l + r;
             case MINUS -> l - r;
             case STAR -> l * r;
@@ -46,10 +226,209 @@ public class Interpreter implements ASTVisitor {
             case LE -> l <= r ? 1 : 0;
             case GT -> l > r ? 1 : 0;
             case GE -> l >= r ? 1 : 0;
-            default -> throw new RuntimeException("Unknown binary operator: " + expr.getOperator());
+            default -> throw new RuntimeException("Unknown binary operator: " + operator);
         };
     }
 
+    private int evalUnary(UnaryExpression expr) {
+        int value = evalInt(expr.getOperand());
+        if (expr.getOperator() == TokenType.MINUS) {
+            return -value;
+        }
+        throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+    }
+
+    private int evalCall(CallExpression expr) {
+        List<Expression> arguments = expr.getArguments();
+        CallTarget target = targetOf(expr);
+        if (target == null) {
+            // Evaluate the arguments first, as a normal call would, then report the error
+            int[] args = new int[arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = evalInt(arguments.get(i));
+            }
+            return invoke(expr.getCallee(), args);
+        }
+
+        if (target.builtin != null) {
+            int a = arguments.size() > 0 ? evalInt(arguments.get(0)) : 0;
+            int b = arguments.size() > 1 ? evalInt(arguments.get(1)) : 0;
+            return Builtins.call(target.builtin, a, b);
+        }
+        if (profile != null) {
+            profile.countCall(expr);
+        }
+        if (target.memo != null) {
+            // run the body only for arguments the table has not seen; a call
+            // that fails leaves nothing in it
+            int[] args = new int[arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = evalInt(arguments.get(i));
+            }
+            int slot = target.memo.find(args);
+            if (slot >= 0) {
+                return target.memo.valueAt(slot);
+            }
+            for (int arg : args) {
+                environment.pushArgument(arg);
+            }
+            int result = run(target.function, args.length);
+            target.memo.put(args, result);
+            return result;
+        }
+        if (tiers != null) {
+            JitCode code = tiers.enter(target.function, symbolTable);
+            if (code != null) {
+                int[] args = new int[arguments.size()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = evalInt(arguments.get(i));
+                }
+                return code.call(environment, target.function.getName(), args);
+            }
+        }
+        // Arguments go straight onto the stack where the callee's parameters live
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.pushArgument(evalInt(arguments.get(i)));
+        }
+        return run(target.function, arguments.size());
+    }
+
+    /**
+     * Evaluate the arguments of a call here and start the call itself as a
+     * task. If an argument fails, the left operand is evaluated first, as
+     * it would have been, in case it fails too.
+     *
+     * @param call right operand of a forkable expression
+     * @param left the left operand
+     * @return the running task, or null if the call cannot be forked
+     */
+    private ForkedCall fork(CallExpression call, Expression left) {
+        CallTarget target = targetOf(call);
+        if (target == null || target.function == null) {
+            return null;
+        }
+        List<Expression> arguments = call.getArguments();
+        int[] args = new int[arguments.size()];
+        try {
+            for (int i = 0; i < args.length; i++) {
+                args[i] = evalInt(arguments.get(i));
+            }
+        } catch (RuntimeException e) {
+            evalInt(left);
+            throw e;
+        }
+        ForkedCall task = new ForkedCall(workers, target.function, args, forkLevel + 1);
+        parallel.fork(task);
+        return task;
+    }
+
+    /**
+     * A call of a pure function, run by whichever worker thread takes it.
+     * A worker that waits for a task may run another one meanwhile; that
+     * task's frames go on top of the worker's stack and are gone before it
+     * returns, just like a nested call.
+     */
+    private static final class ForkedCall extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<Interpreter> workers;
+        private final FunctionDeclarationStatement function;
+        private final int[] args;
+        private final int level;
+        private int result;
+        private Throwable failure;
+
+        ForkedCall(ThreadLocal<Interpreter> workers, FunctionDeclarationStatement function, int[] args, int level) {
+            this.workers = workers;
+            this.function = function;
+            this.args = args;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            Interpreter worker = workers.get();
+            int savedLevel = worker.forkLevel;
+            worker.forkLevel = level;
+            try {
+                for (int arg : args) {
+                    worker.environment.pushArgument(arg);
+                }
+                result = worker.run(function, args.length);
+            } catch (RuntimeException | Error e) {
+                // kept rather than thrown, so join does not wrap it
+                failure = e;
+            } finally {
+                worker.forkLevel = savedLevel;
+            }
+        }
+
+        /**
+         * Wait for the call and return its result, or throw what it threw.
+         */
+        int value() {
+            join();
+            if (failure instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure instanceof Error e) {
+                throw e;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * What a call runs, from its cache while no function has changed.
+     *
+     * @return the target, or null if the call fails
+     */
+    private CallTarget targetOf(CallExpression expr) {
+        CallTarget target = expr.getTarget();
+        if (target == null || target.version != symbolTable.getVersion()) {
+            target = link(expr.getCallee(), expr.getArguments().size());
+            if (target != null) {
+                expr.setTarget(target);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Find what a call to the given name should run.
+     *
+     * @param name function name
+     * @param argCount number of arguments at the call
+     * @return the target, or null if the function is undefined or the argument count is wrong
+     */
+    private CallTarget link(String name, int argCount) {
+        BuiltinFunction builtin = BuiltinFunction.forName(name);
+        if (builtin != null) {
+            return builtin.getArity() == argCount
+                    ? new CallTarget(builtin, null, symbolTable.getVersion())
+                    : null;
+        }
+        FunctionDeclarationStatement fn = symbolTable.lookup(name);
+        if (fn == null || fn.getParameters().size() != argCount) {
+            return null;
+        }
+        MemoTable memo = memoizer != null ? memoizer.tableFor(fn) : null;
+        return new CallTarget(null, fn, symbolTable.getVersion(), memo);
+    }
+
+
+
+    /**
+     * Evaluates binary expressions (e.g., a + b, x == y).
+     *
+     * @param expr binary expression
+     * @return the result of the binary calculation
+     */
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        return evalBinary(expr);
+    }
+
     /**
      * Evaluates unary expressions.
      *
@@ -58,11 +437,7 @@ public class Interpreter implements ASTVisitor {
      */
     @Override
     public Object visitUnaryExpression(UnaryExpression expr) {
-        int value = (int) expr.getOperand().accept(this);
-        if (expr.getOperator() == TokenType.MINUS) {
-            return -value;
-        }
-        throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+        return evalUnary(expr);
     }
 
     /**
@@ -77,19 +452,30 @@ public class Interpreter implements ASTVisitor {
     }
 
     /**
-     * visit the reference of a variable or returns its name.
+     * visit the reference of a variable.
      *
      * @param expr Variable expression
-     * @return the value/name of the variable expression
+     * @return the value of the variable expression
      */
     @Override
     public Object visitVariableExpression(VariableExpression expr) {
-        if (Builtins.isBuiltin(expr.getName())) {
-            return expr.getName();
+        if (expr.isResolved()) {
+            return environment.get(expr.getDepth(), expr.getSlot());
         }
         return environment.lookup(expr.getName());
     }
 
+    /**
+     * A built-in function used as a value evaluates to its name.
+     *
+     * @param expr built-in reference
+     * @return the name of the built-in
+     */
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        return expr.getName();
+    }
+
     /**
      * Evaluates grouped expressions.
      *
@@ -109,13 +495,7 @@ public class Interpreter implements ASTVisitor {
      */
     @Override
     public Object visitCallExpression(CallExpression expr) {
-        // Eval args
-        List<Integer> argValues = new ArrayList<>();
-        for (Expression arg : expr.getArguments()) {
-            argValues.add((Integer) arg.accept(this));
-        }
-        // Delegate everything to callFunction()
-        return callFunction(expr.getCallee(), argValues);
+        return evalCall(expr);
     }
 
     /**
@@ -126,9 +506,7 @@ public class Interpreter implements ASTVisitor {
      */
     @Override
     public Object visitInputExpression(InputExpression expr) {
-        Scanner scanner = new Scanner(System.in);
-        System.out.print("Input: ");
-        return scanner.nextInt();
+        return Builtins.readInput();
     }
 
     /**
@@ -140,9 +518,12 @@ public class Interpreter implements ASTVisitor {
     @Override
     public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
         for (VarDeclarator decl : stmt.getDeclarators()) {
-            Object value = decl.getInitializer().accept(this);
-            environment.declare(decl.getName(), (Integer) value);
-            symbolTable.defineVariable(decl.getName(), null); // Register name for parser-level checks
+            int value = evalInt(decl.getInitializer());
+            if (decl.isResolved()) {
+                environment.declare(decl.getSlot(), decl.getName(), value);
+            } else {
+                environment.declare(decl.getName(), value);
+            }
         }
         return null;
     }
@@ -155,8 +536,12 @@ public class Interpreter implements ASTVisitor {
      */
     @Override
     public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
-        int value = (Integer) stmt.getValue().accept(this);
-        environment.assign(stmt.getName(), value);
+        int value = evalInt(stmt.getValue());
+        if (stmt.isResolved()) {
+            environment.set(stmt.getDepth(), stmt.getSlot(), value);
+        } else {
+            environment.assign(stmt.getName(), value);
+        }
         return null;
     }
 
@@ -175,76 +560,205 @@ public class Interpreter implements ASTVisitor {
      * Helper method that packages enterScope, run statement, and existScope into one.
      *
      * @param statements expression statement var
+     * @return RETURN if a statement in the block returned, NORMAL otherwise
      */
-    private void executeBlock(List<Statement> statements) {
+    private Completion executeBlock(List<Statement> statements) {
         environment.enterScope();
         for (Statement stmt : statements) {
-            stmt.accept(this);
+            Completion completion = execute(stmt);
+            if (completion != Completion.NORMAL) {
+                environment.exitScope();
+                return completion;
+            }
         }
         environment.exitScope();
+        return Completion.NORMAL;
     }
 
     /**
-     * Exception used for early return control flow in functions.
+     * Executes a statement whose value is discarded. Expression statements
+     * go through evalInt so their result is not boxed just to be dropped.
+     * The statements that can hold a call are dispatched here rather than
+     * through accept, which would add a Java frame to every level of
+     * recursion.
+     *
+     * @param stmt statement to execute
+     * @return RETURN or TAIL_CALL if the statement left the function, NORMAL otherwise
      */
-    public static class Return extends RuntimeException {
-        public final int value;
-        public Return(int value) {
-            super(null, null, false, false);
-            this.value = value;
+    private Completion execute(Statement stmt) {
+        switch (stmt.getType()) {
+            case EXPRESSION:
+                evalInt(((ExpressionStatement) stmt).getExpression());
+                return Completion.NORMAL;
+            case RETURN:
+                return (Completion) visitReturnStatement((ReturnStatement) stmt);
+            case IF:
+                return (Completion) visitIfStatement((IfStatement) stmt);
+            case VAR_DECLARATION:
+                visitVarDeclarationStatement((VarDeclarationStatement) stmt);
+                return Completion.NORMAL;
+            case VAR_ASSIGNMENT:
+                visitVarAssignmentStatement((VarAssignmentStatement) stmt);
+                return Completion.NORMAL;
+            default:
+                return stmt.accept(this) instanceof Completion completion ? completion : Completion.NORMAL;
         }
     }
 
+    /**
+     * How a statement finished. Control statements hand RETURN upward until
+     * the call that owns the frame picks up the value from Frame.returnValue,
+     * so a return costs neither an allocation nor an exception unwind.
+     * TAIL_CALL travels the same way, after a return of a call to the
+     * function itself has put the new arguments in the parameters; the call
+     * then starts its body again instead of nesting.
+     */
+    public enum Completion {
+        NORMAL,
+        RETURN,
+        TAIL_CALL
+    }
+
     /**
      * Evaluate if statement.
      *
      * @param stmt if statement var
-     * @return null (if is an action, and does not generate new value)
+     * @return the completion of the branch taken (if is an action, and does not generate new value)
      */
     @Override
     public Object visitIfStatement(IfStatement stmt) {
-        if ((int) stmt.getCondition().accept(this) != 0) {
-            executeBlock(stmt.getThenBranch());
-            return null;
+        SwitchTable table = stmt.getSwitchTable();
+        int elifs = stmt.getElifConditions().size();
+        if (table != null) {
+            int arm = table.armFor(evalInt(table.getSubject()));
+            countArm(stmt, arm < 0 ? elifs + 1 : arm);
+            if (arm == 0) {
+                return executeBlock(stmt.getThenBranch());
+            }
+            if (arm > 0) {
+                return executeBlock(stmt.getElifBranches().get(arm - 1));
+            }
+            return stmt.hasElse() ? executeBlock(stmt.getElseBranch()) : Completion.NORMAL;
         }
-        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
-            if ((int) stmt.getElifConditions().get(i).accept(this) != 0) {
-                executeBlock(stmt.getElifBranches().get(i));
-                return null;
+        if (evalInt(stmt.getCondition()) != 0) {
+            countArm(stmt, 0);
+            return executeBlock(stmt.getThenBranch());
+        }
+        for (int i = 0; i < elifs; i++) {
+            if (evalInt(stmt.getElifConditions().get(i)) != 0) {
+                countArm(stmt, i + 1);
+                return executeBlock(stmt.getElifBranches().get(i));
             }
         }
+        countArm(stmt, elifs + 1);
         if (stmt.hasElse()) {
-            executeBlock(stmt.getElseBranch());
+            return executeBlock(stmt.getElseBranch());
+        }
+        return Completion.NORMAL;
+    }
+
+    private void countArm(IfStatement stmt, int arm) {
+        if (profile != null) {
+            profile.countArm(stmt, arm);
+        }
+    }
+
+    private void countLoop(Statement loop, int iterations) {
+        if (profile != null) {
+            profile.countLoop(loop, iterations);
         }
-        return null;
     }
 
     /**
      * Do-while loop: "run" executes body at least once then checks condition.
      *
      * @param stmt run statement AST node
-     * @return null
+     * @return RETURN if the body returned, NORMAL otherwise
      */
     @Override
     public Object visitRunStatement(RunStatement stmt) {
+        TieredCompiler.Tier tier = tiers != null ? tiers.tierOf(environment.currentFrame().function) : null;
+        TieredCompiler.Loop hot = null;
+        int osrThreshold = tier != null ? tiers.getOsrThreshold(stmt) : 0;
+        int iterations = 0;
         do {
-            executeBlock(stmt.getBody());
-        } while ((int) stmt.getCondition().accept(this) != 0);
-        return null;
+            Completion completion = executeBlock(stmt.getBody());
+            iterations++;
+            if (completion != Completion.NORMAL) {
+                countLoop(stmt, iterations);
+                return completion;
+            }
+            if (tier != null) {
+                tiers.iterate(tier, symbolTable);
+                if (iterations == osrThreshold) {
+                    hot = tiers.loopOf(tier, stmt, symbolTable);
+                }
+                if (hot != null && (completion = continueCompiled(hot)) != null) {
+                    countLoop(stmt, iterations);
+                    return completion;
+                }
+            }
+        } while (evalInt(stmt.getCondition()) != 0);
+        countLoop(stmt, iterations);
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Move the current call onto the compiled code of a hot loop it is
+     * running, if that is ready. The frame's slots are copied into the
+     * code, which runs the rest of the loop, and copied back after.
+     *
+     * @param loop the loop's state
+     * @return how the loop ended, or null to keep interpreting it
+     */
+    private Completion continueCompiled(TieredCompiler.Loop loop) {
+        JitCode code = tiers.loopCode(loop, symbolTable);
+        if (code == null) {
+            return null;
+        }
+        Frame frame = environment.currentFrame();
+        int slots = JitCompiler.loopFrameSize(frame.function);
+        int[] values = environment.copyFrame(slots);
+        int status = code.call(environment, JitCompiler.LOOP_ENTRY, values);
+        environment.restoreFrame(values, slots);
+        if (status == 0) {
+            return Completion.NORMAL;
+        }
+        frame.returnValue = values[slots];
+        return Completion.RETURN;
     }
 
     /**
-     * Handles return statements by throwing a Return exception.
-     * Requires an explicit return value; missing value is an error.
+     * Handles return statements by storing the value in the current frame
+     * and signalling RETURN to the enclosing statements.
+     * A return without a value returns 0.
      *
      * @param stmt return statement AST node
+     * @return RETURN
      */
     @Override
     public Object visitReturnStatement(ReturnStatement stmt) {
+        CallExpression tailCall = stmt.getSelfTailCall();
+        if (tailCall != null) {
+            CallTarget target = targetOf(tailCall);
+            // unless the function has been redefined since it was entered
+            if (target != null && target.function == environment.currentFrame().function) {
+                if (profile != null) {
+                    profile.countCall(tailCall);
+                }
+                List<Expression> arguments = tailCall.getArguments();
+                for (int i = 0; i < arguments.size(); i++) {
+                    environment.pushArgument(evalInt(arguments.get(i)));
+                }
+                environment.replaceArguments(arguments.size());
+                return Completion.TAIL_CALL;
+            }
+        }
         int returnValue = (stmt.getValue() == null)
                 ? 0
-                : (Integer) stmt.getValue().accept(this);
-        throw new Return(returnValue);
+                : evalInt(stmt.getValue());
+        environment.currentFrame().returnValue = returnValue;
+        return Completion.RETURN;
     }
 
     /**
@@ -277,14 +791,39 @@ public class Interpreter implements ASTVisitor {
      * Loops while condition is non-zero, similar to classic while.
      *
      * @param stmt while statement AST node
-     * @return null
+     * @return RETURN if the body returned, NORMAL otherwise
      */
     @Override
     public Object visitWhileStatement(WhileStatement stmt) {
-        while ((int) stmt.getCondition().accept(this) != 0) {
-            executeBlock(stmt.getBody());
+        TieredCompiler.Tier tier = tiers != null ? tiers.tierOf(environment.currentFrame().function) : null;
+        TieredCompiler.Loop hot = null;
+        int osrThreshold = tier != null ? tiers.getOsrThreshold(stmt) : 0;
+        int iterations = 0;
+        TracingJit.Loop traced = tracing != null && environment.currentFrame().function != null
+                ? tracing.loopOf(stmt) : null;
+        while (evalInt(stmt.getCondition()) != 0) {
+            Completion completion = executeBlock(stmt.getBody());
+            iterations++;
+            if (completion != Completion.NORMAL) {
+                countLoop(stmt, iterations);
+                return completion;
+            }
+            if (traced != null && tracing.iterate(traced, environment)) {
+                break;
+            }
+            if (tier != null) {
+                tiers.iterate(tier, symbolTable);
+                if (iterations == osrThreshold) {
+                    hot = tiers.loopOf(tier, stmt, symbolTable);
+                }
+                if (hot != null && (completion = continueCompiled(hot)) != null) {
+                    countLoop(stmt, iterations);
+                    return completion;
+                }
+            }
         }
-        return null;
+        countLoop(stmt, iterations);
+        return Completion.NORMAL;
     }
 
     /**
@@ -295,31 +834,83 @@ public class Interpreter implements ASTVisitor {
      * @return integer result
      */
     public Object callFunction(String name, List<Integer> args) {
+        int[] values = new int[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.get(i);
+        }
+        return invoke(name, values);
+    }
+
+    /**
+     * Calls a built-in or user function with unboxed arguments.
+     *
+     * @param name function name
+     * @param args argument values
+     * @return integer result
+     */
+    public int invoke(String name, int[] args) {
         if (Builtins.isBuiltin(name)) {
             return Builtins.callFunction(name, args);
         }
         FunctionDeclarationStatement fn = symbolTable.lookup(name);
         if (fn == null) throw new RuntimeException("Function not defined: " + name);
-        if (fn.getParameters().size() != args.size())
+        if (fn.getParameters().size() != args.length)
             throw new RuntimeException("Argument count mismatch in call to: " + name);
 
-        environment.enterScope();
-        for (int i = 0; i < args.size(); i++) {
-            environment.declare(fn.getParameters().get(i), args.get(i));
+        if (compiled != null && compiled.matches(symbolTable)) {
+            return compiled.call(environment, name, args);
+        }
+        MemoTable memo = memoizer != null ? memoizer.tableFor(fn) : null;
+        if (memo != null) {
+            int slot = memo.find(args);
+            if (slot >= 0) {
+                return memo.valueAt(slot);
+            }
+        } else if (tiers != null) {
+            JitCode code = tiers.enter(fn, symbolTable);
+            if (code != null) {
+                return code.call(environment, name, args);
+            }
         }
+        for (int arg : args) {
+            environment.pushArgument(arg);
+        }
+        int result = run(fn, args.length);
+        if (memo != null) {
+            memo.put(args, result);
+        }
+        return result;
+    }
 
-        Object result;
+    /**
+     * Runs a user function whose arguments have already been pushed.
+     *
+     * @param fn the function
+     * @param argCount number of arguments on the stack
+     * @return integer result
+     */
+    private int run(FunctionDeclarationStatement fn, int argCount) {
+        if (profile != null) {
+            profile.countEntry(fn);
+        }
+        Frame frame = environment.pushFrame(fn, argCount);
         try {
-            for (Statement stmt : fn.getBody()) {
-                stmt.accept(this);
-            }
-            result = 0;
-        } catch (Return r) {
-            result = r.value;
+            Completion completion;
+            do {
+                completion = Completion.NORMAL;
+                for (Statement stmt : fn.getBody()) {
+                    completion = execute(stmt);
+                    if (completion == Completion.RETURN) {
+                        return frame.returnValue;
+                    }
+                    if (completion == Completion.TAIL_CALL) {
+                        break;
+                    }
+                }
+            } while (completion == Completion.TAIL_CALL);
+            return 0;
         } finally {
-            environment.exitScope();
+            environment.popFrame();
         }
-
-        return result;
     }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+
+/**
+ * JitCode is a program's functions compiled to JVM bytecode by JitCompiler:
+ * one static method per function on a hidden class, reachable here through
+ * method handles. It remembers the SymbolTable state it was compiled from,
+ * because calls between compiled functions are bound when compiling, and
+ * the globals whose values it was compiled with as constants, if any: a
+ * GlobalSpeculation invalidates it when one of them is assigned.
+ */
+public class JitCode {
+    // takes (Environment, int[]) and returns int
+    private final Map<String, MethodHandle> entries;
+    private final Class<?> compiledClass;
+    private final long version;
+    private final int functionCount;
+    // global slots read as the constants they held when compiling
+    private final Set<Integer> speculated;
+    private final int foldedReads;
+    private volatile boolean invalidated;
+
+    JitCode(Map<String, MethodHandle> entries, Class<?> compiledClass, long version, int functionCount) {
+        this(entries, compiledClass, version, functionCount, Set.of(), 0);
+    }
+
+    JitCode(Map<String, MethodHandle> entries, Class<?> compiledClass, long version, int functionCount,
+            Set<Integer> speculated, int foldedReads) {
+        this.entries = entries;
+        this.compiledClass = compiledClass;
+        this.version = version;
+        this.functionCount = functionCount;
+        this.speculated = speculated;
+        this.foldedReads = foldedReads;
+    }
+
+    /**
+     * Whether the code still matches the functions a symbol table defines:
+     * none redefined and none added since it was compiled, and no global
+     * it took as a constant assigned.
+     */
+    public boolean matches(SymbolTable symbolTable) {
+        return symbolTable.getVersion() == version && symbolTable.getFunctionCount() == functionCount
+                && !invalidated;
+    }
+
+    /**
+     * Stop the code from being used, because a global it took as a
+     * constant was assigned.
+     */
+    void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    /**
+     * The global slots the code reads as constants.
+     */
+    public Set<Integer> getSpeculatedGlobals() {
+        return speculated;
+    }
+
+    /**
+     * Number of reads of globals compiled as constants.
+     */
+    public int getFoldedReads() {
+        return foldedReads;
+    }
+
+    /**
+     * Names of the compiled functions.
+     */
+    public Set<String> getFunctionNames() {
+        return entries.keySet();
+    }
+
+    /**
+     * Whether a function was compiled.
+     */
+    public boolean has(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * The hidden class holding the compiled methods.
+     */
+    public Class<?> getCompiledClass() {
+        return compiledClass;
+    }
+
+    /**
+     * Call a compiled function. Its argument count must already have been
+     * checked.
+     *
+     * @param environment environment holding the globals
+     * @param name function name
+     * @param args argument values
+     * @return integer result
+     */
+    public int call(Environment environment, String name, int[] args) {
+        MethodHandle entry = entries.get(name);
+        try {
+            return (int) entry.invokeExact(environment, args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,715 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * JitCompiler translates a program's functions into JVM bytecode so that
+ * HotSpot can compile them like any Java method. Each function becomes a
+ * static method {@code int name(Environment env, int... params)} on one
+ * hidden class: parameters and locals are JVM int locals, loops are JVM
+ * loops and a call to another function is a direct invokestatic. Globals
+ * are still read and written through the Environment passed in.
+ *
+ * A single loop of a function can be compiled on its own too, for a call
+ * that is already running it: see compileLoop.
+ *
+ * Both can be given the values of some globals to build in as constants,
+ * for code that is dropped when one of them is assigned (see
+ * GlobalSpeculation). A global the compiled code assigns itself is never
+ * built in.
+ *
+ * Functions declared inside other functions, and the by-name variable
+ * lookups that come with them, are not supported; compile throws
+ * UnsupportedOperationException and the program stays interpreted.
+ */
+public class JitCompiler implements ASTVisitor {
+    private static final String CLASS_NAME = "SprolaCode";
+    private static final String ENVIRONMENT = "Environment";
+    /** Name under which compileLoop's code is called. */
+    static final String LOOP_ENTRY = "loop$";
+
+    private final Map<String, FunctionDeclarationStatement> functions;
+    private final ClassFileWriter writer = new ClassFileWriter(CLASS_NAME);
+    private ClassFileWriter.Method method;
+    // start of the method being compiled, where self tail calls jump
+    private ClassFileWriter.Label start;
+    // local holding the frame array of a compiled loop, or -1 in a function
+    private int frameArray = -1;
+    private int frameSize;
+    // values of the globals that may be built in, by slot
+    private final Map<Integer, Integer> constants;
+    private final Set<Integer> speculated = new TreeSet<>();
+    private int foldedReads;
+
+    private JitCompiler(Map<String, FunctionDeclarationStatement> functions, Map<Integer, Integer> constants) {
+        this.functions = functions;
+        this.constants = constants;
+    }
+
+    /**
+     * The constants that code can build in: those of globals it does not
+     * assign.
+     */
+    private static Map<Integer, Integer> unassigned(Map<Integer, Integer> constants,
+                                                    Collection<FunctionDeclarationStatement> reachable,
+                                                    List<Statement> code) {
+        if (constants.isEmpty()) {
+            return constants;
+        }
+        Map<Integer, Integer> result = new HashMap<>(constants);
+        ASTRewriter assignments = new ASTRewriter() {
+            @Override
+            public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+                if (stmt.isResolved() && stmt.getDepth() != 0) {
+                    result.remove(stmt.getSlot());
+                }
+                return super.visitVarAssignmentStatement(stmt);
+            }
+        };
+        assignments.rewriteBlock(code);
+        for (FunctionDeclarationStatement fn : reachable) {
+            assignments.rewriteBlock(fn.getBody());
+        }
+        return result;
+    }
+
+    /**
+     * Compile every function a symbol table defines.
+     *
+     * @param symbolTable the defined functions
+     * @return the compiled code
+     * @throws UnsupportedOperationException if a function uses something the JIT cannot compile
+     */
+    public static JitCode compile(SymbolTable symbolTable) {
+        Map<String, FunctionDeclarationStatement> functions = symbolTable.getFunctions();
+        return compile(functions, symbolTable.getVersion(), functions.values());
+    }
+
+    /**
+     * Compile some functions and every function they call, directly or
+     * not. The code can run on any thread, and so can this.
+     *
+     * @param functions the defined functions, by name, as a SymbolTable
+     *                  of the given version had them
+     * @param version the SymbolTable's version
+     * @param roots the functions to compile
+     * @return the compiled code
+     * @throws UnsupportedOperationException if a function uses something the JIT cannot compile
+     */
+    public static JitCode compile(Map<String, FunctionDeclarationStatement> functions, long version,
+                                  Collection<FunctionDeclarationStatement> roots) {
+        return compile(functions, version, roots, Map.of());
+    }
+
+    /**
+     * Compile some functions and every function they call, building in
+     * the values of some globals.
+     *
+     * @param constants values of globals the code may take as constants, by slot
+     * @see #compile(Map, long, Collection)
+     */
+    public static JitCode compile(Map<String, FunctionDeclarationStatement> functions, long version,
+                                  Collection<FunctionDeclarationStatement> roots, Map<Integer, Integer> constants) {
+        Collection<FunctionDeclarationStatement> reachable = reachable(functions, roots);
+        JitCompiler compiler = new JitCompiler(functions, unassigned(constants, reachable, List.of()));
+        for (FunctionDeclarationStatement fn : reachable) {
+            compiler.compileFunction(fn);
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(compiler.writer.toByteArray(), true);
+            Map<String, MethodHandle> entries = new HashMap<>();
+            for (FunctionDeclarationStatement fn : reachable) {
+                int arity = fn.getParameters().size();
+                MethodHandle handle = lookup.findStatic(lookup.lookupClass(), fn.getName(), methodType(arity));
+                entries.put(fn.getName(), handle.asSpreader(int[].class, arity));
+            }
+            return new JitCode(entries, lookup.lookupClass(), version, functions.size(),
+                    Set.copyOf(compiler.speculated), compiler.foldedReads);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled code", e);
+        }
+    }
+
+    /**
+     * Compile one while or run loop of a function, for a call that is in
+     * the middle of running it, with every function the loop calls. The
+     * code is called as LOOP_ENTRY with the call's frame: an array of
+     * slot values, one longer than loopFrameSize(fn). It continues the
+     * loop from its condition, as the interpreter does after an
+     * iteration, and returns 0 once the loop ends, with the slots' final
+     * values back in the array; or 1 if the loop returns from the
+     * function, with the value in the array's last element.
+     *
+     * @param functions the defined functions, by name, as a SymbolTable
+     *                  of the given version had them
+     * @param version the SymbolTable's version
+     * @param fn the function the loop is in
+     * @param loop a WhileStatement or RunStatement of fn
+     * @return the compiled code
+     * @throws UnsupportedOperationException if the loop or a function it
+     *         calls uses something the JIT cannot compile
+     */
+    public static JitCode compileLoop(Map<String, FunctionDeclarationStatement> functions, long version,
+                                      FunctionDeclarationStatement fn, Statement loop) {
+        return compileLoop(functions, version, fn, loop, Map.of());
+    }
+
+    /**
+     * Compile one loop of a function, building in the values of some
+     * globals.
+     *
+     * @param constants values of globals the code may take as constants, by slot
+     * @see #compileLoop(Map, long, FunctionDeclarationStatement, Statement)
+     */
+    public static JitCode compileLoop(Map<String, FunctionDeclarationStatement> functions, long version,
+                                      FunctionDeclarationStatement fn, Statement loop,
+                                      Map<Integer, Integer> constants) {
+        WhileStatement whileLoop = loop instanceof RunStatement run
+                ? new WhileStatement(run.getCondition(), run.getBody(), run.getLine())
+                : (WhileStatement) loop;
+        Collection<FunctionDeclarationStatement> reachable = reachable(functions, List.of(), whileLoop.getBody());
+        JitCompiler compiler = new JitCompiler(functions, unassigned(constants, reachable, whileLoop.getBody()));
+        for (FunctionDeclarationStatement callee : reachable) {
+            compiler.compileFunction(callee);
+        }
+        compiler.compileLoop(fn, whileLoop);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(compiler.writer.toByteArray(), true);
+            Map<String, MethodHandle> entries = new HashMap<>();
+            entries.put(LOOP_ENTRY, lookup.findStatic(lookup.lookupClass(), LOOP_ENTRY,
+                    MethodType.methodType(int.class, Environment.class, int[].class)));
+            return new JitCode(entries, lookup.lookupClass(), version, functions.size(),
+                    Set.copyOf(compiler.speculated), compiler.foldedReads);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled code", e);
+        }
+    }
+
+    /**
+     * Number of slots of a function's frame that compileLoop's code
+     * exchanges with the interpreter.
+     */
+    static int loopFrameSize(FunctionDeclarationStatement fn) {
+        return Math.max(fn.getParameters().size(), fn.getFrameSize());
+    }
+
+    /**
+     * Some functions and every function they call, directly or not.
+     *
+     * @param functions the defined functions, by name
+     * @param roots where to start
+     */
+    static Collection<FunctionDeclarationStatement> reachable(Map<String, FunctionDeclarationStatement> functions,
+                                                              Collection<FunctionDeclarationStatement> roots) {
+        return reachable(functions, roots, List.of());
+    }
+
+    /**
+     * Some functions, the functions some statements call, and every
+     * function those call, directly or not.
+     */
+    static Collection<FunctionDeclarationStatement> reachable(Map<String, FunctionDeclarationStatement> functions,
+                                                              Collection<FunctionDeclarationStatement> roots,
+                                                              List<Statement> code) {
+        Set<FunctionDeclarationStatement> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<FunctionDeclarationStatement> pending = new ArrayDeque<>(roots);
+        ASTRewriter calls = new ASTRewriter() {
+            @Override
+            public Object visitCallExpression(CallExpression expr) {
+                FunctionDeclarationStatement callee = functions.get(expr.getCallee());
+                if (callee != null && !Builtins.isBuiltin(expr.getCallee())) {
+                    pending.add(callee);
+                }
+                return super.visitCallExpression(expr);
+            }
+        };
+        calls.rewriteBlock(code);
+        List<FunctionDeclarationStatement> result = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            FunctionDeclarationStatement fn = pending.poll();
+            if (reached.add(fn)) {
+                result.add(fn);
+                calls.rewriteBlock(fn.getBody());
+            }
+        }
+        return result;
+    }
+
+    private static MethodType methodType(int arity) {
+        Class<?>[] parameters = new Class<?>[arity + 1];
+        Arrays.fill(parameters, int.class);
+        parameters[0] = Environment.class;
+        return MethodType.methodType(int.class, parameters);
+    }
+
+    private static String descriptor(int arity) {
+        return "(L" + ENVIRONMENT + ";" + "I".repeat(arity) + ")I";
+    }
+
+    private void compileFunction(FunctionDeclarationStatement fn) {
+        int arity = fn.getParameters().size();
+        // local 0 is the Environment, slot n of the frame is local n + 1
+        int locals = 1 + Math.max(arity, fn.getFrameSize());
+        method = writer.addMethod(fn.getName(), descriptor(arity), locals);
+        start = method.newLabel();
+        method.place(start);
+        for (Statement stmt : fn.getBody()) {
+            stmt.accept(this);
+        }
+        // falling off the end returns 0
+        method.pushInt(0);
+        method.op(ClassFileWriter.IRETURN, -1);
+    }
+
+    /**
+     * The method behind compileLoop: load the frame into locals, run the
+     * loop, and store them back.
+     */
+    private void compileLoop(FunctionDeclarationStatement fn, WhileStatement loop) {
+        frameSize = loopFrameSize(fn);
+        frameArray = 1 + frameSize;
+        method = writer.addMethod(LOOP_ENTRY, "(L" + ENVIRONMENT + ";[I)I", frameArray + 1);
+        start = null;
+        // the array arrives in local 1, which is slot 0's
+        method.aload(1);
+        method.astore(frameArray);
+        for (int slot = 0; slot < frameSize; slot++) {
+            method.aload(frameArray);
+            method.pushInt(slot);
+            method.op(ClassFileWriter.IALOAD, -1);
+            method.istore(local(slot));
+        }
+        loop.accept(this);
+        for (int slot = 0; slot < frameSize; slot++) {
+            method.aload(frameArray);
+            method.pushInt(slot);
+            method.iload(local(slot));
+            method.op(ClassFileWriter.IASTORE, -3);
+        }
+        method.pushInt(0);
+        method.op(ClassFileWriter.IRETURN, -1);
+        frameArray = -1;
+    }
+
+    private static int local(int slot) {
+        return slot + 1;
+    }
+
+    private void compileBlock(List<Statement> statements) {
+        for (Statement stmt : statements) {
+            stmt.accept(this);
+        }
+    }
+
+    /**
+     * Emit code that throws at runtime, in place of a value.
+     */
+    private void fail(String message) {
+        method.pushString(message);
+        method.invokeStatic("JitRuntime", "fail", "(Ljava/lang/String;)I");
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (expr instanceof GroupExpression group) {
+            expr = group.getExpression();
+        }
+        return expr;
+    }
+
+    private static int compareOpcode(TokenType comparison) {
+        return switch (comparison) {
+            case EQ -> ClassFileWriter.IF_ICMPEQ;
+            case NE -> ClassFileWriter.IF_ICMPNE;
+            case LT -> ClassFileWriter.IF_ICMPLT;
+            case LE -> ClassFileWriter.IF_ICMPLE;
+            case GT -> ClassFileWriter.IF_ICMPGT;
+            case GE -> ClassFileWriter.IF_ICMPGE;
+            default -> -1;
+        };
+    }
+
+    /**
+     * Jump to target when the condition is true (or false). A comparison
+     * compiles to a single if_icmp instruction.
+     */
+    private void branch(Expression condition, boolean whenTrue, ClassFileWriter.Label target) {
+        Expression cond = unwrap(condition);
+        if (cond instanceof BinaryExpression binary && compareOpcode(binary.getOperator()) >= 0) {
+            TokenType comparison = whenTrue ? binary.getOperator() : RegisterOpCode.negate(binary.getOperator());
+            binary.getLeft().accept(this);
+            binary.getRight().accept(this);
+            method.jump(compareOpcode(comparison), -2, target);
+        } else {
+            cond.accept(this);
+            method.jump(whenTrue ? ClassFileWriter.IFNE : ClassFileWriter.IFEQ, -1, target);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        if (compareOpcode(expr.getOperator()) >= 0) {
+            // a comparison used as a value is 1 or 0
+            ClassFileWriter.Label isFalse = method.newLabel();
+            ClassFileWriter.Label done = method.newLabel();
+            branch(expr, false, isFalse);
+            method.pushInt(1);
+            method.jump(ClassFileWriter.GOTO, 0, done);
+            method.place(isFalse);
+            method.pushInt(0);
+            method.place(done);
+            return null;
+        }
+        expr.getLeft().accept(this);
+        expr.getRight().accept(this);
+        int opcode = switch (expr.getOperator()) {
+            case PLUS -> ClassFileWriter.IADD;
+            case MINUS -> ClassFileWriter.ISUB;
+            case STAR -> ClassFileWriter.IMUL;
+            case SLASH -> ClassFileWriter.IDIV;
+            case MOD -> ClassFileWriter.IREM;
+            default -> throw new RuntimeException("Unknown binary operator: " + expr.getOperator());
+        };
+        method.op(opcode, -1);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        if (expr.getOperator() != TokenType.MINUS) {
+            throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+        }
+        expr.getOperand().accept(this);
+        method.op(ClassFileWriter.INEG, 0);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        method.pushInt((Integer) expr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        if (!expr.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + expr.getName() + "' is looked up by name");
+        }
+        Integer constant = expr.getDepth() == 0 ? null : constants.get(expr.getSlot());
+        if (expr.getDepth() == 0) {
+            method.iload(local(expr.getSlot()));
+        } else if (constant != null) {
+            method.pushInt(constant);
+            speculated.add(expr.getSlot());
+            foldedReads++;
+        } else {
+            method.aload(0);
+            method.pushInt(1);
+            method.pushInt(expr.getSlot());
+            method.invokeVirtual(ENVIRONMENT, "get", "(II)I");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        expr.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        List<Expression> arguments = expr.getArguments();
+        String name = expr.getCallee();
+        BuiltinFunction builtin = BuiltinFunction.forName(name);
+        FunctionDeclarationStatement fn = builtin == null ? functions.get(name) : null;
+
+        String error = null;
+        if (builtin != null && builtin.getArity() != arguments.size()) {
+            error = builtin.arityMessage();
+        } else if (builtin == null && fn == null) {
+            error = "Function not defined: " + name;
+        } else if (fn != null && fn.getParameters().size() != arguments.size()) {
+            error = "Argument count mismatch in call to: " + name;
+        }
+        if (error != null) {
+            // evaluate the arguments for their effects, as the interpreter does
+            for (Expression arg : arguments) {
+                arg.accept(this);
+                method.op(ClassFileWriter.POP, -1);
+            }
+            fail(error);
+            return null;
+        }
+
+        if (fn != null) {
+            method.aload(0);
+        }
+        for (Expression arg : arguments) {
+            arg.accept(this);
+        }
+        if (fn != null) {
+            method.invokeStatic(CLASS_NAME, name, descriptor(arguments.size()));
+            return null;
+        }
+        switch (builtin) {
+            case ABS -> method.invokeStatic("java/lang/Math", "abs", "(I)I");
+            case MIN -> method.invokeStatic("java/lang/Math", "min", "(II)I");
+            case MAX -> method.invokeStatic("java/lang/Math", "max", "(II)I");
+            case PRINT -> method.invokeStatic("JitRuntime", "printBuiltin", "(I)I");
+            case INPUT -> method.invokeStatic("JitRuntime", "inputBuiltin", "()I");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        method.invokeStatic("Builtins", "readInput", "()I");
+        return null;
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        fail("Built-in function '" + expr.getName() + "' cannot be used as a number");
+        return null;
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            if (!decl.isResolved()) {
+                throw new UnsupportedOperationException("Variable '" + decl.getName() + "' is declared by name");
+            }
+            decl.getInitializer().accept(this);
+            method.istore(local(decl.getSlot()));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        if (!stmt.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + stmt.getName() + "' is assigned by name");
+        }
+        if (stmt.getDepth() == 0) {
+            stmt.getValue().accept(this);
+            method.istore(local(stmt.getSlot()));
+        } else {
+            method.aload(0);
+            method.pushInt(1);
+            method.pushInt(stmt.getSlot());
+            stmt.getValue().accept(this);
+            method.invokeVirtual(ENVIRONMENT, "set", "(III)V");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        stmt.getExpression().accept(this);
+        method.op(ClassFileWriter.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        if (stmt.getSwitchTable() != null) {
+            switchOn(stmt, stmt.getSwitchTable());
+            return null;
+        }
+        if (stmt.getColdArms() != null) {
+            layOutColdArms(stmt, stmt.getColdArms());
+            return null;
+        }
+        ClassFileWriter.Label end = method.newLabel();
+        ClassFileWriter.Label next = method.newLabel();
+        branch(stmt.getCondition(), false, next);
+        compileBlock(stmt.getThenBranch());
+        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
+            method.jump(ClassFileWriter.GOTO, 0, end);
+            method.place(next);
+            next = method.newLabel();
+            branch(stmt.getElifConditions().get(i), false, next);
+            compileBlock(stmt.getElifBranches().get(i));
+        }
+        if (stmt.hasElse()) {
+            method.jump(ClassFileWriter.GOTO, 0, end);
+            method.place(next);
+            compileBlock(stmt.getElseBranch());
+        } else {
+            method.place(next);
+        }
+        method.place(end);
+        return null;
+    }
+
+    /**
+     * Compile an if statement whose profile found some of its then and
+     * elif arms rarely taken. The conditions are still tested in order,
+     * but a cold arm's condition jumps out to its branch, placed after
+     * the rest of the statement, so the common path falls through.
+     */
+    private void layOutColdArms(IfStatement stmt, boolean[] cold) {
+        List<Expression> conditions = new ArrayList<>();
+        conditions.add(stmt.getCondition());
+        conditions.addAll(stmt.getElifConditions());
+        List<List<Statement>> branches = new ArrayList<>();
+        branches.add(stmt.getThenBranch());
+        branches.addAll(stmt.getElifBranches());
+        ClassFileWriter.Label end = method.newLabel();
+        ClassFileWriter.Label[] outOfLine = new ClassFileWriter.Label[conditions.size()];
+        for (int arm = 0; arm < conditions.size(); arm++) {
+            if (cold[arm]) {
+                outOfLine[arm] = method.newLabel();
+                branch(conditions.get(arm), true, outOfLine[arm]);
+            } else {
+                ClassFileWriter.Label next = method.newLabel();
+                branch(conditions.get(arm), false, next);
+                compileBlock(branches.get(arm));
+                method.jump(ClassFileWriter.GOTO, 0, end);
+                method.place(next);
+            }
+        }
+        if (stmt.hasElse()) {
+            compileBlock(stmt.getElseBranch());
+        }
+        method.jump(ClassFileWriter.GOTO, 0, end);
+        for (int arm = 0; arm < conditions.size(); arm++) {
+            if (outOfLine[arm] != null) {
+                method.place(outOfLine[arm]);
+                compileBlock(branches.get(arm));
+                method.jump(ClassFileWriter.GOTO, 0, end);
+            }
+        }
+        method.place(end);
+    }
+
+    /**
+     * Compile an if/elif chain on one variable as a tableswitch or a
+     * lookupswitch, whichever form its SwitchTable has. Arms that no
+     * literal selects are left out.
+     */
+    private void switchOn(IfStatement stmt, SwitchTable table) {
+        int branches = stmt.getElifConditions().size() + 1;
+        ClassFileWriter.Label end = method.newLabel();
+        ClassFileWriter.Label otherwise = stmt.hasElse() ? method.newLabel() : end;
+        ClassFileWriter.Label[] arms = new ClassFileWriter.Label[branches];
+        int[] keys = table.getKeys();
+        int[] armOf = table.getArms();
+        for (int arm : armOf) {
+            if (arms[arm] == null) {
+                arms[arm] = method.newLabel();
+            }
+        }
+
+        table.getSubject().accept(this);
+        if (table.isDense()) {
+            ClassFileWriter.Label[] targets = new ClassFileWriter.Label[keys[keys.length - 1] - keys[0] + 1];
+            Arrays.fill(targets, otherwise);
+            for (int i = 0; i < keys.length; i++) {
+                targets[keys[i] - keys[0]] = arms[armOf[i]];
+            }
+            method.tableSwitch(keys[0], targets, otherwise);
+        } else {
+            ClassFileWriter.Label[] targets = new ClassFileWriter.Label[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                targets[i] = arms[armOf[i]];
+            }
+            method.lookupSwitch(keys, targets, otherwise);
+        }
+
+        for (int i = 0; i < branches; i++) {
+            if (arms[i] != null) {
+                method.place(arms[i]);
+                compileBlock(i == 0 ? stmt.getThenBranch() : stmt.getElifBranches().get(i - 1));
+                method.jump(ClassFileWriter.GOTO, 0, end);
+            }
+        }
+        if (stmt.hasElse()) {
+            method.place(otherwise);
+            compileBlock(stmt.getElseBranch());
+        }
+        method.place(end);
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        // test at the bottom, as javac does
+        ClassFileWriter.Label body = method.newLabel();
+        ClassFileWriter.Label condition = method.newLabel();
+        method.jump(ClassFileWriter.GOTO, 0, condition);
+        method.place(body);
+        compileBlock(stmt.getBody());
+        method.place(condition);
+        branch(stmt.getCondition(), true, body);
+        return null;
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        ClassFileWriter.Label body = method.newLabel();
+        method.place(body);
+        compileBlock(stmt.getBody());
+        branch(stmt.getCondition(), true, body);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        if (frameArray >= 0) {
+            // returning from a compiled loop: the value goes in the frame,
+            // and a self tail call is an ordinary call
+            method.aload(frameArray);
+            method.pushInt(frameSize);
+            if (stmt.hasValue()) {
+                stmt.getValue().accept(this);
+            } else {
+                method.pushInt(0);
+            }
+            method.op(ClassFileWriter.IASTORE, -3);
+            method.pushInt(1);
+            method.op(ClassFileWriter.IRETURN, -1);
+            return null;
+        }
+        CallExpression tailCall = stmt.getSelfTailCall();
+        if (tailCall != null) {
+            List<Expression> arguments = tailCall.getArguments();
+            for (Expression arg : arguments) {
+                arg.accept(this);
+            }
+            for (int i = arguments.size() - 1; i >= 0; i--) {
+                method.istore(local(i));
+            }
+            method.jump(ClassFileWriter.GOTO, 0, start);
+            return null;
+        }
+        if (stmt.hasValue()) {
+            stmt.getValue().accept(this);
+        } else {
+            method.pushInt(0);
+        }
+        method.op(ClassFileWriter.IRETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        if (unwrap(stmt.getExpression()) instanceof BuiltinRefExpression ref) {
+            method.pushString(ref.getName());
+            method.invokeStatic("JitRuntime", "print", "(Ljava/lang/String;)V");
+        } else {
+            stmt.getExpression().accept(this);
+            method.invokeStatic("JitRuntime", "print", "(I)V");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        throw new UnsupportedOperationException("Function '" + stmt.getName() + "' is declared inside another function");
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Helpers called from JIT-compiled code for the operations that are not a
+ * single JVM instruction. They behave exactly like the Interpreter's
+ * versions, messages included.
+ */
+public final class JitRuntime {
+    private JitRuntime() {
+    }
+
+    /**
+     * The print statement.
+     */
+    public static void print(int value) {
+        System.out.println(value);
+    }
+
+    /**
+     * The print statement applied to a built-in's name.
+     */
+    public static void print(String value) {
+        System.out.println(value);
+    }
+
+    /**
+     * The print() built-in, which returns its argument.
+     */
+    public static int printBuiltin(int value) {
+        return Builtins.call(BuiltinFunction.PRINT, value, 0);
+    }
+
+    /**
+     * The input() built-in.
+     */
+    public static int inputBuiltin() {
+        return Builtins.call(BuiltinFunction.INPUT, 0, 0);
+    }
+
+    /**
+     * Raise a runtime error in the middle of an expression. Declared to
+     * return an int so the compiled expression keeps its shape.
+     */
+    public static int fail(String message) {
+        throw new RuntimeException(message);
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LoopInvariantHoister moves computations that give the same value on
+ * every iteration of a loop out of it. In a function body, a while or run
+ * loop whose condition or body computes something like n * m, max(a, b)
+ * or limit - 1 from variables the loop never assigns gets a declaration
+ * of a fresh temporary holding that value just before it, and reads the
+ * temporary instead.
+ *
+ * The hoisted value is now computed even when a while loop runs no
+ * iterations, so only expressions that can neither fail nor have effects
+ * move: arithmetic and comparisons, division and remainder by a non-zero
+ * literal, and abs, min and max, over literals and over variables the
+ * function declared before the loop. A run body still runs once before
+ * its condition is checked; only the computation moves.
+ *
+ * Top-level code runs once and is left alone, as are programs with nested
+ * functions, since a nested function can assign a caller's variables by
+ * name.
+ */
+public class LoopInvariantHoister extends ASTRewriter {
+    // names declared so far in each enclosing block of the function
+    private Deque<Set<String>> scopes = new ArrayDeque<>();
+    private int hoisted;
+    private int nextId;
+
+    @Override
+    public List<Statement> rewrite(List<Statement> program) {
+        if (hasNestedFunctions(program)) {
+            return program;
+        }
+
+        List<Statement> result = new ArrayList<>(program.size());
+        for (Statement stmt : program) {
+            result.add(stmt instanceof FunctionDeclarationStatement fn
+                    ? (Statement) visitFunctionDeclarationStatement(fn)
+                    : stmt);
+        }
+        return result;
+    }
+
+    /**
+     * Whether a program declares a function anywhere but at the top level.
+     */
+    static boolean hasNestedFunctions(List<Statement> program) {
+        NestedFunctions nested = new NestedFunctions();
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                nested.rewriteBlock(fn.getBody());
+            } else {
+                stmt.accept(nested);
+            }
+        }
+        return nested.found;
+    }
+
+    /**
+     * Number of expressions replaced by a temporary computed before their
+     * loop.
+     */
+    public int getHoistedExpressions() {
+        return hoisted;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        scopes = new ArrayDeque<>();
+        scopes.push(new HashSet<>(stmt.getParameters()));
+        Object rewritten = super.visitFunctionDeclarationStatement(stmt);
+        scopes.clear();
+        return rewritten;
+    }
+
+    @Override
+    protected List<Statement> rewriteBlock(List<Statement> statements) {
+        scopes.push(new HashSet<>());
+        try {
+            return super.rewriteBlock(statements);
+        } finally {
+            scopes.pop();
+        }
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        Object rewritten = super.visitVarDeclarationStatement(stmt);
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            scopes.peek().add(decl.getName());
+        }
+        return rewritten;
+    }
+
+    private boolean isDeclared(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        WhileStatement loop = (WhileStatement) super.visitWhileStatement(stmt);
+        Hoist hoist = new Hoist(assignedIn(loop.getBody()), loop.getLine());
+        Expression condition = hoist.rewrite(loop.getCondition());
+        List<Statement> body = hoist.rewriteBlock(loop.getBody());
+        if (hoist.declarators.isEmpty()) {
+            return loop;
+        }
+        return hoist.before(new WhileStatement(condition, body, loop.getLine()));
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        RunStatement loop = (RunStatement) super.visitRunStatement(stmt);
+        Hoist hoist = new Hoist(assignedIn(loop.getBody()), loop.getLine());
+        List<Statement> body = hoist.rewriteBlock(loop.getBody());
+        Expression condition = hoist.rewrite(loop.getCondition());
+        if (hoist.declarators.isEmpty()) {
+            return loop;
+        }
+        return hoist.before(new RunStatement(body, condition, loop.getLine()));
+    }
+
+    /**
+     * Names some statements assign or declare anywhere inside them.
+     */
+    static Set<String> assignedIn(List<Statement> body) {
+        Set<String> assigned = new HashSet<>();
+        new ASTRewriter() {
+            @Override
+            public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+                assigned.add(stmt.getName());
+                return stmt;
+            }
+
+            @Override
+            public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+                for (VarDeclarator decl : stmt.getDeclarators()) {
+                    assigned.add(decl.getName());
+                }
+                return stmt;
+            }
+        }.rewriteBlock(body);
+        return assigned;
+    }
+
+    /**
+     * Replaces the invariant expressions of one loop with temporaries.
+     */
+    private class Hoist extends ASTRewriter {
+        private final Set<String> assigned;
+        private final int line;
+        // the same expression hoisted twice shares its temporary
+        private final Map<String, String> temporaries = new HashMap<>();
+        final List<VarDeclarator> declarators = new ArrayList<>();
+
+        Hoist(Set<String> assigned, int line) {
+            this.assigned = assigned;
+            this.line = line;
+        }
+
+        @Override
+        protected Expression rewrite(Expression expr) {
+            if (isWorthHoisting(expr) && isInvariant(expr)) {
+                String key = key(expr);
+                String name = temporaries.get(key);
+                if (name == null) {
+                    name = "loop$" + nextId++;
+                    temporaries.put(key, name);
+                    declarators.add(new VarDeclarator(name, expr));
+                }
+                hoisted++;
+                return new VariableExpression(name, expr.getLine());
+            }
+            return super.rewrite(expr);
+        }
+
+        /**
+         * The declarations of the temporaries, followed by the loop.
+         */
+        List<Statement> before(Statement loop) {
+            List<Statement> statements = new ArrayList<>();
+            statements.add(new VarDeclarationStatement(declarators, line));
+            statements.add(loop);
+            return statements;
+        }
+
+        private boolean isWorthHoisting(Expression expr) {
+            return expr instanceof BinaryExpression || expr instanceof CallExpression
+                    || (expr instanceof UnaryExpression unary && !isLeaf(unary.getOperand()));
+        }
+
+        private boolean isLeaf(Expression expr) {
+            return expr instanceof LiteralExpression || expr instanceof VariableExpression;
+        }
+
+        /**
+         * Whether an expression has the same value on every iteration and
+         * can be computed before the loop without failing.
+         */
+        private boolean isInvariant(Expression expr) {
+            return isSafe(expr, name -> !assigned.contains(name) && isDeclared(name));
+        }
+    }
+
+    /**
+     * Whether an expression can be evaluated anywhere without failing or
+     * having an effect: literals, the given variables, arithmetic and
+     * comparisons, division and remainder by a non-zero literal, and abs,
+     * min and max.
+     *
+     * @param expr expression to check
+     * @param variables which variable names it may read
+     */
+    static boolean isSafe(Expression expr, Predicate<String> variables) {
+        if (expr instanceof LiteralExpression) {
+            return true;
+        }
+        if (expr instanceof VariableExpression var) {
+            return variables.test(var.getName());
+        }
+        if (expr instanceof GroupExpression group) {
+            return isSafe(group.getExpression(), variables);
+        }
+        if (expr instanceof UnaryExpression unary) {
+            return unary.getOperator() == TokenType.MINUS && isSafe(unary.getOperand(), variables);
+        }
+        if (expr instanceof BinaryExpression binary) {
+            TokenType operator = binary.getOperator();
+            if (operator == TokenType.SLASH || operator == TokenType.MOD) {
+                if (!(binary.getRight() instanceof LiteralExpression divisor)
+                        || (Integer) divisor.getValue() == 0) {
+                    return false;
+                }
+            }
+            return ConstantFolder.apply(operator, 1, 1) != null
+                    && isSafe(binary.getLeft(), variables) && isSafe(binary.getRight(), variables);
+        }
+        if (expr instanceof CallExpression call) {
+            BuiltinFunction builtin = BuiltinFunction.forName(call.getCallee());
+            if (builtin == null || builtin.getArity() != call.getArguments().size()) {
+                return false;
+            }
+            for (Expression arg : call.getArguments()) {
+                if (!isSafe(arg, variables)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A text that is the same for two expressions exactly when they compute
+     * the same thing the same way.
+     */
+    static String key(Expression expr) {
+        if (expr instanceof LiteralExpression literal) {
+            return literal.getValue().toString();
+        }
+        if (expr instanceof VariableExpression var) {
+            return var.getName();
+        }
+        if (expr instanceof GroupExpression group) {
+            return key(group.getExpression());
+        }
+        if (expr instanceof UnaryExpression unary) {
+            return "(" + unary.getOperator() + " " + key(unary.getOperand()) + ")";
+        }
+        if (expr instanceof BinaryExpression binary) {
+            return "(" + binary.getOperator() + " " + key(binary.getLeft()) + " " + key(binary.getRight()) + ")";
+        }
+        if (expr instanceof CallExpression call) {
+            StringBuilder key = new StringBuilder("(" + call.getCallee());
+            for (Expression arg : call.getArguments()) {
+                key.append(' ').append(key(arg));
+            }
+            return key.append(')').toString();
+        }
+        // input and built-in names are never shared
+        return "#" + System.identityHashCode(expr);
+    }
+
+    /**
+     * Finds function declarations below the top level.
+     */
+    private static class NestedFunctions extends ASTRewriter {
+        boolean found;
+
+        @Override
+        public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+            found = true;
+            return stmt;
+        }
+    }
+}
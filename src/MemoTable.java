@@ -0,0 +1,183 @@
+/**
+ * MemoTable remembers the results of one pure function, keyed on its int
+ * arguments. It is an open-addressing hash table over primitive arrays, so
+ * neither a lookup nor an insert boxes anything: the arguments of entry i
+ * are keys[i * arity] to keys[i * arity + arity - 1] and its result is
+ * values[i].
+ *
+ * A key is looked for in a short window of slots after its hash. The table
+ * doubles while it is less than half full, up to MAX_CAPACITY entries;
+ * after that an insert whose window is full evicts the entry in the key's
+ * own slot. Entries are never removed otherwise, so an empty slot always
+ * ends a search.
+ */
+public final class MemoTable {
+    static final int INITIAL_CAPACITY = 64;
+    static final int MAX_CAPACITY = 1 << 16;
+    // slots searched for a key before giving up
+    static final int PROBES = 8;
+
+    private final int arity;
+    private final int maxCapacity;
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    MemoTable(int arity) {
+        this(arity, MAX_CAPACITY);
+    }
+
+    /**
+     * @param arity number of arguments in a key
+     * @param maxCapacity most entries kept, a power of two
+     */
+    MemoTable(int arity, int maxCapacity) {
+        this.arity = arity;
+        this.maxCapacity = maxCapacity;
+        allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity * arity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        size = 0;
+    }
+
+    private int capacity() {
+        return values.length;
+    }
+
+    private int home(int[] args) {
+        int h = arity;
+        for (int arg : args) {
+            h = h * 31 + arg;
+        }
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity() - 1);
+    }
+
+    private boolean matches(int slot, int[] args) {
+        int base = slot * arity;
+        for (int i = 0; i < arity; i++) {
+            if (keys[base + i] != args[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Look up the result for some arguments, counting a hit or a miss.
+     *
+     * @param args argument values, as many as the function's arity
+     * @return the slot holding the result, or -1 if there is none
+     */
+    int find(int[] args) {
+        int mask = capacity() - 1;
+        int slot = home(args);
+        for (int probe = 0; probe < PROBES && used[slot]; probe++) {
+            if (matches(slot, args)) {
+                hits++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * The result in a slot returned by find.
+     */
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Remember the result for some arguments.
+     *
+     * @param args argument values, as many as the function's arity
+     * @param value the function's result
+     */
+    void put(int[] args, int value) {
+        if (!insert(args, value)) {
+            if (capacity() < maxCapacity) {
+                grow();
+                put(args, value);
+                return;
+            }
+            int slot = home(args);
+            System.arraycopy(args, 0, keys, slot * arity, arity);
+            values[slot] = value;
+            evictions++;
+        }
+        if (size * 2 > capacity() && capacity() < maxCapacity) {
+            grow();
+        }
+    }
+
+    /**
+     * Store an entry in the first free or matching slot of its window.
+     *
+     * @return false if the window is full of other keys
+     */
+    private boolean insert(int[] args, int value) {
+        int mask = capacity() - 1;
+        int slot = home(args);
+        for (int probe = 0; probe < PROBES; probe++) {
+            if (!used[slot]) {
+                used[slot] = true;
+                System.arraycopy(args, 0, keys, slot * arity, arity);
+                values[slot] = value;
+                size++;
+                return true;
+            }
+            if (matches(slot, args)) {
+                values[slot] = value;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity() * 2);
+        int[] args = new int[arity];
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldUsed[slot]) {
+                System.arraycopy(oldKeys, slot * arity, args, 0, arity);
+                if (!insert(args, oldValues[slot])) {
+                    evictions++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of results currently remembered.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+}
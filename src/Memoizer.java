@@ -0,0 +1,86 @@
+import java.util.*;
+
+/**
+ * Memoizer gives each memoized function of a program its own MemoTable,
+ * which the Interpreter consults before running the function's body. It
+ * memoizes the functions EffectAnalyzer finds pure that also call a user
+ * function: for a function made of a few operators and built-ins, hashing
+ * the arguments costs about as much as running the body.
+ *
+ * Only the Interpreter uses it; calls made by the other engines, or by
+ * code the JIT compiled, are never memoized.
+ */
+public class Memoizer {
+    private final Map<FunctionDeclarationStatement, MemoTable> tables = new IdentityHashMap<>();
+
+    /**
+     * Pick the functions of a program to memoize.
+     *
+     * @param program resolved top-level statements
+     */
+    public Memoizer(List<Statement> program) {
+        EffectAnalyzer effects = new EffectAnalyzer(program);
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn && effects.isPure(fn) && effects.callsFunctions(fn)) {
+                tables.put(fn, new MemoTable(fn.getParameters().size()));
+            }
+        }
+    }
+
+    /**
+     * The table of a function.
+     *
+     * @return the table, or null if the function is not memoized
+     */
+    MemoTable tableFor(FunctionDeclarationStatement fn) {
+        return tables.get(fn);
+    }
+
+    /**
+     * Number of functions that are memoized.
+     */
+    public int getMemoizedFunctions() {
+        return tables.size();
+    }
+
+    /**
+     * Number of calls answered from a table, over all functions.
+     */
+    public long getHits() {
+        long hits = 0;
+        for (MemoTable table : tables.values()) {
+            hits += table.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * Number of calls to a memoized function that ran its body.
+     */
+    public long getMisses() {
+        long misses = 0;
+        for (MemoTable table : tables.values()) {
+            misses += table.getMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * Number of results dropped to make room for newer ones.
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (MemoTable table : tables.values()) {
+            evictions += table.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * One line describing what the tables did.
+     */
+    public String getStats() {
+        return "Memoizer: " + getMemoizedFunctions() + " functions, " + getHits() + " hits, "
+                + getMisses() + " misses, " + getEvictions() + " evictions";
+    }
+}
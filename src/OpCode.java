@@ -0,0 +1,108 @@
+/**
+ * Instruction set of the bytecode VM. Each instruction is an opcode followed
+ * by its operands, all stored in one int array. Values are plain ints on the
+ * VM's operand stack.
+ */
+public final class OpCode {
+    // push the operand
+    public static final int CONST = 0;
+    // push / pop-and-store a slot of the current frame
+    public static final int LOAD_SLOT = 1;
+    public static final int STORE_SLOT = 2;
+    // push / pop-and-store a slot of the global frame
+    public static final int LOAD_GLOBAL = 3;
+    public static final int STORE_GLOBAL = 4;
+
+    // arithmetic and comparison: pop right, pop left, push result
+    public static final int ADD = 5;
+    public static final int SUB = 6;
+    public static final int MUL = 7;
+    public static final int DIV = 8;
+    public static final int MOD = 9;
+    public static final int EQ = 10;
+    public static final int NE = 11;
+    public static final int LT = 12;
+    public static final int LE = 13;
+    public static final int GT = 14;
+    public static final int GE = 15;
+    public static final int NEG = 16;
+
+    // jump to the operand (an index into the code array)
+    public static final int JUMP = 17;
+    // pop a value and jump if it is zero / not zero
+    public static final int JUMP_IF_ZERO = 18;
+    public static final int JUMP_IF_NOT_ZERO = 19;
+
+    // call the function whose index is the operand; its arguments are on the stack
+    public static final int CALL = 20;
+    // pop the return value, drop the frame and push the value for the caller
+    public static final int RETURN = 21;
+
+    // built-ins that get their own instructions
+    public static final int ABS = 22;
+    public static final int MIN = 23;
+    public static final int MAX = 24;
+    // call any other built-in; the operand is its BuiltinFunction ordinal
+    public static final int CALL_BUILTIN = 25;
+
+    // pop and print a value
+    public static final int PRINT = 26;
+    // print the string constant whose index is the operand
+    public static final int PRINT_STRING = 27;
+    // read a value as the input expression does
+    public static final int INPUT = 28;
+    // discard the top of the stack
+    public static final int POP = 29;
+    // throw a runtime error with the string constant whose index is the operand
+    public static final int FAIL = 30;
+    // pop a value and jump to the branch that the switch table whose index
+    // is the operand picks for it
+    public static final int SWITCH = 31;
+
+    private static final String[] NAMES = {
+            "CONST", "LOAD_SLOT", "STORE_SLOT", "LOAD_GLOBAL", "STORE_GLOBAL",
+            "ADD", "SUB", "MUL", "DIV", "MOD", "EQ", "NE", "LT", "LE", "GT", "GE", "NEG",
+            "JUMP", "JUMP_IF_ZERO", "JUMP_IF_NOT_ZERO", "CALL", "RETURN",
+            "ABS", "MIN", "MAX", "CALL_BUILTIN", "PRINT", "PRINT_STRING", "INPUT", "POP", "FAIL",
+            "SWITCH"
+    };
+
+    private OpCode() {
+    }
+
+    public static String name(int op) {
+        return NAMES[op];
+    }
+
+    /**
+     * Number of operands that follow the opcode.
+     */
+    public static int operandCount(int op) {
+        return switch (op) {
+            case CONST, LOAD_SLOT, STORE_SLOT, LOAD_GLOBAL, STORE_GLOBAL,
+                 JUMP, JUMP_IF_ZERO, JUMP_IF_NOT_ZERO, CALL, CALL_BUILTIN,
+                 PRINT_STRING, FAIL, SWITCH -> 1;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Opcode for a binary operator token.
+     */
+    public static int forOperator(TokenType operator) {
+        return switch (operator) {
+            case PLUS -> ADD;
+            case MINUS -> SUB;
+            case STAR -> MUL;
+            case SLASH -> DIV;
+            case MOD -> MOD;
+            case EQ -> EQ;
+            case NE -> NE;
+            case LT -> LT;
+            case LE -> LE;
+            case GT -> GT;
+            case GE -> GE;
+            default -> throw new RuntimeException("Unknown binary operator: " + operator);
+        };
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.*;
+
+/**
+ * Optimizer runs the AST optimization passes on a parsed program, before
+ * the Resolver assigns slots. Every pass keeps the program's behavior,
+ * including the runtime errors it raises. It also counts how many AST
+ * nodes each pass removed, for the --stats line.
+ */
+public class Optimizer {
+    private final Map<String, Integer> removed = new LinkedHashMap<>();
+    private final Inliner inliner = new Inliner();
+    private final CountingLoopSummarizer summarizer = new CountingLoopSummarizer();
+    private final CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator();
+    private final LoopInvariantHoister hoister = new LoopInvariantHoister();
+    private int nodesBefore;
+    private int nodesAfter;
+
+    /**
+     * Let the passes that can use it follow the profile of earlier runs.
+     *
+     * @param profile profile of the program, or null for none
+     */
+    public void setProfile(Profile profile) {
+        inliner.setProfile(profile);
+    }
+
+    /**
+     * Optimize a program.
+     *
+     * @param program parsed top-level statements
+     * @return the optimized statements
+     */
+    public List<Statement> optimize(List<Statement> program) {
+        nodesBefore = countNodes(program);
+        int nodes = nodesBefore;
+        // inlined bodies and summarized loops get another round of folding
+        List<ASTRewriter> passes = List.of(new ConstantFolder(), new DeadCodeEliminator(), inliner, summarizer,
+                new ConstantFolder(), new DeadCodeEliminator(), eliminator, hoister);
+        for (ASTRewriter pass : passes) {
+            program = pass.rewrite(program);
+            int remaining = countNodes(program);
+            removed.merge(pass.getClass().getSimpleName(), nodes - remaining, Integer::sum);
+            nodes = remaining;
+        }
+        nodesAfter = nodes;
+        return program;
+    }
+
+    /**
+     * Number of nodes a pass removed, or 0 if it has not run.
+     *
+     * @param pass simple class name of the pass, e.g. "DeadCodeEliminator"
+     */
+    public int getRemovedNodes(String pass) {
+        return removed.getOrDefault(pass, 0);
+    }
+
+    /**
+     * One line describing what the passes did.
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Optimizer: " + nodesBefore + " -> " + nodesAfter + " nodes");
+        for (Map.Entry<String, Integer> pass : removed.entrySet()) {
+            int count = pass.getValue();
+            stats.append(", ").append(pass.getKey()).append(count < 0 ? " added " : " removed ").append(Math.abs(count));
+        }
+        stats.append(", inlined ").append(inliner.getInlinedCalls()).append(" calls");
+        stats.append(", summarized ").append(summarizer.getSummarizedLoops()).append(" loops");
+        stats.append(", reused ").append(eliminator.getReusedExpressions()).append(" subexpressions (")
+                .append(eliminator.getEliminatedNodes()).append(" nodes)");
+        stats.append(", hoisted ").append(hoister.getHoistedExpressions()).append(" expressions");
+        return stats.toString();
+    }
+
+    /**
+     * Number of expression and statement nodes in a program.
+     */
+    static int countNodes(List<Statement> program) {
+        NodeCounter counter = new NodeCounter();
+        counter.rewrite(program);
+        return counter.count;
+    }
+
+    /**
+     * Visits every node without changing any, counting them.
+     */
+    private static class NodeCounter extends ASTRewriter {
+        int count;
+
+        @Override
+        protected Expression rewrite(Expression expr) {
+            count++;
+            return super.rewrite(expr);
+        }
+
+        @Override
+        protected List<Statement> rewriteBlock(List<Statement> statements) {
+            count += statements.size();
+            return super.rewriteBlock(statements);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * ParallelEvaluator lets the Interpreter evaluate the two operands of
+ * expressions such as fib(n - 1) + fib(n - 2) at the same time. Inside a
+ * function EffectAnalyzer finds pure, a binary expression whose operands
+ * both call user functions that themselves make calls is marked
+ * forkable: the right call then runs as a task in this evaluator's
+ * ForkJoinPool, on an Interpreter of its own, while the current thread
+ * evaluates the left one. Since neither side has effects, only the order
+ * of errors could tell; the left operand's error still wins.
+ *
+ * Tasks are only forked in the first few levels of forking, and only
+ * while the current worker has few tasks queued that nobody has taken;
+ * below that, calls run sequentially as usual.
+ */
+public class ParallelEvaluator {
+    static final int DEFAULT_FORK_DEPTH = 12;
+    // queued tasks beyond which a worker stops forking more
+    static final int MAX_SURPLUS_TASKS = 3;
+
+    private final ForkJoinPool pool;
+    private final int forkDepth;
+    private final LongAdder forks = new LongAdder();
+    private final int forkableExpressions;
+
+    /**
+     * Mark the forkable expressions of a program.
+     *
+     * @param program resolved top-level statements
+     * @param threads number of worker threads
+     */
+    public ParallelEvaluator(List<Statement> program, int threads) {
+        this(program, threads, DEFAULT_FORK_DEPTH);
+    }
+
+    /**
+     * Mark the forkable expressions of a program.
+     *
+     * @param program resolved top-level statements
+     * @param threads number of worker threads
+     * @param forkDepth most forks on the way from the entry call to a task
+     */
+    public ParallelEvaluator(List<Statement> program, int threads, int forkDepth) {
+        this.pool = new ForkJoinPool(threads);
+        this.forkDepth = forkDepth;
+        EffectAnalyzer effects = new EffectAnalyzer(program);
+        Marker marker = new Marker(effects);
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn && effects.isPure(fn)) {
+                marker.rewriteBlock(fn.getBody());
+            }
+        }
+        forkableExpressions = marker.marked;
+    }
+
+    /**
+     * Whether code that is the given number of forks away from the entry
+     * call should fork again.
+     */
+    boolean shouldFork(int level) {
+        return level < forkDepth && ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS_TASKS;
+    }
+
+    /**
+     * Start a task in the pool: on the current worker's own queue, where
+     * idle workers steal it, or from outside the pool on its shared queue.
+     */
+    void fork(ForkJoinTask<?> task) {
+        forks.increment();
+        if (ForkJoinTask.getPool() == pool) {
+            task.fork();
+        } else {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Run a call on one of the pool's workers, so the calling thread only
+     * waits and the pool's threads do all of the work.
+     *
+     * @param call the call, typically of entry()
+     * @return what it returned
+     */
+    public int run(IntSupplier call) {
+        int[] result = new int[1];
+        Throwable[] failure = new Throwable[1];
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    result[0] = call.getAsInt();
+                } catch (RuntimeException | Error e) {
+                    // kept rather than thrown, so invoke does not wrap it
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure[0] instanceof Error e) {
+            throw e;
+        }
+        return result[0];
+    }
+
+    /**
+     * Stop the worker threads once the program has finished.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Number of binary expressions whose operands may run in parallel.
+     */
+    public int getForkableExpressions() {
+        return forkableExpressions;
+    }
+
+    /**
+     * Number of calls that were run as tasks.
+     */
+    public long getForks() {
+        return forks.sum();
+    }
+
+    /**
+     * One line describing what was run in parallel.
+     */
+    public String getStats() {
+        return "Parallel: " + getThreads() + " threads, " + forkableExpressions + " forkable expressions, "
+                + getForks() + " forked calls";
+    }
+
+    /**
+     * Marks the forkable binary expressions of a pure function's body.
+     */
+    private static class Marker extends ASTRewriter {
+        private final EffectAnalyzer effects;
+        int marked;
+
+        Marker(EffectAnalyzer effects) {
+            this.effects = effects;
+        }
+
+        private boolean worthForking(Expression operand) {
+            if (!(operand instanceof CallExpression call) || Builtins.isBuiltin(call.getCallee())) {
+                return false;
+            }
+            // a call of a function made only of operators is too small a task
+            for (FunctionDeclarationStatement fn : effects.definitionsOf(call.getCallee())) {
+                if (effects.callsFunctions(fn)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Object visitBinaryExpression(BinaryExpression expr) {
+            if (worthForking(expr.getLeft()) && worthForking(expr.getRight())) {
+                expr.setForkable(true);
+                marked++;
+            }
+            return super.visitBinaryExpression(expr);
+        }
+    }
+}
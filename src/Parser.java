@@ -278,6 +278,11 @@ public class Parser {
             
             // Check if variable is in scope before allowing reference
             if (!symbolTable.isDefined(name)) {
+                // A built-in name that isn't shadowed by a variable refers to the built-in
+                BuiltinFunction builtin = BuiltinFunction.forName(name);
+                if (builtin != null) {
+                    return ExpressionFactory.create(ExpressionType.BUILTIN_REF, builtin, token.getLine());
+                }
                 throw error(token, "Variable '" + name + "' referenced before declaration or out of scope.");
             }
             
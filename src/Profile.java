@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Profile records what the Interpreter saw a program do, and keeps it in
+ * a file next to the program for its next runs: how often each call site
+ * called its function, how often each arm of an if statement was taken,
+ * and how many iterations each loop ran. A run started with the profile
+ * of earlier ones optimizes for them from the start:
+ *
+ * - the Inliner inlines larger functions at call sites that were hot,
+ *   and leaves alone the ones that never ran;
+ * - the JIT lays out arms that were rarely taken after the rest of their
+ *   function, so the common path runs straight through;
+ * - the TieredCompiler compiles the functions that got hot at their
+ *   first call, and the loops that ran long at their first iteration.
+ *
+ * Sites are keyed by the function they are in, their line and, for
+ * calls, the function called, so that the Inliner can find a call before
+ * the Resolver has run. If statements and loops on one line are told
+ * apart by their order. The file starts with a hash of the source, and a
+ * profile of a different source is ignored.
+ *
+ * Only interpreted code is counted: calls made by compiled code, by
+ * memoized functions answered from their tables and by worker threads
+ * are not, and a loop that moves onto compiled code stops counting its
+ * iterations. Each count therefore keeps the largest value any run had,
+ * so a run that compiled sooner because of the profile does not erase it.
+ */
+public class Profile {
+    private static final String HEADER = "# SPROLA profile ";
+    /** Calls of a site in one run from which it counts as hot. */
+    static final int HOT_CALLS = 1000;
+    /** Interpreted calls of a function from which its call sites that never ran count as cold. */
+    static final int COLD_CALLER_CALLS = 100;
+    /** Runs of an if statement from which its arms can count as cold. */
+    static final int MIN_BRANCH_RUNS = 100;
+    /** Share of an if statement's runs below which an arm is cold. */
+    static final double COLD_ARM_SHARE = 0.1;
+
+    private static final String CALL = "call";
+    private static final String IF = "if";
+    private static final String LOOP = "loop";
+    private static final String FUNCTION = "function";
+    // indexes into a loop's counts
+    private static final int RUNS = 0;
+    private static final int ITERATIONS = 1;
+    private static final int LONGEST = 2;
+
+    private final String hash;
+    private int runs;
+    // counts of the earlier runs, by site key
+    private final NavigableMap<String, long[]> saved = new TreeMap<>();
+    // counts of this run, by site key, and the nodes of the code being run
+    // that count into them
+    private final Map<String, long[]> recorded = new TreeMap<>();
+    private final Map<ASTNode, long[]> counts = new IdentityHashMap<>();
+    private final Map<ASTNode, String> keys = new IdentityHashMap<>();
+
+    /**
+     * An empty profile for a source.
+     *
+     * @param hash the source's hash, from hash(source)
+     */
+    public Profile(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * The hash a profile of the source is keyed by.
+     */
+    public static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The file a program's profile is kept in: its own path with
+     * ".profile" appended.
+     */
+    public static Path sidecar(Path source) {
+        return source.resolveSibling(source.getFileName() + ".profile");
+    }
+
+    /**
+     * Read the profile of a source from a file. A missing file, one that
+     * cannot be read, or one for another source gives an empty profile.
+     *
+     * @param file the profile file
+     * @param hash the source's hash
+     */
+    public static Profile load(Path file, String hash) {
+        Profile profile = new Profile(hash);
+        if (!Files.isReadable(file)) {
+            return profile;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file);
+            if (lines.isEmpty() || !lines.get(0).equals(HEADER + hash)) {
+                return profile;
+            }
+            Map<String, long[]> sites = new TreeMap<>();
+            int runs = 0;
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ");
+                if (fields[0].equals("runs") && fields.length == 2) {
+                    runs = Integer.parseInt(fields[1]);
+                    continue;
+                }
+                if (fields.length < 3) {
+                    return profile;
+                }
+                long[] values = new long[fields.length - 2];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(fields[i + 2]);
+                }
+                sites.put(fields[0] + " " + fields[1], values);
+            }
+            profile.saved.putAll(sites);
+            profile.runs = runs;
+        } catch (IOException | NumberFormatException e) {
+            // a damaged profile is only a missed optimization
+            profile.saved.clear();
+        }
+        return profile;
+    }
+
+    /**
+     * Write the earlier runs' counts, merged with this run's, to a file.
+     * Sites the code had but never ran are written too, with counts of 0,
+     * which tells them apart from sites it did not have.
+     */
+    public void save(Path file) throws IOException {
+        Map<String, long[]> merged = new TreeMap<>(saved);
+        for (Map.Entry<String, long[]> site : recorded.entrySet()) {
+            long[] now = site.getValue();
+            long[] before = merged.get(site.getKey());
+            if (before == null || before.length != now.length) {
+                merged.put(site.getKey(), now.clone());
+                continue;
+            }
+            long[] max = before.clone();
+            for (int i = 0; i < max.length; i++) {
+                max[i] = Math.max(max[i], now[i]);
+            }
+            merged.put(site.getKey(), max);
+        }
+        StringBuilder text = new StringBuilder(HEADER + hash + "\n");
+        text.append("runs ").append(runs + 1).append('\n');
+        for (Map.Entry<String, long[]> site : merged.entrySet()) {
+            text.append(site.getKey());
+            for (long count : site.getValue()) {
+                text.append(' ').append(count);
+            }
+            text.append('\n');
+        }
+        Files.writeString(file, text);
+    }
+
+    /**
+     * Give keys to the call sites, if statements and loops of the
+     * functions about to run, so that running them counts into this
+     * profile, and mark the arms of their if statements that the earlier
+     * runs rarely took.
+     *
+     * @param functions the program's functions, after the Resolver
+     */
+    void index(Collection<FunctionDeclarationStatement> functions) {
+        for (FunctionDeclarationStatement fn : functions) {
+            String name = fn.getName();
+            counts.put(fn, recorded.computeIfAbsent(FUNCTION + " " + name, k -> new long[1]));
+            new ASTRewriter() {
+                // if statements and loops seen so far on each line
+                final Map<String, Integer> ordinals = new HashMap<>();
+
+                private String key(String kind, Statement stmt) {
+                    String site = name + ":" + stmt.getLine();
+                    int ordinal = ordinals.merge(kind + " " + site, 1, Integer::sum) - 1;
+                    return kind + " " + site + "#" + ordinal;
+                }
+
+                private void add(ASTNode node, String key, int size) {
+                    keys.put(node, key);
+                    counts.put(node, recorded.computeIfAbsent(key, k -> new long[size]));
+                }
+
+                @Override
+                public Object visitCallExpression(CallExpression expr) {
+                    add(expr, callKey(name, expr.getLine(), expr.getCallee()), 1);
+                    return super.visitCallExpression(expr);
+                }
+
+                @Override
+                public Object visitIfStatement(IfStatement stmt) {
+                    String key = key(IF, stmt);
+                    add(stmt, key, stmt.getElifConditions().size() + 2);
+                    stmt.setColdArms(coldArms(saved.get(key), stmt.getElifConditions().size() + 2));
+                    return super.visitIfStatement(stmt);
+                }
+
+                @Override
+                public Object visitWhileStatement(WhileStatement stmt) {
+                    add(stmt, key(LOOP, stmt), 3);
+                    return super.visitWhileStatement(stmt);
+                }
+
+                @Override
+                public Object visitRunStatement(RunStatement stmt) {
+                    add(stmt, key(LOOP, stmt), 3);
+                    return super.visitRunStatement(stmt);
+                }
+
+                @Override
+                public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+                    // a nested function's sites count as its enclosing function's
+                    rewriteBlock(stmt.getBody());
+                    return stmt;
+                }
+            }.rewriteBlock(fn.getBody());
+        }
+    }
+
+    private static String callKey(String caller, int line, String callee) {
+        return CALL + " " + caller + ":" + line + ":" + callee;
+    }
+
+    /**
+     * The conditional arms taken in less than COLD_ARM_SHARE of an if
+     * statement's runs, or null if there are none or too few runs.
+     */
+    private static boolean[] coldArms(long[] arms, int size) {
+        if (arms == null || arms.length != size) {
+            return null;
+        }
+        long total = Arrays.stream(arms).sum();
+        if (total < MIN_BRANCH_RUNS) {
+            return null;
+        }
+        boolean[] cold = new boolean[size - 1];
+        boolean any = false;
+        for (int arm = 0; arm < cold.length; arm++) {
+            cold[arm] = arms[arm] < total * COLD_ARM_SHARE;
+            any |= cold[arm];
+        }
+        return any ? cold : null;
+    }
+
+    /**
+     * Count an interpreted call of a function.
+     */
+    void countEntry(FunctionDeclarationStatement fn) {
+        long[] count = counts.get(fn);
+        if (count != null) {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Count a call made by a call site.
+     */
+    void countCall(CallExpression expr) {
+        long[] count = counts.get(expr);
+        if (count != null) {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Count an arm of an if statement being taken.
+     *
+     * @param arm 0 for the then branch, i + 1 for elif branch i, and the
+     *            number of elif branches + 1 for the else branch or none
+     */
+    void countArm(IfStatement stmt, int arm) {
+        long[] arms = counts.get(stmt);
+        if (arms != null) {
+            arms[arm]++;
+        }
+    }
+
+    /**
+     * Count a run of a loop.
+     *
+     * @param loop the WhileStatement or RunStatement
+     * @param iterations iterations the interpreter ran
+     */
+    void countLoop(Statement loop, int iterations) {
+        long[] loopCounts = counts.get(loop);
+        if (loopCounts != null) {
+            loopCounts[RUNS]++;
+            loopCounts[ITERATIONS] += iterations;
+            loopCounts[LONGEST] = Math.max(loopCounts[LONGEST], iterations);
+        }
+    }
+
+    /**
+     * Number of runs the earlier counts come from.
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * Number of sites the earlier runs counted.
+     */
+    public int getSites() {
+        return saved.size();
+    }
+
+    /**
+     * The earlier runs' count of calls from a call site.
+     *
+     * @param caller name of the function the call is in
+     * @param line the call's line
+     * @param callee name of the function called
+     */
+    public long getCalls(String caller, int line, String callee) {
+        long[] count = saved.get(callKey(caller, line, callee));
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * The earlier runs' count of interpreted calls of a function.
+     */
+    public long getEntries(String fn) {
+        long[] count = saved.get(FUNCTION + " " + fn);
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * Whether a call site was hot in the earlier runs.
+     */
+    boolean isHotCall(String caller, int line, String callee) {
+        return getCalls(caller, line, callee) >= HOT_CALLS;
+    }
+
+    /**
+     * Whether a call site never ran in the earlier runs, though the
+     * function it is in was called often. A site they did not have, such
+     * as one that was inlined, is not known to be cold.
+     */
+    boolean isColdCall(String caller, int line, String callee) {
+        return saved.containsKey(callKey(caller, line, callee)) && getCalls(caller, line, callee) == 0
+                && getEntries(caller) >= COLD_CALLER_CALLS;
+    }
+
+    /**
+     * The earlier runs' total of the iterations the loops of a function ran.
+     */
+    public long getLoopIterations(String fn) {
+        String prefix = LOOP + " " + fn + ":";
+        long total = 0;
+        for (Map.Entry<String, long[]> site : saved.tailMap(prefix).entrySet()) {
+            if (!site.getKey().startsWith(prefix)) {
+                break;
+            }
+            total += site.getValue()[ITERATIONS];
+        }
+        return total;
+    }
+
+    /**
+     * The most iterations one run of a loop of the code being run had in
+     * the earlier runs, or 0 if it is not known.
+     */
+    public long getLongestRun(Statement loop) {
+        String key = keys.get(loop);
+        long[] loopCounts = key == null ? null : saved.get(key);
+        return loopCounts == null ? 0 : loopCounts[LONGEST];
+    }
+
+    /**
+     * One line describing the profile.
+     */
+    public String getStats() {
+        long active = recorded.values().stream().filter(c -> Arrays.stream(c).anyMatch(n -> n != 0)).count();
+        return "Profile: " + getSites() + " sites from " + runs + " earlier runs, " + active + " of "
+                + recorded.size() + " sites ran in this run";
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.*;
+
+/**
+ * RegisterAllocator maps the virtual registers used by RegisterCompiler (one
+ * per variable slot, plus a fresh one for every temporary) onto as few
+ * machine registers as possible, using linear scan over live intervals.
+ *
+ * A virtual register's interval runs from its first to its last mention in
+ * code order. A value that is live on entry to a loop is still needed on the
+ * next iteration, so an interval that starts before a loop and reaches into
+ * it is stretched to the loop's backward jump.
+ */
+public class RegisterAllocator {
+    private RegisterAllocator() {
+    }
+
+    /**
+     * Rewrite the register operands of a chunk's code in place.
+     *
+     * @param code the code, using virtual registers
+     * @param virtualCount number of virtual registers
+     * @param fixed virtual registers 0 to fixed - 1 keep their number and
+     *              are never shared (the globals of the top-level code)
+     * @param parameters virtual registers 0 to parameters - 1 are live on
+     *                   entry; they get the machine registers of the same number
+     * @return the number of machine registers needed
+     */
+    public static int allocate(int[] code, int virtualCount, int fixed, int parameters) {
+        int[] start = new int[virtualCount];
+        int[] end = new int[virtualCount];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        for (int v = 0; v < parameters; v++) {
+            start[v] = -1;
+        }
+
+        // Number the instructions and find each register's first and last mention
+        List<Integer> instructionStarts = new ArrayList<>();
+        int[] indexOfPc = new int[code.length];
+        for (int pc = 0; pc < code.length; pc += RegisterOpCode.length(code, pc)) {
+            indexOfPc[pc] = instructionStarts.size();
+            instructionStarts.add(pc);
+        }
+        List<int[]> loops = new ArrayList<>();
+        for (int i = 0; i < instructionStarts.size(); i++) {
+            int pc = instructionStarts.get(i);
+            String format = RegisterOpCode.format(code[pc]);
+            for (int j = 0; j < format.length(); j++) {
+                int operand = pc + 1 + j;
+                switch (format.charAt(j)) {
+                    case 'd', 'r' -> mention(start, end, code[operand], i);
+                    case 'n' -> {
+                        for (int k = 1; k <= code[operand]; k++) {
+                            mention(start, end, code[operand + k], i);
+                        }
+                    }
+                    case 't' -> {
+                        if (code[operand] <= pc) {
+                            loops.add(new int[] {indexOfPc[code[operand]], i});
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        // Keep values that flow into a loop alive for the whole loop
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int[] loop : loops) {
+                for (int v = 0; v < virtualCount; v++) {
+                    if (start[v] < loop[0] && end[v] >= loop[0] && end[v] < loop[1]) {
+                        end[v] = loop[1];
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // Linear scan: visit intervals by start, reusing registers whose interval is over
+        int[] assigned = new int[virtualCount];
+        long[] order = new long[virtualCount];
+        for (int v = 0; v < virtualCount; v++) {
+            // sort by start, then by number; the +1 keeps the parameters' -1 sortable
+            order[v] = ((long) start[v] + 1 << 32) | v;
+        }
+        Arrays.sort(order);
+        int[] active = new int[virtualCount];
+        int activeCount = 0;
+        BitSet free = new BitSet();
+        int registers = Math.max(fixed, parameters);
+        for (int v = 0; v < fixed; v++) {
+            assigned[v] = v;
+        }
+        for (long key : order) {
+            int v = (int) key;
+            if (v < fixed || end[v] < 0) {
+                continue;
+            }
+            for (int i = 0; i < activeCount; i++) {
+                if (end[active[i]] < start[v]) {
+                    free.set(assigned[active[i]]);
+                    active[i--] = active[--activeCount];
+                }
+            }
+            if (v < parameters) {
+                // parameters arrive in their own registers, and nothing
+                // has been handed out before them
+                assigned[v] = v;
+            } else if (!free.isEmpty()) {
+                assigned[v] = free.nextSetBit(0);
+                free.clear(assigned[v]);
+            } else {
+                assigned[v] = registers++;
+            }
+            active[activeCount++] = v;
+        }
+
+        // Rewrite the operands
+        for (int pc : instructionStarts) {
+            String format = RegisterOpCode.format(code[pc]);
+            for (int j = 0; j < format.length(); j++) {
+                int operand = pc + 1 + j;
+                switch (format.charAt(j)) {
+                    case 'd', 'r' -> code[operand] = assigned[code[operand]];
+                    case 'n' -> {
+                        for (int k = 1; k <= code[operand]; k++) {
+                            code[operand + k] = assigned[code[operand + k]];
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+        return registers;
+    }
+
+    private static void mention(int[] start, int[] end, int register, int instruction) {
+        start[register] = Math.min(start[register], instruction);
+        end[register] = Math.max(end[register], instruction);
+    }
+}
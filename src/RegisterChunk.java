@@ -0,0 +1,93 @@
+/**
+ * RegisterChunk is the compiled form of one function (or of the top-level
+ * code) for the register VM: three-address instructions in an int array,
+ * the size of the register file a call needs, and the string constants the
+ * instructions refer to.
+ */
+public class RegisterChunk {
+    private final String name;
+    private final int arity;
+    private final int frameSize;
+    private final int[] code;
+    private final String[] strings;
+
+    RegisterChunk(String name, int arity, int frameSize, int[] code, String[] strings) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.code = code;
+        this.strings = strings;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Number of parameters; they arrive in registers 0 to arity - 1.
+     */
+    public int getArity() {
+        return arity;
+    }
+
+    /**
+     * Number of registers a call needs, after register allocation.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    String[] getStrings() {
+        return strings;
+    }
+
+    /**
+     * Number of instructions, as opposed to the length of the code array.
+     */
+    public int getInstructionCount() {
+        int instructions = 0;
+        for (int pc = 0; pc < code.length; pc += RegisterOpCode.length(code, pc)) {
+            instructions++;
+        }
+        return instructions;
+    }
+
+    /**
+     * Human-readable listing of the instructions, one per line.
+     */
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("== ").append(name).append(" (arity ").append(arity)
+                .append(", registers ").append(frameSize).append(")\n");
+        for (int pc = 0; pc < code.length; pc += RegisterOpCode.length(code, pc)) {
+            int op = code[pc];
+            String format = RegisterOpCode.format(op);
+            sb.append(String.format("%04d %s", pc, RegisterOpCode.name(op)));
+            for (int i = 0; i < format.length(); i++) {
+                int operand = code[pc + 1 + i];
+                switch (format.charAt(i)) {
+                    case 'd', 'r' -> sb.append(" r").append(operand);
+                    case 'g' -> sb.append(" g").append(operand);
+                    case 's' -> sb.append(" '").append(strings[operand]).append('\'');
+                    case 'n' -> {
+                        for (int j = 1; j <= operand; j++) {
+                            sb.append(" r").append(code[pc + 1 + i + j]);
+                        }
+                    }
+                    default -> sb.append(' ').append(operand);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RegisterChunk(" + name + ", " + frameSize + " registers)";
+    }
+}
@@ -0,0 +1,543 @@
+import java.util.*;
+
+/**
+ * RegisterCompiler turns a resolved program into RegisterChunks for the
+ * register VM. Like BytecodeCompiler, chunk 0 is the top-level code and the
+ * other chunks are the top-level functions.
+ *
+ * Each variable slot is a virtual register and every intermediate value
+ * gets a fresh one; RegisterAllocator then packs them into a small frame.
+ * Expressions are compiled with a destination in mind, so a variable is
+ * read straight from its register and a result is computed straight into
+ * the variable it is assigned to: {@code x * f(x - 1)} is a SUBK, a CALL
+ * and a MUL with no moves. Comparisons in conditions become a single
+ * compare-and-jump instruction.
+ */
+public class RegisterCompiler implements ASTVisitor {
+    private final Map<String, Integer> functionIndex = new HashMap<>();
+    private final List<FunctionDeclarationStatement> functions = new ArrayList<>();
+
+    // state of the chunk being compiled
+    private int[] code;
+    private int count;
+    private List<String> strings;
+    private int nextRegister;
+    private boolean topLevel;
+    // jumps from top-level returns, patched at the end of the statement
+    private List<Integer> topLevelReturns;
+    // register the expression being compiled must put its value in, or -1
+    // to leave it in whatever register is convenient
+    private int destination = -1;
+
+    /**
+     * Compile a program.
+     *
+     * @param program statements as returned by SPROLARunner.parse
+     * @return the chunks; chunk 0 is the top-level code
+     * @throws UnsupportedOperationException if the program has nested functions
+     */
+    public RegisterChunk[] compile(List<Statement> program) {
+        // a later definition of a name replaces an earlier one everywhere
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                Integer index = functionIndex.get(fn.getName());
+                if (index == null) {
+                    functionIndex.put(fn.getName(), functions.size() + 1);
+                    functions.add(fn);
+                } else {
+                    functions.set(index - 1, fn);
+                }
+            }
+        }
+
+        RegisterChunk[] chunks = new RegisterChunk[functions.size() + 1];
+        chunks[0] = compileTopLevel(program);
+        for (int i = 0; i < functions.size(); i++) {
+            chunks[i + 1] = compileFunction(functions.get(i));
+        }
+        return chunks;
+    }
+
+    private RegisterChunk compileTopLevel(List<Statement> program) {
+        List<Statement> statements = new ArrayList<>();
+        for (Statement stmt : program) {
+            if (!(stmt instanceof FunctionDeclarationStatement)) {
+                statements.add(stmt);
+            }
+        }
+        // the globals are the top-level code's slots, and must stay put
+        // because functions address them directly
+        int globals = slotCount(statements);
+        begin(globals);
+        topLevel = true;
+        for (Statement stmt : statements) {
+            topLevelReturns = new ArrayList<>();
+            if (stmt instanceof ExpressionStatement expr && BuiltinRefExpression.nameOf(expr.getExpression()) != null) {
+                // at top level a bare built-in name is evaluated and discarded
+                continue;
+            }
+            stmt.accept(this);
+            for (int jump : topLevelReturns) {
+                patch(jump);
+            }
+        }
+        topLevel = false;
+        int result = newRegister();
+        emit(RegisterOpCode.CONST, result, 0);
+        emit(RegisterOpCode.RETURN, result);
+        return end("<top level>", 0, globals);
+    }
+
+    private RegisterChunk compileFunction(FunctionDeclarationStatement fn) {
+        begin(fn.getFrameSize());
+        for (Statement stmt : fn.getBody()) {
+            stmt.accept(this);
+        }
+        // falling off the end returns 0
+        int result = newRegister();
+        emit(RegisterOpCode.CONST, result, 0);
+        emit(RegisterOpCode.RETURN, result);
+        return end(fn.getName(), fn.getParameters().size(), 0);
+    }
+
+    /**
+     * Number of global slots: one past the highest slot declared anywhere
+     * in the top-level code.
+     */
+    private static int slotCount(List<Statement> statements) {
+        int slots = 0;
+        for (Statement stmt : statements) {
+            if (stmt instanceof VarDeclarationStatement decl) {
+                for (VarDeclarator declarator : decl.getDeclarators()) {
+                    slots = Math.max(slots, declarator.getSlot() + 1);
+                }
+            } else if (stmt instanceof IfStatement ifStmt) {
+                slots = Math.max(slots, slotCount(ifStmt.getThenBranch()));
+                for (List<Statement> branch : ifStmt.getElifBranches()) {
+                    slots = Math.max(slots, slotCount(branch));
+                }
+                if (ifStmt.hasElse()) {
+                    slots = Math.max(slots, slotCount(ifStmt.getElseBranch()));
+                }
+            } else if (stmt instanceof WhileStatement loop) {
+                slots = Math.max(slots, slotCount(loop.getBody()));
+            } else if (stmt instanceof RunStatement loop) {
+                slots = Math.max(slots, slotCount(loop.getBody()));
+            }
+        }
+        return slots;
+    }
+
+    private void begin(int slots) {
+        code = new int[64];
+        count = 0;
+        strings = new ArrayList<>();
+        // the first virtual registers are the frame's slots
+        nextRegister = slots;
+    }
+
+    private RegisterChunk end(String name, int arity, int fixed) {
+        int[] finished = Arrays.copyOf(code, count);
+        int frameSize = RegisterAllocator.allocate(finished, nextRegister, fixed, arity);
+        return new RegisterChunk(name, arity, frameSize, finished, strings.toArray(new String[0]));
+    }
+
+    private int newRegister() {
+        return nextRegister++;
+    }
+
+    private void emit(int... instruction) {
+        for (int value : instruction) {
+            if (count == code.length) {
+                code = Arrays.copyOf(code, count * 2);
+            }
+            code[count++] = value;
+        }
+    }
+
+    /**
+     * Point the jump whose target operand is at the given position here.
+     */
+    private void patch(int operand) {
+        code[operand] = count;
+    }
+
+    private int addString(String value) {
+        int index = strings.indexOf(value);
+        if (index < 0) {
+            index = strings.size();
+            strings.add(value);
+        }
+        return index;
+    }
+
+    /**
+     * Fail at runtime. The result register is never written, but gives the
+     * expression being compiled somewhere to say its value is.
+     */
+    private int fail(String message) {
+        emit(RegisterOpCode.FAIL, addString(message));
+        return target();
+    }
+
+    /**
+     * The register the current expression should write: its destination if
+     * it has one, otherwise a fresh temporary.
+     */
+    private int target() {
+        return destination >= 0 ? destination : newRegister();
+    }
+
+    /**
+     * Compile an expression.
+     *
+     * @param expr the expression
+     * @param dest register the value must end up in, or -1 for any
+     * @return the register holding the value
+     */
+    private int compile(Expression expr, int dest) {
+        int saved = destination;
+        destination = dest;
+        int register = (Integer) expr.accept(this);
+        destination = saved;
+        return register;
+    }
+
+    /**
+     * Compile an operand of a larger expression. A local variable is used in
+     * place rather than copied, unless it is a global that a later call in
+     * the same expression might change before the value is used.
+     *
+     * @param expr the operand
+     * @param callFollows whether operands evaluated after this one contain a call
+     * @return the register holding the value
+     */
+    private int operand(Expression expr, boolean callFollows) {
+        if (topLevel && callFollows && unwrap(expr) instanceof VariableExpression) {
+            return compile(expr, newRegister());
+        }
+        return compile(expr, -1);
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (expr instanceof GroupExpression group) {
+            expr = group.getExpression();
+        }
+        return expr;
+    }
+
+    /**
+     * The value of an expression that is a number literal, possibly negated
+     * or in parentheses, or null if it is anything else.
+     */
+    private static Integer constant(Expression expr) {
+        expr = unwrap(expr);
+        if (expr instanceof LiteralExpression literal && literal.getValue() instanceof Integer value) {
+            return value;
+        }
+        if (expr instanceof UnaryExpression unary && unary.getOperator() == TokenType.MINUS) {
+            Integer value = constant(unary.getOperand());
+            return value == null ? null : -value;
+        }
+        return null;
+    }
+
+    private static boolean hasCall(Expression expr) {
+        expr = unwrap(expr);
+        if (expr instanceof CallExpression || expr instanceof InputExpression) {
+            return true;
+        }
+        if (expr instanceof BinaryExpression binary) {
+            return hasCall(binary.getLeft()) || hasCall(binary.getRight());
+        }
+        if (expr instanceof UnaryExpression unary) {
+            return hasCall(unary.getOperand());
+        }
+        return false;
+    }
+
+    /**
+     * Compile a jump to target taken when the condition is true (or false).
+     * A comparison becomes one compare-and-jump instruction.
+     *
+     * @return position of the target operand, for patching
+     */
+    private int branch(Expression condition, boolean whenTrue, int target) {
+        Expression cond = unwrap(condition);
+        if (cond instanceof BinaryExpression binary && RegisterOpCode.isComparison(binary.getOperator())) {
+            // JUMP_UNLESS jumps when the comparison fails, so to jump when
+            // it holds, test the opposite comparison
+            TokenType comparison = whenTrue ? RegisterOpCode.negate(binary.getOperator()) : binary.getOperator();
+            int op = RegisterOpCode.jumpUnless(comparison);
+            Integer k = constant(binary.getRight());
+            int left = operand(binary.getLeft(), k == null && hasCall(binary.getRight()));
+            if (k != null) {
+                emit(op + (RegisterOpCode.JUMP_UNLESS_EQK - RegisterOpCode.JUMP_UNLESS_EQ), left, k, target);
+            } else {
+                emit(op, left, operand(binary.getRight(), false), target);
+            }
+        } else {
+            int value = compile(cond, -1);
+            emit(whenTrue ? RegisterOpCode.JUMP_IF_NOT_ZERO : RegisterOpCode.JUMP_IF_ZERO, value, target);
+        }
+        return count - 1;
+    }
+
+    private void compileBlock(List<Statement> statements) {
+        for (Statement stmt : statements) {
+            stmt.accept(this);
+        }
+    }
+
+    private static RuntimeException unaddressable(String name) {
+        return new RuntimeException("The VM cannot address variable '" + name + "'");
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        int op = RegisterOpCode.forOperator(expr.getOperator());
+        Integer k = constant(expr.getRight());
+        int left = operand(expr.getLeft(), k == null && hasCall(expr.getRight()));
+        if (k != null) {
+            int result = target();
+            emit(op + (RegisterOpCode.ADDK - RegisterOpCode.ADD), result, left, k);
+            return result;
+        }
+        int right = operand(expr.getRight(), false);
+        int result = target();
+        emit(op, result, left, right);
+        return result;
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        if (expr.getOperator() != TokenType.MINUS) {
+            throw new RuntimeException("Unknown unary operator: " + expr.getOperator());
+        }
+        Integer k = constant(expr);
+        if (k != null) {
+            int result = target();
+            emit(RegisterOpCode.CONST, result, k);
+            return result;
+        }
+        int operand = operand(expr.getOperand(), false);
+        int result = target();
+        emit(RegisterOpCode.NEG, result, operand);
+        return result;
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        int result = target();
+        emit(RegisterOpCode.CONST, result, (Integer) expr.getValue());
+        return result;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        if (!expr.isResolved()) {
+            throw unaddressable(expr.getName());
+        }
+        if (expr.getDepth() != 0) {
+            int result = target();
+            emit(RegisterOpCode.GET_GLOBAL, result, expr.getSlot());
+            return result;
+        }
+        if (destination < 0 || destination == expr.getSlot()) {
+            return expr.getSlot();
+        }
+        emit(RegisterOpCode.MOVE, destination, expr.getSlot());
+        return destination;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        return expr.getExpression().accept(this);
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        List<Expression> arguments = expr.getArguments();
+        int argCount = arguments.size();
+        int dest = destination;
+        int[] registers = new int[argCount];
+        for (int i = 0; i < argCount; i++) {
+            boolean callFollows = false;
+            for (int j = i + 1; j < argCount; j++) {
+                callFollows |= hasCall(arguments.get(j));
+            }
+            registers[i] = operand(arguments.get(i), callFollows);
+        }
+        destination = dest;
+        String name = expr.getCallee();
+
+        BuiltinFunction builtin = BuiltinFunction.forName(name);
+        if (builtin != null) {
+            if (builtin.getArity() != argCount) {
+                return fail(builtin.arityMessage());
+            }
+            int result = target();
+            switch (builtin) {
+                case ABS -> emit(RegisterOpCode.ABS, result, registers[0]);
+                case MIN -> emit(RegisterOpCode.MIN, result, registers[0], registers[1]);
+                case MAX -> emit(RegisterOpCode.MAX, result, registers[0], registers[1]);
+                default -> {
+                    emit(RegisterOpCode.CALL_BUILTIN, result, builtin.ordinal(), argCount);
+                    emit(registers);
+                }
+            }
+            return result;
+        }
+
+        Integer index = functionIndex.get(name);
+        if (index == null) {
+            return fail("Function not defined: " + name);
+        }
+        if (functions.get(index - 1).getParameters().size() != argCount) {
+            return fail("Argument count mismatch in call to: " + name);
+        }
+        int result = target();
+        emit(RegisterOpCode.CALL, result, index, argCount);
+        emit(registers);
+        return result;
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        int result = target();
+        emit(RegisterOpCode.INPUT, result);
+        return result;
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        return fail("Built-in function '" + expr.getName() + "' cannot be used as a number");
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            if (!decl.isResolved()) {
+                throw unaddressable(decl.getName());
+            }
+            compile(decl.getInitializer(), decl.getSlot());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        if (!stmt.isResolved()) {
+            throw unaddressable(stmt.getName());
+        }
+        if (stmt.getDepth() == 0) {
+            compile(stmt.getValue(), stmt.getSlot());
+        } else {
+            emit(RegisterOpCode.SET_GLOBAL, stmt.getSlot(), compile(stmt.getValue(), -1));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        compile(stmt.getExpression(), -1);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        List<Integer> exits = new ArrayList<>();
+        int next = branch(stmt.getCondition(), false, -1);
+        compileBlock(stmt.getThenBranch());
+        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
+            emit(RegisterOpCode.JUMP, -1);
+            exits.add(count - 1);
+            patch(next);
+            next = branch(stmt.getElifConditions().get(i), false, -1);
+            compileBlock(stmt.getElifBranches().get(i));
+        }
+        if (stmt.hasElse()) {
+            emit(RegisterOpCode.JUMP, -1);
+            exits.add(count - 1);
+            patch(next);
+            compileBlock(stmt.getElseBranch());
+        } else {
+            patch(next);
+        }
+        for (int exit : exits) {
+            patch(exit);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        // test at the bottom, so each iteration takes one jump instead of two
+        emit(RegisterOpCode.JUMP, -1);
+        int toCondition = count - 1;
+        int body = count;
+        compileBlock(stmt.getBody());
+        patch(toCondition);
+        branch(stmt.getCondition(), true, body);
+        return null;
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        int body = count;
+        compileBlock(stmt.getBody());
+        branch(stmt.getCondition(), true, body);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        CallExpression tailCall = stmt.getSelfTailCall();
+        if (tailCall != null && !topLevel) {
+            // compute every new argument before overwriting any parameter,
+            // since the arguments may read them
+            List<Expression> arguments = tailCall.getArguments();
+            int[] values = new int[arguments.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = compile(arguments.get(i), newRegister());
+            }
+            for (int i = 0; i < values.length; i++) {
+                emit(RegisterOpCode.MOVE, i, values[i]);
+            }
+            emit(RegisterOpCode.JUMP, 0);
+            return null;
+        }
+        int value;
+        if (stmt.hasValue()) {
+            value = compile(stmt.getValue(), -1);
+        } else {
+            value = newRegister();
+            emit(RegisterOpCode.CONST, value, 0);
+        }
+        if (topLevel) {
+            // a return outside any function just ends the statement it is in
+            emit(RegisterOpCode.JUMP, -1);
+            topLevelReturns.add(count - 1);
+        } else {
+            emit(RegisterOpCode.RETURN, value);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        String builtin = BuiltinRefExpression.nameOf(stmt.getExpression());
+        if (builtin != null) {
+            emit(RegisterOpCode.PRINT_STRING, addString(builtin));
+        } else {
+            emit(RegisterOpCode.PRINT, compile(stmt.getExpression(), -1));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        throw new UnsupportedOperationException("The VM does not support nested function '"
+                + stmt.getName() + "'");
+    }
+}
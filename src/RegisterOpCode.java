@@ -0,0 +1,199 @@
+/**
+ * Instruction set of the register VM. Instructions are three-address: an
+ * opcode, then the register it writes (if any), then the registers and
+ * constants it reads, all in one int array. Registers are numbered within
+ * the current call's frame.
+ *
+ * Every opcode has a format string with one letter per operand, which is
+ * what the register allocator and the disassembler use to walk the code:
+ *   d register written    r register read    k constant
+ *   g global slot         t jump target      s string constant
+ *   f function index      n count of registers read that follow
+ */
+public final class RegisterOpCode {
+    // d <- k
+    public static final int CONST = 0;
+    // d <- r
+    public static final int MOVE = 1;
+    // d <- global g
+    public static final int GET_GLOBAL = 2;
+    // global g <- r
+    public static final int SET_GLOBAL = 3;
+
+    // d <- r op r; the K forms take a constant as the right operand
+    public static final int ADD = 4;
+    public static final int SUB = 5;
+    public static final int MUL = 6;
+    public static final int DIV = 7;
+    public static final int MOD = 8;
+    public static final int EQ = 9;
+    public static final int NE = 10;
+    public static final int LT = 11;
+    public static final int LE = 12;
+    public static final int GT = 13;
+    public static final int GE = 14;
+    public static final int ADDK = 15;
+    public static final int SUBK = 16;
+    public static final int MULK = 17;
+    public static final int DIVK = 18;
+    public static final int MODK = 19;
+    public static final int EQK = 20;
+    public static final int NEK = 21;
+    public static final int LTK = 22;
+    public static final int LEK = 23;
+    public static final int GTK = 24;
+    public static final int GEK = 25;
+    // d <- -r
+    public static final int NEG = 26;
+
+    public static final int JUMP = 27;
+    // jump if r is zero / not zero
+    public static final int JUMP_IF_ZERO = 28;
+    public static final int JUMP_IF_NOT_ZERO = 29;
+    // compare and jump if the comparison is false, e.g. JUMP_UNLESS_LT a b t
+    public static final int JUMP_UNLESS_EQ = 30;
+    public static final int JUMP_UNLESS_NE = 31;
+    public static final int JUMP_UNLESS_LT = 32;
+    public static final int JUMP_UNLESS_LE = 33;
+    public static final int JUMP_UNLESS_GT = 34;
+    public static final int JUMP_UNLESS_GE = 35;
+    public static final int JUMP_UNLESS_EQK = 36;
+    public static final int JUMP_UNLESS_NEK = 37;
+    public static final int JUMP_UNLESS_LTK = 38;
+    public static final int JUMP_UNLESS_LEK = 39;
+    public static final int JUMP_UNLESS_GTK = 40;
+    public static final int JUMP_UNLESS_GEK = 41;
+
+    // d <- function f called with n argument registers
+    public static final int CALL = 42;
+    // return r to the caller
+    public static final int RETURN = 43;
+    public static final int ABS = 44;
+    public static final int MIN = 45;
+    public static final int MAX = 46;
+    // d <- built-in (by BuiltinFunction ordinal) called with n argument registers
+    public static final int CALL_BUILTIN = 47;
+    public static final int PRINT = 48;
+    public static final int PRINT_STRING = 49;
+    // d <- the input expression
+    public static final int INPUT = 50;
+    public static final int FAIL = 51;
+
+    private static final String[] NAMES = {
+            "CONST", "MOVE", "GET_GLOBAL", "SET_GLOBAL",
+            "ADD", "SUB", "MUL", "DIV", "MOD", "EQ", "NE", "LT", "LE", "GT", "GE",
+            "ADDK", "SUBK", "MULK", "DIVK", "MODK", "EQK", "NEK", "LTK", "LEK", "GTK", "GEK",
+            "NEG", "JUMP", "JUMP_IF_ZERO", "JUMP_IF_NOT_ZERO",
+            "JUMP_UNLESS_EQ", "JUMP_UNLESS_NE", "JUMP_UNLESS_LT", "JUMP_UNLESS_LE",
+            "JUMP_UNLESS_GT", "JUMP_UNLESS_GE",
+            "JUMP_UNLESS_EQK", "JUMP_UNLESS_NEK", "JUMP_UNLESS_LTK", "JUMP_UNLESS_LEK",
+            "JUMP_UNLESS_GTK", "JUMP_UNLESS_GEK",
+            "CALL", "RETURN", "ABS", "MIN", "MAX", "CALL_BUILTIN",
+            "PRINT", "PRINT_STRING", "INPUT", "FAIL"
+    };
+
+    private RegisterOpCode() {
+    }
+
+    public static String name(int op) {
+        return NAMES[op];
+    }
+
+    /**
+     * Operand format of an opcode; see the class comment for the letters.
+     */
+    public static String format(int op) {
+        if (op >= ADD && op <= GE) {
+            return "drr";
+        }
+        if (op >= ADDK && op <= GEK) {
+            return "drk";
+        }
+        if (op >= JUMP_UNLESS_EQ && op <= JUMP_UNLESS_GE) {
+            return "rrt";
+        }
+        if (op >= JUMP_UNLESS_EQK && op <= JUMP_UNLESS_GEK) {
+            return "rkt";
+        }
+        return switch (op) {
+            case CONST -> "dk";
+            case MOVE, NEG, ABS -> "dr";
+            case GET_GLOBAL -> "dg";
+            case SET_GLOBAL -> "gr";
+            case MIN, MAX -> "drr";
+            case JUMP -> "t";
+            case JUMP_IF_ZERO, JUMP_IF_NOT_ZERO -> "rt";
+            case CALL, CALL_BUILTIN -> "dfn";
+            case RETURN, PRINT -> "r";
+            case PRINT_STRING, FAIL -> "s";
+            case INPUT -> "d";
+            default -> throw new IllegalArgumentException("Unknown opcode " + op);
+        };
+    }
+
+    /**
+     * Length of the instruction at pc, including the opcode.
+     */
+    public static int length(int[] code, int pc) {
+        String format = format(code[pc]);
+        int length = 1 + format.length();
+        if (format.endsWith("n")) {
+            length += code[pc + format.length()];
+        }
+        return length;
+    }
+
+    /**
+     * Register-register opcode for a binary operator; add
+     * {@code ADDK - ADD} for the constant form.
+     */
+    public static int forOperator(TokenType operator) {
+        return switch (operator) {
+            case PLUS -> ADD;
+            case MINUS -> SUB;
+            case STAR -> MUL;
+            case SLASH -> DIV;
+            case MOD -> MOD;
+            case EQ -> EQ;
+            case NE -> NE;
+            case LT -> LT;
+            case LE -> LE;
+            case GT -> GT;
+            case GE -> GE;
+            default -> throw new RuntimeException("Unknown binary operator: " + operator);
+        };
+    }
+
+    /**
+     * Whether an operator is a comparison that can be fused with a jump.
+     */
+    public static boolean isComparison(TokenType operator) {
+        return switch (operator) {
+            case EQ, NE, LT, LE, GT, GE -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The comparison that holds exactly when the given one does not.
+     */
+    public static TokenType negate(TokenType comparison) {
+        return switch (comparison) {
+            case EQ -> TokenType.NE;
+            case NE -> TokenType.EQ;
+            case LT -> TokenType.GE;
+            case LE -> TokenType.GT;
+            case GT -> TokenType.LE;
+            case GE -> TokenType.LT;
+            default -> throw new IllegalArgumentException("Not a comparison: " + comparison);
+        };
+    }
+
+    /**
+     * Jump-unless opcode for a comparison; add
+     * {@code JUMP_UNLESS_EQK - JUMP_UNLESS_EQ} for the constant form.
+     */
+    public static int jumpUnless(TokenType comparison) {
+        return JUMP_UNLESS_EQ + (forOperator(comparison) - EQ);
+    }
+}
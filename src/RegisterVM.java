@@ -0,0 +1,347 @@
+import java.util.*;
+
+/**
+ * RegisterVM runs the RegisterChunks produced by RegisterCompiler. All
+ * frames share one int array: each call owns a window of frameSize
+ * registers starting at its base, the callee's window starts right after
+ * the caller's, and the top-level code's window is at the bottom, so its
+ * first registers are the globals.
+ */
+public class RegisterVM {
+    private static final BuiltinFunction[] BUILTINS = BuiltinFunction.values();
+
+    private final RegisterChunk[] chunks;
+    private int[] registers = new int[256];
+
+    // Call records, one entry per active call: where to resume the caller
+    // and which of its registers receives the result
+    private int[] returnChunks = new int[64];
+    private int[] returnPcs = new int[64];
+    private int[] returnBases = new int[64];
+    private int[] returnDestinations = new int[64];
+    private int callDepth;
+
+    /**
+     * Create a VM for a compiled program.
+     *
+     * @param chunks compiled program; chunk 0 is the top-level code
+     */
+    public RegisterVM(RegisterChunk[] chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Run the top-level statements, setting up the globals.
+     */
+    public void run() {
+        ensureRegisters(chunks[0].getFrameSize());
+        execute(0, 0);
+    }
+
+    /**
+     * Call a built-in or a function by name, as Interpreter.invoke does.
+     *
+     * @param name function name
+     * @param args argument values
+     * @return integer result
+     */
+    public int call(String name, int... args) {
+        if (Builtins.isBuiltin(name)) {
+            return Builtins.callFunction(name, args);
+        }
+        int index = -1;
+        for (int i = 1; i < chunks.length; i++) {
+            if (chunks[i].getName().equals(name)) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            throw new RuntimeException("Function not defined: " + name);
+        }
+        if (chunks[index].getArity() != args.length) {
+            throw new RuntimeException("Argument count mismatch in call to: " + name);
+        }
+        // calls from outside start just above the top-level code's registers
+        int base = chunks[0].getFrameSize();
+        ensureRegisters(base + chunks[index].getFrameSize());
+        System.arraycopy(args, 0, registers, base, args.length);
+        return execute(index, base);
+    }
+
+    private void ensureRegisters(int capacity) {
+        if (capacity > registers.length) {
+            registers = Arrays.copyOf(registers, Math.max(capacity, registers.length * 2));
+        }
+    }
+
+    /**
+     * Run a chunk until it returns. Its arguments must already be in its
+     * first registers.
+     *
+     * @param chunkIndex chunk to run
+     * @param base index of its register 0
+     * @return the value it returned
+     */
+    private int execute(int chunkIndex, int base) {
+        int entryDepth = callDepth;
+        RegisterChunk chunk = chunks[chunkIndex];
+        int[] code = chunk.getCode();
+        int[] r = registers;
+        int pc = 0;
+
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case RegisterOpCode.CONST:
+                        r[base + code[pc + 1]] = code[pc + 2];
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.MOVE:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.GET_GLOBAL:
+                        r[base + code[pc + 1]] = r[code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.SET_GLOBAL:
+                        r[code[pc + 1]] = r[base + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.ADD:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] + r[base + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.SUB:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] - r[base + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.MUL:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] * r[base + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.DIV:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] / r[base + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.MOD:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] % r[base + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.EQ:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] == r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.NE:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] != r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.LT:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] < r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.LE:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] <= r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.GT:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] > r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.GE:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] >= r[base + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.ADDK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] + code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.SUBK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] - code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.MULK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] * code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.DIVK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] / code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.MODK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] % code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.EQK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] == code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.NEK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] != code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.LTK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] < code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.LEK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] <= code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.GTK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] > code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.GEK:
+                        r[base + code[pc + 1]] = r[base + code[pc + 2]] >= code[pc + 3] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.NEG:
+                        r[base + code[pc + 1]] = -r[base + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case RegisterOpCode.JUMP_IF_ZERO:
+                        pc = r[base + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case RegisterOpCode.JUMP_IF_NOT_ZERO:
+                        pc = r[base + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_EQ:
+                        pc = r[base + code[pc + 1]] == r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_NE:
+                        pc = r[base + code[pc + 1]] != r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_LT:
+                        pc = r[base + code[pc + 1]] < r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_LE:
+                        pc = r[base + code[pc + 1]] <= r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_GT:
+                        pc = r[base + code[pc + 1]] > r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_GE:
+                        pc = r[base + code[pc + 1]] >= r[base + code[pc + 2]] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_EQK:
+                        pc = r[base + code[pc + 1]] == code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_NEK:
+                        pc = r[base + code[pc + 1]] != code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_LTK:
+                        pc = r[base + code[pc + 1]] < code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_LEK:
+                        pc = r[base + code[pc + 1]] <= code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_GTK:
+                        pc = r[base + code[pc + 1]] > code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.JUMP_UNLESS_GEK:
+                        pc = r[base + code[pc + 1]] >= code[pc + 2] ? pc + 4 : code[pc + 3];
+                        break;
+                    case RegisterOpCode.CALL: {
+                        RegisterChunk target = chunks[code[pc + 2]];
+                        int argCount = code[pc + 3];
+                        int calleeBase = base + chunk.getFrameSize();
+                        if (calleeBase + target.getFrameSize() > r.length) {
+                            ensureRegisters(calleeBase + target.getFrameSize());
+                            r = registers;
+                        }
+                        for (int i = 0; i < argCount; i++) {
+                            r[calleeBase + i] = r[base + code[pc + 4 + i]];
+                        }
+                        if (callDepth == returnPcs.length) {
+                            growCallRecords();
+                        }
+                        returnChunks[callDepth] = chunkIndex;
+                        returnPcs[callDepth] = pc + 4 + argCount;
+                        returnBases[callDepth] = base;
+                        returnDestinations[callDepth] = code[pc + 1];
+                        callDepth++;
+                        chunkIndex = code[pc + 2];
+                        chunk = target;
+                        code = target.getCode();
+                        base = calleeBase;
+                        pc = 0;
+                        break;
+                    }
+                    case RegisterOpCode.RETURN: {
+                        int value = r[base + code[pc + 1]];
+                        if (callDepth == entryDepth) {
+                            return value;
+                        }
+                        callDepth--;
+                        chunkIndex = returnChunks[callDepth];
+                        chunk = chunks[chunkIndex];
+                        code = chunk.getCode();
+                        pc = returnPcs[callDepth];
+                        base = returnBases[callDepth];
+                        r[base + returnDestinations[callDepth]] = value;
+                        break;
+                    }
+                    case RegisterOpCode.ABS:
+                        r[base + code[pc + 1]] = Math.abs(r[base + code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case RegisterOpCode.MIN:
+                        r[base + code[pc + 1]] = Math.min(r[base + code[pc + 2]], r[base + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.MAX:
+                        r[base + code[pc + 1]] = Math.max(r[base + code[pc + 2]], r[base + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case RegisterOpCode.CALL_BUILTIN: {
+                        BuiltinFunction builtin = BUILTINS[code[pc + 2]];
+                        int argCount = code[pc + 3];
+                        int a = argCount > 0 ? r[base + code[pc + 4]] : 0;
+                        int b = argCount > 1 ? r[base + code[pc + 5]] : 0;
+                        r[base + code[pc + 1]] = Builtins.call(builtin, a, b);
+                        pc += 4 + argCount;
+                        break;
+                    }
+                    case RegisterOpCode.PRINT:
+                        System.out.println(r[base + code[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case RegisterOpCode.PRINT_STRING:
+                        System.out.println(chunk.getStrings()[code[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case RegisterOpCode.INPUT:
+                        r[base + code[pc + 1]] = Builtins.readInput();
+                        pc += 2;
+                        break;
+                    case RegisterOpCode.FAIL:
+                        throw new RuntimeException(chunk.getStrings()[code[pc + 1]]);
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } finally {
+            // an error unwinds every call made since this one started
+            callDepth = entryDepth;
+        }
+    }
+
+    private void growCallRecords() {
+        int length = returnPcs.length * 2;
+        returnChunks = Arrays.copyOf(returnChunks, length);
+        returnPcs = Arrays.copyOf(returnPcs, length);
+        returnBases = Arrays.copyOf(returnBases, length);
+        returnDestinations = Arrays.copyOf(returnDestinations, length);
+    }
+
+    /**
+     * Number of calls in progress; 0 whenever the VM is idle.
+     */
+    int getCallDepth() {
+        return callDepth;
+    }
+}
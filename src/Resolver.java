@@ -0,0 +1,249 @@
+import java.util.*;
+
+/**
+ * Resolver walks the AST once after parsing and works out where every
+ * variable lives: how many frames out (0 for the current function, 1 for
+ * globals) and which slot inside that frame. The Interpreter can then read
+ * and write variables by index instead of searching scopes by name.
+ *
+ * Slots are handed out the same way the Environment stacks variables at
+ * runtime: parameters first, then locals in declaration order, with a
+ * block's slots reused once the block ends.
+ */
+public class Resolver implements ASTVisitor {
+    /**
+     * Lexical state of one frame (the global code or a function body).
+     */
+    private static class FrameScope {
+        final List<Map<String, Integer>> blocks = new ArrayList<>();
+        int next;
+        int max;
+    }
+
+    private final FrameScope globals = new FrameScope();
+    private final Deque<FrameScope> frames = new ArrayDeque<>();
+    // the last top-level definition of each function name, which is the
+    // one every call runs
+    private final Map<String, FunctionDeclarationStatement> definitions = new HashMap<>();
+    // top-level function being resolved, or null
+    private FunctionDeclarationStatement function;
+
+    public Resolver() {
+        globals.blocks.add(new HashMap<>());
+        frames.push(globals);
+    }
+
+    /**
+     * Resolve every statement of a program, in source order.
+     *
+     * @param program top-level statements
+     */
+    public void resolve(List<Statement> program) {
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn) {
+                definitions.put(fn.getName(), fn);
+            }
+        }
+        for (Statement stmt : program) {
+            stmt.accept(this);
+        }
+    }
+
+    /**
+     * Number of slots the global frame needs.
+     */
+    public int getGlobalCount() {
+        return globals.max;
+    }
+
+    private void resolveBlock(List<Statement> statements) {
+        FrameScope frame = frames.peek();
+        int mark = frame.next;
+        frame.blocks.add(new HashMap<>());
+        for (Statement stmt : statements) {
+            stmt.accept(this);
+        }
+        frame.blocks.remove(frame.blocks.size() - 1);
+        frame.next = mark;
+    }
+
+    private int declare(String name) {
+        FrameScope frame = frames.peek();
+        int slot = frame.next++;
+        frame.max = Math.max(frame.max, frame.next);
+        frame.blocks.get(frame.blocks.size() - 1).put(name, slot);
+        return slot;
+    }
+
+    /**
+     * Find a name, innermost block first. Returns {depth, slot}, or null if
+     * the name has to be looked up at runtime instead.
+     */
+    private int[] lookup(String name) {
+        FrameScope frame = frames.peek();
+        for (int i = frame.blocks.size() - 1; i >= 0; i--) {
+            Integer slot = frame.blocks.get(i).get(name);
+            if (slot != null) {
+                return new int[] {0, slot};
+            }
+        }
+        // Only top-level globals are visible from a function; a function nested
+        // in another one keeps the runtime lookup for anything it doesn't own.
+        if (frame != globals && frames.size() == 2) {
+            Integer slot = globals.blocks.get(0).get(name);
+            if (slot != null) {
+                return new int[] {1, slot};
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        expr.getLeft().accept(this);
+        expr.getRight().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        expr.getOperand().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        int[] location = lookup(expr.getName());
+        if (location != null) {
+            expr.resolve(location[0], location[1]);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        expr.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        for (Expression arg : expr.getArguments()) {
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        return null;
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            // the initializer cannot see the variable it initializes
+            decl.getInitializer().accept(this);
+            decl.resolve(declare(decl.getName()));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        stmt.getValue().accept(this);
+        int[] location = lookup(stmt.getName());
+        if (location != null) {
+            stmt.resolve(location[0], location[1]);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        stmt.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        stmt.getCondition().accept(this);
+        resolveBlock(stmt.getThenBranch());
+        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
+            stmt.getElifConditions().get(i).accept(this);
+            resolveBlock(stmt.getElifBranches().get(i));
+        }
+        if (stmt.hasElse()) {
+            resolveBlock(stmt.getElseBranch());
+        }
+        stmt.setSwitchTable(SwitchTable.of(stmt));
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        stmt.getCondition().accept(this);
+        resolveBlock(stmt.getBody());
+        return null;
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        resolveBlock(stmt.getBody());
+        stmt.getCondition().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        if (stmt.hasValue()) {
+            stmt.getValue().accept(this);
+            Expression value = stmt.getValue();
+            while (value instanceof GroupExpression group) {
+                value = group.getExpression();
+            }
+            if (function != null && value instanceof CallExpression call
+                    && call.getCallee().equals(function.getName())
+                    && call.getArguments().size() == function.getParameters().size()
+                    && BuiltinFunction.forName(call.getCallee()) == null) {
+                stmt.setSelfTailCall(call);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        stmt.getExpression().accept(this);
+        return null;
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        FunctionDeclarationStatement enclosing = function;
+        // a nested function may be redefined as it runs, so only top-level
+        // ones are known to call themselves
+        function = frames.size() == 1 && definitions.get(stmt.getName()) == stmt ? stmt : null;
+        FrameScope frame = new FrameScope();
+        frame.blocks.add(new HashMap<>());
+        frames.push(frame);
+        for (String param : stmt.getParameters()) {
+            declare(param);
+        }
+        resolveBlock(stmt.getBody());
+        frames.pop();
+        function = enclosing;
+        stmt.setFrameSize(frame.max);
+        return null;
+    }
+}
@@ -5,6 +5,8 @@
  */
 public class ReturnStatement extends Statement {
     private final Expression value; // Can be null for return without value
+    // Set by the Resolver when the value is a call of the enclosing function itself
+    private CallExpression selfTailCall;
     
     public ReturnStatement(Expression value, int line) {
         super(StatementType.RETURN,line);
@@ -18,6 +20,19 @@ public class ReturnStatement extends Statement {
     public boolean hasValue() {
         return value != null;
     }
+
+    /**
+     * The call, if this returns the result of calling the function it is
+     * in. Such a call can restart the function with new arguments instead
+     * of nesting a new frame.
+     */
+    public CallExpression getSelfTailCall() {
+        return selfTailCall;
+    }
+
+    public void setSelfTailCall(CallExpression selfTailCall) {
+        this.selfTailCall = selfTailCall;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
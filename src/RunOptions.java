@@ -0,0 +1,91 @@
+/**
+ * RunOptions says how SPROLARunner.run runs a program: on which engine,
+ * and with which of the optional helpers. Every helper is null, for none,
+ * until it is set.
+ */
+public class RunOptions {
+    private final String engine;
+    private Memoizer memoizer;
+    private ParallelEvaluator parallel;
+    private TieredCompiler tiers;
+    private TracingJit tracing;
+    private Profile profile;
+
+    /**
+     * @param engine "interp" to walk the AST, "vm" to compile it for the
+     *               stack VM, "reg" to compile it for the register VM,
+     *               "jit" to compile its functions to JVM bytecode,
+     *               "closure" to compile it to a tree of closures,
+     *               "tiered" to interpret it and compile the functions
+     *               that get hot to JVM bytecode, "trace" to interpret
+     *               it and run the loops that get hot as traces
+     */
+    public RunOptions(String engine) {
+        this.engine = engine;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public Memoizer getMemoizer() {
+        return memoizer;
+    }
+
+    /**
+     * @param memoizer memoizer the interpreter consults
+     */
+    public void setMemoizer(Memoizer memoizer) {
+        this.memoizer = memoizer;
+    }
+
+    public ParallelEvaluator getParallelEvaluator() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel evaluator the interpreter forks pure calls to,
+     *                 instead of running them on the calling thread
+     */
+    public void setParallelEvaluator(ParallelEvaluator parallel) {
+        this.parallel = parallel;
+    }
+
+    public TieredCompiler getTieredCompiler() {
+        return tiers;
+    }
+
+    /**
+     * @param tiers compiler for the hot functions of the "tiered" engine;
+     *              without one, the run makes a default one and shuts it
+     *              down after
+     */
+    public void setTieredCompiler(TieredCompiler tiers) {
+        this.tiers = tiers;
+    }
+
+    public TracingJit getTracingJit() {
+        return tracing;
+    }
+
+    /**
+     * @param tracing tracing JIT for the hot loops of the "trace" engine;
+     *                without one, the run makes a default one
+     */
+    public void setTracingJit(TracingJit tracing) {
+        this.tracing = tracing;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param profile profile the interpreter counts into and the compilers
+     *                follow; the "vm", "reg" and "closure" engines do not
+     *                count
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+}
@@ -1,22 +1,122 @@
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
 public class SPROLARunner {
+    // the interpreting engines recurse on the Java stack, so programs run
+    // on a thread with room for deep recursion
+    private static final long STACK_SIZE = 64L * 1024 * 1024;
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: SPROLARunner [options] <file>",
+            "  --engine=NAME      interp (default), vm, reg, jit, closure, tiered or trace",
+            "  --memoize=MODE     auto (default) to memoize pure functions, or off",
+            "  --parallel=N       run independent pure calls on N threads",
+            "  --tier-calls=N     calls after which the tiered engine compiles a function",
+            "  --tier-loops=N     loop iterations after which the tiered engine compiles a function",
+            "  --tier-osr=N       iterations of one run of a loop after which the tiered engine",
+            "                     compiles the loop and moves onto it",
+            "  --tier-log         print each compilation of the tiered engine",
+            "  --speculate=MODE   on (default) for the tiered engine to compile unassigned",
+            "                     globals as constants, or off",
+            "  --trace-loops=N    loop iterations after which the trace engine records a trace",
+            "  --trace-log        print each trace the trace engine records",
+            "  --profile          count what the program does into a file next to it, and",
+            "                     optimize for what earlier runs counted there",
+            "  --stats            print what the optimizer, the memoizer, the parallel evaluator,",
+            "                     the tiered compiler, the tracing JIT and the profile did");
+
     /**
      * The main function for the program.
      *
      * @param args command line arguments
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Invalid number of arguments");
+        String engine = "interp";
+        String memoize = "auto";
+        String speculate = "on";
+        int threads = 1;
+        int tierCalls = TieredCompiler.DEFAULT_CALL_THRESHOLD;
+        int tierLoops = TieredCompiler.DEFAULT_LOOP_THRESHOLD;
+        int tierOsr = TieredCompiler.DEFAULT_OSR_THRESHOLD;
+        boolean tierLog = false;
+        int traceLoops = TracingJit.DEFAULT_THRESHOLD;
+        boolean traceLog = false;
+        boolean useProfile = false;
+        boolean stats = false;
+        String path = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--memoize=")) {
+                memoize = arg.substring("--memoize=".length());
+            } else if (arg.startsWith("--speculate=")) {
+                speculate = arg.substring("--speculate=".length());
+            } else if (arg.startsWith("--parallel=")) {
+                try {
+                    threads = Integer.parseInt(arg.substring("--parallel=".length()));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.err.println("Invalid thread count: " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--tier-calls=") || arg.startsWith("--tier-loops=")
+                    || arg.startsWith("--tier-osr=") || arg.startsWith("--trace-loops=")) {
+                int threshold;
+                try {
+                    threshold = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException e) {
+                    threshold = 0;
+                }
+                if (threshold < 1) {
+                    System.err.println("Invalid threshold: " + arg);
+                    System.exit(1);
+                }
+                if (arg.startsWith("--tier-calls=")) {
+                    tierCalls = threshold;
+                } else if (arg.startsWith("--tier-loops=")) {
+                    tierLoops = threshold;
+                } else if (arg.startsWith("--tier-osr=")) {
+                    tierOsr = threshold;
+                } else {
+                    traceLoops = threshold;
+                }
+            } else if (arg.equals("--tier-log")) {
+                tierLog = true;
+            } else if (arg.equals("--trace-log")) {
+                traceLog = true;
+            } else if (arg.equals("--profile")) {
+                useProfile = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option: " + arg);
+            } else if (path == null) {
+                path = arg;
+            } else {
+                usage("Invalid number of arguments");
+            }
+        }
+        if (path == null) {
+            usage("Invalid number of arguments");
+        }
+        if (!List.of("interp", "vm", "reg", "jit", "closure", "tiered", "trace").contains(engine)) {
+            System.err.println("Unknown engine: " + engine);
+            System.exit(1);
+        }
+        if (!List.of("auto", "off").contains(memoize)) {
+            System.err.println("Unknown memoize mode: " + memoize);
+            System.exit(1);
+        }
+        if (!List.of("on", "off").contains(speculate)) {
+            System.err.println("Unknown speculate mode: " + speculate);
             System.exit(1);
         }
 
         // read the input file
-        String path = args[0];
         String source = "";
         try {
             source = new String(Files.readAllBytes(Paths.get(path)));
@@ -26,37 +126,287 @@ public class SPROLARunner {
         }
 
         try {
-            // Lexing
-            Lexer lexer = new Lexer(source);
-            List<Token> tokens = lexer.tokenize();
+            Optimizer optimizer = new Optimizer();
+            Path profileFile = useProfile ? Profile.sidecar(Paths.get(path)) : null;
+            Profile profile = useProfile ? Profile.load(profileFile, Profile.hash(source)) : null;
+            optimizer.setProfile(profile);
+            List<Statement> program = parse(source, optimizer);
+            if (stats) {
+                System.err.println(optimizer.getStats());
+            }
 
-            // Parsing
-            Parser parser = new Parser(tokens);
-            List<Statement> program = new ArrayList<>();
-            while (!parser.isAtEnd()) {
-                Statement stmt = parser.parse();
-                program.add(stmt);
+            // memoized calls are never forked, so auto leaves parallel runs
+            // unmemoized
+            Memoizer memoizer = memoize.equals("auto") && threads == 1 ? new Memoizer(program) : null;
+            ParallelEvaluator parallel = threads > 1 ? new ParallelEvaluator(program, threads) : null;
+            TieredCompiler tiers = engine.equals("tiered") ? new TieredCompiler(tierCalls, tierLoops, tierOsr, tierLog) : null;
+            if (tiers != null) {
+                tiers.setSpeculation(speculate.equals("on"));
             }
+            TracingJit tracing = engine.equals("trace") ? new TracingJit(traceLoops, traceLog) : null;
+
+            RunOptions options = new RunOptions(engine);
+            options.setMemoizer(memoizer);
+            options.setParallelEvaluator(parallel);
+            options.setTieredCompiler(tiers);
+            options.setTracingJit(tracing);
+            options.setProfile(profile);
 
-            // Interpretation
-            Interpreter interp = new Interpreter();
-            for (Statement stmt : program) {
-                if (stmt instanceof FunctionDeclarationStatement) {
-                    stmt.accept(interp);
+            // call the entry function; default is 0 if no return value
+            int res = run(program, options);
+            System.out.println("Returned value: " + res);
+            if (profile != null) {
+                if (stats) {
+                    System.err.println(profile.getStats());
+                }
+                try {
+                    profile.save(profileFile);
+                } catch (IOException e) {
+                    System.err.println("Failed to write profile: " + e.getMessage());
+                }
+            }
+            if (stats && memoizer != null) {
+                System.err.println(memoizer.getStats());
+            }
+            if (tiers != null) {
+                tiers.shutdown();
+                if (stats) {
+                    System.err.println(tiers.getStats());
                 }
             }
-            for (Statement stmt : program) {
-                if (!(stmt instanceof FunctionDeclarationStatement)) {
-                    stmt.accept(interp);
+            if (tracing != null && stats) {
+                System.err.println(tracing.getStats());
+            }
+            if (parallel != null) {
+                parallel.shutdown();
+                if (stats) {
+                    System.err.println(parallel.getStats());
                 }
             }
-            // call the entry function
-            Object res = interp.callFunction("entry", Collections.emptyList());
-            // default is 0 if no return value
-            System.out.println("Returned value: " + res);
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
             System.exit(4);
         }
     }
+
+    /**
+     * Print what went wrong with the command line, and how to use it, then
+     * exit.
+     */
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * Lex, parse, optimize and resolve a program.
+     *
+     * @param source program text
+     * @return the top-level statements, with variables resolved to slots
+     */
+    public static List<Statement> parse(String source) {
+        return parse(source, true);
+    }
+
+    /**
+     * Lex, parse and resolve a program.
+     *
+     * @param source program text
+     * @param optimize whether to run the Optimizer
+     * @return the top-level statements, with variables resolved to slots
+     */
+    public static List<Statement> parse(String source, boolean optimize) {
+        return parse(source, optimize ? new Optimizer() : null);
+    }
+
+    /**
+     * Lex, parse, optimize and resolve a program.
+     *
+     * @param source program text
+     * @param optimizer optimizer to run, or null for none
+     * @return the top-level statements, with variables resolved to slots
+     */
+    public static List<Statement> parse(String source, Optimizer optimizer) {
+        // Lexing
+        Lexer lexer = new Lexer(source);
+        List<Token> tokens = lexer.tokenize();
+
+        // Parsing
+        Parser parser = new Parser(tokens);
+        List<Statement> program = new ArrayList<>();
+        while (!parser.isAtEnd()) {
+            Statement stmt = parser.parse();
+            program.add(stmt);
+        }
+
+        if (optimizer != null) {
+            program = optimizer.optimize(program);
+        }
+
+        // Resolve variables to frame slots
+        new Resolver().resolve(program);
+        return program;
+    }
+
+    /**
+     * Run a program's top-level statements and then its entry function.
+     *
+     * @param program parsed program
+     * @param engine engine name, as for RunOptions
+     * @return the value entry() returned
+     */
+    public static int run(List<Statement> program, String engine) {
+        return run(program, new RunOptions(engine));
+    }
+
+    /**
+     * Run a program's top-level statements and then its entry function.
+     *
+     * @param program parsed program
+     * @param options the engine, and the helpers it runs with
+     * @return the value entry() returned
+     */
+    public static int run(List<Statement> program, RunOptions options) {
+        int[] result = new int[1];
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                result[0] = execute(program, options);
+            } catch (RuntimeException | Error e) {
+                // kept rather than thrown, so the caller gets it
+                failure[0] = e;
+            }
+        }, "sprola", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running the program", e);
+        }
+        if (failure[0] instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure[0] instanceof Error e) {
+            throw e;
+        }
+        return result[0];
+    }
+
+    private static int execute(List<Statement> program, RunOptions options) {
+        String engine = options.getEngine();
+        TieredCompiler tiers = options.getTieredCompiler();
+        boolean ownTiers = tiers == null && engine.equals("tiered");
+        if (ownTiers) {
+            tiers = new TieredCompiler();
+        }
+        TracingJit tracing = options.getTracingJit();
+        if (tracing == null && engine.equals("trace")) {
+            tracing = new TracingJit();
+        }
+        Memoizer memoizer = options.getMemoizer();
+        ParallelEvaluator parallel = options.getParallelEvaluator();
+        Profile profile = options.getProfile();
+        try {
+            if (engine.equals("vm")) {
+                Chunk[] chunks;
+                try {
+                    chunks = new BytecodeCompiler().compile(program);
+                } catch (UnsupportedOperationException e) {
+                    // programs with nested functions stay interpreted
+                    chunks = null;
+                }
+                if (chunks != null) {
+                    VM vm = new VM(chunks);
+                    vm.run();
+                    return vm.call("entry");
+                }
+            }
+            if (engine.equals("reg")) {
+                RegisterChunk[] chunks;
+                try {
+                    chunks = new RegisterCompiler().compile(program);
+                } catch (UnsupportedOperationException e) {
+                    // programs with nested functions stay interpreted
+                    chunks = null;
+                }
+                if (chunks != null) {
+                    RegisterVM vm = new RegisterVM(chunks);
+                    vm.run();
+                    return vm.call("entry");
+                }
+            }
+            if (engine.equals("closure")) {
+                ClosureProgram code;
+                try {
+                    code = new ClosureCompiler().compile(program);
+                } catch (UnsupportedOperationException e) {
+                    // programs with nested functions stay interpreted
+                    code = null;
+                }
+                if (code != null) {
+                    code.run();
+                    return code.call("entry");
+                }
+            }
+            Interpreter interp = load(program, memoizer);
+            // before compiling, so the JIT lays out branches as it says
+            interp.setProfile(profile);
+            if (engine.equals("jit")) {
+                // programs the JIT cannot compile stay interpreted
+                interp.compileFunctions();
+            }
+            if (tiers != null) {
+                tiers.setMemoizer(memoizer);
+                tiers.setProfile(profile);
+                interp.setTieredCompiler(tiers);
+            }
+            if (tracing != null) {
+                interp.setTracingJit(tracing);
+            }
+            if (parallel != null) {
+                interp.setParallelEvaluator(parallel);
+                return parallel.run(() -> (Integer) interp.callFunction("entry", Collections.emptyList()));
+            }
+            return (Integer) interp.callFunction("entry", Collections.emptyList());
+        } finally {
+            if (ownTiers) {
+                tiers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Define every function of a program, then run its top-level statements.
+     *
+     * @param program parsed program
+     * @return an interpreter ready to call entry()
+     */
+    public static Interpreter load(List<Statement> program) {
+        return load(program, null);
+    }
+
+    /**
+     * Define every function of a program, then run its top-level statements.
+     *
+     * @param program parsed program
+     * @param memoizer memoizer for the program, or null for none
+     * @return an interpreter ready to call entry()
+     */
+    public static Interpreter load(List<Statement> program, Memoizer memoizer) {
+        Interpreter interp = new Interpreter();
+        interp.setMemoizer(memoizer);
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement) {
+                stmt.accept(interp);
+            }
+        }
+        for (Statement stmt : program) {
+            if (!(stmt instanceof FunctionDeclarationStatement)) {
+                stmt.accept(interp);
+            }
+        }
+        return interp;
+    }
 }
@@ -0,0 +1,190 @@
+import java.util.*;
+
+/**
+ * SwitchTable lets an if/elif chain that only compares one variable with
+ * integer literals pick its arm with a single lookup:
+ *
+ *   if (s = 1) { ... } elif (s = 2) { ... } elif (s = 7) { ... } else { ... }
+ *
+ * reads s once and looks its value up, instead of evaluating one
+ * condition after another. Reading a variable has no effect, and one
+ * that is undefined fails on the first condition either way, so only the
+ * time taken changes. A literal that appears in several conditions
+ * belongs to the first of their arms, and a value in none of them takes
+ * the else branch, if there is one.
+ *
+ * Literals that fill most of a range are looked up in an array indexed
+ * by the value's distance from the smallest; others in a small open
+ * addressing hash table. The Resolver builds the table of every if
+ * statement with at least MIN_CONDITIONS conditions that qualifies.
+ */
+public class SwitchTable {
+    // shorter chains are about as fast tested one condition at a time
+    static final int MIN_CONDITIONS = 4;
+
+    private final VariableExpression subject;
+    // the distinct literals in ascending order, and the arm each selects
+    private final int[] keys;
+    private final int[] arms;
+    // dense form: arm of low + i at index i, -1 where no literal
+    private final int low;
+    private final int[] dense;
+    // hashed form: linear probing over a power-of-two table, -1 arms empty
+    private final int[] hashKeys;
+    private final int[] hashArms;
+    private final int shift;
+
+    private SwitchTable(VariableExpression subject, int[] keys, int[] arms) {
+        this.subject = subject;
+        this.keys = keys;
+        this.arms = arms;
+        this.low = keys[0];
+        long span = (long) keys[keys.length - 1] - keys[0] + 1;
+        if (span <= 2L * keys.length) {
+            dense = new int[(int) span];
+            Arrays.fill(dense, -1);
+            for (int i = 0; i < keys.length; i++) {
+                dense[keys[i] - low] = arms[i];
+            }
+            hashKeys = null;
+            hashArms = null;
+            shift = 0;
+        } else {
+            dense = null;
+            int bits = 32 - Integer.numberOfLeadingZeros(keys.length * 2 - 1);
+            shift = 32 - bits;
+            hashKeys = new int[1 << bits];
+            hashArms = new int[1 << bits];
+            Arrays.fill(hashArms, -1);
+            for (int i = 0; i < keys.length; i++) {
+                int slot = hash(keys[i]);
+                while (hashArms[slot] >= 0) {
+                    slot = (slot + 1) & (hashArms.length - 1);
+                }
+                hashKeys[slot] = keys[i];
+                hashArms[slot] = arms[i];
+            }
+        }
+    }
+
+    /**
+     * The table of an if statement.
+     *
+     * @return the table, or null if some condition is not a comparison of
+     *         the same variable with a literal, or there are too few
+     */
+    static SwitchTable of(IfStatement stmt) {
+        List<Expression> conditions = new ArrayList<>();
+        conditions.add(stmt.getCondition());
+        conditions.addAll(stmt.getElifConditions());
+        if (conditions.size() < MIN_CONDITIONS) {
+            return null;
+        }
+
+        VariableExpression subject = null;
+        Map<Integer, Integer> armOf = new TreeMap<>();
+        for (int arm = 0; arm < conditions.size(); arm++) {
+            if (!(unwrap(conditions.get(arm)) instanceof BinaryExpression compare)
+                    || compare.getOperator() != TokenType.EQ) {
+                return null;
+            }
+            Expression left = unwrap(compare.getLeft());
+            Expression right = unwrap(compare.getRight());
+            VariableExpression var = left instanceof VariableExpression v ? v
+                    : right instanceof VariableExpression v ? v : null;
+            Integer value = literal(var == left ? right : left);
+            if (var == null || value == null || (subject != null && !subject.getName().equals(var.getName()))) {
+                return null;
+            }
+            if (subject == null) {
+                subject = var;
+            }
+            armOf.putIfAbsent(value, arm);
+        }
+
+        int[] keys = new int[armOf.size()];
+        int[] arms = new int[armOf.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : armOf.entrySet()) {
+            keys[i] = entry.getKey();
+            arms[i++] = entry.getValue();
+        }
+        return new SwitchTable(subject, keys, arms);
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (expr instanceof GroupExpression group) {
+            expr = group.getExpression();
+        }
+        return expr;
+    }
+
+    /**
+     * The value of a literal, also negated, or null for anything else.
+     */
+    private static Integer literal(Expression expr) {
+        if (expr instanceof LiteralExpression literal && literal.getValue() instanceof Integer value) {
+            return value;
+        }
+        if (expr instanceof UnaryExpression unary && unary.getOperator() == TokenType.MINUS
+                && unwrap(unary.getOperand()) instanceof LiteralExpression literal
+                && literal.getValue() instanceof Integer value) {
+            return -value;
+        }
+        return null;
+    }
+
+    private int hash(int value) {
+        return (value * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * The arm a value selects.
+     *
+     * @return 0 for the then branch, i for the i-th elif branch counting
+     *         from 1, or -1 for the else branch or no branch
+     */
+    public int armFor(int value) {
+        if (dense != null) {
+            // no difference that wraps lands inside the array
+            int index = value - low;
+            return index >= 0 && index < dense.length ? dense[index] : -1;
+        }
+        int slot = hash(value);
+        while (hashArms[slot] >= 0) {
+            if (hashKeys[slot] == value) {
+                return hashArms[slot];
+            }
+            slot = (slot + 1) & (hashArms.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * The variable every condition compares.
+     */
+    public VariableExpression getSubject() {
+        return subject;
+    }
+
+    /**
+     * Whether the literals are looked up in an array rather than hashed.
+     */
+    public boolean isDense() {
+        return dense != null;
+    }
+
+    /**
+     * The distinct literals, in ascending order.
+     */
+    public int[] getKeys() {
+        return keys.clone();
+    }
+
+    /**
+     * The arm each of getKeys() selects.
+     */
+    public int[] getArms() {
+        return arms.clone();
+    }
+}
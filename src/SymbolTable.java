@@ -1,7 +1,9 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SymbolTable {
     private static class Scope {
@@ -9,7 +11,13 @@ public class SymbolTable {
         final Map<String, Object> functions = new HashMap<>();
     }
     
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
     private final List<Scope> scopes = new ArrayList<>();
+    // Changes whenever an existing function is redefined. Versions are unique
+    // across all symbol tables, so a cached call target can be checked
+    // against any table without mixing them up.
+    private volatile long version = VERSIONS.incrementAndGet();
     
     public SymbolTable() {
         // Start with global scope
@@ -29,9 +37,37 @@ public class SymbolTable {
     // This is the missing method the Interpreter uses
     public void define(String name, Object value) {
         // For functions, store in the functions map
-        getCurrentScope().functions.put(name, value);
+        Object previous = getCurrentScope().functions.put(name, value);
+        if (previous != null && previous != value) {
+            version = VERSIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Current version of the function definitions, for call-site caches.
+     */
+    public long getVersion() {
+        return version;
     }
     
+    /**
+     * The functions defined in the global scope, by name.
+     */
+    public Map<String, FunctionDeclarationStatement> getFunctions() {
+        Map<String, FunctionDeclarationStatement> functions = new HashMap<>();
+        for (Map.Entry<String, Object> entry : scopes.get(0).functions.entrySet()) {
+            functions.put(entry.getKey(), (FunctionDeclarationStatement) entry.getValue());
+        }
+        return Collections.unmodifiableMap(functions);
+    }
+
+    /**
+     * Number of functions defined in the global scope.
+     */
+    public int getFunctionCount() {
+        return scopes.get(0).functions.size();
+    }
+
     public void defineVariable(String name, Object value) {
         // Define in current scope
         getCurrentScope().variables.put(name, value);
@@ -0,0 +1,495 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * TieredCompiler lets the Interpreter start every function as a tree walk
+ * and move the hot ones to JVM bytecode. The Interpreter counts each
+ * function's calls and the iterations of its loops; once either count
+ * reaches its threshold, the function is compiled by JitCompiler on a
+ * background thread, together with every function it calls, while the
+ * interpreter carries on. When the compiled code is ready it is published
+ * through a volatile field, and from then on calls of those functions
+ * run it. A call already under way finishes in the tree walker.
+ *
+ * A call that stays in one loop for long would never benefit from that,
+ * so each run of a loop also counts its own iterations. Once there are
+ * osrThreshold of them, the loop alone is compiled in the background,
+ * and when its code is ready, the call moves onto it in the middle of
+ * the loop (on-stack replacement): the frame's slots are copied into the
+ * compiled loop, which carries on from the next test of the condition,
+ * and copied back when it ends or returns.
+ *
+ * Compiled code is bound to the definitions it was compiled from, so it
+ * is dropped if a function is redefined, and the function may tier up
+ * again. A function the JIT cannot compile, or one that calls a function
+ * the Memoizer keeps tables for, stays interpreted.
+ *
+ * Globals that have not been assigned since the program was loaded are
+ * compiled as constants, on the speculation that they stay that way:
+ * GlobalSpeculation drops the code that took a global's value as soon as
+ * the global is assigned (deoptimization), and the functions tier up
+ * again with that global read from the Environment.
+ *
+ * Given the Profile of earlier runs, a function that got hot in them is
+ * compiled at its first call, and a loop that ran osrThreshold
+ * iterations in one go at its first iteration.
+ */
+public class TieredCompiler {
+    static final int DEFAULT_CALL_THRESHOLD = 1000;
+    static final int DEFAULT_LOOP_THRESHOLD = 10000;
+    static final int DEFAULT_OSR_THRESHOLD = 1000;
+
+    private final int callThreshold;
+    private final int loopThreshold;
+    private final int osrThreshold;
+    private final boolean log;
+    private boolean speculate = true;
+    // compile on the thread that starts each compilation, instead of in the background
+    private boolean synchronous;
+    // set with the interpreter's environment, unless speculation is off
+    private GlobalSpeculation speculation;
+    // earlier runs of the program, or null
+    private Profile profile;
+    // functions that must keep running in the interpreter
+    private Predicate<FunctionDeclarationStatement> interpretedOnly = fn -> false;
+    // written by the compiling thread too, so concurrent
+    private final Map<FunctionDeclarationStatement, Tier> tiers = new ConcurrentHashMap<>();
+    private final Map<Statement, Loop> loops = new ConcurrentHashMap<>();
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "tiered-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger tierUps = new AtomicInteger();
+    private final AtomicInteger compiledFunctions = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger compiledLoops = new AtomicInteger();
+    private final AtomicInteger loopEntries = new AtomicInteger();
+
+    /**
+     * The state of one function: how hot it is and its compiled code.
+     */
+    static final class Tier {
+        final FunctionDeclarationStatement function;
+        // whether the profile says it gets hot
+        final boolean profiled;
+        int calls;
+        int iterations;
+        // set once a compilation has been started, until its code is dropped
+        volatile boolean queued;
+        volatile JitCode code;
+
+        Tier(FunctionDeclarationStatement function, boolean profiled) {
+            this.function = function;
+            this.profiled = profiled;
+        }
+    }
+
+    /**
+     * The state of one loop of a function, compiled on its own.
+     */
+    static final class Loop {
+        final FunctionDeclarationStatement function;
+        final Statement statement;
+        // set once a compilation has been started, until its code is dropped
+        volatile boolean queued;
+        volatile JitCode code;
+
+        Loop(FunctionDeclarationStatement function, Statement statement) {
+            this.function = function;
+            this.statement = statement;
+        }
+    }
+
+    public TieredCompiler() {
+        this(DEFAULT_CALL_THRESHOLD, DEFAULT_LOOP_THRESHOLD, false);
+    }
+
+    /**
+     * @param callThreshold calls after which a function is compiled
+     * @param loopThreshold loop iterations after which a function is compiled
+     * @param log whether to print each tier-up to standard error
+     */
+    public TieredCompiler(int callThreshold, int loopThreshold, boolean log) {
+        this(callThreshold, loopThreshold, DEFAULT_OSR_THRESHOLD, log);
+    }
+
+    /**
+     * @param callThreshold calls after which a function is compiled
+     * @param loopThreshold loop iterations after which a function is compiled
+     * @param osrThreshold iterations of one run of a loop after which the
+     *                     loop is compiled and the run moves onto it
+     * @param log whether to print each tier-up to standard error
+     */
+    public TieredCompiler(int callThreshold, int loopThreshold, int osrThreshold, boolean log) {
+        this.callThreshold = callThreshold;
+        this.loopThreshold = loopThreshold;
+        this.osrThreshold = osrThreshold;
+        this.log = log;
+    }
+
+    /**
+     * Iterations of one run of a loop after which it is compiled on its
+     * own: 1 if a run of it got that long before, in the profile.
+     *
+     * @param loop the WhileStatement or RunStatement
+     */
+    int getOsrThreshold(Statement loop) {
+        return profile != null && profile.getLongestRun(loop) >= osrThreshold ? 1 : osrThreshold;
+    }
+
+    /**
+     * Compile what got hot in the earlier runs of a profile as soon as it
+     * runs. Set it before the interpreter calls anything.
+     *
+     * @param profile profile of the program, or null for none
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    private boolean isProfiledHot(FunctionDeclarationStatement fn) {
+        return profile != null && (profile.getEntries(fn.getName()) >= callThreshold
+                || profile.getLoopIterations(fn.getName()) >= loopThreshold);
+    }
+
+    /**
+     * Keep the functions a memoizer has tables for in the interpreter,
+     * since compiled code never consults the tables.
+     *
+     * @param memoizer memoizer of the program, or null for none
+     */
+    public void setMemoizer(Memoizer memoizer) {
+        interpretedOnly = memoizer == null ? fn -> false : fn -> memoizer.tableFor(fn) != null;
+    }
+
+    /**
+     * Whether to compile unassigned globals as constants. On unless
+     * turned off before the interpreter is given the compiler.
+     */
+    public void setSpeculation(boolean speculate) {
+        this.speculate = speculate;
+    }
+
+    /**
+     * Take the values of globals from the environment the program runs
+     * on, if speculating. Called by the Interpreter, on its thread.
+     */
+    void setGlobals(Environment environment) {
+        speculation = speculate ? new GlobalSpeculation(environment, this::event) : null;
+    }
+
+    /**
+     * Compile on the interpreter's thread, so code is ready as soon as
+     * its compilation starts. For tests that must know when a call or
+     * loop moves onto compiled code.
+     */
+    void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    private void start(Runnable compilation) {
+        if (synchronous) {
+            compilation.run();
+        } else {
+            compiler.execute(compilation);
+        }
+    }
+
+    private Map<Integer, Integer> constants() {
+        return speculation == null ? Map.of() : speculation.snapshot();
+    }
+
+    /**
+     * Whether code just compiled can be used: false if a global it took
+     * as a constant was assigned while it was being compiled.
+     */
+    private boolean install(JitCode code, String what) {
+        return speculation == null || speculation.install(code, what);
+    }
+
+    /**
+     * The state of a function, for the loops of one of its calls to count
+     * their iterations on.
+     *
+     * @param fn the function, or null at the top level
+     * @return its state, or null for top-level code
+     */
+    Tier tierOf(FunctionDeclarationStatement fn) {
+        return fn == null ? null : tiers.computeIfAbsent(fn, f -> new Tier(f, isProfiledHot(f)));
+    }
+
+    /**
+     * Count a call of a function.
+     *
+     * @param fn the function called
+     * @param symbolTable the functions defined now
+     * @return its compiled code, if it is ready and still current; null to
+     *         interpret the call
+     */
+    JitCode enter(FunctionDeclarationStatement fn, SymbolTable symbolTable) {
+        Tier tier = tierOf(fn);
+        JitCode code = tier.code;
+        if (code != null) {
+            if (code.matches(symbolTable)) {
+                return code;
+            }
+            tier.code = null;
+            tier.queued = false;
+        }
+        if ((++tier.calls >= callThreshold || tier.profiled) && !tier.queued) {
+            promote(tier, symbolTable);
+        }
+        return null;
+    }
+
+    /**
+     * Count an iteration of a loop in a function.
+     *
+     * @param tier the function's state
+     * @param symbolTable the functions defined now
+     */
+    void iterate(Tier tier, SymbolTable symbolTable) {
+        if (++tier.iterations >= loopThreshold && !tier.queued) {
+            promote(tier, symbolTable);
+        }
+    }
+
+    /**
+     * Start compiling a hot function, with the definitions it would call
+     * now, unless it must stay interpreted.
+     */
+    private void promote(Tier tier, SymbolTable symbolTable) {
+        tier.queued = true;
+        FunctionDeclarationStatement fn = tier.function;
+        Map<String, FunctionDeclarationStatement> functions = symbolTable.getFunctions();
+        long version = symbolTable.getVersion();
+        if (functions.get(fn.getName()) != fn) {
+            // a nested function, or one since redefined
+            return;
+        }
+        for (FunctionDeclarationStatement callee : JitCompiler.reachable(functions, List.of(fn))) {
+            if (interpretedOnly.test(callee)) {
+                return;
+            }
+        }
+        String reason = tier.calls >= callThreshold ? tier.calls + " calls"
+                : tier.iterations >= loopThreshold ? tier.iterations + " loop iterations" : "its profile";
+        Map<Integer, Integer> constants = constants();
+        start(() -> compile(fn, functions, version, constants, reason));
+    }
+
+    /**
+     * Start compiling a loop that has run osrThreshold iterations in one
+     * go, unless it is being compiled already, or it calls a function
+     * that must stay interpreted.
+     *
+     * @param tier state of the function the loop is in
+     * @param stmt the WhileStatement or RunStatement
+     * @param symbolTable the functions defined now
+     * @return the loop's state, for the run to check for its code
+     */
+    Loop loopOf(Tier tier, Statement stmt, SymbolTable symbolTable) {
+        Loop loop = loops.computeIfAbsent(stmt, s -> new Loop(tier.function, s));
+        JitCode code = loop.code;
+        if (code != null && !code.matches(symbolTable)) {
+            loop.code = null;
+            loop.queued = false;
+        }
+        if (loop.queued) {
+            return loop;
+        }
+        loop.queued = true;
+        Map<String, FunctionDeclarationStatement> functions = symbolTable.getFunctions();
+        long version = symbolTable.getVersion();
+        List<Statement> body = stmt instanceof RunStatement run ? run.getBody() : ((WhileStatement) stmt).getBody();
+        for (FunctionDeclarationStatement callee : JitCompiler.reachable(functions, List.of(), body)) {
+            if (interpretedOnly.test(callee)) {
+                return loop;
+            }
+        }
+        Map<Integer, Integer> constants = constants();
+        start(() -> compileLoop(loop, functions, version, constants));
+        return loop;
+    }
+
+    /**
+     * The compiled code of a hot loop, if it is ready and still current.
+     *
+     * @param loop the loop's state
+     * @param symbolTable the functions defined now
+     * @return the code, for the run to move onto; null to keep interpreting
+     */
+    JitCode loopCode(Loop loop, SymbolTable symbolTable) {
+        JitCode code = loop.code;
+        if (code == null || !code.matches(symbolTable)) {
+            return null;
+        }
+        loopEntries.incrementAndGet();
+        return code;
+    }
+
+    private void compileLoop(Loop loop, Map<String, FunctionDeclarationStatement> functions, long version,
+                             Map<Integer, Integer> constants) {
+        long start = System.nanoTime();
+        String what = (loop.statement instanceof RunStatement ? "run" : "while") + " loop at line "
+                + loop.statement.getLine() + " of " + loop.function.getName();
+        JitCode code;
+        try {
+            code = JitCompiler.compileLoop(functions, version, loop.function, loop.statement, constants);
+        } catch (UnsupportedOperationException e) {
+            failures.incrementAndGet();
+            event("On-stack replacement of " + what + " failed: " + e.getMessage());
+            return;
+        }
+        if (!install(code, what)) {
+            // out of date already: the next long run compiles it again
+            loop.queued = false;
+            return;
+        }
+        loop.code = code;
+        compiledLoops.incrementAndGet();
+        event(String.format("On-stack replacement of %s after %d iterations: compiled in %.1f ms",
+                what, getOsrThreshold(loop.statement), (System.nanoTime() - start) / 1e6));
+    }
+
+    private void compile(FunctionDeclarationStatement fn, Map<String, FunctionDeclarationStatement> functions,
+                         long version, Map<Integer, Integer> constants, String reason) {
+        long start = System.nanoTime();
+        JitCode code;
+        try {
+            code = JitCompiler.compile(functions, version, List.of(fn), constants);
+        } catch (UnsupportedOperationException e) {
+            failures.incrementAndGet();
+            event("Tier-up of " + fn.getName() + " after " + reason + " failed: " + e.getMessage());
+            return;
+        }
+        Collection<FunctionDeclarationStatement> reachable = JitCompiler.reachable(functions, List.of(fn));
+        List<String> names = new ArrayList<>();
+        for (FunctionDeclarationStatement compiled : reachable) {
+            names.add(compiled.getName());
+        }
+        if (!install(code, String.join(", ", names))) {
+            // out of date already: the next call compiles it again
+            tierOf(fn).queued = false;
+            return;
+        }
+        for (FunctionDeclarationStatement compiled : reachable) {
+            tierOf(compiled).code = code;
+        }
+        tierUps.incrementAndGet();
+        compiledFunctions.addAndGet(names.size());
+        event(String.format("Tier-up of %s after %s: compiled %s in %.1f ms",
+                fn.getName(), reason, String.join(", ", names), (System.nanoTime() - start) / 1e6));
+    }
+
+    private void event(String event) {
+        events.add(event);
+        if (log) {
+            System.err.println(event);
+        }
+    }
+
+    /**
+     * Wait until every compilation started so far has finished.
+     */
+    public void awaitCompilation() {
+        Future<?> done = compiler.submit(() -> { });
+        try {
+            done.get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stop the compiling thread once the program has finished.
+     */
+    public void shutdown() {
+        compiler.shutdown();
+    }
+
+    /**
+     * What happened at each tier-up and on-stack replacement, in order.
+     */
+    public List<String> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    /**
+     * Number of hot functions compiled.
+     */
+    public int getTierUps() {
+        return tierUps.get();
+    }
+
+    /**
+     * Number of functions given compiled code, including the callees
+     * compiled along with a hot function.
+     */
+    public int getCompiledFunctions() {
+        return compiledFunctions.get();
+    }
+
+    /**
+     * Number of hot loops compiled on their own.
+     */
+    public int getCompiledLoops() {
+        return compiledLoops.get();
+    }
+
+    /**
+     * Number of times a running loop moved onto its compiled code.
+     */
+    public int getLoopEntries() {
+        return loopEntries.get();
+    }
+
+    /**
+     * Number of hot functions and loops the JIT could not compile.
+     */
+    public int getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Number of compilations that built in the values of globals.
+     */
+    public int getSpeculations() {
+        return speculation == null ? 0 : speculation.getSpeculations();
+    }
+
+    /**
+     * Number of compiled codes dropped because a global they built in was
+     * assigned, while they were in use or before.
+     */
+    public int getDeopts() {
+        return speculation == null ? 0 : speculation.getDeopts() + speculation.getDiscarded();
+    }
+
+    /**
+     * One line describing what was compiled, and a second one on the
+     * globals compiled as constants if speculating.
+     */
+    public String getStats() {
+        String stats = "Tiered: " + getTierUps() + " tier-ups (thresholds " + callThreshold + " calls, "
+                + loopThreshold + " loop iterations), " + getCompiledFunctions() + " functions compiled, "
+                + getCompiledLoops() + " loops compiled for on-stack replacement (threshold " + osrThreshold
+                + " iterations) and entered " + getLoopEntries() + " times, " + getFailures() + " failed";
+        if (speculation == null) {
+            return stats;
+        }
+        return stats + String.format("%nSpeculation: %d compilations with globals as constants (%d reads folded),"
+                + " %d deoptimized, %d discarded before use, %d globals assigned", speculation.getSpeculations(),
+                speculation.getFoldedReads(), speculation.getDeopts(), speculation.getDiscarded(),
+                speculation.getChangedGlobals());
+    }
+}
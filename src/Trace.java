@@ -0,0 +1,267 @@
+import java.util.*;
+
+/**
+ * Trace is the straight-line code for one path through an iteration of a
+ * while loop, as TraceRecorder saw the interpreter take it. It starts by
+ * checking the loop condition, and every if on the way becomes a guard
+ * that checks the branch goes the same way again. Instructions are
+ * three-address, over registers that are each written once:
+ *
+ *   op d a b
+ *
+ * Variables are only read through LOAD and LOAD_GLOBAL, and only written
+ * by the STORE and STORE_GLOBAL instructions that end the iteration, so
+ * an iteration that fails a guard has changed nothing: the interpreter
+ * runs it again from the start. The instructions that have the same
+ * value on every iteration are kept apart, to run once before the loop.
+ */
+public class Trace {
+    // d <- a
+    static final int CONST = 0;
+    // d <- slot a of the loop's frame / of the globals
+    static final int LOAD = 1;
+    static final int LOAD_GLOBAL = 2;
+    // d <- a op b
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int MOD = 7;
+    static final int EQ = 8;
+    static final int NE = 9;
+    static final int LT = 10;
+    static final int LE = 11;
+    static final int GT = 12;
+    static final int GE = 13;
+    // d <- -a, abs(a), min(a, b), max(a, b)
+    static final int NEG = 14;
+    static final int ABS = 15;
+    static final int MIN = 16;
+    static final int MAX = 17;
+    // leave the trace by exit d unless a op b holds; the guard for the
+    // comparison c is GUARD_EQ + (c - EQ)
+    static final int GUARD_EQ = 18;
+    static final int GUARD_NE = 19;
+    static final int GUARD_LT = 20;
+    static final int GUARD_LE = 21;
+    static final int GUARD_GT = 22;
+    static final int GUARD_GE = 23;
+    // leave by exit d unless a is non-zero / zero
+    static final int GUARD_TRUE = 24;
+    static final int GUARD_FALSE = 25;
+    // slot b of the loop's frame / of the globals <- a
+    static final int STORE = 26;
+    static final int STORE_GLOBAL = 27;
+
+    private static final String[] NAMES = {
+        "CONST", "LOAD", "LOAD_GLOBAL", "ADD", "SUB", "MUL", "DIV", "MOD", "EQ", "NE", "LT", "LE", "GT", "GE",
+        "NEG", "ABS", "MIN", "MAX", "GUARD_EQ", "GUARD_NE", "GUARD_LT", "GUARD_LE", "GUARD_GT", "GUARD_GE",
+        "GUARD_TRUE", "GUARD_FALSE", "STORE", "STORE_GLOBAL"
+    };
+
+    /** Exit taken when the loop condition is false: the loop is done. */
+    static final int LOOP_EXIT = 0;
+
+    private final WhileStatement loop;
+    private final List<int[]> entry = new ArrayList<>();
+    private final List<int[]> body;
+    private final int registers;
+    private final int guards;
+
+    /**
+     * @param loop the loop the trace was recorded in
+     * @param code the iteration's instructions, in order
+     * @param registers number of registers the code writes
+     * @param guards number of exits besides LOOP_EXIT
+     */
+    Trace(WhileStatement loop, List<int[]> code, int registers, int guards) {
+        this.loop = loop;
+        this.body = new ArrayList<>(code);
+        this.registers = registers;
+        this.guards = guards;
+        removeDeadCode();
+        hoistInvariants();
+    }
+
+    static boolean isGuard(int op) {
+        return op >= GUARD_EQ && op <= GUARD_FALSE;
+    }
+
+    static boolean isStore(int op) {
+        return op == STORE || op == STORE_GLOBAL;
+    }
+
+    /**
+     * Number of registers an instruction reads, from a on.
+     */
+    static int reads(int op) {
+        if (op == CONST || op == LOAD || op == LOAD_GLOBAL) {
+            return 0;
+        }
+        if (op == NEG || op == ABS || op == GUARD_TRUE || op == GUARD_FALSE || isStore(op)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * The guard that holds when a comparison gives 1.
+     */
+    static int guardFor(int comparison) {
+        return GUARD_EQ + (comparison - EQ);
+    }
+
+    /**
+     * Drop the instructions whose value no guard, store or other kept
+     * instruction reads, such as a comparison that became a guard.
+     */
+    private void removeDeadCode() {
+        boolean[] used = new boolean[registers];
+        for (int i = body.size() - 1; i >= 0; i--) {
+            int[] insn = body.get(i);
+            int op = insn[0];
+            boolean kept = isGuard(op) || isStore(op) || used[insn[1]];
+            if (!kept) {
+                body.remove(i);
+                continue;
+            }
+            if (reads(op) >= 1) {
+                used[insn[2]] = true;
+            }
+            if (reads(op) == 2) {
+                used[insn[3]] = true;
+            }
+        }
+    }
+
+    /**
+     * Move the instructions that give the same value on every iteration
+     * to the entry code: constants, loads of variables the trace never
+     * stores, arithmetic on those that cannot fail, and guards on them,
+     * which then fail before the first iteration or never.
+     */
+    private void hoistInvariants() {
+        Set<Integer> storedLocals = new HashSet<>();
+        Set<Integer> storedGlobals = new HashSet<>();
+        for (int[] insn : body) {
+            if (insn[0] == STORE) {
+                storedLocals.add(insn[3]);
+            } else if (insn[0] == STORE_GLOBAL) {
+                storedGlobals.add(insn[3]);
+            }
+        }
+        boolean[] invariant = new boolean[registers];
+        for (Iterator<int[]> it = body.iterator(); it.hasNext(); ) {
+            int[] insn = it.next();
+            int op = insn[0];
+            boolean hoist = switch (op) {
+                case CONST -> true;
+                case LOAD -> !storedLocals.contains(insn[2]);
+                case LOAD_GLOBAL -> !storedGlobals.contains(insn[2]);
+                case DIV, MOD, STORE, STORE_GLOBAL -> false;
+                default -> invariant[insn[2]] && (reads(op) == 1 || invariant[insn[3]]);
+            };
+            if (hoist) {
+                if (!isGuard(op)) {
+                    invariant[insn[1]] = true;
+                }
+                entry.add(insn);
+                it.remove();
+            }
+        }
+    }
+
+    public WhileStatement getLoop() {
+        return loop;
+    }
+
+    /**
+     * The instructions run once each time the trace is entered.
+     */
+    List<int[]> getEntry() {
+        return entry;
+    }
+
+    /**
+     * The instructions run on every iteration.
+     */
+    List<int[]> getBody() {
+        return body;
+    }
+
+    int getRegisters() {
+        return registers;
+    }
+
+    /**
+     * Number of exits, LOOP_EXIT included.
+     */
+    int getExits() {
+        return guards + 1;
+    }
+
+    /**
+     * Number of guards, the loop condition's included.
+     */
+    public int getGuardCount() {
+        int count = 0;
+        for (List<int[]> code : List.of(entry, body)) {
+            for (int[] insn : code) {
+                if (isGuard(insn[0])) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of instructions, entry code included.
+     */
+    public int size() {
+        return entry.size() + body.size();
+    }
+
+    /**
+     * A listing of the code, one instruction per line, with the entry
+     * code first and the loop after "loop:".
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int[] insn : entry) {
+            list(out, insn);
+        }
+        out.append("loop:\n");
+        for (int[] insn : body) {
+            list(out, insn);
+        }
+        return out.toString();
+    }
+
+    private static void list(StringBuilder out, int[] insn) {
+        int op = insn[0];
+        out.append("  ").append(NAMES[op]);
+        if (isGuard(op)) {
+            out.append(" exit").append(insn[1]).append(" r").append(insn[2]);
+            if (reads(op) == 2) {
+                out.append(" r").append(insn[3]);
+            }
+        } else if (isStore(op)) {
+            out.append(" #").append(insn[3]).append(" r").append(insn[2]);
+        } else {
+            out.append(" r").append(insn[1]);
+            if (op == CONST) {
+                out.append(' ').append(insn[2]);
+            } else if (op == LOAD || op == LOAD_GLOBAL) {
+                out.append(" #").append(insn[2]);
+            } else {
+                out.append(" r").append(insn[2]);
+                if (reads(op) == 2) {
+                    out.append(" r").append(insn[3]);
+                }
+            }
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,221 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * TraceCompiler turns a Trace into a JVM method that runs it as a loop:
+ *
+ *   static int trace(Environment env, int[] iterations)
+ *
+ * The variables of the loop's frame that the trace reads or writes are
+ * loaded into JVM locals on entry and live there while the loop runs;
+ * globals are read and written through the Environment. Each register
+ * is a local of its own, and each guard a branch to its exit. An exit
+ * writes the frame variables back, adds the iterations completed to
+ * iterations[0] and returns the exit's number, so LOOP_EXIT means the
+ * loop is done and any other number that a guard failed, at the start of
+ * an iteration the interpreter has to run.
+ */
+public class TraceCompiler {
+    private static final String CLASS_NAME = "SprolaTrace";
+    private static final String ENVIRONMENT = "Environment";
+    private static final String METHOD = "trace";
+    // locals 0 and 1 are the parameters
+    private static final int EXIT = 2;
+    private static final int ITERATIONS = 3;
+
+    private final Trace trace;
+    private final ClassFileWriter writer = new ClassFileWriter(CLASS_NAME);
+    private ClassFileWriter.Method method;
+    // local of each frame variable the trace uses, by slot
+    private final Map<Integer, Integer> variables = new TreeMap<>();
+    private ClassFileWriter.Label[] exits;
+
+    private TraceCompiler(Trace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Compile a trace.
+     *
+     * @return a handle taking (Environment, int[]) and returning the exit
+     * @throws UnsupportedOperationException if it needs too many locals
+     */
+    static MethodHandle compile(Trace trace) {
+        TraceCompiler compiler = new TraceCompiler(trace);
+        compiler.compile();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(compiler.writer.toByteArray(), true);
+            return lookup.findStatic(lookup.lookupClass(), METHOD,
+                    MethodType.methodType(int.class, Environment.class, int[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load compiled trace", e);
+        }
+    }
+
+    private int register(int reg) {
+        return ITERATIONS + 1 + variables.size() + reg;
+    }
+
+    private void compile() {
+        List<int[]> all = new ArrayList<>(trace.getEntry());
+        all.addAll(trace.getBody());
+        for (int[] insn : all) {
+            if (insn[0] == Trace.LOAD) {
+                variables.putIfAbsent(insn[2], 0);
+            } else if (insn[0] == Trace.STORE) {
+                variables.putIfAbsent(insn[3], 0);
+            }
+        }
+        int local = ITERATIONS + 1;
+        for (Map.Entry<Integer, Integer> variable : variables.entrySet()) {
+            variable.setValue(local++);
+        }
+        method = writer.addMethod(METHOD, "(L" + ENVIRONMENT + ";[I)I", register(trace.getRegisters()));
+        exits = new ClassFileWriter.Label[trace.getExits()];
+
+        for (Map.Entry<Integer, Integer> variable : variables.entrySet()) {
+            method.aload(0);
+            method.pushInt(0);
+            method.pushInt(variable.getKey());
+            method.invokeVirtual(ENVIRONMENT, "get", "(II)I");
+            method.istore(variable.getValue());
+        }
+        method.pushInt(0);
+        method.istore(ITERATIONS);
+        for (int[] insn : trace.getEntry()) {
+            emit(insn);
+        }
+        ClassFileWriter.Label loop = method.newLabel();
+        method.place(loop);
+        for (int[] insn : trace.getBody()) {
+            emit(insn);
+        }
+        method.iload(ITERATIONS);
+        method.pushInt(1);
+        method.op(ClassFileWriter.IADD, -1);
+        method.istore(ITERATIONS);
+        method.jump(ClassFileWriter.GOTO, 0, loop);
+
+        ClassFileWriter.Label done = method.newLabel();
+        for (int exit = 0; exit < exits.length; exit++) {
+            if (exits[exit] != null) {
+                method.place(exits[exit]);
+                method.pushInt(exit);
+                method.istore(EXIT);
+                method.jump(ClassFileWriter.GOTO, 0, done);
+            }
+        }
+        method.place(done);
+        for (Map.Entry<Integer, Integer> variable : variables.entrySet()) {
+            method.aload(0);
+            method.pushInt(0);
+            method.pushInt(variable.getKey());
+            method.iload(variable.getValue());
+            method.invokeVirtual(ENVIRONMENT, "set", "(III)V");
+        }
+        method.aload(1);
+        method.pushInt(0);
+        method.aload(1);
+        method.pushInt(0);
+        method.op(ClassFileWriter.IALOAD, -1);
+        method.iload(ITERATIONS);
+        method.op(ClassFileWriter.IADD, -1);
+        method.op(ClassFileWriter.IASTORE, -3);
+        method.iload(EXIT);
+        method.op(ClassFileWriter.IRETURN, -1);
+    }
+
+    private ClassFileWriter.Label exit(int exit) {
+        if (exits[exit] == null) {
+            exits[exit] = method.newLabel();
+        }
+        return exits[exit];
+    }
+
+    private static int branchUnless(int guard) {
+        // the branch taken when the guard does not hold
+        return switch (guard) {
+            case Trace.GUARD_EQ -> ClassFileWriter.IF_ICMPNE;
+            case Trace.GUARD_NE -> ClassFileWriter.IF_ICMPEQ;
+            case Trace.GUARD_LT -> ClassFileWriter.IF_ICMPGE;
+            case Trace.GUARD_LE -> ClassFileWriter.IF_ICMPGT;
+            case Trace.GUARD_GT -> ClassFileWriter.IF_ICMPLE;
+            case Trace.GUARD_GE -> ClassFileWriter.IF_ICMPLT;
+            case Trace.GUARD_TRUE -> ClassFileWriter.IFEQ;
+            default -> ClassFileWriter.IFNE;
+        };
+    }
+
+    private void emit(int[] insn) {
+        int op = insn[0];
+        if (Trace.isGuard(op)) {
+            method.iload(register(insn[2]));
+            if (Trace.reads(op) == 2) {
+                method.iload(register(insn[3]));
+            }
+            method.jump(branchUnless(op), -Trace.reads(op), exit(insn[1]));
+            return;
+        }
+        switch (op) {
+            case Trace.CONST -> method.pushInt(insn[2]);
+            case Trace.LOAD -> method.iload(variables.get(insn[2]));
+            case Trace.LOAD_GLOBAL -> {
+                method.aload(0);
+                method.pushInt(1);
+                method.pushInt(insn[2]);
+                method.invokeVirtual(ENVIRONMENT, "get", "(II)I");
+            }
+            case Trace.STORE -> {
+                method.iload(register(insn[2]));
+                method.istore(variables.get(insn[3]));
+                return;
+            }
+            case Trace.STORE_GLOBAL -> {
+                method.aload(0);
+                method.pushInt(1);
+                method.pushInt(insn[3]);
+                method.iload(register(insn[2]));
+                method.invokeVirtual(ENVIRONMENT, "set", "(III)V");
+                return;
+            }
+            case Trace.EQ, Trace.NE, Trace.LT, Trace.LE, Trace.GT, Trace.GE -> {
+                // a comparison used as a value is 1 or 0
+                ClassFileWriter.Label isFalse = method.newLabel();
+                ClassFileWriter.Label done = method.newLabel();
+                method.iload(register(insn[2]));
+                method.iload(register(insn[3]));
+                method.jump(branchUnless(Trace.guardFor(op)), -2, isFalse);
+                method.pushInt(1);
+                method.jump(ClassFileWriter.GOTO, 0, done);
+                method.place(isFalse);
+                method.pushInt(0);
+                method.place(done);
+            }
+            case Trace.NEG -> {
+                method.iload(register(insn[2]));
+                method.op(ClassFileWriter.INEG, 0);
+            }
+            case Trace.ABS -> {
+                method.iload(register(insn[2]));
+                method.invokeStatic("java/lang/Math", "abs", "(I)I");
+            }
+            default -> {
+                method.iload(register(insn[2]));
+                method.iload(register(insn[3]));
+                switch (op) {
+                    case Trace.ADD -> method.op(ClassFileWriter.IADD, -1);
+                    case Trace.SUB -> method.op(ClassFileWriter.ISUB, -1);
+                    case Trace.MUL -> method.op(ClassFileWriter.IMUL, -1);
+                    case Trace.DIV -> method.op(ClassFileWriter.IDIV, -1);
+                    case Trace.MOD -> method.op(ClassFileWriter.IREM, -1);
+                    case Trace.MIN -> method.invokeStatic("java/lang/Math", "min", "(II)I");
+                    default -> method.invokeStatic("java/lang/Math", "max", "(II)I");
+                }
+            }
+        }
+        method.istore(register(insn[1]));
+    }
+}
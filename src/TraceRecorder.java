@@ -0,0 +1,391 @@
+import java.util.*;
+
+/**
+ * TraceRecorder records the Trace of the next iteration of a while loop,
+ * from the values its variables have now. It follows the statements the
+ * way the interpreter would, computing each value along with the
+ * instruction that produces it, so every if takes the branch the
+ * interpreter would take, and gets a guard saying so.
+ *
+ * The trace is optimized as it is recorded:
+ *   - a variable is loaded at most once, and afterwards read from the
+ *     register holding its latest value;
+ *   - instructions whose operands are all constants are folded, and
+ *     conditions that fold need no guard;
+ *   - an instruction already computed from the same registers is reused;
+ *   - a guard that a register equals a constant makes later reads of
+ *     the register that constant, so an if/elif chain on a variable that
+ *     the trace has already tested is resolved while recording.
+ *
+ * Only code without effects other than assigning variables can be
+ * traced, since a failed guard must leave nothing behind. Anything else
+ * (calls of user functions, print, input, return, nested loops, variables
+ * looked up by name) throws UnsupportedOperationException.
+ */
+public class TraceRecorder implements ASTVisitor {
+    private final Environment environment;
+    private final WhileStatement loop;
+    private final List<int[]> code = new ArrayList<>();
+    // value of each register in the iteration being recorded
+    private int[] values = new int[16];
+    private int registers;
+    private int guards;
+    // register holding each variable's latest value, keyed by slot for the
+    // loop's frame and by -1 - slot for the globals
+    private final Map<Integer, Integer> variables = new HashMap<>();
+    // register each variable was loaded into
+    private final Map<Integer, Integer> loaded = new HashMap<>();
+    // variables declared in the iteration, which end with it
+    private final Set<Integer> declared = new HashSet<>();
+    // variables assigned that outlive the iteration, in order
+    private final Set<Integer> assigned = new LinkedHashSet<>();
+    // register of each constant, and constant each register is known to hold
+    private final Map<Integer, Integer> constants = new HashMap<>();
+    private final Map<Integer, Integer> known = new HashMap<>();
+    // register of each instruction already computed, by op and operands
+    private final Map<List<Integer>, Integer> computed = new HashMap<>();
+
+    private TraceRecorder(Environment environment, WhileStatement loop) {
+        this.environment = environment;
+        this.loop = loop;
+    }
+
+    /**
+     * Record the next iteration of a loop.
+     *
+     * @param environment environment with the loop's frame current
+     * @param loop the loop
+     * @return its trace, or null if the loop condition is false now
+     * @throws UnsupportedOperationException if the iteration does something
+     *         a trace cannot
+     */
+    static Trace record(Environment environment, WhileStatement loop) {
+        TraceRecorder recorder = new TraceRecorder(environment, loop);
+        if (!recorder.guard(loop.getCondition(), Trace.LOOP_EXIT)) {
+            return null;
+        }
+        for (Statement stmt : loop.getBody()) {
+            stmt.accept(recorder);
+        }
+        for (int key : recorder.assigned) {
+            int reg = recorder.variables.get(key);
+            if (!Objects.equals(recorder.loaded.get(key), reg)) {
+                recorder.code.add(key >= 0
+                        ? new int[] {Trace.STORE, -1, reg, key}
+                        : new int[] {Trace.STORE_GLOBAL, -1, reg, -1 - key});
+            }
+        }
+        return new Trace(loop, recorder.code, recorder.registers, recorder.guards);
+    }
+
+    private int emit(int op, int a, int b, int value) {
+        if (registers == values.length) {
+            values = Arrays.copyOf(values, registers * 2);
+        }
+        int reg = registers++;
+        values[reg] = value;
+        code.add(new int[] {op, reg, a, b});
+        return reg;
+    }
+
+    private int constant(int value) {
+        Integer reg = constants.get(value);
+        if (reg == null) {
+            reg = emit(Trace.CONST, value, 0, value);
+            constants.put(value, reg);
+            known.put(reg, value);
+        }
+        return reg;
+    }
+
+    private boolean isConstant(int reg) {
+        return known.containsKey(reg);
+    }
+
+    /**
+     * The register holding an expression's value.
+     */
+    private int value(Expression expr) {
+        int reg = (Integer) expr.accept(this);
+        Integer value = known.get(reg);
+        return value != null ? constant(value) : reg;
+    }
+
+    /**
+     * An instruction without effects, folded or reused where possible.
+     */
+    private int pure(int op, int a, int b, int value) {
+        if (isConstant(a) && (Trace.reads(op) == 1 || isConstant(b))) {
+            return constant(value);
+        }
+        List<Integer> key = List.of(op, a, b);
+        Integer reg = computed.get(key);
+        if (reg == null) {
+            reg = emit(op, a, b, value);
+            computed.put(key, reg);
+        }
+        return reg;
+    }
+
+    private static int comparison(TokenType operator) {
+        return switch (operator) {
+            case EQ -> Trace.EQ;
+            case NE -> Trace.NE;
+            case LT -> Trace.LT;
+            case LE -> Trace.LE;
+            case GT -> Trace.GT;
+            case GE -> Trace.GE;
+            default -> -1;
+        };
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (expr instanceof GroupExpression group) {
+            expr = group.getExpression();
+        }
+        return expr;
+    }
+
+    /**
+     * Add a guard that a condition comes out as it does now.
+     *
+     * @param exit the exit to leave by otherwise
+     * @return whether the condition holds now
+     */
+    private boolean guard(Expression condition, int exit) {
+        Expression cond = unwrap(condition);
+        if (cond instanceof BinaryExpression binary && comparison(binary.getOperator()) >= 0) {
+            int a = value(binary.getLeft());
+            int b = value(binary.getRight());
+            TokenType operator = binary.getOperator();
+            boolean holds = ConstantFolder.apply(operator, values[a], values[b]) != 0;
+            if (isConstant(a) && isConstant(b)) {
+                return holds;
+            }
+            TokenType checked = holds ? operator : RegisterOpCode.negate(operator);
+            code.add(new int[] {Trace.guardFor(comparison(checked)), exit, a, b});
+            if (checked == TokenType.EQ) {
+                // past the guard, the register is the constant
+                if (isConstant(b)) {
+                    known.put(a, values[b]);
+                } else if (isConstant(a)) {
+                    known.put(b, values[a]);
+                }
+            }
+            return holds;
+        }
+        int reg = value(cond);
+        boolean holds = values[reg] != 0;
+        if (!isConstant(reg)) {
+            code.add(new int[] {holds ? Trace.GUARD_TRUE : Trace.GUARD_FALSE, exit, reg, 0});
+            if (!holds) {
+                known.put(reg, 0);
+            }
+        }
+        return holds;
+    }
+
+    private int nextExit() {
+        return ++guards;
+    }
+
+    private static int key(int depth, int slot) {
+        return depth == 0 ? slot : -1 - slot;
+    }
+
+    private void assign(int key, int reg) {
+        variables.put(key, reg);
+        if (!declared.contains(key)) {
+            assigned.add(key);
+        }
+    }
+
+    private void record(List<Statement> block) {
+        for (Statement stmt : block) {
+            stmt.accept(this);
+        }
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression expr) {
+        int a = value(expr.getLeft());
+        int b = value(expr.getRight());
+        TokenType operator = expr.getOperator();
+        int op = switch (operator) {
+            case PLUS -> Trace.ADD;
+            case MINUS -> Trace.SUB;
+            case STAR -> Trace.MUL;
+            case SLASH -> Trace.DIV;
+            case MOD -> Trace.MOD;
+            default -> comparison(operator);
+        };
+        if (op < 0) {
+            throw new UnsupportedOperationException("Unknown binary operator: " + operator);
+        }
+        if ((op == Trace.DIV || op == Trace.MOD) && values[b] == 0) {
+            throw new UnsupportedOperationException("Divides by zero");
+        }
+        if ((op == Trace.DIV || op == Trace.MOD) && !isConstant(b) && !computed.containsKey(List.of(op, a, b))) {
+            code.add(new int[] {Trace.GUARD_TRUE, nextExit(), b, 0});
+        }
+        return pure(op, a, b, ConstantFolder.apply(operator, values[a], values[b]));
+    }
+
+    @Override
+    public Object visitUnaryExpression(UnaryExpression expr) {
+        if (expr.getOperator() != TokenType.MINUS) {
+            throw new UnsupportedOperationException("Unknown unary operator: " + expr.getOperator());
+        }
+        int a = value(expr.getOperand());
+        return pure(Trace.NEG, a, 0, -values[a]);
+    }
+
+    @Override
+    public Object visitLiteralExpression(LiteralExpression expr) {
+        return constant((Integer) expr.getValue());
+    }
+
+    @Override
+    public Object visitVariableExpression(VariableExpression expr) {
+        if (!expr.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + expr.getName() + "' is looked up by name");
+        }
+        int key = key(expr.getDepth(), expr.getSlot());
+        Integer reg = variables.get(key);
+        if (reg == null) {
+            int value = environment.get(expr.getDepth(), expr.getSlot());
+            reg = emit(expr.getDepth() == 0 ? Trace.LOAD : Trace.LOAD_GLOBAL, expr.getSlot(), 0, value);
+            variables.put(key, reg);
+            loaded.put(key, reg);
+        }
+        return reg;
+    }
+
+    @Override
+    public Object visitGroupExpression(GroupExpression expr) {
+        return value(expr.getExpression());
+    }
+
+    @Override
+    public Object visitCallExpression(CallExpression expr) {
+        BuiltinFunction builtin = BuiltinFunction.forName(expr.getCallee());
+        List<Expression> arguments = expr.getArguments();
+        if (builtin == BuiltinFunction.ABS && arguments.size() == 1) {
+            int a = value(arguments.get(0));
+            return pure(Trace.ABS, a, 0, Math.abs(values[a]));
+        }
+        if ((builtin == BuiltinFunction.MIN || builtin == BuiltinFunction.MAX) && arguments.size() == 2) {
+            int a = value(arguments.get(0));
+            int b = value(arguments.get(1));
+            return builtin == BuiltinFunction.MIN
+                    ? pure(Trace.MIN, a, b, Math.min(values[a], values[b]))
+                    : pure(Trace.MAX, a, b, Math.max(values[a], values[b]));
+        }
+        throw new UnsupportedOperationException("Calls " + expr.getCallee());
+    }
+
+    @Override
+    public Object visitInputExpression(InputExpression expr) {
+        throw new UnsupportedOperationException("Reads input");
+    }
+
+    @Override
+    public Object visitBuiltinRefExpression(BuiltinRefExpression expr) {
+        throw new UnsupportedOperationException("Uses built-in '" + expr.getName() + "' as a number");
+    }
+
+    @Override
+    public Object visitVarDeclarationStatement(VarDeclarationStatement stmt) {
+        for (VarDeclarator decl : stmt.getDeclarators()) {
+            if (!decl.isResolved()) {
+                throw new UnsupportedOperationException("Variable '" + decl.getName() + "' is declared by name");
+            }
+            int reg = value(decl.getInitializer());
+            declared.add(key(0, decl.getSlot()));
+            variables.put(key(0, decl.getSlot()), reg);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVarAssignmentStatement(VarAssignmentStatement stmt) {
+        if (!stmt.isResolved()) {
+            throw new UnsupportedOperationException("Variable '" + stmt.getName() + "' is assigned by name");
+        }
+        assign(key(stmt.getDepth(), stmt.getSlot()), value(stmt.getValue()));
+        return null;
+    }
+
+    @Override
+    public Object visitExpressionStatement(ExpressionStatement stmt) {
+        value(stmt.getExpression());
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement stmt) {
+        SwitchTable table = stmt.getSwitchTable();
+        if (table != null) {
+            // one guard on the subject's value picks the arm
+            int subject = value(table.getSubject());
+            int arm = table.armFor(values[subject]);
+            if (!isConstant(subject)) {
+                if (arm >= 0) {
+                    code.add(new int[] {Trace.GUARD_EQ, nextExit(), subject, constant(values[subject])});
+                    known.put(subject, values[subject]);
+                } else {
+                    for (int key : table.getKeys()) {
+                        code.add(new int[] {Trace.GUARD_NE, nextExit(), subject, constant(key)});
+                    }
+                }
+            }
+            if (arm == 0) {
+                record(stmt.getThenBranch());
+            } else if (arm > 0) {
+                record(stmt.getElifBranches().get(arm - 1));
+            } else if (stmt.hasElse()) {
+                record(stmt.getElseBranch());
+            }
+            return null;
+        }
+        if (guard(stmt.getCondition(), nextExit())) {
+            record(stmt.getThenBranch());
+            return null;
+        }
+        for (int i = 0; i < stmt.getElifConditions().size(); i++) {
+            if (guard(stmt.getElifConditions().get(i), nextExit())) {
+                record(stmt.getElifBranches().get(i));
+                return null;
+            }
+        }
+        if (stmt.hasElse()) {
+            record(stmt.getElseBranch());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement stmt) {
+        throw new UnsupportedOperationException("Contains a loop");
+    }
+
+    @Override
+    public Object visitRunStatement(RunStatement stmt) {
+        throw new UnsupportedOperationException("Contains a loop");
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement stmt) {
+        throw new UnsupportedOperationException("Returns");
+    }
+
+    @Override
+    public Object visitPrintStatement(PrintStatement stmt) {
+        throw new UnsupportedOperationException("Prints");
+    }
+
+    @Override
+    public Object visitFunctionDeclarationStatement(FunctionDeclarationStatement stmt) {
+        throw new UnsupportedOperationException("Declares function '" + stmt.getName() + "'");
+    }
+}
@@ -0,0 +1,247 @@
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+
+/**
+ * TracingJit runs the hot while loops of functions as traces. The
+ * Interpreter reports each iteration it runs; once a loop has run
+ * threshold of them, TraceRecorder records the path the next iteration
+ * takes, and TraceCompiler compiles that to a JVM loop, which then runs
+ * the iterations for as long as they take the same path. When a guard
+ * fails, the loop's other traces get a try, and if none of them fits,
+ * the interpreter runs that iteration. A path that keeps being left to
+ * the interpreter gets a trace of its own, up to MAX_TRACES per loop.
+ *
+ * A loop whose iteration does something a trace cannot, such as a call or
+ * a print, is recorded once and then left to the interpreter.
+ */
+public class TracingJit {
+    static final int DEFAULT_THRESHOLD = 100;
+    static final int MAX_TRACES = 4;
+
+    private final int threshold;
+    private final boolean log;
+    private final Map<WhileStatement, Loop> loops = new IdentityHashMap<>();
+    private final List<Loop> order = new ArrayList<>();
+    private final List<String> events = new ArrayList<>();
+    private int recorded;
+    private int aborted;
+
+    /**
+     * The traces of one loop, and how often the interpreter ran it since
+     * the last one was recorded.
+     */
+    static final class Loop {
+        final WhileStatement statement;
+        final List<CompiledTrace> traces = new ArrayList<>();
+        int misses;
+        // the trace to try first
+        int current;
+        boolean recording = true;
+
+        Loop(WhileStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * A trace with its code and what happened when it ran.
+     */
+    static final class CompiledTrace {
+        final Trace trace;
+        final MethodHandle code;
+        // iterations[0] is added to by the code
+        final int[] iterations = new int[1];
+        int entries;
+        int failures;
+
+        CompiledTrace(Trace trace, MethodHandle code) {
+            this.trace = trace;
+            this.code = code;
+        }
+
+        int run(Environment environment) {
+            entries++;
+            try {
+                return (int) code.invokeExact(environment, iterations);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public TracingJit() {
+        this(DEFAULT_THRESHOLD, false);
+    }
+
+    /**
+     * @param threshold iterations the interpreter runs of a loop before
+     *                  the next one is recorded
+     * @param log whether to print each trace recorded to standard error
+     */
+    public TracingJit(int threshold, boolean log) {
+        this.threshold = threshold;
+        this.log = log;
+    }
+
+    /**
+     * The state of a loop, for a run of it to report its iterations on.
+     */
+    Loop loopOf(WhileStatement stmt) {
+        Loop loop = loops.get(stmt);
+        if (loop == null) {
+            loop = new Loop(stmt);
+            loops.put(stmt, loop);
+            order.add(loop);
+        }
+        return loop;
+    }
+
+    /**
+     * Count an iteration the interpreter ran, and run as many of the
+     * following ones on traces as fit them.
+     *
+     * @param loop the loop's state
+     * @param environment environment with the loop's frame current
+     * @return true if the loop ended on a trace; false for the interpreter
+     *         to run the next iteration
+     */
+    boolean iterate(Loop loop, Environment environment) {
+        if (!loop.traces.isEmpty() && runTraces(loop, environment)) {
+            return true;
+        }
+        if (++loop.misses < threshold || !loop.recording) {
+            return false;
+        }
+        loop.misses = 0;
+        Trace trace;
+        try {
+            trace = TraceRecorder.record(environment, loop.statement);
+            if (trace == null) {
+                // the loop is about to end anyway
+                return false;
+            }
+            loop.traces.add(new CompiledTrace(trace, TraceCompiler.compile(trace)));
+        } catch (UnsupportedOperationException e) {
+            aborted++;
+            loop.recording = false;
+            event("Trace of " + describe(loop) + " aborted: " + e.getMessage());
+            return false;
+        }
+        recorded++;
+        loop.current = loop.traces.size() - 1;
+        loop.recording = loop.traces.size() < MAX_TRACES;
+        event("Recorded trace " + loop.traces.size() + " of " + describe(loop) + ": "
+                + trace.size() + " instructions, " + trace.getGuardCount() + " guards"
+                + (log ? "\n" + trace : ""));
+        return runTraces(loop, environment);
+    }
+
+    /**
+     * Run the loop's traces from the current iteration on, until it ends
+     * or none of them fits the iteration about to run.
+     */
+    private boolean runTraces(Loop loop, Environment environment) {
+        int unfit = 0;
+        while (unfit < loop.traces.size()) {
+            CompiledTrace trace = loop.traces.get(loop.current);
+            int before = trace.iterations[0];
+            if (trace.run(environment) == Trace.LOOP_EXIT) {
+                return true;
+            }
+            trace.failures++;
+            // a trace that got somewhere failed on a new iteration, which
+            // every other trace gets a try at
+            unfit = trace.iterations[0] != before ? 1 : unfit + 1;
+            if (loop.traces.size() > 1) {
+                loop.current = (loop.current + 1) % loop.traces.size();
+            }
+        }
+        return false;
+    }
+
+    private static String describe(Loop loop) {
+        return "while loop at line " + loop.statement.getLine();
+    }
+
+    private void event(String event) {
+        events.add(event);
+        if (log) {
+            System.err.println(event);
+        }
+    }
+
+    /**
+     * What was recorded and aborted, in order.
+     */
+    public List<String> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * Number of traces recorded and compiled.
+     */
+    public int getTraces() {
+        return recorded;
+    }
+
+    /**
+     * Number of recordings given up on.
+     */
+    public int getAborted() {
+        return aborted;
+    }
+
+    /**
+     * Number of iterations run on traces.
+     */
+    public long getTraceIterations() {
+        long total = 0;
+        for (Loop loop : order) {
+            for (CompiledTrace trace : loop.traces) {
+                total += trace.iterations[0];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Number of times a guard failed and a trace was left mid-loop.
+     */
+    public long getGuardFailures() {
+        long total = 0;
+        for (Loop loop : order) {
+            for (CompiledTrace trace : loop.traces) {
+                total += trace.failures;
+            }
+        }
+        return total;
+    }
+
+    private static String rate(long failures, long iterations) {
+        long started = failures + iterations;
+        return String.format("%.2f%%", started == 0 ? 0.0 : 100.0 * failures / started);
+    }
+
+    /**
+     * One line for the totals, then one per trace. A guard failure rate is
+     * the share of the iterations started on a trace that failed a guard.
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("Tracing: " + getTraces() + " traces recorded (threshold "
+                + threshold + " iterations), " + getAborted() + " aborted, " + getTraceIterations()
+                + " iterations on traces, " + getGuardFailures() + " guard failures ("
+                + rate(getGuardFailures(), getTraceIterations()) + ")");
+        for (Loop loop : order) {
+            for (int i = 0; i < loop.traces.size(); i++) {
+                CompiledTrace trace = loop.traces.get(i);
+                stats.append(String.format("%n  trace %d of %s: %d instructions, %d guards, entered %d times,"
+                        + " %d iterations, %d guard failures (%s)", i + 1, describe(loop), trace.trace.size(),
+                        trace.trace.getGuardCount(), trace.entries, trace.iterations[0], trace.failures,
+                        rate(trace.failures, trace.iterations[0])));
+            }
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.*;
+
+/**
+ * VM runs the Chunks produced by BytecodeCompiler. Locals and operands share
+ * one int stack: a call's arguments are left on the stack by the caller and
+ * become the first slots of the callee's frame, its other locals follow, and
+ * its operands sit above those. The global frame is at the bottom of the
+ * stack, so a global is read by absolute index.
+ */
+public class VM {
+    private static final BuiltinFunction[] BUILTINS = BuiltinFunction.values();
+
+    private final Chunk[] chunks;
+    private int[] stack = new int[256];
+    // slots used by the globals, which stay at the bottom of the stack
+    private final int globalCount;
+
+    // Call records, one entry per active call: where to resume the caller
+    private int[] returnChunks = new int[64];
+    private int[] returnPcs = new int[64];
+    private int[] returnBases = new int[64];
+    private int callDepth;
+
+    /**
+     * Create a VM for a compiled program.
+     *
+     * @param chunks compiled program; chunk 0 is the top-level code
+     */
+    public VM(Chunk[] chunks) {
+        this.chunks = chunks;
+        this.globalCount = chunks[0].getFrameSize();
+    }
+
+    /**
+     * Run the top-level statements, setting up the globals.
+     */
+    public void run() {
+        ensureStack(globalCount + chunks[0].getMaxStack());
+        execute(0, 0);
+    }
+
+    /**
+     * Call a built-in or a function by name, as Interpreter.invoke does.
+     *
+     * @param name function name
+     * @param args argument values
+     * @return integer result
+     */
+    public int call(String name, int... args) {
+        if (Builtins.isBuiltin(name)) {
+            return Builtins.callFunction(name, args);
+        }
+        int index = indexOf(name);
+        if (index < 0) {
+            throw new RuntimeException("Function not defined: " + name);
+        }
+        if (chunks[index].getArity() != args.length) {
+            throw new RuntimeException("Argument count mismatch in call to: " + name);
+        }
+        Chunk chunk = chunks[index];
+        ensureStack(globalCount + chunk.getFrameSize() + chunk.getMaxStack());
+        System.arraycopy(args, 0, stack, globalCount, args.length);
+        return execute(index, globalCount);
+    }
+
+    private int indexOf(String name) {
+        for (int i = 1; i < chunks.length; i++) {
+            if (chunks[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureStack(int capacity) {
+        if (capacity > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(capacity, stack.length * 2));
+        }
+    }
+
+    /**
+     * Run a chunk until it returns. Its arguments must already be in place
+     * at base.
+     *
+     * @param chunkIndex chunk to run
+     * @param base stack index of its slot 0
+     * @return the value it returned
+     */
+    private int execute(int chunkIndex, int base) {
+        int entryDepth = callDepth;
+        Chunk chunk = chunks[chunkIndex];
+        int[] code = chunk.getCode();
+        int[] stack = this.stack;
+        int sp = base + chunk.getFrameSize();
+        int pc = 0;
+
+        try {
+            while (true) {
+                switch (code[pc++]) {
+                    case OpCode.CONST:
+                        stack[sp++] = code[pc++];
+                        break;
+                    case OpCode.LOAD_SLOT:
+                        stack[sp++] = stack[base + code[pc++]];
+                        break;
+                    case OpCode.STORE_SLOT:
+                        stack[base + code[pc++]] = stack[--sp];
+                        break;
+                    case OpCode.LOAD_GLOBAL:
+                        stack[sp++] = stack[code[pc++]];
+                        break;
+                    case OpCode.STORE_GLOBAL:
+                        stack[code[pc++]] = stack[--sp];
+                        break;
+                    case OpCode.ADD:
+                        sp--;
+                        stack[sp - 1] += stack[sp];
+                        break;
+                    case OpCode.SUB:
+                        sp--;
+                        stack[sp - 1] -= stack[sp];
+                        break;
+                    case OpCode.MUL:
+                        sp--;
+                        stack[sp - 1] *= stack[sp];
+                        break;
+                    case OpCode.DIV:
+                        sp--;
+                        stack[sp - 1] /= stack[sp];
+                        break;
+                    case OpCode.MOD:
+                        sp--;
+                        stack[sp - 1] %= stack[sp];
+                        break;
+                    case OpCode.EQ:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.NE:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.LT:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.LE:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.GT:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.GE:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+                        break;
+                    case OpCode.NEG:
+                        stack[sp - 1] = -stack[sp - 1];
+                        break;
+                    case OpCode.JUMP:
+                        pc = code[pc];
+                        break;
+                    case OpCode.JUMP_IF_ZERO:
+                        pc = stack[--sp] == 0 ? code[pc] : pc + 1;
+                        break;
+                    case OpCode.JUMP_IF_NOT_ZERO:
+                        pc = stack[--sp] != 0 ? code[pc] : pc + 1;
+                        break;
+                    case OpCode.SWITCH:
+                        pc = chunk.switchTarget(code[pc], stack[--sp]);
+                        break;
+                    case OpCode.CALL: {
+                        int callee = code[pc++];
+                        Chunk target = chunks[callee];
+                        if (callDepth == returnPcs.length) {
+                            growCallRecords();
+                        }
+                        returnChunks[callDepth] = chunkIndex;
+                        returnPcs[callDepth] = pc;
+                        returnBases[callDepth] = base;
+                        callDepth++;
+                        base = sp - target.getArity();
+                        sp = base + target.getFrameSize();
+                        if (sp + target.getMaxStack() > stack.length) {
+                            ensureStack(sp + target.getMaxStack());
+                            stack = this.stack;
+                        }
+                        chunkIndex = callee;
+                        chunk = target;
+                        code = target.getCode();
+                        pc = 0;
+                        break;
+                    }
+                    case OpCode.RETURN: {
+                        int value = stack[--sp];
+                        if (callDepth == entryDepth) {
+                            return value;
+                        }
+                        // the callee's frame starts where its arguments were pushed
+                        sp = base;
+                        stack[sp++] = value;
+                        callDepth--;
+                        chunkIndex = returnChunks[callDepth];
+                        pc = returnPcs[callDepth];
+                        base = returnBases[callDepth];
+                        chunk = chunks[chunkIndex];
+                        code = chunk.getCode();
+                        break;
+                    }
+                    case OpCode.ABS:
+                        stack[sp - 1] = Math.abs(stack[sp - 1]);
+                        break;
+                    case OpCode.MIN:
+                        sp--;
+                        stack[sp - 1] = Math.min(stack[sp - 1], stack[sp]);
+                        break;
+                    case OpCode.MAX:
+                        sp--;
+                        stack[sp - 1] = Math.max(stack[sp - 1], stack[sp]);
+                        break;
+                    case OpCode.CALL_BUILTIN: {
+                        BuiltinFunction builtin = BUILTINS[code[pc++]];
+                        int arity = builtin.getArity();
+                        int a = arity > 0 ? stack[sp - arity] : 0;
+                        int b = arity > 1 ? stack[sp - arity + 1] : 0;
+                        sp -= arity;
+                        stack[sp++] = Builtins.call(builtin, a, b);
+                        break;
+                    }
+                    case OpCode.PRINT:
+                        System.out.println(stack[--sp]);
+                        break;
+                    case OpCode.PRINT_STRING:
+                        System.out.println(chunk.getStrings()[code[pc++]]);
+                        break;
+                    case OpCode.INPUT:
+                        stack[sp++] = Builtins.readInput();
+                        break;
+                    case OpCode.POP:
+                        sp--;
+                        break;
+                    case OpCode.FAIL:
+                        throw new RuntimeException(chunk.getStrings()[code[pc]]);
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + code[pc - 1] + " at " + (pc - 1));
+                }
+            }
+        } finally {
+            // an error unwinds every call made since this one started
+            callDepth = entryDepth;
+        }
+    }
+
+    private void growCallRecords() {
+        int length = returnPcs.length * 2;
+        returnChunks = Arrays.copyOf(returnChunks, length);
+        returnPcs = Arrays.copyOf(returnPcs, length);
+        returnBases = Arrays.copyOf(returnBases, length);
+    }
+
+    /**
+     * Number of calls in progress; 0 whenever the VM is idle.
+     */
+    int getCallDepth() {
+        return callDepth;
+    }
+}
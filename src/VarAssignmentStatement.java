@@ -1,6 +1,9 @@
 public class VarAssignmentStatement extends Statement {
     private final String name;
     private final Expression value;
+    // Filled in by the Resolver; -1 means the name is looked up at runtime
+    private int depth = -1;
+    private int slot = -1;
     
     public VarAssignmentStatement(String name, Expression value, int line) {
         super(StatementType.VAR_ASSIGNMENT,line);
@@ -15,6 +18,29 @@ public class VarAssignmentStatement extends Statement {
     public Expression getValue() {
         return value;
     }
+
+    /**
+     * Record where this variable lives, as computed by the Resolver.
+     *
+     * @param depth number of frames out from the current one (0 is the current frame)
+     * @param slot index of the variable within that frame
+     */
+    public void resolve(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+
+    public boolean isResolved() {
+        return slot >= 0;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
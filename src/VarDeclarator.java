@@ -4,6 +4,8 @@
 public class VarDeclarator {
     private final String name;
     private final Expression initializer;
+    // Filled in by the Resolver; -1 means the name is declared at runtime
+    private int slot = -1;
     
     public VarDeclarator(String name, Expression initializer) {
         this.name = name;
@@ -17,4 +19,21 @@ public class VarDeclarator {
     public Expression getInitializer() {
         return initializer;
     }
+
+    /**
+     * Record the slot this variable occupies in the current frame.
+     *
+     * @param slot index of the variable within the frame
+     */
+    public void resolve(int slot) {
+        this.slot = slot;
+    }
+
+    public boolean isResolved() {
+        return slot >= 0;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
 }
\ No newline at end of file
@@ -3,6 +3,9 @@
  */
 public class VariableExpression extends Expression {
     private final String name;
+    // Filled in by the Resolver; -1 means the name is looked up at runtime
+    private int depth = -1;
+    private int slot = -1;
     
     public VariableExpression(String name, int line) {
         super(ExpressionType.VARIABLE, line);
@@ -12,6 +15,29 @@ public class VariableExpression extends Expression {
     public String getName() {
         return name;
     }
+
+    /**
+     * Record where this variable lives, as computed by the Resolver.
+     *
+     * @param depth number of frames out from the current one (0 is the current frame)
+     * @param slot index of the variable within that frame
+     */
+    public void resolve(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+
+    public boolean isResolved() {
+        return slot >= 0;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
     
     @Override
     public Object accept(ASTVisitor visitor) {
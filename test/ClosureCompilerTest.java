@@ -0,0 +1,54 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Runs the VMTest programs on closures compiled by ClosureCompiler, plus
+ * checks of the compiled program.
+ */
+public class ClosureCompilerTest extends VMTest {
+    @Override
+    protected String engine() {
+        return "closure";
+    }
+
+    private ClosureProgram compile(String source) {
+        ClosureProgram code = new ClosureCompiler().compile(SPROLARunner.parse(source));
+        code.run();
+        return code;
+    }
+
+    @Override
+    @Test
+    public void testDeepRecursion() {
+        // closures call each other on the Java stack, like the interpreter's visitors
+        assertSameAsInterpreter("function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(500); }");
+    }
+
+    @Test
+    public void testEachCallHasItsOwnFrame() {
+        ClosureProgram code = compile("function f(n) { var a <- n * 10; if (n > 0) { var b <- f(n - 1); }"
+                + " return a; }");
+        assertEquals(30, code.call("f", 3));
+    }
+
+    @Test
+    public void testGlobalsSurviveBetweenCalls() {
+        ClosureProgram code = compile("var count <- 0; if (count = 0) { var start <- 5; count <- start; }"
+                + " function next() { count <- count + 1; return count; }");
+        assertEquals(6, code.call("next"));
+        assertEquals(7, code.call("next"));
+        assertEquals(3, code.call("max", 1, 3));
+    }
+
+    @Test
+    public void testNestedFunctionsAreNotCompiled() {
+        String source = "function outer(x) { function inner(y) { return x + y; } return inner(2); }"
+                + " function entry() { return outer(40); }";
+        assertThrows(UnsupportedOperationException.class,
+                () -> new ClosureCompiler().compile(SPROLARunner.parse(source)));
+        assertSameAsInterpreter(source);
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommonSubexpressionEliminatorTest extends OptimizerPassTest {
+    private static List<Statement> body(List<Statement> program) {
+        return ((FunctionDeclarationStatement) program.get(0)).getBody();
+    }
+
+    private static String initializer(Statement stmt) {
+        VarDeclarationStatement decl = (VarDeclarationStatement) stmt;
+        return LoopInvariantHoister.key(decl.getDeclarators().get(0).getInitializer());
+    }
+
+    @Test
+    public void testRepeatedExpressionIsComputedOnce() {
+        CommonSubexpressionEliminator eliminator = new CommonSubexpressionEliminator();
+        List<Statement> body = body(eliminator.rewrite(parse(
+                "function f(a, b) { var d <- (a + b) * (a + b) - (a + b); return d; }")));
+        assertEquals(3, body.size());
+        String temp = ((VarDeclarationStatement) body.get(0)).getDeclarators().get(0).getName();
+        assertEquals("(PLUS a b)", initializer(body.get(0)));
+        assertEquals("(MINUS (STAR " + temp + " " + temp + ") " + temp + ")", initializer(body.get(1)));
+        assertEquals(2, eliminator.getReusedExpressions());
+        assertEquals(6, eliminator.getEliminatedNodes());
+    }
+
+    @Test
+    public void testSharesAcrossStatements() {
+        List<Statement> body = body(new CommonSubexpressionEliminator().rewrite(parse(
+                "function f(a, b) { var x <- a * b + 1; print a * b; return a * b - x; }")));
+        assertEquals(4, body.size());
+        assertEquals("(STAR a b)", initializer(body.get(0)));
+    }
+
+    @Test
+    public void testAssignmentEndsSharing() {
+        List<Statement> body = body(new CommonSubexpressionEliminator().rewrite(parse(
+                "function f(a, b) { var x <- a * b; a <- a + 1; return x + a * b; }")));
+        assertEquals(3, body.size());
+        assertTrue(body.get(1) instanceof VarAssignmentStatement);
+    }
+
+    @Test
+    public void testLoopEndsSharing() {
+        List<Statement> body = body(new CommonSubexpressionEliminator().rewrite(parse(
+                "function f(a, b) { var x <- a - b; while (x > 0) { b <- b + 1; x <- x - 1; }"
+                + " return a - b; }")));
+        assertEquals(3, body.size());
+    }
+
+    @Test
+    public void testInnerExpressionOnlySharedWhenStillRepeated() {
+        List<Statement> body = body(new CommonSubexpressionEliminator().rewrite(parse(
+                "function f(a, b, c) { return c * (a + b) + c * (a + b); }")));
+        // a + b is only evaluated inside the shared c * (a + b)
+        assertEquals(2, body.size());
+        assertEquals("(STAR c (PLUS a b))", initializer(body.get(0)));
+    }
+
+    @Test
+    public void testFailingExpressionsAndCallsStay() {
+        List<Statement> program = new CommonSubexpressionEliminator().rewrite(parse(
+                "function f(a, b) { print a; return a / b + a / b + sq(a) + sq(a); }"
+                + " function sq(x) { return x * x; }"));
+        assertEquals(2, body(program).size());
+    }
+
+    @Test
+    public void testTopLevelIsLeftAlone() {
+        List<Statement> program = parse("var a <- 2; print (a + 1) * (a + 1);");
+        assertEquals(program, new CommonSubexpressionEliminator().rewrite(program));
+    }
+
+    @Test
+    public void testBehaviourIsUnchanged() {
+        assertSameAsUnoptimized("function f(a, b) { var d <- (a + b) * (a + b) - (a + b);"
+                + " var e <- abs(a - b) + abs(a - b), g <- e * (a + b); a <- a * 2; print a + b;"
+                + " return d + e + g + (a + b) * (a + b); } function entry() { return f(3, 9); }");
+        // the shared value is computed before the print, which it must not
+        // change the output of
+        assertSameAsUnoptimized("function f(a, b) { print b / a + 1 + (a - b) * (a - b); return 0; }"
+                + " function entry() { return f(0, 4); }");
+        assertSameAsUnoptimized("function f(n) { var s <- 0; if (n > 2) { var t <- n * n; s <- t + n * n; }"
+                + " else { s <- -(n * n) - -(n * n); } return s + n * n; }"
+                + " function entry() { return f(5) + f(1); }");
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class ConstantFolderTest extends OptimizerPassTest {
+    private Expression returned(String source) {
+        List<Statement> program = SPROLARunner.parse("function f(x) { return " + source + "; }");
+        FunctionDeclarationStatement fn = (FunctionDeclarationStatement) program.get(0);
+        return ((ReturnStatement) fn.getBody().get(0)).getValue();
+    }
+
+    private int literal(String source) {
+        Expression expr = returned(source);
+        assertTrue(source + " was not folded", expr instanceof LiteralExpression);
+        return (Integer) ((LiteralExpression) expr).getValue();
+    }
+
+    @Test
+    public void testFoldsConstantOperators() {
+        assertEquals(3600, literal("(60 * 60)"));
+        assertEquals(-5, literal("-(2 + 3)"));
+        assertEquals(1, literal("2 * 3 > 5"));
+        assertEquals(Integer.MIN_VALUE, literal("2147483647 + 1"));
+        assertEquals(-1, literal("-7 / 4"));
+    }
+
+    @Test
+    public void testFoldsPureBuiltins() {
+        assertEquals(5, literal("abs(-5)"));
+        assertEquals(2, literal("min(2, max(1, 3))"));
+    }
+
+    @Test
+    public void testAppliesIdentities() {
+        assertTrue(returned("x * 1 + 0") instanceof VariableExpression);
+        assertTrue(returned("(x / 1)") instanceof VariableExpression);
+        assertEquals(0, literal("x * 0"));
+
+        BinaryExpression doubled = (BinaryExpression) returned("x * 2");
+        assertEquals(TokenType.PLUS, doubled.getOperator());
+        assertSame(doubled.getLeft(), doubled.getRight());
+
+        // (60 * 60) * x + 0 needs one multiplication at runtime
+        BinaryExpression hours = (BinaryExpression) returned("x * 60 * 60 + 0");
+        assertEquals(TokenType.STAR, hours.getOperator());
+        assertEquals(3600, ((LiteralExpression) hours.getRight()).getValue());
+
+        BinaryExpression shifted = (BinaryExpression) returned("x + 1 - 3 + 10");
+        assertEquals(8, ((LiteralExpression) shifted.getRight()).getValue());
+    }
+
+    @Test
+    public void testKeepsEffectsAndErrors() {
+        // calls and input must still run, and 1 / 0 must still fail when executed
+        assertTrue(returned("f(x) * 0") instanceof BinaryExpression);
+        assertTrue(returned("input * 0") instanceof BinaryExpression);
+        assertTrue(returned("1 / 0") instanceof BinaryExpression);
+        assertTrue(returned("x % 0") instanceof BinaryExpression);
+        assertTrue(returned("abs + 0") instanceof BinaryExpression);
+        assertTrue(returned("abs(1, 2)") instanceof CallExpression);
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> SPROLARunner.run(SPROLARunner.parse("function entry() { return 1 / 0; }"), "interp"));
+        assertEquals("/ by zero", e.getMessage());
+    }
+
+    @Test
+    public void testProgramsBehaveAsUnoptimized() {
+        String[] programs = {
+            "function entry() { var h <- 2; print (60 * 60) * h + 0; print h * 2 - 0; print -(-h);"
+                    + " print h * 1 * 3 * 4; print h - 1 + 1 - 5; return abs(-5) + min(3, 4 - 2); }",
+            "function entry() { print abs; print (abs); return 0; }",
+            "function entry() { var y <- abs - 1 + 1; return y; }",
+            "function entry() { var y <- 2147483647 * 2 + 3; return y * 1 / 1; }",
+            "function entry() { print 7; return 5 % (2 - 2); }",
+        };
+        for (String program : programs) {
+            assertSameAsUnoptimized(program);
+        }
+    }
+}
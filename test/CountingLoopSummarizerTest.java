@@ -0,0 +1,74 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountingLoopSummarizerTest extends OptimizerPassTest {
+    private static int summarize(String source) {
+        CountingLoopSummarizer summarizer = new CountingLoopSummarizer();
+        summarizer.rewrite(parse(source));
+        return summarizer.getSummarizedLoops();
+    }
+
+    @Test
+    public void testRecognizesCountingLoops() {
+        assertEquals(1, summarize("function f(n) { var i <- 0, s <- 0;"
+                + " while (i < n) { s <- s + i; i <- i + 1; } return s; }"));
+        assertEquals(1, summarize("function f(n) { var i <- n, s <- 0, t <- 0;"
+                + " while (0 <= i) { i <- i - 2; s <- s - 3 * i + n; t <- 4; } return s + t; }"));
+    }
+
+    @Test
+    public void testLeavesOtherLoopsAlone() {
+        // prints, calls, input, a non-literal step, a bound the body changes,
+        // a step away from the bound and a product accumulator
+        assertEquals(0, summarize("function f(n) { var i <- 0; while (i < n) { print i; i <- i + 1; } return i; }"
+                + " function g(n) { var i <- 0, s <- 0; while (i < n) { s <- s + abs(i) + f(i); i <- i + 1; } return s; }"
+                + " function h(n) { var i <- 0, s <- 0; while (i < n) { s <- s + input; i <- i + 1; } return s; }"
+                + " function j(n, c) { var i <- 0; while (i < n) { i <- i + c; } return i; }"
+                + " function k(n) { var i <- 0; while (i < n) { n <- n - 1; i <- i + 1; } return i; }"
+                + " function l(n) { var i <- 0; while (i < n) { i <- i - 1; } return i; }"
+                + " function m(n) { var i <- 0, p <- 1; while (i < n) { p <- p * i; i <- i + 1; } return p; }"));
+    }
+
+    @Test
+    public void testSameResultsAsTheLoop() {
+        String functions = "function up(a, n) { var i <- a, s <- 5; while (i < n) { s <- s + i; i <- i + 1; } return s * 3 + i; }"
+                + " function down(a, n, c) { var i <- a, s <- 7, t <- 0;"
+                + " while (n <= i) { i <- i - 3; s <- s - (2 * i + c); t <- t + c; } return s * 31 + t * 7 + i; }"
+                + " function squares(a, n) { var i <- a, s <- 1; while (i <= n) { s <- s + i * 5 - 9; i <- i + 7; } return s + i; }";
+        int[][] cases = {{0, 0}, {0, 1}, {3, 100}, {-1000, 100000}, {100, 5}, {0, 1000000},
+            {-536870000, -536860000}, {600000000, 600000100}, {2147483600, 2147483640}};
+        StringBuilder entry = new StringBuilder(" function entry() {");
+        for (int[] c : cases) {
+            entry.append(" print up(").append(c[0]).append(", ").append(c[1]).append(");");
+            entry.append(" print down(").append(c[1]).append(", ").append(c[0]).append(", 3);");
+            entry.append(" print squares(").append(c[0]).append(", ").append(c[1]).append(");");
+        }
+        assertSameAsUnoptimized(functions + entry + " return 0; }");
+    }
+
+    @Test
+    public void testSumWrapsAround() {
+        // 0 + 1 + ... + 99999 overflows an int
+        String source = "function entry() { var i <- 0, s <- 0; while (i < 100000) { s <- s + i; i <- i + 1; } return s; }";
+        assertEquals("Returned value: " + (int) (99999L * 100000L / 2), run(source, true));
+        assertSameAsUnoptimized(source);
+    }
+
+    @Test
+    public void testStepBeforeAccumulator() {
+        assertSameAsUnoptimized("function entry() { var i <- 2, s <- 0, t <- 0;"
+                + " while (i < 50) { t <- t + i; i <- i + 4; s <- s + i * i - i; } print t; return s + i; }");
+    }
+
+    @Test
+    public void testNotRunAtAll() {
+        assertSameAsUnoptimized("function f(n) { var i <- 10, s <- 3; while (i < n) { s <- s + i; i <- i + 1; }"
+                + " return s + i; } function entry() { return f(4); }");
+        assertTrue(run("function entry() { var i <- 0; while (i < x) { i <- i + 1; } return i; }", true)
+                .startsWith("Error:"));
+    }
+}
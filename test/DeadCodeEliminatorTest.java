@@ -0,0 +1,76 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeadCodeEliminatorTest extends OptimizerPassTest {
+    private List<Statement> body(String source) {
+        List<Statement> program = SPROLARunner.parse("function f(x) { " + source + " }");
+        return ((FunctionDeclarationStatement) program.get(0)).getBody();
+    }
+
+    @Test
+    public void testPrunesConstantBranches() {
+        List<Statement> body = body("if (1 > 2) { print 1; } elif (x > 0) { print 2; } elif (0) { print 3; }"
+                + " elif (2 = 2) { print 4; } else { print 5; } return x;");
+        IfStatement ifStmt = (IfStatement) body.get(0);
+        assertTrue(ifStmt.getCondition() instanceof BinaryExpression);
+        assertEquals(0, ifStmt.getElifConditions().size());
+        PrintStatement otherwise = (PrintStatement) ifStmt.getElseBranch().get(0);
+        assertEquals(4, ((LiteralExpression) otherwise.getExpression()).getValue());
+    }
+
+    @Test
+    public void testSplicesBlocksThatAlwaysRun() {
+        List<Statement> body = body("if (1) { print x; } run { print 2; } while (0); return x;");
+        assertEquals(3, body.size());
+        assertTrue(body.get(0) instanceof PrintStatement);
+        assertTrue(body.get(1) instanceof PrintStatement);
+
+        // a declaration keeps its block, so it does not outlive it
+        body = body("if (1) { var y <- 2; print y; } return x;");
+        assertTrue(body.get(0) instanceof IfStatement);
+        assertTrue(((IfStatement) body.get(0)).getElifConditions().isEmpty());
+    }
+
+    @Test
+    public void testRemovesDeadLoopsAndUnreachableCode() {
+        assertEquals(1, body("while (0) { print x; } return x;").size());
+        assertEquals(1, body("return x; print x; x <- 2;").size());
+        assertEquals(2, body("print 1; if (x) { return 1; } else { return 2; } print 3;").size());
+        assertEquals(1, body("if (1) { return 1; } print 3;").size());
+    }
+
+    @Test
+    public void testTopLevelReturnEndsOnlyItsStatement() {
+        String source = "var g <- 1; if (1) { g <- 2; return 0; } g <- g + 1;"
+                + " function entry() { return g; }";
+        assertEquals("Returned value: 3", run(source, true));
+    }
+
+    @Test
+    public void testProgramsBehaveAsUnoptimized() {
+        String[] programs = {
+            "function entry() { var x <- 1; if (0) { x <- 5; } elif (x > 0) { x <- 6; } elif (1) { x <- 7; }"
+                    + " else { x <- 8; } print x; run { x <- x + 1; } while (0); return x; }",
+            "function f(n) { if (n > 3) { return 1; } else { return 2; } return 3; }"
+                    + " function entry() { var y <- 1; if (1) { var y <- 10; print y; } print y; return f(5); }",
+            "var g <- 0; while (0) { g <- 1; } run { g <- g + 5; return 1; } while (0);"
+                    + " function entry() { return g; }",
+        };
+        for (String program : programs) {
+            assertSameAsUnoptimized(program);
+        }
+    }
+
+    @Test
+    public void testCountsRemovedNodes() {
+        Optimizer optimizer = new Optimizer();
+        SPROLARunner.parse("function f() { if (0) { print 1; print 2; } return 1; print 3; }", optimizer);
+        // the if with its condition and two prints, then the print after return with its literal
+        assertEquals(8, optimizer.getRemovedNodes("DeadCodeEliminator"));
+        assertTrue(optimizer.getStats().contains("DeadCodeEliminator removed 8"));
+    }
+}
@@ -28,4 +28,21 @@ public class EnvironmentTest {
         env.declare("a", 10);
         assertThrows(Exception.class, () -> env.assign("aa", 3));
     }
+
+    @Test
+    public void testSlots() {
+        Environment env = new Environment();
+        env.declare(0, "g", 5);
+        env.pushFrame(null);
+        env.declare(0, "x", 1);
+        env.declare(1, "y", 2);
+        env.set(0, 1, 7);
+        assertEquals(1, env.get(0, 0));
+        assertEquals(7, env.get(0, 1));
+        assertEquals(5, env.get(1, 0));
+        assertEquals(7, env.lookup("y"));
+        env.popFrame();
+        assertEquals(5, env.get(0, 0));
+        assertThrows(Exception.class, () -> env.lookup("x"));
+    }
 }
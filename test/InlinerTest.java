@@ -0,0 +1,118 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InlinerTest extends OptimizerPassTest {
+    private List<Statement> body(String source, String function) {
+        for (Statement stmt : SPROLARunner.parse(source)) {
+            if (stmt instanceof FunctionDeclarationStatement fn && fn.getName().equals(function)) {
+                return fn.getBody();
+            }
+        }
+        throw new AssertionError("No function " + function);
+    }
+
+    /**
+     * Whether any statement calls the given function.
+     */
+    private static boolean calls(List<Statement> statements, String callee) {
+        boolean[] found = {false};
+        new ASTRewriter() {
+            @Override
+            public Object visitCallExpression(CallExpression expr) {
+                found[0] |= expr.getCallee().equals(callee);
+                return super.visitCallExpression(expr);
+            }
+        }.rewrite(statements);
+        return found[0];
+    }
+
+    @Test
+    public void testSubstitutesReturnedExpression() {
+        List<Statement> body = body("function sq(x) { return x * x; }"
+                + " function f(a) { return sq(a) + sq(3); }", "f");
+        assertFalse(calls(body, "sq"));
+        BinaryExpression sum = (BinaryExpression) ((ReturnStatement) body.get(0)).getValue();
+        // sq(3) folds once inlined
+        assertEquals(9, ((LiteralExpression) sum.getRight()).getValue());
+    }
+
+    @Test
+    public void testExpandsStatementsWithRenamedLocals() {
+        String source = "function g(a, b) { var t <- a * b; t <- t + 1; return t + a; }"
+                + " function entry() { var t <- 2; var r <- g(t + 1, input); print t; return r; }";
+        List<Statement> body = body(source, "entry");
+        assertFalse(calls(body, "g"));
+        VarDeclarationStatement param = (VarDeclarationStatement) body.get(1);
+        assertTrue(param.getDeclarators().get(0).getName().contains("$"));
+        assertSameAsUnoptimized(source);
+    }
+
+    @Test
+    public void testKeepsArgumentOrder() {
+        assertSameAsUnoptimized("function p(n) { print n; return n; } function add(a, b) { return a + b; }"
+                + " function entry() { var s <- add(p(1), p(2)); print add(s, p(3)); return add(p(4), 0); }");
+    }
+
+    @Test
+    public void testLeavesRecursiveFunctions() {
+        String source = "function fact(n) { if (n < 2) { return 1; } return n * fact(n - 1); }"
+                + " function even(n) { if (n = 0) { return 1; } return odd(n - 1); }"
+                + " function odd(n) { if (n = 0) { return 0; } return even(n - 1); }"
+                + " function entry() { return fact(5) + even(4); }";
+        List<Statement> body = body(source, "entry");
+        assertTrue(calls(body, "fact"));
+        assertTrue(calls(body, "even"));
+        assertSameAsUnoptimized(source);
+    }
+
+    @Test
+    public void testRespectsShadowedGlobals() {
+        String source = "var g <- 10; function get() { return g; }"
+                + " function entry() { var g <- 1; return get() + g; }";
+        assertTrue(calls(body(source, "entry"), "get"));
+        assertSameAsUnoptimized(source);
+    }
+
+    @Test
+    public void testLeavesGlobalsDeclaredAfterTheCaller() {
+        String source = "function caller() { return helper(1); } var g <- 5;"
+                + " function helper(x) { return x + g; } function entry() { return caller(); }";
+        assertTrue(calls(body(source, "caller"), "helper"));
+        for (String engine : List.of("interp", "vm", "reg")) {
+            // the VMs cannot address a global the caller was resolved before
+            assertEquals(engine, 6, SPROLARunner.run(SPROLARunner.parse(source), engine));
+        }
+    }
+
+    @Test
+    public void testRespectsBudgetAndDepth() {
+        StringBuilder big = new StringBuilder("function big(x) {");
+        for (int i = 0; i < 10; i++) {
+            big.append(" print x + ").append(i).append(";");
+        }
+        big.append(" return x; } function entry() { return big(1); }");
+        assertTrue(calls(body(big.toString(), "entry"), "big"));
+
+        String chain = "function f0(x) { return x + 1; } function f1(x) { return f0(x) * 2; }"
+                + " function f2(x) { return f1(x) * 2; } function f3(x) { return f2(x) * 2; }"
+                + " function f4(x) { return f3(x) * 2; } function entry() { var y <- 1; return f4(y); }";
+        List<Statement> entry = body(chain, "entry");
+        assertFalse(calls(entry, "f4"));
+        assertTrue(calls(entry, "f1"));
+        assertSameAsUnoptimized(chain);
+    }
+
+    @Test
+    public void testCountsInlinedCalls() {
+        Optimizer optimizer = new Optimizer();
+        // sq(a + 1) is neither a simple argument nor the whole statement, so it stays a call
+        SPROLARunner.parse("function sq(x) { return x * x; } function f(a) { return sq(a) + sq(2) + sq(a + 1); }",
+                optimizer);
+        assertTrue(optimizer.getStats().contains("inlined 2 calls"));
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro-benchmarks for the interpreter. These are plain programs rather than
+ * unit tests; run them with the test classpath:
+ *
+ *   java InterpreterBenchmark            (all cases)
+ *   java InterpreterBenchmark lookup     (one case)
+ *
+ * Each measurement warms up first, then reports the time per operation of
+ * the fastest of several timed rounds.
+ */
+public class InterpreterBenchmark {
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int TIMED_ROUNDS = 10;
+
+    private static final Map<String, Runnable> CASES = new LinkedHashMap<>();
+
+    static {
+        CASES.put("lookup", InterpreterBenchmark::lookupAfterRecursion);
+        CASES.put("recursion", InterpreterBenchmark::recursion);
+        CASES.put("reads", InterpreterBenchmark::variableReads);
+        CASES.put("engines", InterpreterBenchmark::engines);
+        CASES.put("optimizer", InterpreterBenchmark::optimizer);
+        CASES.put("memoize", InterpreterBenchmark::memoize);
+        CASES.put("parallel", InterpreterBenchmark::parallel);
+    }
+
+    public static void main(String[] args) {
+        List<String> names = args.length == 0 ? new ArrayList<>(CASES.keySet()) : List.of(args);
+        for (String name : names) {
+            Runnable benchmark = CASES.get(name);
+            if (benchmark == null) {
+                System.err.println("Unknown benchmark: " + name + " (have " + CASES.keySet() + ")");
+                System.exit(1);
+            }
+            System.out.println("== " + name);
+            benchmark.run();
+        }
+    }
+
+    /**
+     * Time an operation and print the cost of one call to it, taking the
+     * fastest timed round.
+     *
+     * @param label what is being measured
+     * @param ops how many operations one run of the body performs
+     * @param body the work to time
+     * @return nanoseconds per operation
+     */
+    static double measure(String label, long ops, Runnable body) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perOp = (double) best / ops;
+        System.out.printf("%-40s %12.2f ns/op%n", label, perOp);
+        return perOp;
+    }
+
+    /**
+     * Parse a program without running the Resolver, so every variable access
+     * goes through the Environment's lookup by name.
+     */
+    static List<Statement> parseUnresolved(String source) {
+        Parser parser = new Parser(new Lexer(source).tokenize());
+        List<Statement> program = new ArrayList<>();
+        while (!parser.isAtEnd()) {
+            program.add(parser.parse());
+        }
+        return program;
+    }
+
+    /**
+     * Lookup cost after many calls that return from inside nested blocks.
+     * Scopes left behind by such returns would make each lookup walk
+     * further; with frames unwound on every exit the cost stays flat.
+     */
+    private static void lookupAfterRecursion() {
+        Interpreter interp = SPROLARunner.load(parseUnresolved(
+                "var x <- 1;"
+                + "function down(n) { if (n = 0) { return 0; } else { while (1) { return down(n - 1); } } }"));
+        Expression read = new BinaryExpression(
+                new VariableExpression("x", 1), TokenType.PLUS, new VariableExpression("x", 1), 1);
+        int lookups = 1_000_000;
+        int calls = 0;
+        for (int target : new int[] {0, 1_000, 10_000, 100_000}) {
+            for (; calls < target; calls++) {
+                interp.callFunction("down", List.of(8));
+            }
+            measure("x + x after " + calls + " calls", lookups * 2L, () -> {
+                for (int i = 0; i < lookups; i++) {
+                    interp.evalInt(read);
+                }
+            });
+        }
+    }
+
+    static final String RECURSIVE_PROGRAM =
+            "function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+            + "function factorial(x) { if (x = 0) { return 1; } else { return x * factorial(x - 1); } }";
+
+    /**
+     * Recursive calls that return from inside blocks, the hot path for
+     * function returns.
+     */
+    private static void recursion() {
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(RECURSIVE_PROGRAM));
+        List<Integer> fibArgs = List.of(20);
+        List<Integer> factorialArgs = List.of(12);
+        // fib(20) makes 21891 calls, factorial(12) makes 13
+        measure("fib(20) per call", 21_891, () -> interp.callFunction("fib", fibArgs));
+        measure("factorial(12) x 1000 per call", 13_000, () -> {
+            for (int i = 0; i < 1000; i++) {
+                interp.callFunction("factorial", factorialArgs);
+            }
+        });
+    }
+
+    static final String COUNTING_LOOP =
+            "function count(n) { var i <- 0, limit <- n, step <- 1;"
+            + " while (i < limit) { i <- i + step; } return i; }";
+
+    /**
+     * Variable reads in while conditions and bodies, both through resolved
+     * slots and through the by-name lookup used for unresolved code.
+     */
+    private static void variableReads() {
+        int n = 100_000;
+        List<Integer> args = List.of(n);
+        // three reads per iteration: i, limit and step (plus i again on the right)
+        Interpreter resolved = SPROLARunner.load(SPROLARunner.parse(COUNTING_LOOP));
+        measure("resolved, per read", n * 4L, () -> resolved.callFunction("count", args));
+        Interpreter byName = SPROLARunner.load(parseUnresolved(COUNTING_LOOP));
+        measure("by name, per read", n * 4L, () -> byName.callFunction("count", args));
+    }
+
+    private static final String[] ENGINES = {"interp", "vm", "reg", "jit", "closure", "tiered", "trace"};
+
+    /**
+     * Whole programs on each engine: the example programs in files/, then
+     * a recursive and a looping one big enough to dominate start-up costs.
+     * Each run includes compiling for the engines that compile, and output
+     * is discarded.
+     */
+    private static void engines() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("files"), "*.txt")) {
+            for (Path file : files) {
+                programs.put(file.getFileName().toString(), new String(Files.readAllBytes(file)));
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read files/: " + e);
+        }
+        int fileRuns = 500;
+        int fileCount = programs.size();
+        programs.put("fib(22)", RECURSIVE_PROGRAM + "function entry() { return fib(22) + factorial(12); }");
+        programs.put("count(300000)", COUNTING_LOOP + "function entry() { return count(300000); }");
+
+        int index = 0;
+        for (Map.Entry<String, String> program : programs.entrySet()) {
+            // the example programs are tiny, so time a batch of runs of each
+            int runs = index++ < fileCount ? fileRuns : 1;
+            List<Statement> statements;
+            try {
+                statements = SPROLARunner.parse(program.getValue());
+            } catch (RuntimeException e) {
+                continue;   // rejected by the parser; no engine runs it
+            }
+            for (String engine : ENGINES) {
+                measure(program.getKey() + " [" + engine + "], per run", runs, () -> {
+                    for (int i = 0; i < runs; i++) {
+                        runQuietly(statements, engine);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void runQuietly(List<Statement> program, String engine) {
+        PrintStream out = System.out;
+        InputStream in = System.in;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setIn(new ByteArrayInputStream("7\n".getBytes()));
+        try {
+            SPROLARunner.run(program, engine);
+        } catch (RuntimeException e) {
+            // the error programs in files/ are expected to fail
+        } finally {
+            System.setOut(out);
+            System.setIn(in);
+        }
+    }
+
+    static final String HELPER_PROGRAM =
+            "function sq(x) { return x * x; }"
+            + " function clamp(v, lo, hi) { return max(lo, min(v, hi)); }"
+            + " function dist(a, b) { var d <- a - b; return sq(d); }"
+            + " function helpers(n) { var i <- 0, total <- 0;"
+            + " while (i < n) { var s <- dist(i, 7); total <- total + clamp(s, 0, 1000) + sq(i) % 13; i <- i + 1; }"
+            + " return total; }";
+
+    static final String INVARIANT_PROGRAM =
+            "function invariant(a, b) { var i <- 0, s <- 0; while (i < a) { var j <- 0;"
+            + " while (j < a * b / 100) { s <- s + max(a, b) * 3 - i; j <- j + 1; } i <- i + 1; } return s; }";
+
+    static final String SERIES_PROGRAM =
+            "function series(n) { var i <- 0, s <- 0, t <- 0;"
+            + " while (i < n) { s <- s + i; t <- t + 3 * i + 1; i <- i + 1; } return s - t; }";
+
+    static final String REPEATED_PROGRAM =
+            "function repeated(a, n) { var i <- 0, s <- 0; while (i < n) {"
+            + " var d <- (a + i) * (a + i) - (a + i); s <- s + d % 7 + abs(a - i) * abs(a - i); i <- i + 1; }"
+            + " return s; }";
+
+    /**
+     * Programs the Optimizer rewrites, run with and without it.
+     */
+    private static void optimizer() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        programs.put("helpers(100000)", HELPER_PROGRAM + "function entry() { return helpers(100000); }");
+        programs.put("invariant(300, 300)", INVARIANT_PROGRAM + "function entry() { return invariant(300, 300); }");
+        programs.put("series(1000000)", SERIES_PROGRAM + "function entry() { return series(1000000); }");
+        programs.put("repeated(3, 300000)", REPEATED_PROGRAM + "function entry() { return repeated(3, 300000); }");
+        for (Map.Entry<String, String> program : programs.entrySet()) {
+            List<Statement> plain = SPROLARunner.parse(program.getValue(), false);
+            List<Statement> optimized = SPROLARunner.parse(program.getValue());
+            for (String engine : List.of("interp", "closure")) {
+                measure(program.getKey() + " [" + engine + "], plain", 1, () -> runQuietly(plain, engine));
+                measure(program.getKey() + " [" + engine + "], optimized", 1, () -> runQuietly(optimized, engine));
+            }
+        }
+    }
+
+    /**
+     * The interpreter with and without memoization: a pure recursive
+     * function that repeats calls, and a loop whose calls never repeat.
+     * Each run starts with empty tables.
+     */
+    private static void memoize() {
+        Map<String, String> programs = new LinkedHashMap<>();
+        programs.put("fib(22)", RECURSIVE_PROGRAM + "function entry() { return fib(22) + factorial(12); }");
+        programs.put("helpers(100000)", HELPER_PROGRAM + "function entry() { return helpers(100000); }");
+        for (Map.Entry<String, String> program : programs.entrySet()) {
+            List<Statement> statements = SPROLARunner.parse(program.getValue());
+            measure(program.getKey() + " [interp], plain", 1, () -> SPROLARunner.run(statements, "interp"));
+            measure(program.getKey() + " [interp], memoized", 1, () -> {
+                RunOptions options = new RunOptions("interp");
+                options.setMemoizer(new Memoizer(statements));
+                SPROLARunner.run(statements, options);
+            });
+        }
+    }
+
+    /**
+     * fib(25) on the interpreter with its pure calls forked onto 1, 2, 4
+     * ... threads, up to the number of cores, against a plain sequential
+     * run. The speedup is relative to the sequential run.
+     */
+    private static void parallel() {
+        List<Statement> program = SPROLARunner.parse(RECURSIVE_PROGRAM + "function entry() { return fib(25); }");
+        double sequential = measure("fib(25) [interp], sequential", 1, () -> SPROLARunner.run(program, "interp"));
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(cores);
+        for (int threads : counts) {
+            RunOptions options = new RunOptions("interp");
+            ParallelEvaluator parallel = new ParallelEvaluator(program, threads);
+            options.setParallelEvaluator(parallel);
+            double time = measure("fib(25) [interp], " + threads + " threads", 1,
+                    () -> SPROLARunner.run(program, options));
+            parallel.shutdown();
+            System.out.printf("%-40s %12.2f x%n", "  speedup", sequential / time);
+        }
+    }
+}
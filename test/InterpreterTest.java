@@ -9,6 +9,7 @@ import java.io.PrintStream;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class InterpreterTest extends Interpreter {
     private Interpreter interpreter;
@@ -130,6 +131,24 @@ public class InterpreterTest extends Interpreter {
         assertEquals(25, expr.accept(interpreter));
     }
 
+    @Test
+    public void testEvalIntOutsideIntegerCache() {
+        // (100000 * 3) - -7
+        Expression expr = new BinaryExpression(
+                new BinaryExpression(
+                        new LiteralExpression(100000, 1),
+                        TokenType.STAR,
+                        new LiteralExpression(3, 1),
+                        1
+                ),
+                TokenType.MINUS,
+                new UnaryExpression(TokenType.MINUS, new LiteralExpression(7, 1), 1),
+                1
+        );
+        assertEquals(300007, interpreter.evalInt(expr));
+        assertEquals(300007, expr.accept(interpreter));
+    }
+
     @Test
     public void testPrintStatement() {
         Interpreter interpreter = new Interpreter();
@@ -295,10 +314,11 @@ public class InterpreterTest extends Interpreter {
         assertEquals(2, interpreter.environment.lookup("n"));
     }
 
-    @Test(expected = Interpreter.Return.class)
-    public void testVisitReturnStatementThrows() {
+    @Test
+    public void testVisitReturnStatementCompletes() {
         Statement ret = new ReturnStatement(new LiteralExpression(123,1), 1);
-        ret.accept(interpreter);
+        assertEquals(Completion.RETURN, ret.accept(interpreter));
+        assertEquals(123, interpreter.environment.currentFrame().getReturnValue());
     }
 
     @Test
@@ -322,6 +342,79 @@ public class InterpreterTest extends Interpreter {
         assertEquals(6, result);
     }
 
+    @Test
+    public void testScopeDepthConstantAfterDeepRecursion() {
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(
+                // not tail calls, so every level nests; 300 fits the test thread's stack
+                "function down(n) { if (n = 0) { return 0; } else { while (1) { return 1 + down(n - 1); } } }"
+                + "function boom(n) { if (n = 0) { return 1 / n; } else { while (1) { return 1 + boom(n - 1); } } }"));
+        int depth = interp.environment.getScopeDepth();
+        int size = interp.environment.getSize();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(300, interp.callFunction("down", List.of(300)));
+            assertEquals(depth, interp.environment.getScopeDepth());
+            assertEquals(size, interp.environment.getSize());
+            assertEquals(1, interp.environment.getFrameCount());
+        }
+
+        // an error thrown deep inside nested blocks unwinds the same way
+        try {
+            interp.callFunction("boom", List.of(300));
+            fail("expected division by zero");
+        } catch (ArithmeticException expected) {
+            assertEquals(depth, interp.environment.getScopeDepth());
+            assertEquals(size, interp.environment.getSize());
+            assertEquals(1, interp.environment.getFrameCount());
+        }
+    }
+
+    @Test
+    public void testRecursesAsDeepAsTheBoxedInterpreter() {
+        // the interpreter this one replaced ran down(1073) before its stack overflowed
+        List<Statement> program = SPROLARunner.parse(
+                "function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(1073); }");
+        assertEquals(1073, SPROLARunner.run(program, "interp"));
+        RunOptions options = new RunOptions("interp");
+        options.setMemoizer(new Memoizer(program));
+        assertEquals(1073, SPROLARunner.run(program, options));
+    }
+
+    @Test
+    public void testCallSiteCachesTargetUntilRedefined() {
+        FunctionDeclarationStatement inc = new FunctionDeclarationStatement(
+                "f",
+                List.of("x"),
+                List.of(new ReturnStatement(new BinaryExpression(
+                        new VariableExpression("x", 1), TokenType.PLUS, new LiteralExpression(1, 1), 1), 1)),
+                1
+        );
+        inc.accept(interpreter);
+        CallExpression call = new CallExpression("f", List.of(new LiteralExpression(5, 1)), 1);
+        assertEquals(6, call.accept(interpreter));
+        CallTarget target = call.getTarget();
+        assertEquals(inc, target.getFunction());
+        assertEquals(6, call.accept(interpreter));
+        assertEquals(target, call.getTarget());
+
+        FunctionDeclarationStatement twice = new FunctionDeclarationStatement(
+                "f",
+                List.of("x"),
+                List.of(new ReturnStatement(new BinaryExpression(
+                        new VariableExpression("x", 1), TokenType.STAR, new LiteralExpression(2, 1), 1), 1)),
+                1
+        );
+        twice.accept(interpreter);
+        assertEquals(10, call.accept(interpreter));
+        assertEquals(twice, call.getTarget().getFunction());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testArgumentCountMismatchThrows() {
+        new CallExpression("max", List.of(new LiteralExpression(1, 1)), 1).accept(interpreter);
+    }
+
     @Test
     public void testCallBuiltinsInput() {
         System.setIn(new ByteArrayInputStream("42\n".getBytes()));
@@ -419,6 +512,17 @@ public class InterpreterTest extends Interpreter {
         new CallExpression("noSuchFunc", List.of(), 1).accept(interpreter);
     }
 
+    @Test
+    public void testBuiltinRefEvaluatesToName() {
+        assertEquals("min", new BuiltinRefExpression(BuiltinFunction.MIN, 1).accept(interpreter));
+    }
+
+    @Test
+    public void testVariableNamedLikeBuiltin() {
+        interpreter.environment.declare("max", 4);
+        assertEquals(4, new VariableExpression("max", 1).accept(interpreter));
+    }
+
     /** Referencing an undeclared variable should throw */
     @Test(expected = RuntimeException.class)
     public void testVariableLookupError() {
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the VMTest programs with functions compiled to JVM bytecode, plus
+ * checks of when the compiled code is used.
+ */
+public class JitTest extends VMTest {
+    @Override
+    protected String engine() {
+        return "jit";
+    }
+
+    @Override
+    @Test
+    public void testDeepRecursion() {
+        // compiled calls use the Java stack, but a compiled frame is much
+        // smaller than the interpreter's chain of visitor calls
+        String source = "function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(5000); }";
+        assertEquals("Returned value: 5000", run(source, engine()));
+    }
+
+    private Interpreter compile(String source) {
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(source));
+        assertTrue(interp.compileFunctions());
+        return interp;
+    }
+
+    @Test
+    public void testFunctionsBecomeMethodsOfAHiddenClass() {
+        Interpreter interp = compile("function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+                + " function entry() { return fib(20); }");
+        JitCode code = interp.getCompiledCode();
+        assertTrue(code.getCompiledClass().isHidden());
+        assertTrue(code.has("fib"));
+        assertEquals(6765, interp.callFunction("entry", Collections.emptyList()));
+    }
+
+    @Test
+    public void testCompiledCodeSharesGlobalsWithInterpreter() {
+        Interpreter interp = compile("var total <- 0;"
+                + " function add(n) { var i <- 0; while (i < n) { total <- total + i; i <- i + 1; } return total; }"
+                + " function entry() { return add(10); }");
+        assertEquals(45, interp.callFunction("entry", Collections.emptyList()));
+        assertEquals(90, interp.callFunction("add", List.of(10)));
+    }
+
+    @Test
+    public void testRedefinedFunctionIsInterpreted() {
+        // unoptimized, so that entry() still calls f() rather than inlining it
+        Interpreter interp = SPROLARunner.load(
+                SPROLARunner.parse("function f() { return 1; } function entry() { return f(); }", false));
+        assertTrue(interp.compileFunctions());
+        assertEquals(1, interp.callFunction("entry", Collections.emptyList()));
+        interp.defineFunction("f", (FunctionDeclarationStatement)
+                SPROLARunner.parse("function f() { return 2; }").get(0));
+        assertEquals(2, interp.callFunction("entry", Collections.emptyList()));
+    }
+
+    @Test
+    public void testNestedFunctionsStayInterpreted() {
+        String source = "function outer(x) { function inner(y) { return x + y; } return inner(2); }"
+                + " function entry() { return outer(40); }";
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(source));
+        assertFalse(interp.compileFunctions());
+        assertNull(interp.getCompiledCode());
+        assertSameAsInterpreter(source);
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoopInvariantHoisterTest extends OptimizerPassTest {
+    private static List<Statement> hoist(String source) {
+        return new LoopInvariantHoister().rewrite(parse(source));
+    }
+
+    private static List<Statement> body(List<Statement> program) {
+        return ((FunctionDeclarationStatement) program.get(0)).getBody();
+    }
+
+    @Test
+    public void testHoistsConditionBeforeWhile() {
+        List<Statement> body = body(hoist(
+                "function f(n, m) { var i <- 0; while (i < n * m) { i <- i + 1; } return i; }"));
+        assertEquals(4, body.size());
+        VarDeclarationStatement temp = (VarDeclarationStatement) body.get(1);
+        assertEquals("(STAR n m)", LoopInvariantHoister.key(temp.getDeclarators().get(0).getInitializer()));
+        WhileStatement loop = (WhileStatement) body.get(2);
+        BinaryExpression condition = (BinaryExpression) loop.getCondition();
+        assertEquals(temp.getDeclarators().get(0).getName(), ((VariableExpression) condition.getRight()).getName());
+    }
+
+    @Test
+    public void testAssignedVariablesStayInLoop() {
+        List<Statement> body = body(hoist(
+                "function f(n) { var i <- 0; while (i < n * 2) { n <- n - 1; i <- i + 1; } return i; }"));
+        assertEquals(3, body.size());
+        assertTrue(body.get(1) instanceof WhileStatement);
+    }
+
+    @Test
+    public void testSharesTemporaryAndHoistsBuiltins() {
+        LoopInvariantHoister hoister = new LoopInvariantHoister();
+        List<Statement> body = body(hoister.rewrite(parse("function f(a, b) { var s <- 0;"
+                + " run { s <- s + max(a, b) + max(a, b); } while (s < 100); return s; }")));
+        VarDeclarationStatement temp = (VarDeclarationStatement) body.get(1);
+        assertEquals(1, temp.getDeclarators().size());
+        assertEquals(2, hoister.getHoistedExpressions());
+        assertTrue(body.get(2) instanceof RunStatement);
+    }
+
+    @Test
+    public void testFailingExpressionsStay() {
+        // the loop may never run, so a / b must not be computed before it
+        List<Statement> body = body(hoist(
+                "function f(a, b, n) { var i <- 0; while (i < n) { i <- i + a / b; } return i; }"));
+        assertEquals(3, body.size());
+    }
+
+    @Test
+    public void testCallsAndGlobalsStay() {
+        List<Statement> program = hoist("var g <- 2;"
+                + " function f(n) { var i <- 0; while (i < n) { i <- i + g * 2 + sq(n); } return i; }"
+                + " function sq(x) { return x * x; }");
+        assertEquals(3, ((FunctionDeclarationStatement) program.get(1)).getBody().size());
+    }
+
+    @Test
+    public void testBehaviourIsUnchanged() {
+        assertSameAsUnoptimized("function f(n, m) { var i <- 0, t <- 0; while (i < n * m) {"
+                + " var k <- abs(n - m) * 3; t <- t + k + i % 7; i <- i + 1; } return t; }"
+                + " function entry() { return f(7, 9) + f(0, 5); }");
+        // a run body runs once even if its condition is false from the start
+        assertSameAsUnoptimized("function f(a, b) { var c <- 0; run { c <- c + a * b; print c; } while (a * b < 0);"
+                + " return c; } function entry() { return f(3, 4); }");
+        assertSameAsUnoptimized("function f(a, b) { var i <- 0, s <- 0; while (i < 5) { var j <- 0;"
+                + " while (j < a + b) { s <- s + a * b - i; j <- j + 1; } i <- i + 1; } return s; }"
+                + " function entry() { return f(2, 3); }");
+        assertSameAsUnoptimized("function f(a) { var i <- 0; while (i < 3) { i <- i + 1; } return a / 0; }"
+                + " function entry() { return f(4); }");
+    }
+}
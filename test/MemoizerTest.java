@@ -0,0 +1,151 @@
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoizerTest {
+    private static FunctionDeclarationStatement function(List<Statement> program, String name) {
+        FunctionDeclarationStatement found = null;
+        for (Statement stmt : program) {
+            if (stmt instanceof FunctionDeclarationStatement fn && fn.getName().equals(name)) {
+                found = fn;
+            }
+        }
+        return found;
+    }
+
+    private static int run(List<Statement> program, Memoizer memoizer) {
+        return (Integer) SPROLARunner.load(program, memoizer).callFunction("entry", Collections.emptyList());
+    }
+
+    @Test
+    public void testPureFunctions() {
+        List<Statement> program = SPROLARunner.parse("var g <- 1;"
+                + " function sq(x) { var y <- x * x; return y; }"
+                + " function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+                + " function uses(x) { return sq(x) + abs(x); }", false);
+        EffectAnalyzer effects = new EffectAnalyzer(program);
+        assertTrue(effects.isPure(function(program, "sq")));
+        assertTrue(effects.isPure(function(program, "fib")));
+        assertTrue(effects.isPure(function(program, "uses")));
+        assertFalse(effects.callsFunctions(function(program, "sq")));
+        assertTrue(effects.callsFunctions(function(program, "uses")));
+    }
+
+    @Test
+    public void testEffectsMakeFunctionsImpure() {
+        List<Statement> program = SPROLARunner.parse("var g <- 1;"
+                + " function prints(x) { print x; return x; }"
+                + " function reads(x) { return x + input; }"
+                + " function writes(x) { g <- x; return x; }"
+                + " function global(x) { return x + g; }"
+                + " function caller(x) { return prints(x); }"
+                + " function undefined(x) { return missing(x); }", false);
+        EffectAnalyzer effects = new EffectAnalyzer(program);
+        for (String name : List.of("prints", "reads", "writes", "global", "caller", "undefined")) {
+            assertFalse(name, effects.isPure(function(program, name)));
+        }
+    }
+
+    @Test
+    public void testEveryDefinitionMustBePure() {
+        List<Statement> program = SPROLARunner.parse(
+                "function f(x) { return x; } function f(x) { print x; return x; }"
+                + " function g(x) { return f(x); }", false);
+        assertFalse(new EffectAnalyzer(program).isPure(function(program, "g")));
+    }
+
+    @Test
+    public void testNestedFunctionsDisableMemoization() {
+        List<Statement> program = SPROLARunner.parse(
+                "function f(x) { return g(x); } function g(x) { return x; }"
+                + " function h() { function g(x) { print x; return x; } return 0; }", false);
+        assertFalse(new EffectAnalyzer(program).isPure(function(program, "f")));
+    }
+
+    @Test
+    public void testFibRunsEachArgumentOnce() {
+        List<Statement> program = SPROLARunner.parse(
+                "function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+                + " function entry() { return fib(40); }", false);
+        Memoizer memoizer = new Memoizer(program);
+        // entry() calls fib, so it is memoized too
+        assertEquals(2, memoizer.getMemoizedFunctions());
+        assertEquals(102334155, run(program, memoizer));
+        // entry() and fib(0) to fib(40) miss once each; from fib(3) up the
+        // second recursive call hits
+        assertEquals(42, memoizer.getMisses());
+        assertEquals(38, memoizer.getHits());
+    }
+
+    @Test
+    public void testImpureFunctionsRunEveryTime() {
+        List<Statement> program = SPROLARunner.parse("var calls <- 0;"
+                + " function count(n) { calls <- calls + 1; return n; }"
+                + " function twice(n) { return count(n) + count(n); }"
+                + " function entry() { var a <- twice(1) + twice(1); return calls; }", false);
+        Memoizer memoizer = new Memoizer(program);
+        assertEquals(0, memoizer.getMemoizedFunctions());
+        assertEquals(4, run(program, memoizer));
+    }
+
+    @Test
+    public void testFailedCallsAreNotRemembered() {
+        List<Statement> program = SPROLARunner.parse(
+                "function inv(n) { return 100 / n; } function f(n) { return inv(n); }", false);
+        Memoizer memoizer = new Memoizer(program);
+        Interpreter interp = SPROLARunner.load(program, memoizer);
+        for (int i = 0; i < 2; i++) {
+            try {
+                interp.callFunction("f", List.of(0));
+            } catch (ArithmeticException e) {
+                // expected
+            }
+        }
+        assertEquals(2, memoizer.getMisses());
+        assertEquals(25, interp.callFunction("f", List.of(4)));
+    }
+
+    @Test
+    public void testTableFindsWhatWasPut() {
+        MemoTable table = new MemoTable(2);
+        assertEquals(-1, table.find(new int[] {1, 2}));
+        for (int i = 0; i < 1000; i++) {
+            table.put(new int[] {i, -i}, i * 3);
+        }
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++) {
+            int slot = table.find(new int[] {i, -i});
+            assertTrue(slot >= 0);
+            assertEquals(i * 3, table.valueAt(slot));
+        }
+        assertEquals(-1, table.find(new int[] {-1, 1}));
+        assertEquals(1000, table.getHits());
+        assertEquals(2, table.getMisses());
+    }
+
+    @Test
+    public void testFullTableEvicts() {
+        MemoTable table = new MemoTable(1, 64);
+        for (int i = 0; i < 10000; i++) {
+            table.put(new int[] {i}, i);
+        }
+        assertTrue(table.size() <= 64);
+        assertTrue(table.getEvictions() > 0);
+        // the newest entry is always kept
+        int slot = table.find(new int[] {9999});
+        assertEquals(9999, table.valueAt(slot));
+    }
+
+    @Test
+    public void testZeroArityKeys() {
+        MemoTable table = new MemoTable(0);
+        assertEquals(-1, table.find(new int[0]));
+        table.put(new int[0], 7);
+        assertEquals(7, table.valueAt(table.find(new int[0])));
+    }
+}
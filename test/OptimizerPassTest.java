@@ -0,0 +1,62 @@
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * An optimizer pass must not change what a program does. The tests of
+ * each pass extend this to run programs with and without the optimizer
+ * and compare what they print, what entry() returns and which error they
+ * raise.
+ */
+public abstract class OptimizerPassTest {
+    private final PrintStream originalOut = System.out;
+    private final InputStream originalIn = System.in;
+
+    @After
+    public void restoreStreams() {
+        System.setOut(originalOut);
+        System.setIn(originalIn);
+    }
+
+    /**
+     * Lex and parse a program, without optimizing or resolving it, for a
+     * single pass to rewrite.
+     */
+    protected static List<Statement> parse(String source) {
+        Parser parser = new Parser(new Lexer(source).tokenize());
+        List<Statement> program = new ArrayList<>();
+        while (!parser.isAtEnd()) {
+            program.add(parser.parse());
+        }
+        return program;
+    }
+
+    /**
+     * Run a program on the interpreter and describe everything it did.
+     */
+    protected String run(String source, boolean optimize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        System.setIn(new ByteArrayInputStream("7\n".getBytes()));
+        String result;
+        try {
+            result = "Returned value: " + SPROLARunner.run(SPROLARunner.parse(source, optimize), "interp");
+        } catch (RuntimeException e) {
+            result = "Error: " + e.getMessage();
+        } finally {
+            System.setOut(originalOut);
+        }
+        return out + result;
+    }
+
+    protected void assertSameAsUnoptimized(String source) {
+        assertEquals(source, run(source, false), run(source, true));
+    }
+}
@@ -0,0 +1,104 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelEvaluatorTest {
+    private static final String FIB =
+            "function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }";
+
+    private final List<ParallelEvaluator> evaluators = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ParallelEvaluator parallel : evaluators) {
+            parallel.shutdown();
+        }
+    }
+
+    private ParallelEvaluator evaluator(List<Statement> program, int threads) {
+        ParallelEvaluator parallel = new ParallelEvaluator(program, threads);
+        evaluators.add(parallel);
+        return parallel;
+    }
+
+    private static int run(List<Statement> program, Memoizer memoizer, ParallelEvaluator parallel) {
+        RunOptions options = new RunOptions("interp");
+        options.setMemoizer(memoizer);
+        options.setParallelEvaluator(parallel);
+        return SPROLARunner.run(program, options);
+    }
+
+    private String run(String source, int threads) {
+        List<Statement> program = SPROLARunner.parse(source);
+        try {
+            return "Returned value: " + run(program, null, evaluator(program, threads));
+        } catch (RuntimeException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    @Test
+    public void testOnlyCallsOfPureCallingFunctionsAreForkable() {
+        List<Statement> program = SPROLARunner.parse(FIB
+                + " function sq(x) { return x * x; }"
+                + " function leaves(n) { return sq(n) + sq(n + 1); }"
+                + " function noisy(n) { print n; return fib(n - 1) + fib(n - 2); }");
+        ParallelEvaluator parallel = evaluator(program, 2);
+        // only fib's own body: sq is too small, and noisy prints
+        assertEquals(1, parallel.getForkableExpressions());
+        FunctionDeclarationStatement fib = (FunctionDeclarationStatement) program.get(0);
+        ReturnStatement ret = (ReturnStatement) fib.getBody().get(1);
+        assertTrue(((BinaryExpression) ret.getValue()).isForkable());
+    }
+
+    @Test
+    public void testSameResultOnAnyNumberOfThreads() {
+        String source = FIB + " function entry() { return fib(22) - fib(21); }";
+        for (int threads : new int[] {1, 2, 4}) {
+            assertEquals("Returned value: 6765", run(source, threads));
+        }
+    }
+
+    @Test
+    public void testCallsAreForked() {
+        List<Statement> program = SPROLARunner.parse(FIB + " function entry() { return fib(20); }");
+        ParallelEvaluator parallel = evaluator(program, 2);
+        assertEquals(6765, run(program, null, parallel));
+        assertTrue(parallel.getForks() > 0);
+    }
+
+    @Test
+    public void testMemoizedCallsAreNotForked() {
+        List<Statement> program = SPROLARunner.parse(FIB + " function entry() { return fib(20); }");
+        ParallelEvaluator parallel = evaluator(program, 2);
+        assertEquals(6765, run(program, new Memoizer(program), parallel));
+        assertEquals(0, parallel.getForks());
+    }
+
+    @Test
+    public void testErrorsKeepTheirMessage() {
+        String source = "function down(n) { if (n = 0) { return 1 / n; } return down(n - 1) + 1; }"
+                + " function both(a, b) { return down(a) + down(b); }";
+        assertEquals("Error: / by zero", run(source + " function entry() { return both(5, 6); }", 2));
+        assertEquals("Error: Argument count mismatch in call to: fib",
+                run(FIB + " function wrong(n) { return fib(n, 1); }"
+                        + " function entry() { return fib(5) + wrong(5); }", 2));
+    }
+
+    @Test
+    public void testLeftErrorWins() {
+        // sequentially, the left operand fails before the right one runs
+        String source = "function bad(n) { return f(n) + g(n); }"
+                + " function f(n) { return id(n) / 0; } function g(n) { return id(n) + missing(n); }"
+                + " function id(n) { return n; }"
+                + " function entry() { return bad(1); }";
+        assertEquals("Error: / by zero", run(source, 4));
+        assertFalse(run(source, 4).contains("missing"));
+    }
+}
@@ -307,6 +307,19 @@ public class ParserTest {
         assertEquals("abs", absCall.getCallee());
     }
 
+    @Test
+    public void testBuiltinNameAsValue() {
+        Expression expr = parseExpression("abs;");
+        assertTrue("Should be a built-in reference", expr instanceof BuiltinRefExpression);
+        assertEquals(BuiltinFunction.ABS, ((BuiltinRefExpression) expr).getFunction());
+
+        // a declared variable with a built-in's name is an ordinary variable
+        Parser parser = new Parser(tokenize("var max <- 3; max + 1;"));
+        parser.parse();
+        Expression sum = ((ExpressionStatement) parser.parse()).getExpression();
+        assertTrue("Should be a variable", ((BinaryExpression) sum).getLeft() instanceof VariableExpression);
+    }
+
     @Test
     public void testWhileLoop() {
         // First declare the variable, then use it in a while loop
@@ -0,0 +1,132 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileTest {
+    // mix has 34 nodes, more than the Inliner takes without a profile
+    private static final String SOURCE = "function mix(x) { var a <- x * 3 + 1; var b <- a * a - x;"
+            + " var c <- b % 7 + a; var d <- c * 2 - b; var e <- d + c * a; return e % 1000; }\n"
+            + "function f(n) { var i <- 0, s <- 0; while (i < n) {\n"
+            + " if (i % 50 = 0) { s <- s + 1; } else { var m <- mix(i); s <- s + m; }\n"
+            + " if (i < 0) { var m <- mix(-i); s <- s + m; } i <- i + 1; } return s; }\n"
+            + "function entry() { return f(3000); }";
+
+    /**
+     * Run a program with a profile, and save it the way the runner does.
+     */
+    private static int runProfiled(String source, Profile profile, String engine, TieredCompiler tiers,
+                                   Path file) throws IOException {
+        Optimizer optimizer = new Optimizer();
+        optimizer.setProfile(profile);
+        RunOptions options = new RunOptions(engine);
+        options.setTieredCompiler(tiers);
+        options.setProfile(profile);
+        int result = SPROLARunner.run(SPROLARunner.parse(source, optimizer), options);
+        profile.save(file);
+        return result;
+    }
+
+    private static Path tempFile() throws IOException {
+        Path file = Files.createTempFile("sprola", ".profile");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testCountsAreSavedForTheSameSourceOnly() throws IOException {
+        Path file = tempFile();
+        String hash = Profile.hash(SOURCE);
+        int expected = SPROLARunner.run(SPROLARunner.parse(SOURCE), "interp");
+        assertEquals(expected, runProfiled(SOURCE, new Profile(hash), "interp", null, file));
+
+        Profile profile = Profile.load(file, hash);
+        assertEquals(1, profile.getRuns());
+        assertEquals(1, profile.getEntries("f"));
+        assertEquals(3000, profile.getLoopIterations("f"));
+        assertEquals(2940, profile.getCalls("f", 3, "mix"));
+        assertEquals(0, profile.getCalls("f", 4, "mix"));
+        assertTrue(profile.isHotCall("f", 3, "mix"));
+        // f ran once, too few times for its site that never ran to be cold
+        assertFalse(profile.isColdCall("f", 4, "mix"));
+
+        assertEquals(0, Profile.load(file, Profile.hash(SOURCE + " ")).getSites());
+        Files.writeString(file, "# SPROLA profile " + hash + "\ncall f:3:mix many\n");
+        assertEquals(0, Profile.load(file, hash).getSites());
+    }
+
+    @Test
+    public void testHotCallSiteInlinesLargerFunction() throws IOException {
+        Path file = tempFile();
+        String hash = Profile.hash(SOURCE);
+        int expected = runProfiled(SOURCE, new Profile(hash), "interp", null, file);
+
+        Optimizer optimizer = new Optimizer();
+        optimizer.setProfile(Profile.load(file, hash));
+        List<Statement> program = SPROLARunner.parse(SOURCE, optimizer);
+        // only the site that ran gets mix's body
+        assertTrue(optimizer.getStats(), optimizer.getStats().contains("inlined 1 calls"));
+        assertEquals(expected, SPROLARunner.run(program, "interp"));
+    }
+
+    @Test
+    public void testRarelyTakenArmsAreMarkedForTheJit() throws IOException {
+        Path file = tempFile();
+        String hash = Profile.hash(SOURCE);
+        int expected = runProfiled(SOURCE, new Profile(hash), "interp", null, file);
+
+        Profile profile = Profile.load(file, hash);
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(SOURCE));
+        interp.setProfile(profile);
+        List<IfStatement> ifs = new ArrayList<>();
+        for (Statement stmt : ((WhileStatement) interp.symbolTable.lookup("f").getBody().get(1)).getBody()) {
+            if (stmt instanceof IfStatement ifStatement) {
+                ifs.add(ifStatement);
+            }
+        }
+        // taken 60 of 3000 times, and never
+        assertTrue(ifs.get(0).getColdArms()[0]);
+        assertTrue(ifs.get(1).getColdArms()[0]);
+
+        assertEquals(expected, runProfiled(SOURCE, Profile.load(file, hash), "jit", null, file));
+        assertEquals(2, Profile.load(file, hash).getRuns());
+    }
+
+    @Test
+    public void testProfiledFunctionTiersUpAtFirstCall() throws IOException {
+        Path file = tempFile();
+        // fib is recursive, so never inlined
+        String source = "function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }\n"
+                + "function g(n) { var i <- 0, s <- 0; while (i < n) { if (i % 3 = 0) { s <- s + i; } i <- i + 1; }"
+                + " return s; }\n"
+                + "function entry() { return fib(15) + g(3000); }";
+        String hash = Profile.hash(source);
+        int expected = runProfiled(source, new Profile(hash), "interp", null, file);
+
+        TieredCompiler tiers = new TieredCompiler(1000, 1000000, 1000, false);
+        assertEquals(expected, runProfiled(source, Profile.load(file, hash), "tiered", tiers, file));
+        tiers.awaitCompilation();
+        tiers.shutdown();
+        List<String> events = tiers.getEvents();
+        assertTrue(events.toString(), events.get(0).startsWith("Tier-up of fib after its profile"));
+        // g's loop ran 3000 iterations in one go, so it moves at the first
+        assertTrue(events.toString(), events.get(1)
+                .startsWith("On-stack replacement of while loop at line 2 of g after 1 iterations"));
+
+        TieredCompiler unprofiled = new TieredCompiler(1000, 1000000, 1000, false);
+        RunOptions options = new RunOptions("tiered");
+        options.setTieredCompiler(unprofiled);
+        assertEquals(expected, SPROLARunner.run(SPROLARunner.parse(source), options));
+        unprofiled.awaitCompilation();
+        unprofiled.shutdown();
+        assertTrue(unprofiled.getEvents().get(0), unprofiled.getEvents().get(0)
+                .startsWith("Tier-up of fib after 1000 calls"));
+    }
+}
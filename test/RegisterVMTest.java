@@ -0,0 +1,73 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the VMTest programs on the register VM, plus checks of the code the
+ * register compiler and allocator produce.
+ */
+public class RegisterVMTest extends VMTest {
+    @Override
+    protected String engine() {
+        return "reg";
+    }
+
+    private RegisterChunk compileFunction(String source, String name) {
+        for (RegisterChunk chunk : new RegisterCompiler().compile(SPROLARunner.parse(source))) {
+            if (chunk.getName().equals(name)) {
+                return chunk;
+            }
+        }
+        throw new AssertionError("No chunk for " + name);
+    }
+
+    @Test
+    public void testRecursiveCallNeedsNoMoves() {
+        RegisterChunk factorial = compileFunction(
+                "function factorial(x) { if (x = 0) { return 1; } return x * factorial(x - 1); }",
+                "factorial");
+        // compare-and-jump, CONST, RETURN, SUBK, CALL, MUL, RETURN, plus the implicit return 0
+        assertEquals(9, factorial.getInstructionCount());
+        assertTrue(factorial.getFrameSize() <= 3);
+    }
+
+    @Test
+    public void testTemporariesShareRegisters() {
+        RegisterChunk fn = compileFunction(
+                "function f(a) { print a + 1; print a + 2; print a + 3; print a + 4; return a; }", "f");
+        // the parameter plus one register reused by every temporary
+        assertEquals(2, fn.getFrameSize());
+    }
+
+    @Test
+    public void testValuesLiveAcrossLoopIterations() {
+        // a's last mention is early in the loop body, but the next iteration
+        // still needs it, so t must not take its register
+        assertSameAsInterpreter("function w() { var a <- 5, s <- 0, i <- 0;"
+                + " while (i < 3) { s <- s + a; var t <- i * 100; s <- s + t; i <- i + 1; } return s; }"
+                + "function r() { var a <- 5, s <- 0;"
+                + " run { s <- s + a; var u <- 7; s <- s + u; } while (s < 40); return s; }"
+                + "function entry() { return w() * 1000 + r(); }");
+    }
+
+    @Test
+    public void testGlobalReadBeforeCallThatChangesIt() {
+        assertSameAsInterpreter("var g <- 1;"
+                + " function bump() { g <- g + 10; return g; }"
+                + " var h <- g + bump();"
+                + " function entry() { print h; return g * bump() + g; }");
+    }
+
+    @Test
+    public void testRegisterVMErrorLeavesNoCallsBehind() {
+        RegisterVM vm = new RegisterVM(new RegisterCompiler().compile(SPROLARunner.parse(
+                "function boom(n) { if (n = 0) { return 1 / n; } return boom(n - 1); }")));
+        vm.run();
+        ArithmeticException e = assertThrows(ArithmeticException.class, () -> vm.call("boom", 50));
+        assertEquals("/ by zero", e.getMessage());
+        assertEquals(0, vm.getCallDepth());
+        assertEquals(3, vm.call("max", 1, 3));
+    }
+}
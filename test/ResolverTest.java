@@ -0,0 +1,108 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResolverTest {
+
+    private List<Statement> parseProgram(String source) {
+        Parser parser = new Parser(new Lexer(source).tokenize());
+        List<Statement> program = new ArrayList<>();
+        while (!parser.isAtEnd()) {
+            program.add(parser.parse());
+        }
+        return program;
+    }
+
+    @Test
+    public void testParametersAndLocalsGetSlots() {
+        List<Statement> program = parseProgram(
+                "function f(a, b) { var c <- a + b; return c; }");
+        Resolver resolver = new Resolver();
+        resolver.resolve(program);
+
+        FunctionDeclarationStatement fn = (FunctionDeclarationStatement) program.get(0);
+        VarDeclarationStatement decl = (VarDeclarationStatement) fn.getBody().get(0);
+        assertEquals(2, decl.getDeclarators().get(0).getSlot());
+
+        BinaryExpression sum = (BinaryExpression) decl.getDeclarators().get(0).getInitializer();
+        VariableExpression a = (VariableExpression) sum.getLeft();
+        VariableExpression b = (VariableExpression) sum.getRight();
+        assertEquals(0, a.getDepth());
+        assertEquals(0, a.getSlot());
+        assertEquals(1, b.getSlot());
+        assertEquals(3, fn.getFrameSize());
+    }
+
+    @Test
+    public void testGlobalsResolveOneFrameOut() {
+        List<Statement> program = parseProgram(
+                "var g <- 1; function f() { g <- g + 1; return g; }");
+        Resolver resolver = new Resolver();
+        resolver.resolve(program);
+        assertEquals(1, resolver.getGlobalCount());
+
+        FunctionDeclarationStatement fn = (FunctionDeclarationStatement) program.get(1);
+        VarAssignmentStatement assign = (VarAssignmentStatement) fn.getBody().get(0);
+        assertEquals(1, assign.getDepth());
+        assertEquals(0, assign.getSlot());
+    }
+
+    @Test
+    public void testBlockSlotsAreReused() {
+        List<Statement> program = parseProgram(
+                "function f(x) { if (x) { var a <- 1; } else { var b <- 2; } var c <- 3; }");
+        new Resolver().resolve(program);
+
+        FunctionDeclarationStatement fn = (FunctionDeclarationStatement) program.get(0);
+        IfStatement ifStmt = (IfStatement) fn.getBody().get(0);
+        VarDeclarationStatement a = (VarDeclarationStatement) ifStmt.getThenBranch().get(0);
+        VarDeclarationStatement b = (VarDeclarationStatement) ifStmt.getElseBranch().get(0);
+        VarDeclarationStatement c = (VarDeclarationStatement) fn.getBody().get(1);
+        assertEquals(1, a.getDeclarators().get(0).getSlot());
+        assertEquals(1, b.getDeclarators().get(0).getSlot());
+        assertEquals(1, c.getDeclarators().get(0).getSlot());
+        assertEquals(2, fn.getFrameSize());
+    }
+
+    @Test
+    public void testResolvedProgramRuns() {
+        List<Statement> program = parseProgram(
+                "var base <- 10; function add(x) { var y <- x + base; return y; }");
+        new Resolver().resolve(program);
+        Interpreter interpreter = new Interpreter();
+        for (Statement stmt : program) {
+            stmt.accept(interpreter);
+        }
+        assertEquals(15, interpreter.callFunction("add", List.of(5)));
+    }
+
+    @Test
+    public void testOnlySelfCallsInTailPositionAreMarked() {
+        List<Statement> program = parseProgram(
+                "function f(n) { if (n) { return f(n - 1); } return 1 + f(n); }"
+                + " function g(n) { return f(n); }");
+        new Resolver().resolve(program);
+
+        FunctionDeclarationStatement f = (FunctionDeclarationStatement) program.get(0);
+        IfStatement ifStmt = (IfStatement) f.getBody().get(0);
+        ReturnStatement tail = (ReturnStatement) ifStmt.getThenBranch().get(0);
+        ReturnStatement notTail = (ReturnStatement) f.getBody().get(1);
+        assertNotNull(tail.getSelfTailCall());
+        assertNull(notTail.getSelfTailCall());
+
+        FunctionDeclarationStatement g = (FunctionDeclarationStatement) program.get(1);
+        assertNull(((ReturnStatement) g.getBody().get(0)).getSelfTailCall());
+    }
+
+    @Test
+    public void testRedefinedFunctionIsNotMarked() {
+        // the first f calls whichever f is defined when it runs
+        List<Statement> program = parseProgram(
+                "function f(n) { return f(n - 1); } function f(n) { return n; }");
+        new Resolver().resolve(program);
+
+        FunctionDeclarationStatement first = (FunctionDeclarationStatement) program.get(0);
+        assertNull(((ReturnStatement) first.getBody().get(0)).getSelfTailCall());
+    }
+}
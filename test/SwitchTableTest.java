@@ -0,0 +1,64 @@
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SwitchTableTest {
+    private static IfStatement chain(String conditions) {
+        StringBuilder source = new StringBuilder("function f(s, t) { ");
+        String[] parts = conditions.split(";");
+        for (int i = 0; i < parts.length; i++) {
+            source.append(i == 0 ? "if (" : " elif (").append(parts[i]).append(") { return ").append(i).append("; }");
+        }
+        source.append(" else { return -1; } }");
+        List<Statement> program = SPROLARunner.parse(source.toString(), false);
+        return (IfStatement) ((FunctionDeclarationStatement) program.get(0)).getBody().get(0);
+    }
+
+    @Test
+    public void testDenseLiteralsUseAnArray() {
+        SwitchTable table = chain("s = 3;s = 1;4 = s;s = -1;s = 0").getSwitchTable();
+        assertNotNull(table);
+        assertTrue(table.isDense());
+        assertEquals("s", table.getSubject().getName());
+        assertArrayEquals(new int[] {-1, 0, 1, 3, 4}, table.getKeys());
+        assertEquals(0, table.armFor(3));
+        assertEquals(2, table.armFor(4));
+        assertEquals(3, table.armFor(-1));
+        assertEquals(-1, table.armFor(2));
+        assertEquals(-1, table.armFor(5));
+        assertEquals(-1, table.armFor(Integer.MIN_VALUE));
+        assertEquals(-1, table.armFor(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testSparseLiteralsAreHashed() {
+        SwitchTable table = chain("s = 1000;s = -5;s = 1000;s = 2147483647;s = 77").getSwitchTable();
+        assertFalse(table.isDense());
+        // a repeated literal belongs to its first arm
+        assertEquals(0, table.armFor(1000));
+        assertEquals(1, table.armFor(-5));
+        assertEquals(3, table.armFor(Integer.MAX_VALUE));
+        assertEquals(4, table.armFor(77));
+        for (int value = -100; value < 100; value++) {
+            if (value != -5 && value != 77) {
+                assertEquals(-1, table.armFor(value));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherChainsHaveNoTable() {
+        assertNull(chain("s = 1;s = 2;s = 3").getSwitchTable());
+        assertNull(chain("s = 1;s = 2;t = 3;s = 4").getSwitchTable());
+        assertNull(chain("s = 1;s = 2;s < 3;s = 4").getSwitchTable());
+        assertNull(chain("s = 1;s = 2;s = t;s = 4").getSwitchTable());
+        assertNull(chain("s = 1;s = 2;s = 1 + 2;s = 4").getSwitchTable());
+    }
+}
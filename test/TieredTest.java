@@ -0,0 +1,254 @@
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the VMTest programs on the tiered engine, with thresholds low
+ * enough that functions tier up while the programs run, plus checks of
+ * when they do.
+ */
+public class TieredTest extends VMTest {
+    @Override
+    protected String engine() {
+        return "tiered";
+    }
+
+    @Override
+    protected int execute(List<Statement> program, String engine) {
+        if (!engine.equals("tiered")) {
+            return super.execute(program, engine);
+        }
+        RunOptions options = new RunOptions(engine);
+        TieredCompiler tiers = new TieredCompiler(2, 5, 3, false);
+        options.setTieredCompiler(tiers);
+        try {
+            return SPROLARunner.run(program, options);
+        } finally {
+            tiers.shutdown();
+        }
+    }
+
+    @Override
+    @Test
+    public void testDeepRecursion() {
+        // calls use the Java stack, and the outer ones run in the tree
+        // walker before the compiled code is ready; SPROLARunner.run gives
+        // them a deep stack
+        String source = "function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(20000); }";
+        assertEquals("Returned value: 20000", run(source, engine()));
+    }
+
+    private static Interpreter load(String source, TieredCompiler tiers) {
+        // unoptimized, so that calls are not inlined and loops not summarized
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(source, false));
+        interp.setTieredCompiler(tiers);
+        return interp;
+    }
+
+    private static FunctionDeclarationStatement function(Interpreter interp, String name) {
+        return interp.symbolTable.lookup(name);
+    }
+
+    @Test
+    public void testHotFunctionIsCompiledWithItsCallees() {
+        TieredCompiler tiers = new TieredCompiler(10, 1000000, false);
+        // sq is compiled with f before it is ever called
+        Interpreter interp = load("function sq(x) { return x * x; }"
+                + " function f(x) { if (x > 100) { return sq(x); } return x + 1; }"
+                + " function g(x) { return x; }", tiers);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i + 1, interp.callFunction("f", List.of(i)));
+        }
+        tiers.awaitCompilation();
+        assertEquals(0, tiers.getTierUps());
+        assertEquals(10, interp.callFunction("f", List.of(9)));
+        tiers.awaitCompilation();
+        assertEquals(1, tiers.getTierUps());
+        assertEquals(2, tiers.getCompiledFunctions());
+        assertTrue(tiers.getEvents().get(0), tiers.getEvents().get(0).startsWith("Tier-up of f after 10 calls"));
+        assertTrue(tiers.tierOf(function(interp, "f")).code != null);
+        assertTrue(tiers.tierOf(function(interp, "sq")).code != null);
+        assertNull(tiers.tierOf(function(interp, "g")).code);
+        assertEquals(10201, interp.callFunction("f", List.of(101)));
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testHotLoopCompilesItsFunction() {
+        TieredCompiler tiers = new TieredCompiler(1000000, 100, false);
+        Interpreter interp = load("function sum(n) { var i <- 0, s <- 0; while (i < n) { s <- s + i; i <- i + 1; }"
+                + " return s; }", tiers);
+        assertEquals(499500, interp.callFunction("sum", List.of(1000)));
+        tiers.awaitCompilation();
+        assertEquals(1, tiers.getTierUps());
+        assertTrue(tiers.getEvents().get(0).startsWith("Tier-up of sum after 100 loop iterations"));
+        assertEquals(4950, interp.callFunction("sum", List.of(100)));
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testMemoizedFunctionsStayInterpreted() {
+        List<Statement> program = SPROLARunner.parse(
+                "function fib(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+                + " function entry() { var i <- 0, s <- 0; while (i < 50) { s <- s + fib(30); i <- i + 1; }"
+                + " return s; }");
+        Memoizer memoizer = new Memoizer(program);
+        TieredCompiler tiers = new TieredCompiler(2, 5, false);
+        RunOptions options = new RunOptions("tiered");
+        options.setMemoizer(memoizer);
+        options.setTieredCompiler(tiers);
+        assertEquals(50 * 832040, SPROLARunner.run(program, options));
+        tiers.awaitCompilation();
+        assertEquals(0, tiers.getTierUps());
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testRedefinedFunctionDropsItsCode() {
+        TieredCompiler tiers = new TieredCompiler(1, 1000000, false);
+        Interpreter interp = load("function f() { return 1; } function entry() { return f(); }", tiers);
+        assertEquals(1, interp.callFunction("entry", Collections.emptyList()));
+        tiers.awaitCompilation();
+        interp.defineFunction("f", (FunctionDeclarationStatement)
+                SPROLARunner.parse("function f() { return 2; }").get(0));
+        assertEquals(2, interp.callFunction("entry", Collections.emptyList()));
+        tiers.awaitCompilation();
+        assertEquals(2, interp.callFunction("entry", Collections.emptyList()));
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testNestedFunctionsStayInterpreted() {
+        TieredCompiler tiers = new TieredCompiler(1, 1, false);
+        String source = "function outer(x) { function inner(y) { return x + y; } return inner(2); }"
+                + " function entry() { return outer(40) + outer(1); }";
+        Interpreter interp = load(source, tiers);
+        assertEquals(45, interp.callFunction("entry", Collections.emptyList()));
+        tiers.awaitCompilation();
+        assertEquals(45, interp.callFunction("entry", Collections.emptyList()));
+        assertEquals(0, tiers.getTierUps());
+        assertTrue(tiers.getFailures() > 0);
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testLongLoopMovesOntoCompiledCode() {
+        TieredCompiler tiers = new TieredCompiler(1000000, 1000000, 10, false);
+        // so each run moves onto its loop's code right after 10 iterations
+        tiers.setSynchronous(true);
+        Interpreter interp = load("var t <- 0;"
+                + " function f(n) { var i <- 0, s <- 0; while (i < n) { var d <- i * 2; s <- s + d; t <- t + 1;"
+                + " if (s > 5000) { return -i; } i <- i + 1; } return s + i; }"
+                + " function g(n) { var k <- 0; run { k <- k + 3; } while (k < n); return k; }"
+                + " function total() { return t; }", tiers);
+        assertEquals(20 * 19 + 20, interp.callFunction("f", List.of(20)));
+        assertEquals(1, tiers.getLoopEntries());
+        assertEquals(60, interp.callFunction("g", List.of(59)));
+        assertEquals(2, tiers.getLoopEntries());
+        assertEquals(2, tiers.getCompiledLoops());
+        assertTrue(tiers.getEvents().get(0), tiers.getEvents().get(0)
+                .startsWith("On-stack replacement of while loop at line 1 of f after 10 iterations"));
+
+        // later runs reuse the compiled loops, and leave the variables as
+        // the interpreter would
+        assertEquals(30 * 29 + 30, interp.callFunction("f", List.of(30)));
+        assertEquals(3, tiers.getLoopEntries());
+        assertEquals(-71, interp.callFunction("f", List.of(100)));
+        assertEquals(4, tiers.getLoopEntries());
+        assertEquals(102, interp.callFunction("g", List.of(100)));
+        assertEquals(5, tiers.getLoopEntries());
+        assertEquals(2, tiers.getCompiledLoops());
+        assertEquals(20 + 30 + 72, interp.callFunction("total", Collections.emptyList()));
+        // short runs stay in the tree walker
+        assertEquals(5 * 4 + 5, interp.callFunction("f", List.of(5)));
+        assertEquals(5, tiers.getLoopEntries());
+        assertEquals(0, tiers.getTierUps());
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testRedefinedCalleeDropsCompiledLoop() {
+        TieredCompiler tiers = new TieredCompiler(1000000, 1000000, 10, false);
+        Interpreter interp = load("function step() { return 1; }"
+                + " function f(n) { var i <- 0, s <- 0; while (i < n) { s <- s + step(); i <- i + 1; } return s; }",
+                tiers);
+        assertEquals(50, interp.callFunction("f", List.of(50)));
+        tiers.awaitCompilation();
+        interp.defineFunction("step", (FunctionDeclarationStatement)
+                SPROLARunner.parse("function step() { return 2; }").get(0));
+        // the stale loop is compiled again rather than entered
+        assertEquals(100, interp.callFunction("f", List.of(50)));
+        tiers.awaitCompilation();
+        assertEquals(2, tiers.getCompiledLoops());
+        assertEquals(100, interp.callFunction("f", List.of(50)));
+        assertTrue(tiers.getLoopEntries() >= 1);
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testAssignedGlobalDeoptimizesCodeThatFoldedIt() {
+        TieredCompiler tiers = new TieredCompiler(2, 1000000, false);
+        Interpreter interp = load("var limit <- 10; var scale <- 3;"
+                + " function f(x) { if (x > limit) { return x * scale; } return x; }"
+                + " function setLimit(n) { limit <- n; return n; }", tiers);
+        assertEquals(5, interp.callFunction("f", List.of(5)));
+        assertEquals(60, interp.callFunction("f", List.of(20)));
+        tiers.awaitCompilation();
+        JitCode code = tiers.tierOf(function(interp, "f")).code;
+        assertEquals(Set.of(0, 1), code.getSpeculatedGlobals());
+        assertEquals(1, tiers.getSpeculations());
+        assertEquals(60, interp.callFunction("f", List.of(20)));
+
+        // the interpreted assignment sends f back to the interpreter
+        assertEquals(100, interp.callFunction("setLimit", List.of(100)));
+        assertTrue(code.isInvalidated());
+        assertEquals(1, tiers.getDeopts());
+        assertEquals("Deoptimized f after global 'limit' was assigned",
+                tiers.getEvents().get(tiers.getEvents().size() - 1));
+        assertEquals(20, interp.callFunction("f", List.of(20)));
+        tiers.awaitCompilation();
+
+        // and it tiers up again, reading limit from the environment
+        JitCode recompiled = tiers.tierOf(function(interp, "f")).code;
+        assertEquals(Set.of(1), recompiled.getSpeculatedGlobals());
+        assertEquals(450, interp.callFunction("f", List.of(150)));
+        assertEquals(7, interp.callFunction("setLimit", List.of(7)));
+        assertEquals(24, interp.callFunction("f", List.of(8)));
+        assertEquals(1, tiers.getDeopts());
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testGlobalsTheCodeAssignsAreNotFolded() {
+        TieredCompiler tiers = new TieredCompiler(2, 1000000, false);
+        Interpreter interp = load("var count <- 0; var step <- 2;"
+                + " function bump() { count <- count + step; return count; }", tiers);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(2 * i, interp.callFunction("bump", Collections.emptyList()));
+            tiers.awaitCompilation();
+        }
+        assertEquals(Set.of(1), tiers.tierOf(function(interp, "bump")).code.getSpeculatedGlobals());
+        assertEquals(0, tiers.getDeopts());
+        assertTrue(tiers.getStats(), tiers.getStats().contains("Speculation: 1 compilations"));
+        tiers.shutdown();
+
+        TieredCompiler plain = new TieredCompiler(2, 1000000, false);
+        plain.setSpeculation(false);
+        interp = load("var count <- 0; var step <- 2;"
+                + " function bump() { count <- count + step; return count; }", plain);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(2 * i, interp.callFunction("bump", Collections.emptyList()));
+            plain.awaitCompilation();
+        }
+        assertEquals(Set.of(), plain.tierOf(function(interp, "bump")).code.getSpeculatedGlobals());
+        assertEquals(0, plain.getSpeculations());
+        plain.shutdown();
+    }
+}
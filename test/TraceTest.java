@@ -0,0 +1,129 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the VMTest programs on the trace engine, with a threshold low
+ * enough that their loops are traced, plus checks of the traces.
+ */
+public class TraceTest extends VMTest {
+    @Override
+    protected String engine() {
+        return "trace";
+    }
+
+    @Override
+    protected int execute(List<Statement> program, String engine) {
+        if (!engine.equals("trace")) {
+            return super.execute(program, engine);
+        }
+        RunOptions options = new RunOptions(engine);
+        options.setTracingJit(new TracingJit(2, false));
+        return SPROLARunner.run(program, options);
+    }
+
+    @Override
+    @Test
+    public void testDeepRecursion() {
+        // the trace engine interprets calls, which use the Java stack of the
+        // thread SPROLARunner.run starts
+        String source = "function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(20000); }";
+        assertEquals("Returned value: 20000", run(source, engine()));
+    }
+
+    private static Interpreter load(String source, TracingJit tracing) {
+        // unoptimized, so that loops are not summarized or hoisted
+        Interpreter interp = SPROLARunner.load(SPROLARunner.parse(source, false));
+        interp.setTracingJit(tracing);
+        return interp;
+    }
+
+    private static int call(Interpreter interp, String name, int... args) {
+        List<Integer> values = new ArrayList<>();
+        for (int arg : args) {
+            values.add(arg);
+        }
+        return (Integer) interp.callFunction(name, values);
+    }
+
+    private static WhileStatement firstLoop(Interpreter interp, String name) {
+        for (Statement stmt : interp.symbolTable.lookup(name).getBody()) {
+            if (stmt instanceof WhileStatement loop) {
+                return loop;
+            }
+        }
+        throw new AssertionError("no loop in " + name);
+    }
+
+    @Test
+    public void testTraceFollowsTakenBranches() {
+        TracingJit tracing = new TracingJit(10, false);
+        Interpreter interp = load("var step <- 3;"
+                + " function f(n) { var i <- 0, s <- 0, mode <- 2;"
+                + " while (i < n) { if (mode > 5) { s <- s - 1; } elif (mode = 2) { s <- s + step; }"
+                + " else { s <- s + 1; } i <- i + 1; } return s; }", tracing);
+        assertEquals(3000, call(interp, "f", 1000));
+        assertEquals(1, tracing.getTraces());
+        assertEquals(990, tracing.getTraceIterations());
+        assertEquals(0, tracing.getGuardFailures());
+        // mode is never assigned, so its guards are checked once on entry
+        // and step, a global, is loaded once
+        String code = tracing.loopOf(firstLoop(interp, "f")).traces.get(0).trace.toString();
+        String loop = code.substring(code.indexOf("loop:"));
+        assertTrue(code, !loop.contains("GUARD_FALSE") && !loop.contains("LOAD_GLOBAL"));
+    }
+
+    @Test
+    public void testGuardFailureFallsBackAndRecordsSideTrace() {
+        TracingJit tracing = new TracingJit(10, false);
+        Interpreter interp = load("function f(n) { var i <- 0, s <- 0;"
+                + " while (i < n) { if (i % 10 = 9) { s <- s + 100; } else { s <- s + 1; } i <- i + 1; }"
+                + " return s; }", tracing);
+        assertEquals(100 * 100 + 900, call(interp, "f", 1000));
+        assertEquals(2, tracing.getTraces());
+        assertTrue(tracing.getGuardFailures() > 0);
+        assertEquals(100 * 100 + 900, call(interp, "f", 1000));
+        assertTrue(tracing.getStats(), tracing.getStats().startsWith("Tracing: 2 traces recorded"));
+    }
+
+    @Test
+    public void testGlobalsAreWrittenBack() {
+        TracingJit tracing = new TracingJit(5, false);
+        Interpreter interp = load("var total <- 0;"
+                + " function f(n) { var i <- 0; while (i < n) { var d <- i * 2; total <- total + d; i <- i + 1; }"
+                + " return i; } function get() { return total; }", tracing);
+        assertEquals(100, call(interp, "f", 100));
+        assertEquals(9900, call(interp, "get"));
+        assertEquals(1, tracing.getTraces());
+    }
+
+    @Test
+    public void testUntraceableLoopIsAbortedOnce() {
+        TracingJit tracing = new TracingJit(5, false);
+        Interpreter interp = load("function sq(x) { return x * x; }"
+                + " function f(n) { var i <- 0, s <- 0; while (i < n) { s <- s + sq(i); i <- i + 1; } return s; }",
+                tracing);
+        assertEquals(328350, call(interp, "f", 100));
+        assertEquals(328350, call(interp, "f", 100));
+        assertEquals(0, tracing.getTraces());
+        assertEquals(1, tracing.getAborted());
+        assertEquals(List.of("Trace of while loop at line 1 aborted: Calls sq"), tracing.getEvents());
+    }
+
+    @Test
+    public void testDivisionByZeroOnTraceFailsAsInterpreted() {
+        TracingJit tracing = new TracingJit(5, false);
+        Interpreter interp = load("function f(n) { var i <- 0, s <- 0;"
+                + " while (i < n) { s <- s + 100 / (20 - i); i <- i + 1; } return s; }", tracing);
+        // the interpreter runs the failing iteration, and its division throws
+        assertThrows(ArithmeticException.class, () -> call(interp, "f", 30));
+        assertEquals(1, tracing.getGuardFailures());
+        assertEquals(0, tracing.getAborted());
+    }
+}
@@ -0,0 +1,214 @@
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The VM must behave exactly like the Interpreter. Each test runs a program
+ * on both engines and compares what they print, what entry() returns and
+ * which error they raise. Subclasses run the same programs on other engines.
+ */
+public class VMTest {
+    private final PrintStream originalOut = System.out;
+    private final InputStream originalIn = System.in;
+
+    @After
+    public void tearDown() {
+        System.setOut(originalOut);
+        System.setIn(originalIn);
+    }
+
+    /**
+     * The engine under test, as named by SPROLARunner's --engine option.
+     */
+    protected String engine() {
+        return "vm";
+    }
+
+    /**
+     * Run a program and describe everything it did.
+     */
+    protected String run(String source, String engine) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(out));
+        System.setIn(new ByteArrayInputStream("7\n".getBytes()));
+        String result;
+        try {
+            result = "Returned value: " + execute(SPROLARunner.parse(source), engine);
+        } catch (ArithmeticException e) {
+            // once code that divides by zero is hot, HotSpot may throw a
+            // preallocated exception without a message
+            result = "Error: / by zero";
+        } catch (RuntimeException e) {
+            result = "Error: " + e.getMessage();
+        } finally {
+            System.setOut(originalOut);
+        }
+        return out + result;
+    }
+
+    /**
+     * Run a parsed program on an engine.
+     */
+    protected int execute(List<Statement> program, String engine) {
+        return SPROLARunner.run(program, engine);
+    }
+
+    protected void assertSameAsInterpreter(String source) {
+        assertEquals(run(source, "interp"), run(source, engine()));
+    }
+
+    @Test
+    public void testArithmetic() {
+        assertSameAsInterpreter("function entry() { print 1 + 2 * 3; print (1 + 2) * 3;"
+                + " print 7 / 2; print 7 % 3; print -5 + 2; return 2147483647 + 1; }");
+    }
+
+    @Test
+    public void testComparisons() {
+        // not-equal is written ~
+        String source = "function entry() { print 1 < 2; print 2 <= 1; print 3 > 2;"
+                + " print 3 >= 4; print 5 = 5; print 5 ~ 5; print 4 ~ 5; return 0; }";
+        String printed = String.join(System.lineSeparator(), "1", "0", "1", "0", "1", "0", "1", "");
+        assertEquals(printed + "Returned value: 0", run(source, engine()));
+        assertSameAsInterpreter(source);
+    }
+
+    @Test
+    public void testNestedFunctions() {
+        // engines that cannot compile nested functions leave them to the interpreter
+        String source = "function outer(x) { function inner(y) { return x + y; } return inner(2); }"
+                + " function entry() { print outer(40); return outer(1); }";
+        assertEquals("42" + System.lineSeparator() + "Returned value: 3", run(source, engine()));
+        assertSameAsInterpreter(source);
+    }
+
+    @Test
+    public void testIfElifElse() {
+        assertSameAsInterpreter(
+                "function sign(x) { if (x > 0) { return 1; } elif (x = 0) { return 0; } else { return -1; } }"
+                + "function entry() { print sign(5); print sign(0); print sign(-5); return 0; }");
+    }
+
+    @Test
+    public void testLoops() {
+        assertSameAsInterpreter("function entry() { var i <- 0, sum <- 0;"
+                + " while (i < 10) { var sq <- i * i; sum <- sum + sq; i <- i + 1; }"
+                + " run { sum <- sum - 1; } while (sum > 200);"
+                + " run { print sum; } while (0); return sum; }");
+    }
+
+    @Test
+    public void testRecursionAndGlobals() {
+        assertSameAsInterpreter("var calls <- 0;"
+                + "function fib(n) { calls <- calls + 1; if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }"
+                + "function entry() { print fib(15); return calls; }");
+    }
+
+    @Test
+    public void testDeepRecursion() {
+        // the VM keeps its frames on its own stack, so depth is not limited by the Java stack
+        String source = "function down(n) { if (n = 0) { return 0; } return 1 + down(n - 1); }"
+                + "function entry() { return down(100000); }";
+        assertEquals("Returned value: 100000", run(source, engine()));
+    }
+
+    @Test
+    public void testSwitchChains() {
+        // dense, hashed with a repeated literal, and one on a global
+        // without an else branch
+        assertSameAsInterpreter("var g <- 2;"
+                + " function dense(s) { if (s = 1) { return 10; } elif (s = 2) { return 20; } elif (3 = s) { return 30; }"
+                + " elif (s = -1) { return -10; } elif (s = 4) { print s; } else { return 0; } return 99; }"
+                + " function sparse(s) { var r <- 0; if (s = 100) { r <- 1; } elif (s = -70000) { r <- 2; }"
+                + " elif (s = 100) { r <- 3; } elif (s = 2147483647) { r <- 4; } elif (s = 9) { r <- 5; } return r; }"
+                + " function global() { if (g = 1) { print 1; } elif (g = 2) { print 2; } elif (g = 3) { print 3; }"
+                + " elif (g = 4) { print 4; } return g; }"
+                + " function entry() { var i <- -3, t <- 0; while (i < 7) { t <- t * 3 + dense(i); i <- i + 1; }"
+                + " print t; print sparse(100) + sparse(-70000) * 10 + sparse(2147483647) * 100 + sparse(9) * 1000"
+                + " + sparse(-2147483648) + sparse(101); return global(); }");
+        assertSameAsInterpreter("function f(s) { if (s = 1) { return 1; } elif (s = 2) { return 2; }"
+                + " elif (s = 3) { return 3; } elif (s = 4) { return 4; } return 0; }"
+                + " function entry() { return f(3) + f(missing); }");
+    }
+
+    @Test
+    public void testSelfTailCallsRunInConstantStack() {
+        // far deeper than any engine's call stack; the sum wraps around
+        String source = "function sum(n, acc) { if (n = 0) { return acc; } return sum(n - 1, acc + n); }"
+                + "function entry() { return sum(3000000, 0); }";
+        assertEquals("Returned value: " + (int) (3000000L * 3000001L / 2), run(source, engine()));
+    }
+
+    @Test
+    public void testTailCallArgumentsUseOldParameters() {
+        assertSameAsInterpreter("function swap(a, b, n) { if (n = 0) { return a * 10 + b; } return swap(b, a, n - 1); }"
+                + "function entry() { return swap(1, 2, 5); }");
+    }
+
+    @Test
+    public void testTopLevelStatements() {
+        assertSameAsInterpreter("var g <- 3; while (g > 0) { g <- g - 1; return 5; }"
+                + " print abs; print g;"
+                + " function entry() { return g; }");
+    }
+
+    @Test
+    public void testBuiltins() {
+        assertSameAsInterpreter("function entry() { print abs(-4); print max(3, 9); print min(3, 9);"
+                + " print(12); var x <- input; return x; }");
+    }
+
+    @Test
+    public void testReturnWithoutValue() {
+        assertSameAsInterpreter("function f() { return; } function g() { var a <- 1; }"
+                + " function entry() { return f() + g(); }");
+    }
+
+    @Test
+    public void testErrors() {
+        assertSameAsInterpreter("function entry() { return 1 / 0; }");
+        assertSameAsInterpreter("function entry() { return foo(1); }");
+        assertSameAsInterpreter("function f(a) { return a; } function entry() { return f(1, 2); }");
+        assertSameAsInterpreter("function entry() { return max(1); }");
+        assertSameAsInterpreter("function entry() { var y <- 1 + abs; return y; }");
+        assertSameAsInterpreter("function main() { return 0; }");
+    }
+
+    @Test
+    public void testErrorLeavesNoCallsBehind() {
+        VM vm = new VM(new BytecodeCompiler().compile(SPROLARunner.parse(
+                "function boom(n) { if (n = 0) { return 1 / n; } return boom(n - 1); }")));
+        vm.run();
+        ArithmeticException e = assertThrows(ArithmeticException.class, () -> vm.call("boom", 50));
+        assertEquals("/ by zero", e.getMessage());
+        assertEquals(0, vm.getCallDepth());
+        assertEquals(3, vm.call("max", 1, 3));
+    }
+
+    @Test
+    public void testExampleFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("files"), "*.txt")) {
+            for (Path file : files) {
+                String source = new String(Files.readAllBytes(file));
+                assertEquals(file.toString(), run(source, "interp"), run(source, engine()));
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+    }
+}